@@ -0,0 +1,169 @@
+package ufinder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/** A small timing harness for the ufinder hot paths, run by "ant bench".
+ *
+ * Each benchmark is warmed up and then timed over a number of measurement
+ * iterations of fixed duration. The average time per operation and its
+ * 99.9% confidence half-width are reported, and written as JSON laid out in
+ * the same way as JMH's -rf json output so that results from different
+ * releases can be compared with the usual tools.
+ */
+public class BenchmarkHarness {
+
+    /** A benchmark. run() is called repeatedly and should return something
+     * derived from its work so that the JIT cannot discard it.
+     */
+    public static abstract class Benchmark {
+
+	private final String name;
+
+	public Benchmark(String name) {
+	    this.name = name;
+	}
+
+	public String getName() {
+	    return name;
+	}
+
+	/** Called once before warm up */
+	public void setup() throws Exception {}
+
+	/** One operation */
+	public abstract Object run() throws Exception;
+    }
+
+    /** The outcome of running one benchmark */
+    public static class Result {
+	public String   name;
+	public double   score;      // ns/op
+	public double   scoreError; // ns/op, 99.9% confidence
+	public double[] raw;        // ns/op in each measurement iteration
+    }
+
+    private final int  warmupIterations;
+    private final int  measurementIterations;
+    private final long iterationNanos;
+    private final List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+    // Stops the JIT removing benchmark bodies
+    private volatile int sink;
+
+    /** Constructor
+     * @param warmupIterations      number of untimed warm up iterations
+     * @param measurementIterations number of timed iterations
+     * @param iterationMillis       duration of each iteration, milliseconds
+     */
+    public BenchmarkHarness(int warmupIterations, int measurementIterations, long iterationMillis) {
+	this.warmupIterations      = warmupIterations;
+	this.measurementIterations = measurementIterations;
+	this.iterationNanos        = iterationMillis*1000000L;
+    }
+
+    public void add(Benchmark benchmark) {
+	benchmarks.add(benchmark);
+    }
+
+    /** Runs every benchmark whose name contains filter (all of them if filter is null) */
+    public List<Result> run(String filter) throws Exception {
+	final List<Result> results = new ArrayList<Result>();
+	for(Benchmark benchmark : benchmarks){
+	    if(filter != null && !benchmark.getName().contains(filter)) continue;
+	    results.add(run(benchmark));
+	}
+	return results;
+    }
+
+    private Result run(Benchmark benchmark) throws Exception {
+	benchmark.setup();
+	for(int i=0; i<warmupIterations; i++)
+	    iteration(benchmark);
+
+	final Result result = new Result();
+	result.name = benchmark.getName();
+	result.raw  = new double[measurementIterations];
+	double sum = 0.;
+	for(int i=0; i<measurementIterations; i++){
+	    result.raw[i] = iteration(benchmark);
+	    sum += result.raw[i];
+	}
+	result.score = sum/measurementIterations;
+
+	double var = 0.;
+	for(int i=0; i<measurementIterations; i++)
+	    var += (result.raw[i]-result.score)*(result.raw[i]-result.score);
+	if(measurementIterations > 1){
+	    var /= (measurementIterations-1);
+	    result.scoreError = 3.29*Math.sqrt(var/measurementIterations);
+	}
+
+	System.out.println(String.format(Locale.US, "%-40s %14.1f +- %10.1f ns/op",
+					 result.name, result.score, result.scoreError));
+	return result;
+    }
+
+    // Runs benchmark until iterationNanos have passed. Returns ns/op.
+    private double iteration(Benchmark benchmark) throws Exception {
+	long ops = 0;
+	int hash = 0;
+	final long start = System.nanoTime();
+	long now = start;
+	while(now - start < iterationNanos){
+	    // check the clock in small batches so that it does not dominate fast benchmarks
+	    for(int i=0; i<16; i++){
+		final Object o = benchmark.run();
+		if(o != null) hash += o.hashCode();
+	    }
+	    ops += 16;
+	    now = System.nanoTime();
+	}
+	sink = hash;
+	return (double)(now - start)/ops;
+    }
+
+    /** Writes results in the JSON layout used by JMH */
+    public void writeJSON(List<Result> results, File file) throws IOException {
+	if(file.getParentFile() != null) file.getParentFile().mkdirs();
+	final PrintWriter out = new PrintWriter(new FileWriter(file));
+	try{
+	    out.println("[");
+	    for(int n=0; n<results.size(); n++){
+		final Result r = results.get(n);
+		out.println("    {");
+		out.println("        \"benchmark\" : \"ufinder." + r.name + "\",");
+		out.println("        \"mode\" : \"avgt\",");
+		out.println("        \"threads\" : 1,");
+		out.println("        \"warmupIterations\" : " + warmupIterations + ",");
+		out.println("        \"measurementIterations\" : " + measurementIterations + ",");
+		out.println("        \"measurementTime\" : \"" + iterationNanos/1000000L + " ms\",");
+		out.println("        \"primaryMetric\" : {");
+		out.println("            \"score\" : " + format(r.score) + ",");
+		out.println("            \"scoreError\" : " + format(r.scoreError) + ",");
+		out.println("            \"scoreUnit\" : \"ns/op\",");
+		out.print  ("            \"rawData\" : [ [ ");
+		for(int i=0; i<r.raw.length; i++){
+		    if(i > 0) out.print(", ");
+		    out.print(format(r.raw[i]));
+		}
+		out.println(" ] ]");
+		out.println("        }");
+		out.println(n < results.size()-1 ? "    }," : "    }");
+	    }
+	    out.println("]");
+	}finally{
+	    out.close();
+	}
+    }
+
+    private static String format(double x) {
+	return String.format(Locale.US, "%.3f", x);
+    }
+
+}
@@ -0,0 +1,35 @@
+package ufinder;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Stands in for a name resolver such as Sesame, offline: every name is known,
+ * at a made-up position that is always the same for the same name, after a
+ * delay like that of a remote service. Names starting "unknown" are not known.
+ */
+public class NameStandIn implements NameResolver {
+
+    private final long delay;
+    private final AtomicInteger calls = new AtomicInteger();
+
+    /** Constructor
+     * @param delay milliseconds taken to answer
+     */
+    public NameStandIn(long delay) {
+	this.delay = delay;
+    }
+
+    /** Number of names asked for */
+    public int getCalls() {
+	return calls.get();
+    }
+
+    public double[] resolve(String name) throws Exception {
+	calls.incrementAndGet();
+	if(delay > 0) Thread.sleep(delay);
+	final String key = TargetResolver.normalise(name);
+	if(key.startsWith("UNKNOWN")) return null;
+	final int h = key.hashCode();
+	return new double[] {((h & 0xffff)*360.)/65536., (((h >>> 16) & 0xffff)*180.)/65536. - 90.};
+    }
+
+}
@@ -0,0 +1,100 @@
+package ufinder;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+/** Reads the vertices of a footprint VOTable the way a VOTable client does,
+ * for the benchmarks: SAX, then Double.parseDouble on every TD of TABLEDATA,
+ * or base64 decoding and 4-byte floats for BINARY2. Only two-column float
+ * tables, as FOVWriter writes them, are understood.
+ */
+public class OverlayReader extends DefaultHandler {
+
+    private final SAXParser parser;
+    private final StringBuilder text = new StringBuilder();
+    private boolean inCell = false;
+    private int     rows   = 0;
+    private int     cells  = 0;
+    private double  sum    = 0.;
+
+    public OverlayReader() throws Exception {
+	parser = SAXParserFactory.newInstance().newSAXParser();
+    }
+
+    /** Reads a table, returning the number of rows */
+    public int read(InputStream in) throws Exception {
+	rows  = 0;
+	cells = 0;
+	sum   = 0.;
+	parser.parse(in, this);
+	return rows;
+    }
+
+    /** Sum of all the values read, to compare encodings */
+    public double getSum() {
+	return sum;
+    }
+
+    public void startElement(String uri, String localName, String qName, Attributes attributes) {
+	if(qName.equals("TD") || qName.equals("STREAM")){
+	    inCell = true;
+	    text.setLength(0);
+	}
+    }
+
+    public void characters(char[] ch, int start, int length) {
+	if(inCell) text.append(ch, start, length);
+    }
+
+    public void endElement(String uri, String localName, String qName) {
+	if(qName.equals("TD")){
+	    sum += Double.parseDouble(text.toString());
+	    if(++cells % 2 == 0) rows++;
+	}else if(qName.equals("STREAM")){
+	    final ByteBuffer b = ByteBuffer.wrap(decode(text));
+	    while(b.remaining() >= 9){
+		b.get();                 // null flags
+		sum += b.getFloat();
+		sum += b.getFloat();
+		rows++;
+	    }
+	}
+	inCell = false;
+    }
+
+    private static final int[] VALUE = new int[128];
+    static {
+	final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+	Arrays.fill(VALUE, -1);
+	for(int i=0; i<alphabet.length(); i++)
+	    VALUE[alphabet.charAt(i)] = i;
+    }
+
+    // Base64 to bytes, skipping white space and padding
+    private static byte[] decode(CharSequence s) {
+	final byte[] out = new byte[s.length()*3/4];
+	int n = 0, bits = 0, nbits = 0;
+	for(int i=0; i<s.length(); i++){
+	    final char c = s.charAt(i);
+	    final int v = c < 128 ? VALUE[c] : -1;
+	    if(v < 0) continue;
+	    bits = (bits << 6) | v;
+	    nbits += 6;
+	    if(nbits >= 8){
+		nbits -= 8;
+		out[n++] = (byte)(bits >>> nbits);
+	    }
+	}
+	final byte[] result = new byte[n];
+	System.arraycopy(out, 0, result, 0, n);
+	return result;
+    }
+
+}
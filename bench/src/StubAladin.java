@@ -0,0 +1,41 @@
+package ufinder;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/** Stand-in for Aladin used by the benchmarks. Commands are accepted and
+ * ignored; VOTables are read to the end, as Aladin would, so that the cost of
+ * producing the stream is fully paid.
+ */
+public class StubAladin implements AladinApp {
+
+    private long bytesRead = 0;
+    private int  commands  = 0;
+    private final byte[] buffer = new byte[8192];
+
+    public long getBytesRead() {
+	return bytesRead;
+    }
+
+    public int getCommands() {
+	return commands;
+    }
+
+    public String putVOTable(InputStream in, String label) {
+	try{
+	    int n;
+	    while((n = in.read(buffer)) != -1)
+		bytesRead += n;
+	    in.close();
+	}catch(IOException e){
+	    e.printStackTrace();
+	}
+	return label;
+    }
+
+    public String execCommand(String cmd) {
+	commands++;
+	return "";
+    }
+
+}
@@ -0,0 +1,228 @@
+package ufinder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/** A local stand-in for a survey image server, so that the survey cache can
+ * be tried and timed offline. It answers any request with ra, dec and size
+ * (degrees, degrees, arcmin) in the query with a FITS image of that field of
+ * made-up stars, with a WCS that Aladin can use; with a directory it serves
+ * the FITS files in it by name instead, e.g. /m31.fits.
+ *
+ * Point ufinder at it with, e.g.
+ * SURVEY_URL_ESO-DSS2 = http://localhost:8099/dss?ra={ra}&dec={dec}&size={size}
+ *
+ * Run from the command line, e.g. with -delay 2000 to mimic a slow link; an
+ * unrecognised option prints the usage.
+ */
+public class SurveyStandIn implements HttpHandler {
+
+    private static final int NPIX = 512;
+
+    private final HttpServer server;
+    private final File       directory;
+    private final long       delay;
+    private final AtomicInteger requests = new AtomicInteger();
+
+    /** Constructor
+     * @param port      port to listen on, 0 for any free one
+     * @param directory FITS files to serve, or null for made-up images
+     * @param delay     milliseconds to wait before answering, as a remote server would
+     */
+    public SurveyStandIn(int port, File directory, long delay) throws IOException {
+	this.directory = directory;
+	this.delay     = delay;
+	server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+	server.createContext("/", this);
+	server.start();
+    }
+
+    /** The port it listens on */
+    public int getPort() {
+	return server.getAddress().getPort();
+    }
+
+    /** Number of requests answered */
+    public int getRequests() {
+	return requests.get();
+    }
+
+    public void stop() {
+	server.stop(0);
+    }
+
+    public void handle(HttpExchange exchange) throws IOException {
+	requests.incrementAndGet();
+	try{
+	    if(delay > 0) Thread.sleep(delay);
+	    byte[] body = null;
+	    if(directory != null){
+		final File file = new File(directory, new File(exchange.getRequestURI().getPath()).getName());
+		if(file.isFile()) body = read(file);
+	    }else{
+		final Map<String,String> query = query(exchange.getRequestURI().getRawQuery());
+		if(query.containsKey("ra") && query.containsKey("dec") && query.containsKey("size"))
+		    body = image(Double.parseDouble(query.get("ra")), Double.parseDouble(query.get("dec")),
+				 Double.parseDouble(query.get("size")));
+	    }
+	    if(body == null){
+		exchange.sendResponseHeaders(404, -1);
+		return;
+	    }
+	    exchange.getResponseHeaders().set("Content-Type", "application/fits");
+	    exchange.sendResponseHeaders(200, body.length);
+	    final OutputStream out = exchange.getResponseBody();
+	    out.write(body);
+	    out.close();
+	}catch(Exception e){
+	    exchange.sendResponseHeaders(500, -1);
+	}finally{
+	    exchange.close();
+	}
+    }
+
+    /** A 16-bit FITS image of made-up stars, NPIX square, centred on ra, dec
+     * and size arcmin across, the same for the same field
+     */
+    public static byte[] image(double ra, double dec, double size) {
+	return image(ra, dec, size, NPIX);
+    }
+
+    /** As image(ra, dec, size) but npix square, with as many stars to the pixel */
+    public static byte[] image(double ra, double dec, double size, int npix) {
+	final short[] pixel = new short[npix*npix];
+	final Random random = new Random(Double.doubleToLongBits(ra) ^ Double.doubleToLongBits(dec));
+	for(int i=0; i<pixel.length; i++)
+	    pixel[i] = (short)(1000 + random.nextInt(40));
+	for(int n=0; n<200L*npix*npix/(512*512); n++){
+	    final int x0 = random.nextInt(npix), y0 = random.nextInt(npix);
+	    final double peak = 30000.*Math.pow(random.nextDouble(), 4.);
+	    for(int y=Math.max(0, y0-6); y<Math.min(npix, y0+7); y++)
+		for(int x=Math.max(0, x0-6); x<Math.min(npix, x0+7); x++){
+		    final double r2 = (x-x0)*(x-x0) + (y-y0)*(y-y0);
+		    pixel[npix*y+x] = (short)Math.min(32767, pixel[npix*y+x] + peak*Math.exp(-r2/4.));
+		}
+	}
+	return fits(ra, dec, size, npix, pixel);
+    }
+
+    /** A 16-bit FITS image of the pixels given, npix square and row by row from
+     * the bottom, centred on ra, dec and size arcmin across
+     */
+    public static byte[] fits(double ra, double dec, double size, int npix, short[] pixel) {
+	final StringBuilder header = new StringBuilder();
+	card(header, "SIMPLE", "T");
+	card(header, "BITPIX", "16");
+	card(header, "NAXIS", "2");
+	card(header, "NAXIS1", String.valueOf(npix));
+	card(header, "NAXIS2", String.valueOf(npix));
+	card(header, "CTYPE1", "'RA---TAN'");
+	card(header, "CTYPE2", "'DEC--TAN'");
+	card(header, "CRPIX1", String.format(Locale.US, "%.1f", npix/2. + 0.5));
+	card(header, "CRPIX2", String.format(Locale.US, "%.1f", npix/2. + 0.5));
+	card(header, "CRVAL1", String.format(Locale.US, "%.8f", ra));
+	card(header, "CRVAL2", String.format(Locale.US, "%.8f", dec));
+	card(header, "CDELT1", String.format(Locale.US, "%.10f", -size/60./npix));
+	card(header, "CDELT2", String.format(Locale.US, "%.10f", size/60./npix));
+	card(header, "EQUINOX", "2000.0");
+	header.append(pad("END"));
+	while(header.length() % 2880 != 0) header.append(' ');
+
+	final int ndata = 2*npix*npix;
+	final ByteBuffer fits = ByteBuffer.allocate(header.length() + 2880*((ndata + 2879)/2880));
+	for(int i=0; i<header.length(); i++)
+	    fits.put((byte)header.charAt(i));
+
+	for(short p : pixel)
+	    fits.putShort(p);
+	return fits.array();
+    }
+
+    private static void card(StringBuilder header, String key, String value) {
+	final StringBuilder card = new StringBuilder(key);
+	while(card.length() < 8) card.append(' ');
+	card.append("= ");
+	// strings start in column 11, other values end in column 30
+	if(!value.startsWith("'"))
+	    for(int i=value.length(); i<20; i++) card.append(' ');
+	header.append(pad(card.append(value).toString()));
+    }
+
+    private static String pad(String card) {
+	final StringBuilder buff = new StringBuilder(card);
+	while(buff.length() < 80) buff.append(' ');
+	return buff.toString();
+    }
+
+    private static Map<String,String> query(String query) {
+	final Map<String,String> map = new HashMap<String,String>();
+	if(query == null) return map;
+	for(String pair : query.split("&")){
+	    final int eq = pair.indexOf('=');
+	    if(eq > 0) map.put(pair.substring(0, eq), pair.substring(eq+1).replace("%2B", "+"));
+	}
+	return map;
+    }
+
+    private static byte[] read(File file) throws IOException {
+	final byte[] body = new byte[(int)file.length()];
+	final InputStream in = new FileInputStream(file);
+	try{
+	    int off = 0, n;
+	    while(off < body.length && (n = in.read(body, off, body.length-off)) != -1)
+		off += n;
+	}finally{
+	    in.close();
+	}
+	return body;
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+    // Command line
+
+    private static final String USAGE =
+	"usage: java -cp ufinder.jar:bench ufinder.SurveyStandIn [options]\n" +
+	"  -port n              port to listen on (default: 8099)\n" +
+	"  -dir directory       serve the FITS files in it by name (default: made-up images)\n" +
+	"  -delay ms            wait before each answer, as a remote server would (default: 0)";
+
+    public static void main(String[] args) {
+	try{
+	    int port = 8099;
+	    long delay = 0;
+	    File dir = null;
+	    for(int i=0; i<args.length; i++){
+		final String opt = args[i];
+		if(i+1 >= args.length) throw new Exception("Missing value for " + opt);
+		final String val = args[++i];
+		if(opt.equals("-port"))       port  = Integer.parseInt(val);
+		else if(opt.equals("-dir"))   dir   = new File(val);
+		else if(opt.equals("-delay")) delay = Long.parseLong(val);
+		else throw new Exception("Unrecognised option " + opt);
+	    }
+	    if(dir != null && !dir.isDirectory()) throw new Exception(dir + " is not a directory");
+	    final SurveyStandIn standIn = new SurveyStandIn(port, dir, delay);
+	    System.out.println("Serving survey images on http://localhost:" + standIn.getPort() + "/");
+	}
+	catch(final Exception e){
+	    System.out.println(e.toString());
+	    System.out.println(USAGE);
+	    System.exit(1);
+	}
+    }
+
+}
@@ -0,0 +1,462 @@
+package ufinder;
+
+import java.awt.GridBagLayout;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.swing.JPanel;
+
+/** Benchmarks of the paths ufinder runs most often: the once-a-second
+ * speed(TIMING_UPDATE) update, WindowPairs.isValid, the FOVmanip
+ * serialisation and the FOVSync round trip to Aladin. Aladin is replaced by
+ * StubAladin so no display or network is needed.
+ *
+ * Usage: java ufinder.UfinderBenchmarks [results.json [name filter]]
+ *
+ * The system properties bench.warmup, bench.iterations and bench.time (ms per
+ * iteration) control the run length.
+ */
+public class UfinderBenchmarks {
+
+    // A representative setup: three window pairs on the VLT, the worst case for FOVSync
+    private static final Telescope TELESCOPE =
+	new Telescope("VLT", new double[] {26.54, 28.35, 27.69, 27.55, 26.71}, 0.1557, true, 0.0, -1.4402, -3.1856, "vlt.xml");
+    private static final String TEMPLATE = "6 windows";
+    private static final int    NPAIR    = 3;
+    private static final int    XBIN     = 1;
+    private static final int    YBIN     = 1;
+
+    public static void main(String[] args) throws Exception {
+
+	System.setProperty("java.awt.headless", "true");
+
+	final File   output = new File(args.length > 0 ? args[0] : "build/bench/results.json");
+	final String filter = args.length > 1 ? args[1] : null;
+
+	final BenchmarkHarness harness =
+	    new BenchmarkHarness(Integer.getInteger("bench.warmup", 5),
+				 Integer.getInteger("bench.iterations", 10),
+				 Long.getLong("bench.time", 500L));
+
+	// The GUI fields the real code reads from
+	final WindowPairs windowPairs = new WindowPairs(new GridBagLayout(), new JPanel(), 0, XBIN, YBIN,
+							ufinder.DEFAULT_COLOUR, ufinder.ERROR_COLOUR);
+	final DoubleTextField magnitudeText = new DoubleTextField(18.0, 5.,  35., 0.1,  "Target magnitude",    true,
+								  ufinder.DEFAULT_COLOUR, ufinder.ERROR_COLOUR, 6);
+	final DoubleTextField seeingText    = new DoubleTextField( 1.0, 0.2, 20., 0.1,  "Seeing, FWHM arcsec", true,
+								  ufinder.DEFAULT_COLOUR, ufinder.ERROR_COLOUR, 6);
+	final DoubleTextField airmassText   = new DoubleTextField( 1.5, 1.0, 5.0, 0.05, "Airmass",             true,
+								  ufinder.DEFAULT_COLOUR, ufinder.ERROR_COLOUR, 6);
+
+	harness.add(new BenchmarkHarness.Benchmark("speed.TIMING_UPDATE"){
+		public Object run() throws Exception {
+		    // what speed(TIMING_UPDATE) does each tick, less the JTextField.setText calls
+		    if(!windowPairs.isValid(XBIN, YBIN, NPAIR, false)) return null;
+		    final WindowPair[] windows = new WindowPair[NPAIR];
+		    for(int i=0; i<NPAIR; i++)
+			windows[i] = new WindowPair(windowPairs.getYstart(i), windowPairs.getXleft(i), windowPairs.getXright(i),
+						    windowPairs.getNx(i), windowPairs.getNy(i));
+		    final TimingConfig config = new TimingConfig(TEMPLATE, "Slow", XBIN, YBIN, 50, windows, TELESCOPE, 1, 1,
+								 magnitudeText.getValue(), seeingText.getValue(), airmassText.getValue());
+		    return TimingEngine.compute(config).signalToNoise;
+		}
+	    });
+
+	// The model on its own, and the same setup answered from the cache
+	final WindowPair[] cachedWindows = new WindowPair[NPAIR];
+	for(int i=0; i<NPAIR; i++)
+	    cachedWindows[i] = new WindowPair(windowPairs.getYstart(i), windowPairs.getXleft(i), windowPairs.getXright(i),
+					      windowPairs.getNx(i), windowPairs.getNy(i));
+	final TimingConfig cachedConfig = new TimingConfig(TEMPLATE, "Slow", XBIN, YBIN, 50, cachedWindows, TELESCOPE, 1, 1,
+							   18.0, 1.0, 1.5);
+	final TimingCache  cache  = new TimingCache();
+	final TimingResult result = new TimingResult();
+
+	harness.add(new BenchmarkHarness.Benchmark("TimingEngine.compute"){
+		public Object run() {
+		    return TimingEngine.compute(cachedConfig, result).signalToNoise;
+		}
+	    });
+
+	harness.add(new BenchmarkHarness.Benchmark("TimingCache.compute"){
+		public Object run() {
+		    // a fresh config each time, as speed() builds one, so the key is re-encoded
+		    final TimingConfig config = cachedConfig.withConditions(18.0, 1.0, 1.5);
+		    return cache.compute(config, result).signalToNoise;
+		}
+	    });
+
+	harness.add(new BenchmarkHarness.Benchmark("WindowPairs.isValid"){
+		public Object run() {
+		    return windowPairs.isValid(XBIN, YBIN, NPAIR, false);
+		}
+	    });
+
+	final FOVmanip fov = new FOVmanip();
+	fov.configWindows(windowPairs, NPAIR, TELESCOPE);
+	fov.setCentre("12:34:56.7", "-12:34:56.7");
+	fov.setPA("30.0", TELESCOPE);
+	final StubAladin reader = new StubAladin();
+
+	harness.add(new BenchmarkHarness.Benchmark("FOVmanip.getText"){
+		public Object run() {
+		    return fov.getText().length();
+		}
+	    });
+
+	harness.add(new BenchmarkHarness.Benchmark("FOVmanip.getStream"){
+		public Object run() {
+		    final InputStream in = fov.getStream();
+		    reader.putVOTable(in, "UCAM_FoV");
+		    return reader.getBytesRead();
+		}
+	    });
+
+	harness.add(new BenchmarkHarness.Benchmark("FOVmanip.getPipedStream"){
+		public Object run() throws Exception {
+		    final InputStream in = fov.getPipedStream();
+		    reader.putVOTable(in, "UCAM_FoV");
+		    return reader.getBytesRead();
+		}
+	    });
+
+	harness.add(new BenchmarkHarness.Benchmark("FOVmanip.fingerprint"){
+		public Object run() {
+		    // what FOVSync pays instead of a push when nothing has moved
+		    fov.configWindows(windowPairs, NPAIR, TELESCOPE);
+		    fov.setCentre("12:34:56.7", "-12:34:56.7");
+		    fov.setPA("30.0", TELESCOPE);
+		    return fov.fingerprint();
+		}
+	    });
+
+	harness.add(new BenchmarkHarness.Benchmark("FOVmanip.getDocument"){
+		public Object run() {
+		    // a full update, so that every part of the DOM has to be brought up to date
+		    fov.configWindows(windowPairs, NPAIR, TELESCOPE);
+		    fov.setCentre("12:34:56.7", "-12:34:56.7");
+		    fov.setPA("30.0", TELESCOPE);
+		    return fov.getDocument();
+		}
+	    });
+
+	harness.add(new BenchmarkHarness.Benchmark("FOVmanip.newDocument"){
+		public Object run() {
+		    // a fresh instance, as each target of a batch job needs, and its DOM
+		    final FOVmanip f = new FOVmanip();
+		    f.configWindows(windowPairs, NPAIR, TELESCOPE);
+		    return f.getDocument();
+		}
+	    });
+
+	final double[] skyRA = new double[FOVGeometry.NVERT], skyDec = new double[FOVGeometry.NVERT];
+
+	harness.add(new BenchmarkHarness.Benchmark("FOVmanip.getSkyVertices"){
+		public Object run() throws Exception {
+		    // the window pairs placed, rotated by the PA and projected onto the sky
+		    fov.configWindows(windowPairs, NPAIR, TELESCOPE);
+		    return fov.getSkyVertices(skyRA, skyDec);
+		}
+	    });
+
+	// A 20 x 25 mosaic of the same footprint, rotated a little at each pointing
+	final FOVGeometry footprint = new FOVGeometry();
+	footprint.setMain(TELESCOPE);
+	for(int i=0; i<NPAIR; i++)
+	    footprint.setPair(i, windowPairs.getYstart(i), windowPairs.getXleft(i), windowPairs.getXright(i),
+			      windowPairs.getNx(i), windowPairs.getNy(i), TELESCOPE);
+	final FOVMosaic mosaic = new FOVMosaic(footprint, 188.7, -12.6);
+	for(int i=0; i<500; i++)
+	    mosaic.add(188.7 + 0.02*(i % 20 - 10), -12.6 + 0.02*(i/20 - 12), 5.*i);
+
+	harness.add(new BenchmarkHarness.Benchmark("FOVMosaic.write500"){
+		public Object run() throws Exception {
+		    final java.io.ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 21);
+		    mosaic.write(out);
+		    return out.size();
+		}
+	    });
+
+	// A 10k-row overlay, 358 pointings of 28 vertices, in each encoding: the
+	// time to write it, and the time for a VOTable client to read it back
+	final FOVMosaic overlay = new FOVMosaic(footprint, 188.7, -12.6);
+	for(int i=0; i<358; i++)
+	    overlay.add(188.7 + 0.02*(i % 20 - 10), -12.6 + 0.02*(i/20 - 9), 5.*i);
+	final OverlayReader overlayReader = new OverlayReader();
+	for(final int encoding : new int[] {FOVWriter.TABLEDATA, FOVWriter.BINARY2}){
+	    final String name = "Overlay10k." + FOVWriter.encodingName(encoding);
+	    final ByteArrayOutputStream written = new ByteArrayOutputStream(1 << 22);
+	    overlay.setEncoding(encoding);
+	    overlay.write(written);
+	    final byte[] table = written.toByteArray();
+	    System.out.println(name + ": " + overlayReader.read(new ByteArrayInputStream(table)) + " rows, " +
+			       table.length + " bytes");
+
+	    harness.add(new BenchmarkHarness.Benchmark(name + ".write"){
+		    public Object run() throws Exception {
+			overlay.setEncoding(encoding);
+			final ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 22);
+			overlay.write(out);
+			return out.size();
+		    }
+		});
+
+	    harness.add(new BenchmarkHarness.Benchmark(name + ".parse"){
+		    public Object run() throws Exception {
+			return overlayReader.read(new ByteArrayInputStream(table));
+		    }
+		});
+	}
+
+	final StubAladin aladin = new StubAladin();
+
+	final AladinExecutor commands = new AladinExecutor();
+	commands.setApp(aladin);
+	final AladinBackend backend = new AladinBackend(commands);
+
+	harness.add(new BenchmarkHarness.Benchmark("ufinder.FOVSync"){
+		public Object run() throws Exception {
+		    // what ufinder.FOVSync does, waiting for Aladin to finish reading
+		    fov.configWindows(windowPairs, NPAIR, TELESCOPE);
+		    fov.setCentre("12:34:56.7", "-12:34:56.7");
+		    fov.setPA("30.0", TELESCOPE);
+		    backend.overlay(fov);
+		    return commands.sync().get();
+		}
+	    });
+
+	// The commands that follow the image and FOV when Aladin starts, sent one
+	// call at a time as they used to be and through the executor, to an Aladin
+	// that takes 100 us to answer any call
+	final StubAladin slowAladin = new StubAladin(){
+		public String execCommand(String cmd) {
+		    LockSupport.parkNanos(100000L);
+		    return super.execCommand(cmd);
+		}
+	    };
+	final AladinExecutor slowCommands = new AladinExecutor();
+	slowCommands.setApp(slowAladin);
+	final String[] startup = {"get Sextractor(Image)", "sync", "set S-ex* PlaneID=SexCat", "sync",
+				  "set SexCat Color=rgb(0,254,153)", "sync", "filter SMag {draw circle(-$[phot.mag*])}", "sync",
+				  "filter SMag on", "sync", "reticle off", "sync"};
+
+	harness.add(new BenchmarkHarness.Benchmark("Aladin.startupDirect"){
+		public Object run() {
+		    for(String command : startup)
+			slowAladin.execCommand(command);
+		    return slowAladin.getCommands();
+		}
+	    });
+
+	harness.add(new BenchmarkHarness.Benchmark("AladinExecutor.startup"){
+		public Object run() throws Exception {
+		    Future<String> last = null;
+		    for(String command : startup)
+			last = slowCommands.send(command);
+		    return last.get();
+		}
+	    });
+
+	// Reading Aladin's status three times in one workflow, as startup and
+	// the target buttons used to, against once through the executor
+	final String statusReply =
+	    "PlaneID DSS2\nPlaneNb 3\nType    \tImage\nStatus  \tshown selected\nTarget  05:34:31.94 +22:00:52.2\n\n" +
+	    "PlaneID SexCat\nPlaneNb 2\nType    \tCatalog\nStatus  \tshown\nNbObj   \t412\n\n" +
+	    "PlaneID UCAM_FoV\nPlaneNb 1\nType    \tField\nStatus  \tshown\n\n" +
+	    "ViewID A1\nCentre  05:34:31.94 +22:00:52.2\nSize    14.0' x 14.0'\nZoom    2x\n";
+	final StubAladin statusAladin = new StubAladin(){
+		public String execCommand(String cmd) {
+		    LockSupport.parkNanos(100000L);
+		    super.execCommand(cmd);
+		    return cmd.equals("status") ? statusReply : "";
+		}
+	    };
+	final AladinExecutor statusCommands = new AladinExecutor();
+	statusCommands.setApp(statusAladin);
+
+	harness.add(new BenchmarkHarness.Benchmark("Aladin.statusDirect"){
+		public Object run() {
+		    int n = 0;
+		    for(int i=0; i<3; i++)
+			n += AladinStatus.parse(statusAladin.execCommand("status")).getPlanes().size();
+		    return n;
+		}
+	    });
+
+	harness.add(new BenchmarkHarness.Benchmark("AladinExecutor.status"){
+		public Object run() throws Exception {
+		    return statusCommands.submit(new AladinExecutor.Task<Integer>(){
+			    public Integer run(AladinApp app) throws Exception {
+				int n = 0;
+				for(int i=0; i<3; i++)
+				    n += statusCommands.status().getPlanes().size();
+				return n;
+			    }
+			}).get();
+		}
+	    });
+
+	// Before timing it, a check that a source cut by the edge of a strip comes
+	// out whole: on one thread the 64 rows are two strips, and above the edge
+	// lie two nested arcs, each joined below it by a column of its own, with a
+	// third column touching the feet of both at one pixel
+	final int npix = 64;
+	final short[] joinPixel = new short[npix*npix];
+	final Random joinNoise = new Random(1);
+	for(int i=0; i<joinPixel.length; i++)
+	    joinPixel[i] = (short)(1000 + joinNoise.nextInt(40));
+	final int[][] bars = {{10, 32, 10, 45}, {29, 32, 29, 45}, {10, 45, 29, 45},    // outer arc
+			      {15, 32, 15, 40}, {27, 32, 27, 40}, {15, 40, 27, 40},    // inner arc
+			      {10, 20, 10, 31}, {15, 20, 15, 31}, {28, 20, 28, 31}};   // columns below
+	for(int[] bar : bars)
+	    for(int y=bar[1]; y<=bar[3]; y++)
+		for(int x=bar[0]; x<=bar[2]; x++)
+		    joinPixel[npix*y+x] = 6000;
+	final File joinImage = File.createTempFile("ufinder-bench-join", ".fits");
+	joinImage.deleteOnExit();
+	final FileOutputStream joinOut = new FileOutputStream(joinImage);
+	joinOut.write(SurveyStandIn.fits(83.8221, -5.3911, 1., npix, joinPixel));
+	joinOut.close();
+	final int joined = new SourceExtractor(1).extract(new FitsImage(joinImage)).size();
+	if(joined != 1)
+	    throw new Exception("SourceExtractor found " + joined + " sources where one crosses the edge of a strip");
+
+	// Survey images from a local stand-in server, fetched afresh and from the
+	// cache. The stand-in answers at once, so a miss here is only the cost of
+	// the download and the write; a real server adds seconds.
+	final SurveyStandIn standIn = new SurveyStandIn(0, null, 0);
+	final File cacheDir = new File(System.getProperty("java.io.tmpdir"), "ufinder-bench-surveys");
+	final SurveyCache surveys = new SurveyCache(cacheDir, 8L*1024L*1024L);
+	final String surveyUrl = "http://localhost:" + standIn.getPort() + "/dss?ra={ra}&dec={dec}&size={size}";
+
+	harness.add(new BenchmarkHarness.Benchmark("SurveyCache.miss"){
+		private int n = 0;
+		public Object run() throws Exception {
+		    // a new field every time
+		    return surveys.fetch("ESO-DSS2", surveyUrl, 83.6 + (n++)/3600., 22.0, 15.).length();
+		}
+	    });
+
+	harness.add(new BenchmarkHarness.Benchmark("SurveyCache.hit"){
+		public Object run() throws Exception {
+		    return surveys.fetch("ESO-DSS2", surveyUrl, 83.6, -5.0, 15.).length();
+		}
+	    });
+
+	// A target list of 100 names, 20 of them different, resolved by a stand-in
+	// that takes 5 ms a name: one at a time with no memory, then concurrently
+	// through a fresh TargetResolver, and a name already known
+	final NameStandIn nameStandIn = new NameStandIn(5);
+	final List<String> targetNames = new java.util.ArrayList<String>();
+	for(int i=0; i<100; i++)
+	    targetNames.add("NGC " + (i % 20));
+
+	harness.add(new BenchmarkHarness.Benchmark("NameResolver.serial100"){
+		public Object run() throws Exception {
+		    double sum = 0.;
+		    for(String name : targetNames)
+			sum += nameStandIn.resolve(name)[0];
+		    return sum;
+		}
+	    });
+
+	harness.add(new BenchmarkHarness.Benchmark("TargetResolver.resolveAll100"){
+		public Object run() throws Exception {
+		    return new TargetResolver(nameStandIn, null).resolveAll(targetNames, 16).size();
+		}
+	    });
+
+	final TargetResolver knownNames = new TargetResolver(nameStandIn, null);
+	knownNames.resolve("M 31");
+	harness.add(new BenchmarkHarness.Benchmark("TargetResolver.lookup"){
+		public Object run() {
+		    return knownNames.lookup(" m  31 ")[0];
+		}
+	    });
+
+	// Finding charts drawn without Aladin, from a survey image on disk: the
+	// image mapped and stretched, and the footprint and marks drawn over it
+	final File chartImage = File.createTempFile("ufinder-bench-chart", ".fits");
+	chartImage.deleteOnExit();
+	final FileOutputStream chartOut = new FileOutputStream(chartImage);
+	chartOut.write(SurveyStandIn.image(83.8221, -5.3911, 15.));
+	chartOut.close();
+	final FOVmanip chartFov = new FOVmanip();
+	chartFov.configWindows(new WindowPair[] {new WindowPair(100, 200, 600, 100, 100)}, Telescope.TELESCOPES[0]);
+	chartFov.setCentre("83.8221", "-5.3911");
+	chartFov.setPA("30", Telescope.TELESCOPES[0]);
+	final FitsBackend chart = new FitsBackend();
+	chart.load(chartImage);
+
+	harness.add(new BenchmarkHarness.Benchmark("FitsBackend.load"){
+		public Object run() throws Exception {
+		    final FitsBackend backend = new FitsBackend();
+		    backend.load(chartImage);
+		    return backend.getImage().getWidth();
+		}
+	    });
+
+	harness.add(new BenchmarkHarness.Benchmark("FitsBackend.chart"){
+		public Object run() throws Exception {
+		    chart.clearMarks();
+		    chart.overlay(chartFov);
+		    chart.mark(83.8221, -5.3911, ImageBackend.TARGET, "Target");
+		    chart.mark(83.8333, -5.3500, ImageBackend.COMPARISON, "C1");
+		    return chart.getImage().getRGB(0, 0);
+		}
+	    });
+
+	// Sources found on a survey image without Aladin, on one thread and on
+	// every processor
+	final File sourceImage = File.createTempFile("ufinder-bench-sources", ".fits");
+	sourceImage.deleteOnExit();
+	final FileOutputStream sourceOut = new FileOutputStream(sourceImage);
+	sourceOut.write(SurveyStandIn.image(83.8221, -5.3911, 30., 2048));
+	sourceOut.close();
+	final FitsImage sourceFits = new FitsImage(sourceImage);
+
+	harness.add(new BenchmarkHarness.Benchmark("SourceExtractor.extract1"){
+		public Object run() throws Exception {
+		    return new SourceExtractor(1).extract(sourceFits).size();
+		}
+	    });
+
+	harness.add(new BenchmarkHarness.Benchmark("SourceExtractor.extractN"){
+		public Object run() throws Exception {
+		    return new SourceExtractor().extract(sourceFits).size();
+		}
+	    });
+
+	// Comparison stars ranked amongst all the sources found on that image:
+	// the index built and every candidate scored
+	final SourceCatalog rankSources = new SourceExtractor().extract(sourceFits);
+	final FOVmanip rankFov = new FOVmanip();
+	rankFov.configWindows(new WindowPair[] {new WindowPair(101, 201, 601, 200, 200)}, Telescope.TELESCOPES[0]);
+	rankFov.setCentre(String.valueOf(rankSources.getRA(40)), String.valueOf(rankSources.getDec(40)));
+	rankFov.setPA("30", Telescope.TELESCOPES[0]);
+
+	harness.add(new BenchmarkHarness.Benchmark("ComparisonRanker.rank"){
+		public Object run() throws Exception {
+		    final ComparisonRanker ranker = new ComparisonRanker(rankSources, rankSources.getRA(40), rankSources.getDec(40));
+		    return ranker.rank(rankFov, 200, 200, 5).size();
+		}
+	    });
+
+	final List<BenchmarkHarness.Result> results = harness.run(filter);
+	harness.writeJSON(results, output);
+	System.out.println(slowCommands);
+	System.out.println(statusCommands);
+	System.out.println(surveys + ", " + standIn.getRequests() + " requests to the stand-in");
+	standIn.stop();
+	System.out.println("Results written to " + output.getPath());
+	System.exit(0);
+    }
+
+}
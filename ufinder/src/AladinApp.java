@@ -0,0 +1,17 @@
+package ufinder;
+
+import java.io.InputStream;
+
+/** What ufinder asks of a running Aladin. Only the class that launches
+ * Aladin knows its own interface, VOApp, so that none of Aladin's classes
+ * are loaded until it is launched.
+ */
+public interface AladinApp {
+
+    /** Runs a script of Aladin commands and returns their replies */
+    public String execCommand(String command);
+
+    /** Loads a VOTable as a plane called label */
+    public String putVOTable(InputStream in, String label);
+
+}
@@ -0,0 +1,128 @@
+package ufinder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+/** The image backend that hands everything to Aladin through an
+ * {@link AladinExecutor}. Calls are queued and return at once, except save(),
+ * which waits until Aladin has written the file, so it must not be called
+ * from the command thread.
+ */
+public class AladinBackend implements ImageBackend {
+
+    // Radius of the marks, arcmin
+    private static final double MARK_RADIUS = 10./60.;
+
+    // The plane the marks are drawn in
+    private static final String MARKS = "UCAM_Marks";
+
+    private final AladinExecutor commands;
+    private int encoding = FOVWriter.TABLEDATA;
+
+    /** Constructor
+     * @param commands the queue to Aladin
+     */
+    public AladinBackend(AladinExecutor commands) {
+	this.commands = commands;
+    }
+
+    /** Sets how the footprint is sent: FOVWriter.TABLEDATA (the default) or FOVWriter.BINARY2 */
+    public void setEncoding(int encoding) {
+	this.encoding = encoding;
+    }
+
+    public String getName() {
+	return "Aladin";
+    }
+
+    public void load(File fits) {
+	commands.send("load " + fits.getPath());
+	commands.sync();
+    }
+
+    public void overlay(FOVmanip fov) {
+	InputStream in;
+	try {
+	    // written on another thread while Aladin reads it
+	    in = fov.getPipedStream(encoding);
+	} catch (IOException e) {
+	    e.printStackTrace();
+	    in = fov.getStream(encoding);
+	}
+	commands.send("rm 'UCAM_FoV'");
+	final InputStream votable = in;
+	commands.submit(new AladinExecutor.Task<String>(){
+		public String run(AladinApp app) throws Exception {
+		    if(app == null){
+			votable.close();
+			return null;
+		    }
+		    final String reply = app.putVOTable(votable, "UCAM_FoV");
+		    commands.invalidate();
+		    return reply;
+		}
+	    });
+    }
+
+    /** Draws the mark in the plane UCAM_Marks, made the first time. Aladin
+     * draws in the selected plane if it is a drawing, and otherwise in a new
+     * one, which it selects; so the marks plane is selected, or the image
+     * and the new plane then renamed.
+     */
+    public void mark(double ra, double dec, int kind, String label) {
+	final String position = String.format(Locale.US, "%.6f,%+.6f", ra, dec);
+	final String script = "draw mode(radec);draw circle(" + position + "," + (kind == TARGET ? MARK_RADIUS : MARK_RADIUS/2.) + ")" +
+	    (label != null ? ";draw string(" + position + "," + label + ")" : "");
+	commands.submit(new AladinExecutor.Task<String>(){
+		public String run(AladinApp app) throws Exception {
+		    if(app == null) return null;
+		    final AladinStatus status = commands.status();
+		    if(status.getPlane(MARKS) != null){
+			commands.call("select " + MARKS);
+			return commands.call(script);
+		    }
+		    final AladinStatus.Plane image = status.getImage();
+		    if(image == null) return null;
+		    commands.call("select " + image.getId());
+		    final String reply = commands.call(script);
+		    for(AladinStatus.Plane plane : commands.status().getPlanes()){
+			if(plane.isSelected() && "Tool".equals(plane.getType())){
+			    commands.call("set " + plane.getId() + " PlaneID=" + MARKS);
+			    break;
+			}
+		    }
+		    return reply;
+		}
+	    });
+    }
+
+    public void clearMarks() {
+	commands.send("rm " + MARKS);
+    }
+
+    /** Loads the sources as the plane SexCat, circled larger the brighter, as
+     * Aladin's own Sextractor plane was
+     */
+    public void sources(final SourceCatalog catalog) {
+	commands.send("rm SexCat");
+	commands.submit(new AladinExecutor.Task<String>(){
+		public String run(AladinApp app) throws Exception {
+		    if(app == null) return null;
+		    final String reply = app.putVOTable(catalog.getStream(), "SexCat");
+		    commands.invalidate();
+		    return reply;
+		}
+	    });
+	commands.send("set SexCat Color=rgb(0,254,153)");
+	commands.send("filter SMag {draw circle(-$[phot.mag*])}");
+	commands.send("filter SMag on");
+    }
+
+    public void save(File file) throws Exception {
+	commands.send("save " + file.getPath());
+	commands.sync().get();
+    }
+
+}
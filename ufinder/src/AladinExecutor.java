@@ -0,0 +1,380 @@
+package ufinder;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/** Runs everything ufinder asks of Aladin on one dedicated thread, in the
+ * order it was asked, so that neither the GUI nor anything else waits on Aladin.
+ * Each request returns a Future for its reply.
+ *
+ * Commands whose reply is not needed are queued with send(). Consecutive ones
+ * are joined into a single script, separated by ';', and handed to Aladin in
+ * one execCommand call. Aladin splits every call at ';' and new lines (though
+ * not inside [ ]), runs the commands in turn and returns their replies
+ * concatenated, so joining them changes nothing but the number of calls. A
+ * "sync" queued straight after another is merged with it. Commands whose reply
+ * is wanted are queued with exec() and always go alone. Steps that depend on a
+ * reply, such as checking the status before carrying on, are queued with
+ * submit() as a Task, which runs on the command thread and may talk to Aladin
+ * directly.
+ *
+ * Tasks ask for Aladin's status with status(), which remembers the parsed
+ * reply until the next sync epoch. An epoch ends when a command that might
+ * change Aladin is run, whether queued or from call(); commands that only read
+ * or write out, status, save and export, leave it running. It also ends with
+ * invalidate(), which a task that changes Aladin through the AladinApp directly
+ * must call, as must whatever hears of a change made in Aladin itself. Asking
+ * again within an epoch costs no round trip.
+ */
+public class AladinExecutor {
+
+    /** A step run on the command thread with direct access to Aladin; one
+     * that changes Aladin other than through call() must call invalidate()
+     */
+    public interface Task<T> {
+	public T run(AladinApp aladin) throws Exception;
+    }
+
+    // Most commands joined into one script
+    private static final int MAX_BATCH = 64;
+
+    private static final String SYNC = "sync";
+
+    // Commands that leave the planes and view as they were; not sync, during
+    // which images and catalogs still loading arrive
+    private static final String[] READ_ONLY = {"status", "save", "export"};
+
+    private volatile AladinApp aladin = null;
+
+    // Requests not yet started, oldest first; guarded by this
+    private final LinkedList<Request<?>> queue = new LinkedList<Request<?>>();
+    private Thread worker = null;
+
+    // Statistics; guarded by this
+    private long queued      = 0;   // commands sent or exec'ed
+    private long calls       = 0;   // calls made to Aladin
+    private long syncsMerged = 0;
+    private long statusCalls = 0;   // status() answered by Aladin
+    private long statusSaved = 0;   // status() answered from memory
+
+    // The sync epoch, and the status read in it; guarded by this
+    private long         epoch       = 0;
+    private AladinStatus status      = null;
+    private long         statusEpoch = -1;
+
+    /** Sets the Aladin that commands go to; until then they fail */
+    public void setApp(AladinApp aladin) {
+	this.aladin = aladin;
+    }
+
+    public AladinApp getApp() {
+	return aladin;
+    }
+
+    /** Queues a command whose reply is not needed. It may be joined with its
+     * neighbours into one script, and the Future then gives the reply to the
+     * whole script.
+     */
+    public synchronized Future<String> send(String command) {
+	command = command.trim();
+	if(command.equals(SYNC) && !queue.isEmpty()){
+	    final Request<?> last = queue.getLast();
+	    if(last.kind == Request.SEND && SYNC.equals(last.command)){
+		syncsMerged++;
+		return cast(last);
+	    }
+	}
+	queued++;
+	return enqueue(new Request<String>(Request.SEND, command, null));
+    }
+
+    /** Queues a sync, merged with one queued just before it */
+    public Future<String> sync() {
+	return send(SYNC);
+    }
+
+    /** Queues a command on its own; the Future gives its reply */
+    public synchronized Future<String> exec(String command) {
+	queued++;
+	return enqueue(new Request<String>(Request.EXEC, command.trim(), null));
+    }
+
+    /** Queues commands to be sent as one script in one call; the Future gives
+     * the reply to the script
+     */
+    public synchronized Future<String> script(String... commands) {
+	final StringBuilder script = new StringBuilder();
+	for(String command : commands){
+	    if(script.length() > 0) script.append(';');
+	    script.append(command.trim());
+	}
+	queued += commands.length;
+	return enqueue(new Request<String>(Request.EXEC, script.toString(), null));
+    }
+
+    /** Queues a task to run on the command thread after everything queued so far */
+    public synchronized <T> Future<T> submit(Task<T> task) {
+	return enqueue(new Request<T>(Request.TASK, null, task));
+    }
+
+    /** Runs a command now, from a Task, and returns its reply. Unlike calling
+     * Aladin directly this ends the sync epoch if the command might change
+     * Aladin, so that status() then reads afresh.
+     */
+    public String call(String command) throws Exception {
+	final AladinApp app = _commandThreadApp("call");
+	synchronized(this){
+	    queued++;
+	    calls++;
+	    if(changes(command)) epoch++;
+	}
+	return app.execCommand(command);
+    }
+
+    /** Aladin's status, from a Task. It is read from Aladin once per sync
+     * epoch and remembered until the epoch ends.
+     */
+    public AladinStatus status() throws Exception {
+	final AladinApp app = _commandThreadApp("status");
+	long e;
+	synchronized(this){
+	    if(status != null && statusEpoch == epoch){
+		statusSaved++;
+		return status;
+	    }
+	    e = epoch;
+	}
+	final AladinStatus s = AladinStatus.parse(app.execCommand("status"));
+	synchronized(this){
+	    statusCalls++;
+	    calls++;
+	    // an invalidate() while Aladin was answering leaves it unremembered
+	    if(epoch == e){
+		status      = s;
+		statusEpoch = e;
+	    }
+	}
+	return s;
+    }
+
+    /** Ends the sync epoch, for changes made in Aladin other than by its
+     * commands, such as by hand. Safe from any thread and cheap.
+     */
+    public synchronized void invalidate() {
+	epoch++;
+    }
+
+    /** True unless every command of a script is one that leaves Aladin as it
+     * was; a script split oddly counts as a change
+     */
+    static boolean changes(String script) {
+	for(String command : script.split("[;\n]")){
+	    command = command.trim();
+	    if(command.length() == 0) continue;
+	    final int space = command.indexOf(' ');
+	    final String verb = space < 0 ? command : command.substring(0, space);
+	    boolean readOnly = false;
+	    for(String r : READ_ONLY)
+		readOnly |= r.equals(verb);
+	    if(!readOnly) return true;
+	}
+	return false;
+    }
+
+    /** True if called from the command thread, e.g. by a Task */
+    public synchronized boolean isCommandThread() {
+	return Thread.currentThread() == worker;
+    }
+
+    /** Number of commands queued with send, exec or script */
+    public synchronized long getQueued() {
+	return queued;
+    }
+
+    /** Number of calls made to Aladin */
+    public synchronized long getCalls() {
+	return calls;
+    }
+
+    /** Number of syncs merged with the one before */
+    public synchronized long getSyncsMerged() {
+	return syncsMerged;
+    }
+
+    /** Number of status() calls answered by Aladin */
+    public synchronized long getStatusReads() {
+	return statusCalls;
+    }
+
+    /** Number of status() calls answered from memory */
+    public synchronized long getStatusRemembered() {
+	return statusSaved;
+    }
+
+    public synchronized String toString() {
+	return "AladinExecutor: " + queued + " commands queued, " + calls + " calls to Aladin, " + syncsMerged + " syncs merged, " +
+	    statusCalls + " status reads, " + statusSaved + " remembered";
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    private <T> Future<T> enqueue(Request<T> request) {
+	queue.addLast(request);
+	if(worker == null){
+	    worker = new Thread(new Runnable(){
+		    public void run(){
+			work();
+		    }
+		}, "Aladin commands");
+	    worker.setDaemon(true);
+	    worker.start();
+	}
+	notifyAll();
+	return request;
+    }
+
+    // The Aladin to call from the command thread
+    private AladinApp _commandThreadApp(String method) throws Exception {
+	if(!isCommandThread())
+	    throw new IllegalStateException("AladinExecutor: " + method + "() must be called from a Task");
+	final AladinApp app = aladin;
+	if(app == null) throw new Exception("Aladin has not been started");
+	return app;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Future<String> cast(Request<?> request) {
+	return (Future<String>)request;
+    }
+
+    // The command thread: takes the next request, or run of sends, and carries it out
+    private void work() {
+	final List<Request<?>> batch = new ArrayList<Request<?>>();
+	while(true){
+	    batch.clear();
+	    synchronized(this){
+		while(queue.isEmpty()){
+		    try{
+			wait();
+		    }catch(InterruptedException e){
+			worker = null;
+			return;
+		    }
+		}
+		batch.add(queue.removeFirst());
+		if(batch.get(0).kind == Request.SEND){
+		    while(!queue.isEmpty() && queue.getFirst().kind == Request.SEND && batch.size() < MAX_BATCH)
+			batch.add(queue.removeFirst());
+		}
+	    }
+	    run(batch);
+	}
+    }
+
+    @SuppressWarnings("unchecked")
+    private void run(List<Request<?>> batch) {
+	final Request<?> first = batch.get(0);
+	final AladinApp app = aladin;
+	if(first.kind != Request.TASK){
+	    boolean change = false;
+	    for(Request<?> request : batch)
+		change |= changes(request.command);
+	    if(change){
+		synchronized(this){
+		    epoch++;
+		}
+	    }
+	}
+	try{
+	    if(first.kind == Request.TASK){
+		((Request<Object>)first).done(first.task.run(app), null);
+		return;
+	    }
+	    if(app == null) throw new Exception("Aladin has not been started");
+
+	    String reply;
+	    if(batch.size() == 1){
+		reply = app.execCommand(first.command);
+	    }else{
+		final StringBuilder script = new StringBuilder();
+		for(int i=0; i<batch.size(); i++){
+		    if(i > 0) script.append(';');
+		    script.append(batch.get(i).command);
+		}
+		reply = app.execCommand(script.toString());
+	    }
+	    synchronized(this){
+		calls++;
+	    }
+	    for(Request<?> request : batch)
+		((Request<String>)request).done(reply, null);
+	}catch(Throwable e){
+	    if(ufinder.DEBUG) e.printStackTrace();
+	    for(Request<?> request : batch)
+		request.done(null, e);
+	}
+    }
+
+    // A queued request and the Future for its reply
+    private static class Request<T> implements Future<T> {
+
+	static final int SEND = 0;
+	static final int EXEC = 1;
+	static final int TASK = 2;
+
+	final int     kind;
+	final String  command;
+	final Task<T> task;
+
+	private final CountDownLatch finished = new CountDownLatch(1);
+	private T         reply = null;
+	private Throwable error = null;
+
+	Request(int kind, String command, Task<T> task) {
+	    this.kind    = kind;
+	    this.command = command;
+	    this.task    = task;
+	}
+
+	void done(T reply, Throwable error) {
+	    this.reply = reply;
+	    this.error = error;
+	    finished.countDown();
+	}
+
+	public boolean cancel(boolean mayInterruptIfRunning) {
+	    return false;
+	}
+
+	public boolean isCancelled() {
+	    return false;
+	}
+
+	public boolean isDone() {
+	    return finished.getCount() == 0;
+	}
+
+	public T get() throws InterruptedException, ExecutionException {
+	    finished.await();
+	    return result();
+	}
+
+	public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+	    if(!finished.await(timeout, unit))
+		throw new TimeoutException("No reply from Aladin after " + timeout + " " + unit);
+	    return result();
+	}
+
+	private T result() throws ExecutionException {
+	    if(error != null) throw new ExecutionException(error);
+	    return reply;
+	}
+    }
+
+}
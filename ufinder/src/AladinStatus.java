@@ -0,0 +1,219 @@
+package ufinder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** What Aladin's "status" command reports, read in a single pass over its
+ * reply: the planes in the stack, with their types, states and object counts,
+ * and the centre and zoom of the view.
+ *
+ * The reply is a list of lines of the form "Key   value", a block per plane
+ * starting with PlaneID, followed by a block per view starting with ViewID.
+ * Keys that are not needed are skipped, so the padding between key and value
+ * does not matter and neither does the order of lines within a block.
+ */
+public final class AladinStatus {
+
+    /** One plane of the Aladin stack */
+    public static final class Plane {
+
+	private final String id;
+	private int     number   = -1;
+	private String  type     = "";
+	private String  target   = null;
+	private boolean shown    = false;
+	private boolean selected = false;
+	private boolean error    = false;
+	private int     nobj     = -1;
+
+	private Plane(String id) {
+	    this.id = id;
+	}
+
+	/** The label, as used by Aladin commands */
+	public String getId() {
+	    return id;
+	}
+
+	/** Position in the stack, or -1 if not reported */
+	public int getNumber() {
+	    return number;
+	}
+
+	/** The type, e.g. "Image", "Catalog" or "Tool" */
+	public String getType() {
+	    return type;
+	}
+
+	/** True for a plane holding the pixels of an image */
+	public boolean isImage() {
+	    return type.equals("Image") || type.equals("ImageHuge");
+	}
+
+	public boolean isCatalog() {
+	    return type.equals("Catalog");
+	}
+
+	/** The target the plane was loaded for, or null */
+	public String getTarget() {
+	    return target;
+	}
+
+	public boolean isShown() {
+	    return shown;
+	}
+
+	public boolean isSelected() {
+	    return selected;
+	}
+
+	/** True if Aladin failed to load the plane */
+	public boolean isError() {
+	    return error;
+	}
+
+	/** Number of objects of a catalogue or tool plane, or -1 for other planes */
+	public int getCount() {
+	    return nobj;
+	}
+
+	public String toString() {
+	    return "Plane " + id + ": type = " + type + (error ? ", error" : "") + (nobj >= 0 ? ", " + nobj + " objects" : "");
+	}
+    }
+
+    private final String      text;
+    private final List<Plane> planes;
+    private final String      centreRA, centreDec, zoom;
+
+    private AladinStatus(String text, List<Plane> planes, String centreRA, String centreDec, String zoom) {
+	this.text      = text;
+	this.planes    = Collections.unmodifiableList(planes);
+	this.centreRA  = centreRA;
+	this.centreDec = centreDec;
+	this.zoom      = zoom;
+    }
+
+    /** Reads the reply to "status"; null is read as an empty Aladin */
+    public static AladinStatus parse(String text) {
+	if(text == null) text = "";
+	final List<Plane> planes = new ArrayList<Plane>();
+	Plane plane = null;
+	int nview = 0;
+	String ra = null, dec = null, zoom = null;
+
+	int start = 0;
+	final int length = text.length();
+	while(start < length){
+	    int end = text.indexOf('\n', start);
+	    if(end < 0) end = length;
+	    // key: up to the first blank; value: the rest, trimmed
+	    int k = start;
+	    while(k < end && !Character.isWhitespace(text.charAt(k))) k++;
+	    final String key = text.substring(start, k);
+	    final String value = text.substring(k, end).trim();
+	    start = end + 1;
+	    if(key.length() == 0) continue;
+
+	    if(key.equals("PlaneID")){
+		plane = new Plane(unquote(value));
+		planes.add(plane);
+	    }else if(key.equals("ViewID")){
+		plane = null;
+		nview++;
+	    }else if(plane != null){
+		if(key.equals("Type")){
+		    plane.type = value;
+		}else if(key.equals("PlaneNb")){
+		    plane.number = toInt(value);
+		}else if(key.equals("Target")){
+		    plane.target = value;
+		}else if(key.equals("NbObj")){
+		    plane.nobj = toInt(value);
+		}else if(key.equals("Status")){
+		    for(String word : value.split("\\s+")){
+			if(word.equals("shown"))         plane.shown    = true;
+			else if(word.equals("selected")) plane.selected = true;
+			else if(word.equals("error"))    plane.error    = true;
+		    }
+		}
+	    }else if(nview == 1){
+		if(key.equals("Centre")){
+		    final String[] radec = value.split("\\s+");
+		    if(radec.length >= 2){
+			ra  = radec[0];
+			dec = radec[1];
+		    }
+		}else if(key.equals("Zoom")){
+		    zoom = value;
+		}
+	    }
+	}
+	return new AladinStatus(text, planes, ra, dec, zoom);
+    }
+
+    /** The reply as Aladin gave it */
+    public String getText() {
+	return text;
+    }
+
+    /** The planes, top of the stack first */
+    public List<Plane> getPlanes() {
+	return planes;
+    }
+
+    /** The plane with the given label, or null */
+    public Plane getPlane(String id) {
+	for(Plane plane : planes)
+	    if(plane.id.equals(id)) return plane;
+	return null;
+    }
+
+    /** The first image that loaded without error, or null */
+    public Plane getImage() {
+	for(Plane plane : planes)
+	    if(plane.isImage() && !plane.error) return plane;
+	return null;
+    }
+
+    /** True if Aladin has no planes */
+    public boolean isEmpty() {
+	return planes.isEmpty();
+    }
+
+    /** RA of the centre of the view, as hh:mm:ss.ss, or null if there is no view */
+    public String getCentreRA() {
+	return centreRA;
+    }
+
+    /** Dec of the centre of the view, as +dd:mm:ss.s, or null if there is no view */
+    public String getCentreDec() {
+	return centreDec;
+    }
+
+    /** The zoom of the view, e.g. "1x", or null if there is no view */
+    public String getZoom() {
+	return zoom;
+    }
+
+    public String toString() {
+	return "AladinStatus: " + planes.size() + " planes, centre = " + centreRA + " " + centreDec + ", zoom = " + zoom;
+    }
+
+    // Labels with blanks come back in quotes
+    private static String unquote(String s) {
+	if(s.length() >= 2 && (s.charAt(0) == '"' || s.charAt(0) == '\'') && s.charAt(s.length()-1) == s.charAt(0))
+	    return s.substring(1, s.length()-1);
+	return s;
+    }
+
+    private static int toInt(String s) {
+	try{
+	    return Integer.parseInt(s);
+	}catch(NumberFormatException e){
+	    return -1;
+	}
+    }
+
+}
@@ -0,0 +1,302 @@
+package ufinder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Plans the setup for each of a list of targets without the GUI or Aladin.
+ *
+ * For every target the planner tries each template in turn, using as many of
+ * the window pairs as the template needs, and asks {@link ExposureSolver} for
+ * the readout speeds, binning and exposure delays that reach the required
+ * signal-to-noise in one exposure without saturating. Of these it picks the
+ * one with the highest frame rate, preferring less binning if two are equally
+ * fast. Targets are planned in parallel on a fixed pool of threads, each
+ * target wholly on one of them, so the pool bounds the work running at once,
+ * and the plan is written as CSV in the order of the target list.
+ *
+ * The target list has one target per line: name, magnitude, filter (ugriz),
+ * signal-to-noise required and telescope, optionally followed by seeing and
+ * airmass. Fields are separated by commas, or by white space if a line has no
+ * commas. Blank lines and lines starting with # are ignored.
+ *
+ * Given a {@link TargetResolver}, the planner also looks up the position of
+ * every target, concurrently and while the planning runs, and adds it to the
+ * plan.
+ *
+ * Run from the command line with no arguments for usage.
+ */
+public class BatchPlanner {
+
+    public static final String CSV_HEADER =
+	"name,telescope,filter,magnitude,sn_required,seeing,airmass,template,npair,speed,xbin,ybin,expose_ms," +
+	"frame_rate,duty_cycle,peak,sn_exposure,sn_3hr\n";
+
+    private static final String FILTERS = "ugriz";
+
+    // Names resolved at once; resolving waits on the network, not the processors
+    private static final int RESOLVE_THREADS = 16;
+
+    /** One line of the target list */
+    public static class Target {
+
+	public final String    name;
+	public final double    magnitude;
+	public final int       filterIndex;
+	public final double    signalToNoise;
+	public final Telescope telescope;
+	public final double    seeing;
+	public final double    airmass;
+
+	public Target(String name, double magnitude, int filterIndex, double signalToNoise, Telescope telescope,
+		      double seeing, double airmass) {
+	    this.name          = name;
+	    this.magnitude     = magnitude;
+	    this.filterIndex   = filterIndex;
+	    this.signalToNoise = signalToNoise;
+	    this.telescope     = telescope;
+	    this.seeing        = seeing;
+	    this.airmass       = airmass;
+	}
+    }
+
+    private final Templates    templates;
+    private final WindowPair[] windows;
+    private final int          skyBrightIndex;
+    private final int          maxBin;
+    private int nthreads = Runtime.getRuntime().availableProcessors();
+    private TargetResolver names = null;
+
+    /** Constructor
+     * @param templates      the templates to choose from; "Timing test" is never chosen
+     * @param windows        window pairs, of which each template uses as many as it needs
+     * @param skyBrightIndex 0, 1, 2 for dark, grey, bright
+     * @param maxBin         largest binning factor to consider
+     */
+    public BatchPlanner(Templates templates, WindowPair[] windows, int skyBrightIndex, int maxBin) {
+	this.templates      = templates;
+	this.windows        = windows;
+	this.skyBrightIndex = skyBrightIndex;
+	this.maxBin         = maxBin;
+    }
+
+    /** Sets the number of worker threads; defaults to the number of processors */
+    public void setThreads(int nthreads) {
+	this.nthreads = Math.max(1, nthreads);
+    }
+
+    /** Sets the resolver for the positions of the targets; without one (the
+     * default) the plan has no positions
+     */
+    public void setResolver(TargetResolver names) {
+	this.names = names;
+    }
+
+    /** Finds the best setup for one target, on the calling thread
+     * @return the chosen setup, or null if no template can reach the signal-to-noise
+     */
+    public ExposureSolver.Solution plan(Target target) {
+	ExposureSolver.Solution best = null;
+	for(int i=0; i<templates.labels.length; i++){
+	    final String label = templates.labels[i];
+	    final int    npair = templates.npair[i];
+	    if(label.equals("Timing test") || npair > windows.length) continue;
+
+	    final WindowPair[] used = new WindowPair[npair];
+	    System.arraycopy(windows, 0, used, 0, npair);
+	    final TimingConfig base = new TimingConfig(label, "Slow", 1, 1, 0, used, target.telescope, target.filterIndex,
+						       skyBrightIndex, target.magnitude, target.seeing, target.airmass);
+
+	    // the targets are spread over the planner's own threads, so each is solved on one
+	    final ExposureSolver solver = new ExposureSolver(base, maxBin);
+	    solver.setParallel(false);
+	    final List<ExposureSolver.Solution> found = solver.solveSignalToNoise(target.magnitude, target.signalToNoise);
+	    for(ExposureSolver.Solution s : found)
+		if(best == null || better(s, best)) best = s;
+	}
+	return best;
+    }
+
+    private static boolean better(ExposureSolver.Solution s1, ExposureSolver.Solution s2) {
+	if(s1.result.frameRate != s2.result.frameRate)
+	    return s1.result.frameRate > s2.result.frameRate;
+	return s1.config.xbin*s1.config.ybin < s2.config.xbin*s2.config.ybin;
+    }
+
+    /** Plans every target and writes the plan as CSV
+     * @return the number of targets for which a setup was found
+     */
+    public int run(final List<Target> targets, PrintWriter out) throws Exception {
+	final ExecutorService executor = Executors.newFixedThreadPool(nthreads);
+	try{
+	    final List<Future<ExposureSolver.Solution>> plans = new ArrayList<Future<ExposureSolver.Solution>>(targets.size());
+	    for(final Target target : targets){
+		plans.add(executor.submit(new Callable<ExposureSolver.Solution>(){
+			public ExposureSolver.Solution call() {
+			    return plan(target);
+			}
+		    }));
+	    }
+
+	    // positions, looked up while the plans are worked out
+	    List<double[]> positions = null;
+	    if(names != null){
+		final List<String> list = new ArrayList<String>(targets.size());
+		for(Target target : targets) list.add(target.name);
+		positions = names.resolveAll(list, RESOLVE_THREADS);
+	    }
+
+	    out.print(positions == null ? CSV_HEADER : CSV_HEADER.trim() + ",ra,dec\n");
+	    int nfound = 0;
+	    for(int i=0; i<targets.size(); i++){
+		final ExposureSolver.Solution s = plans.get(i).get();
+		final Target t = targets.get(i);
+		out.print(quote(t.name) + "," + t.telescope.name + "," + FILTERS.charAt(t.filterIndex) + "," + t.magnitude + "," +
+			  t.signalToNoise + "," + t.seeing + "," + t.airmass + ",");
+		if(s == null){
+		    out.print("none,,,,,,,,,,");
+		}else{
+		    final TimingConfig c = s.config;
+		    final TimingResult r = s.result;
+		    out.print(quote(c.template) + "," + c.getNpair() + "," + c.readSpeed + "," + c.xbin + "," + c.ybin + "," +
+			      c.expose/10. + "," + (float)r.frameRate + "," + (float)r.dutyCycle + "," + (float)r.peak + "," +
+			      (float)r.signalToNoiseOne + "," + (float)r.signalToNoise);
+		    nfound++;
+		}
+		if(positions != null){
+		    final double[] p = positions.get(i);
+		    out.print(p == null ? ",," : "," + FOVMosaic.hms(p[0]) + "," + FOVMosaic.dms(p[1]));
+		}
+		out.print("\n");
+	    }
+	    out.flush();
+	    return nfound;
+	}finally{
+	    executor.shutdownNow();
+	}
+    }
+
+    /** Reads a target list
+     * @param seeing  seeing to use for targets that do not give one
+     * @param airmass airmass to use for targets that do not give one
+     */
+    public static List<Target> readTargets(String file, double seeing, double airmass) throws Exception {
+	final List<Target> targets = new ArrayList<Target>();
+	final BufferedReader in = new BufferedReader(new FileReader(file));
+	try{
+	    String line;
+	    int nline = 0;
+	    while((line = in.readLine()) != null){
+		nline++;
+		line = line.trim();
+		if(line.length() == 0 || line.startsWith("#")) continue;
+
+		final String[] field = line.indexOf(',') >= 0 ? line.split("\\s*,\\s*") : line.split("\\s+");
+		if(field.length < 5 || field.length > 7)
+		    throw new Exception("Line " + nline + " of " + file + " should have name, magnitude, filter, S/N, " +
+					"telescope and optionally seeing and airmass");
+		try{
+		    final Telescope telescope = Telescope.find(field[4]);
+		    if(telescope == null)
+			throw new Exception("telescope " + field[4] + " is not supported");
+		    targets.add(new Target(field[0], Double.parseDouble(field[1]), TimingSweep.filterIndex(field[2]),
+					   Double.parseDouble(field[3]), telescope,
+					   field.length > 5 ? Double.parseDouble(field[5]) : seeing,
+					   field.length > 6 ? Double.parseDouble(field[6]) : airmass));
+		}
+		catch(final Exception e){
+		    throw new Exception("Line " + nline + " of " + file + ": " + e.getMessage());
+		}
+	    }
+	}finally{
+	    in.close();
+	}
+	return targets;
+    }
+
+    private static String quote(String s) {
+	return s.indexOf(',') >= 0 ? "\"" + s + "\"" : s;
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+    // Command line
+
+    private static final String USAGE =
+	"usage: java -cp ufinder.jar ufinder.BatchPlanner [options] -targets file -out file\n" +
+	"  -targets file        target list: name, magnitude, filter, S/N, telescope [, seeing [, airmass]]\n" +
+	"  -conf file           configuration file listing the templates and name resolver (default: ufinder.conf)\n" +
+	"  -window ystart,xleft,xright,nx,ny  window pair; repeat for each pair (default: the GUI's initial pairs)\n" +
+	"  -sky dark|grey|bright sky brightness (default: grey)\n" +
+	"  -seeing s, -airmass a  for targets that do not give them (defaults: 1, 1.5)\n" +
+	"  -maxbin n            largest binning factor to consider (default: 2)\n" +
+	"  -threads n           worker threads (default: number of processors)\n" +
+	"  -names file          add the position of each target, resolved by name with the configuration's\n" +
+	"                       NAME_RESOLVER_URL and remembered in file";
+
+    public static void main(String[] args) {
+	try{
+	    String conf = "ufinder.conf", targetFile = null, out = null, sky = "grey", nameFile = null;
+	    double seeing = 1., airmass = 1.5;
+	    int maxBin = 2, threads = Runtime.getRuntime().availableProcessors();
+	    final List<WindowPair> windows = new ArrayList<WindowPair>();
+
+	    for(int i=0; i<args.length; i++){
+		final String opt = args[i];
+		if(i+1 >= args.length) throw new Exception("Missing value for " + opt);
+		final String val = args[++i];
+		if(opt.equals("-targets"))      targetFile = val;
+		else if(opt.equals("-conf"))    conf = val;
+		else if(opt.equals("-window"))  windows.add(TimingSweep.parseWindow(val));
+		else if(opt.equals("-sky"))     sky = val;
+		else if(opt.equals("-seeing"))  seeing = Double.parseDouble(val);
+		else if(opt.equals("-airmass")) airmass = Double.parseDouble(val);
+		else if(opt.equals("-maxbin"))  maxBin = Integer.parseInt(val);
+		else if(opt.equals("-threads")) threads = Integer.parseInt(val);
+		else if(opt.equals("-names"))   nameFile = val;
+		else if(opt.equals("-out"))     out = val;
+		else throw new Exception("Unrecognised option " + opt);
+	    }
+	    if(targetFile == null) throw new Exception("No target list given");
+	    if(out == null) throw new Exception("No output file given");
+
+	    if(windows.isEmpty()) windows.addAll(WindowPairs.defaults());
+
+	    final List<Target> targets = readTargets(targetFile, seeing, airmass);
+	    final Properties properties = Templates.properties(conf);
+	    final BatchPlanner planner = new BatchPlanner(Templates.load(properties, conf), windows.toArray(new WindowPair[windows.size()]),
+							  TimingSweep.skyIndex(sky), maxBin);
+	    planner.setThreads(threads);
+	    if(nameFile != null){
+		// the same resolver as the GUI, so that a mirror or stand-in set in the configuration is used
+		final String url = properties.getProperty("NAME_RESOLVER_URL", SesameResolver.DEFAULT_URL).trim();
+		planner.setResolver(new TargetResolver(new SesameResolver(url), new File(nameFile)));
+	    }
+
+	    final long t0 = System.currentTimeMillis();
+	    final PrintWriter pw = new PrintWriter(new FileWriter(out));
+	    int nfound;
+	    try{
+		nfound = planner.run(targets, pw);
+	    }finally{
+		pw.close();
+	    }
+	    System.out.println("Planned " + nfound + " of " + targets.size() + " targets to " + out + " in " +
+			       (System.currentTimeMillis()-t0)/1000. + " s");
+	}
+	catch(final Exception e){
+	    System.out.println(e.toString());
+	    System.out.println(USAGE);
+	    System.exit(1);
+	}
+    }
+
+}
@@ -0,0 +1,204 @@
+package ufinder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/** Picks comparison stars for a target from the sources found on the image,
+ * in place of clicking them one by one in Aladin.
+ *
+ * A source is a candidate only if a window pair of the size set, placed
+ * anywhere the CCD allows, could hold both it and the target with the
+ * current pointing and PA: one in each window, or both in one. Candidates
+ * are scored by how close their magnitude is to the target's and by how
+ * isolated they are, each from 0 to 1, and the product ranked. Isolation
+ * counts every neighbour within ISOLATION, weighted by its flux relative to
+ * the candidate and by how close it is, so that a faint star far off hardly
+ * matters and a bright one close by rules a candidate out.
+ *
+ * The sources are held in a {@link SourceIndex}, so finding the neighbours of
+ * each candidate looks at a few cells rather than the whole catalog.
+ */
+public class ComparisonRanker {
+
+    /** Radius within which neighbours count against a candidate, arcsec */
+    public static final double ISOLATION = 15.;
+
+    /** Difference from the target's magnitude at which the score falls to 0.61 */
+    public static final double MAG_SIGMA = 1.;
+
+    /** Furthest a source may be from the target position to be taken as the target, arcsec */
+    public static final double TARGET_RADIUS = 3.;
+
+    /** Least distance kept between a star and the edge of its window, unbinned pixels */
+    public static final int MARGIN = 8;
+
+    private final SourceCatalog catalog;
+    private final SourceIndex   index;
+    private final double        ra, dec;
+    private final int           target;
+
+    /** A comparison star as ranked */
+    public static final class Candidate {
+
+	private final int    source;
+	private final double x, y, separation, isolation, score;
+
+	private Candidate(int source, double x, double y, double separation, double isolation, double score) {
+	    this.source     = source;
+	    this.x          = x;
+	    this.y          = y;
+	    this.separation = separation;
+	    this.isolation  = isolation;
+	    this.score      = score;
+	}
+
+	/** Index of the star in the catalog */
+	public int getSource() {
+	    return source;
+	}
+
+	/** x on the CCD, unbinned pixels */
+	public double getX() {
+	    return x;
+	}
+
+	/** y on the CCD, unbinned pixels */
+	public double getY() {
+	    return y;
+	}
+
+	/** Distance from the target, arcsec */
+	public double getSeparation() {
+	    return separation;
+	}
+
+	/** 1 for a star with no neighbours, less the more and the brighter they are */
+	public double getIsolation() {
+	    return isolation;
+	}
+
+	/** What the ranking is by, 0 to 1 */
+	public double getScore() {
+	    return score;
+	}
+    }
+
+    /** Constructor
+     * @param catalog sources found on the image, with positions
+     * @param ra      RA of the target, degrees
+     * @param dec     Dec of the target, degrees
+     * @throws Exception if the sources have no RA and Dec
+     */
+    public ComparisonRanker(SourceCatalog catalog, double ra, double dec) throws Exception {
+	this.catalog = catalog;
+	this.index   = new SourceIndex(catalog, ra, dec, ISOLATION);
+	this.ra      = ra;
+	this.dec     = dec;
+	this.target  = index.nearest(0., 0., TARGET_RADIUS);
+    }
+
+    /** The source taken as the target, or -1 if none was found at its
+     * position, in which case magnitudes are not compared
+     */
+    public int getTarget() {
+	return target;
+    }
+
+    public SourceCatalog getCatalog() {
+	return catalog;
+    }
+
+    /** Ranks the comparison stars that a window pair could hold with the target
+     * @param fov the pointing, PA and CCD
+     * @param nx  width of each window, unbinned pixels
+     * @param ny  height of each window, unbinned pixels
+     * @param max most to return
+     * @return the best first, at most max of them
+     * @throws Exception if the pointing cannot be read, or no window can hold the target
+     */
+    public List<Candidate> rank(FOVmanip fov, int nx, int ny, int max) throws Exception {
+	if(nx < 1 || nx > 512 || ny < 1 || ny > 1024)
+	    throw new IllegalArgumentException("ComparisonRanker: window = " + nx + " x " + ny + " is not on the CCD");
+
+	// where everything falls on the CCD; the target last
+	final int n = catalog.size();
+	final double[] ra = new double[n+1], dec = new double[n+1], cx = new double[n+1], cy = new double[n+1];
+	System.arraycopy(catalog.raColumn(), 0, ra, 0, n);
+	System.arraycopy(catalog.decColumn(), 0, dec, 0, n);
+	ra[n]  = this.ra;
+	dec[n] = this.dec;
+	fov.toChip(ra, dec, n+1, cx, cy);
+	final double xt = cx[n], yt = cy[n];
+	if(half(xt, nx) < 0 || !fits(yt, yt, ny))
+	    throw new Exception(String.format(Locale.US, "No %d x %d window can hold the target at x, y = %.0f, %.0f on the CCD",
+					      nx, ny, xt, yt));
+
+	final double[] flux = new double[n];
+	final double[] mag  = catalog.magColumn();
+	for(int i=0; i<n; i++)
+	    flux[i] = catalog.getFlux(i);
+	final double mt = target < 0 ? Double.NaN : mag[target];
+
+	final List<Candidate> candidates = new ArrayList<Candidate>();
+	for(int i=0; i<n; i++){
+	    if(i == target || !fits(xt, yt, cx[i], cy[i], nx, ny)) continue;
+
+	    final double xi = index.getXi(i), eta = index.getEta(i);
+	    double crowding = 0.;
+	    for(int j : index.within(xi, eta, ISOLATION)){
+		if(j == i) continue;
+		final double dx = index.getXi(j) - xi, dy = index.getEta(j) - eta;
+		final double weight = 1. - Math.sqrt(dx*dx + dy*dy)/ISOLATION;
+		crowding += flux[j]/flux[i]*weight*weight;
+	    }
+	    final double isolation = 1./(1. + crowding);
+	    final double dm = Double.isNaN(mt) ? 0. : (mag[i] - mt)/MAG_SIGMA;
+	    candidates.add(new Candidate(i, cx[i], cy[i], Math.sqrt(xi*xi + eta*eta), isolation,
+					 isolation*Math.exp(-0.5*dm*dm)));
+	}
+
+	Collections.sort(candidates, new Comparator<Candidate>(){
+		public int compare(Candidate a, Candidate b){
+		    if(a.score != b.score) return a.score > b.score ? -1 : 1;
+		    return a.source - b.source;
+		}
+	    });
+	return candidates.size() > max ? new ArrayList<Candidate>(candidates.subList(0, max)) : candidates;
+    }
+
+    /** True if a window pair nx by ny unbinned pixels can be placed on the CCD
+     * so that stars at x1, y1 and x2, y2 are both MARGIN inside its windows,
+     * one in each window or both in the same one.
+     */
+    static boolean fits(double x1, double y1, double x2, double y2, int nx, int ny) {
+	final int h1 = half(x1, nx), h2 = half(x2, nx);
+	if(h1 < 0 || h2 < 0 || !fits(y1, y2, ny)) return false;
+	return h1 != h2 || Math.abs(x1 - x2) <= nx - 2*MARGIN;
+    }
+
+    public String toString() {
+	return "ComparisonRanker: " + catalog.size() + " sources, " +
+	    (target < 0 ? "target not found" : "target is source " + (target+1)) + "; " + index;
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    // Which half of the CCD a window nx wide holding x can be in: 0 for the
+    // left, xleft from 1 to 513-nx, 1 for the right, xright from 513 to
+    // 1025-nx, -1 for neither
+    private static int half(double x, int nx) {
+	if(nx < 2*MARGIN) return -1;
+	if(x >= 1 + MARGIN && x <= 513 - MARGIN) return 0;
+	if(x >= 513 + MARGIN && x <= 1025 - MARGIN) return 1;
+	return -1;
+    }
+
+    // True if a window ny high, ystart from 1 to 1025-ny, can hold both y1 and y2
+    private static boolean fits(double y1, double y2, int ny) {
+	return Math.min(y1, y2) >= 1 + MARGIN && Math.max(y1, y2) <= 1025 - MARGIN && Math.abs(y1 - y2) <= ny - 2*MARGIN;
+    }
+
+}
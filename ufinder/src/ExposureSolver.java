@@ -0,0 +1,232 @@
+package ufinder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** Works backwards from a required signal-to-noise or frame rate to the
+ * exposure delay, binning factors and readout speed that achieve it.
+ *
+ * The template and window pairs of a base configuration are held fixed. For
+ * every readout speed and legal pair of binning factors the exposure delay is
+ * found by bisection (the model is monotonic in exposure), setups that would
+ * saturate are dropped, and the setups that no other one beats on both binning
+ * and the free quantity (frame rate or signal-to-noise) are returned. The
+ * search over speed and binning is split across cores on a fork-join pool,
+ * unless the solver is set to run on the calling thread, as callers with their
+ * own worker threads do.
+ */
+public class ExposureSolver {
+
+    // Limits on the search, matching the ranges of the GUI fields
+    public static final int MAX_BIN    = 8;
+    public static final int MAX_EXPOSE = 10*100000 + 9;   // units of 0.1 milliseconds
+
+    // Peak counts above which a setup is rejected
+    public static final double SATURATION = 60000.;
+
+    private static final String[] SPEEDS = {"Turbo", "Fast", "Slow"};
+
+    // Shared by all solvers; created on first use
+    private static ForkJoinPool pool = null;
+
+    private final TimingConfig base;
+    private final int maxBin;
+    private boolean parallel = true;
+
+    /** A setup that meets the requirement, with its predicted performance */
+    public static class Solution {
+
+	public final TimingConfig config;
+	public final TimingResult result;
+
+	public Solution(TimingConfig config, TimingResult result) {
+	    this.config = config;
+	    this.result = result;
+	}
+
+	/** True if this is at least as good as other in both spatial resolution and
+	 * the quantity not fixed by the requirement (frame rate when signal-to-noise
+	 * is required, signal-to-noise when frame rate is required), and strictly
+	 * better in at least one of them.
+	 */
+	public boolean dominates(Solution other, boolean cadence) {
+	    final double q1 = cadence ? result.signalToNoiseOne : result.frameRate;
+	    final double q2 = cadence ? other.result.signalToNoiseOne : other.result.frameRate;
+	    final int    b1 = config.xbin*config.ybin, b2 = other.config.xbin*other.config.ybin;
+	    return q1 >= q2 && b1 <= b2 && (q1 > q2 || b1 < b2);
+	}
+    }
+
+    /** Constructor
+     * @param base configuration supplying the template, window pairs, telescope,
+     *             filter and observing conditions. Its binning, speed and
+     *             exposure are ignored.
+     */
+    public ExposureSolver(TimingConfig base) {
+	this(base, MAX_BIN);
+    }
+
+    /** Constructor
+     * @param base   as above
+     * @param maxBin largest binning factor to consider in either direction, at most MAX_BIN
+     */
+    public ExposureSolver(TimingConfig base, int maxBin) {
+	if(maxBin < 1 || maxBin > MAX_BIN)
+	    throw new IllegalArgumentException("ExposureSolver: maxBin = " + maxBin + " is out of range 1 to " + MAX_BIN);
+	this.base   = base;
+	this.maxBin = maxBin;
+    }
+
+    /** Sets whether the search is split across the shared fork-join pool
+     * (the default) or done entirely on the calling thread
+     */
+    public void setParallel(boolean parallel) {
+	this.parallel = parallel;
+    }
+
+    /** Finds the setups giving at least the required signal-to-noise in a single
+     * exposure for a target of the given magnitude, each with the shortest
+     * exposure that does so.
+     * @return the Pareto-optimal setups, fastest first
+     */
+    public List<Solution> solveSignalToNoise(double magnitude, double signalToNoise) {
+	return solve(magnitude, signalToNoise, false);
+    }
+
+    /** Finds the setups running at least as fast as the required frame rate for a
+     * target of the given magnitude, each with the longest exposure that does so.
+     * @return the Pareto-optimal setups, fastest first
+     */
+    public List<Solution> solveFrameRate(double magnitude, double frameRate) {
+	return solve(magnitude, frameRate, true);
+    }
+
+    private List<Solution> solve(double magnitude, double target, boolean cadence) {
+
+	// Enumerate readout speed and the binning factors allowed by the windows
+	final TimingConfig conditions = base.withConditions(magnitude, base.seeing, base.airmass);
+	final List<TimingConfig> trials = new ArrayList<TimingConfig>();
+	for(int ispeed=0; ispeed<SPEEDS.length; ispeed++){
+	    for(int xbin=1; xbin<=maxBin; xbin++){
+		for(int ybin=1; ybin<=maxBin; ybin++){
+		    boolean ok = true;
+		    for(int i=0; i<base.getNpair() && ok; i++)
+			ok = base.getNx(i) % xbin == 0 && base.getNy(i) % ybin == 0;
+		    if(ok)
+			trials.add(conditions.withSetup(SPEEDS[ispeed], xbin, ybin, 0));
+		}
+	    }
+	}
+
+	final Solution[] found = new Solution[trials.size()];
+	if(parallel){
+	    getPool().invoke(new Search(trials, found, 0, trials.size(), target, cadence));
+	}else{
+	    for(int i=0; i<found.length; i++)
+		found[i] = bisect(trials.get(i), target, cadence);
+	}
+
+	// Keep the ones that no other setup beats
+	final List<Solution> front = new ArrayList<Solution>();
+	for(int i=0; i<found.length; i++){
+	    if(found[i] == null) continue;
+	    boolean dominated = false;
+	    for(int j=0; j<found.length && !dominated; j++)
+		dominated = j != i && found[j] != null && found[j].dominates(found[i], cadence);
+	    if(!dominated) front.add(found[i]);
+	}
+
+	Collections.sort(front, new Comparator<Solution>(){
+		public int compare(Solution s1, Solution s2) {
+		    return Double.compare(s2.result.frameRate, s1.result.frameRate);
+		}
+	    });
+	return front;
+    }
+
+    // Bisection for one binning and speed. Returns null if the requirement cannot be met.
+    private static Solution bisect(TimingConfig trial, double target, boolean cadence) {
+
+	final TimingResult result = new TimingResult();
+
+	int lo = 0, hi = MAX_EXPOSE;
+	if(cadence){
+	    // Largest exposure with frame rate >= target
+	    if(evaluate(trial, lo, result).frameRate < target) return null;
+	    while(lo < hi){
+		final int mid = (lo + hi + 1) >>> 1;
+		if(evaluate(trial, mid, result).frameRate >= target)
+		    lo = mid;
+		else
+		    hi = mid - 1;
+	    }
+	}else{
+	    // Smallest exposure with signal-to-noise >= target
+	    if(evaluate(trial, hi, result).signalToNoiseOne < target) return null;
+	    while(lo < hi){
+		final int mid = (lo + hi) >>> 1;
+		if(evaluate(trial, mid, result).signalToNoiseOne >= target)
+		    hi = mid;
+		else
+		    lo = mid + 1;
+	    }
+	}
+
+	final TimingConfig config = withExpose(trial, lo);
+	TimingEngine.compute(config, result);
+	if(result.peak > SATURATION) return null;
+	return new Solution(config, result);
+    }
+
+    private static TimingResult evaluate(TimingConfig trial, int expose, TimingResult result) {
+	return TimingEngine.compute(withExpose(trial, expose), result);
+    }
+
+    private static TimingConfig withExpose(TimingConfig c, int expose) {
+	return c.withSetup(c.readSpeed, c.xbin, c.ybin, expose);
+    }
+
+    private static synchronized ForkJoinPool getPool() {
+	if(pool == null) pool = new ForkJoinPool();
+	return pool;
+    }
+
+    // Splits the trials in half until there are few enough to search directly
+    private static class Search extends RecursiveAction {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final int THRESHOLD = 4;
+
+	private final List<TimingConfig> trials;
+	private final Solution[] found;
+	private final int from, to;
+	private final double target;
+	private final boolean cadence;
+
+	Search(List<TimingConfig> trials, Solution[] found, int from, int to, double target, boolean cadence) {
+	    this.trials  = trials;
+	    this.found   = found;
+	    this.from    = from;
+	    this.to      = to;
+	    this.target  = target;
+	    this.cadence = cadence;
+	}
+
+	protected void compute() {
+	    if(to - from <= THRESHOLD){
+		for(int i=from; i<to; i++)
+		    found[i] = bisect(trials.get(i), target, cadence);
+	    }else{
+		final int mid = (from + to) >>> 1;
+		invokeAll(new Search(trials, found, from, mid, target, cadence),
+			  new Search(trials, found, mid, to, target, cadence));
+	    }
+	}
+    }
+
+}
@@ -0,0 +1,288 @@
+package ufinder;
+
+/** Compact model of the field of view shown in Aladin: the pointing, the
+ * position angle and the vertices of the CCD outline and of each window pair.
+ * {@link FOVWriter} turns it into a VOTable.
+ *
+ * The vertices are held in flat arrays, x and y apart: four for the CCD, from
+ * 0, then eight for each window pair (left window then right), pair n from
+ * 4+8n. Each is kept both in unbinned pixels from the centre of the chip and
+ * as the offset in arcsec from the field centre that Aladin draws and rotates
+ * by the PA; {@link FootprintKernel} converts one to the other in a single
+ * loop. skyOffsets() and skyVertices() give the rotated and projected
+ * vertices to Java code.
+ */
+public class FOVGeometry {
+
+    // Most window pairs any template uses
+    public static final int MAX_PAIRS = 3;
+
+    // Number of vertices: the CCD and every window pair
+    public static final int NVERT = 4 + 8*MAX_PAIRS;
+
+    private String ra  = null;
+    private String dec = null;
+    private String pa  = null;
+
+    private final double[]  px   = new double[NVERT];   // unbinned pixels, times -1 in x for a flipped CCD outline
+    private final double[]  py   = new double[NVERT];
+    private final double[]  x    = new double[NVERT];   // offsets from the field centre at PA = 0, arcsec
+    private final double[]  y    = new double[NVERT];
+    private final boolean[] used = new boolean[MAX_PAIRS];
+
+    public FOVGeometry() {
+	setMain(Telescope.TELESCOPES[0]);
+    }
+
+    /** Returns a copy which will not change if this one does */
+    public FOVGeometry copy() {
+	final FOVGeometry g = new FOVGeometry();
+	g.ra  = ra;
+	g.dec = dec;
+	g.pa  = pa;
+	System.arraycopy(px, 0, g.px, 0, NVERT);
+	System.arraycopy(py, 0, g.py, 0, NVERT);
+	System.arraycopy(x,  0, g.x,  0, NVERT);
+	System.arraycopy(y,  0, g.y,  0, NVERT);
+	System.arraycopy(used, 0, g.used, 0, MAX_PAIRS);
+	return g;
+    }
+
+    /** Sets the field centre, sexagesimal strings as typed by the user */
+    public void setCentre(String ra, String dec) {
+	this.ra  = ra;
+	this.dec = dec;
+    }
+
+    /** Sets the position angle, degrees */
+    public void setPA(String pa) {
+	this.pa = pa;
+    }
+
+    /** Sets the outline of the whole CCD for a telescope */
+    public void setMain(Telescope tel) {
+	// the outline is the same either way up, but its corners are listed from +x
+	final double dir = tel.flipped ? -1.0 : 1.0;
+	px[0] =  dir*512; py[0] =  512;
+	px[1] = -dir*512; py[1] =  512;
+	px[2] = -dir*512; py[2] = -512;
+	px[3] =  dir*512; py[3] = -512;
+	place(0, 4, tel);
+    }
+
+    /** Sets window pair n, in unbinned pixels, and marks it as in use */
+    public void setPair(int n, int ystart, int xleft, int xright, int nx, int ny, Telescope tel) {
+	final int v = 4 + 8*n;
+	final double x1 = 512 - xleft,  x3 = x1 - nx;
+	final double x2 = 512 - xright, x4 = x2 - nx;
+	final double y1 = ystart - 512, y2 = y1 + ny;
+	px[v]   = x1; py[v]   = y1;
+	px[v+1] = x3; py[v+1] = y1;
+	px[v+2] = x3; py[v+2] = y2;
+	px[v+3] = x1; py[v+3] = y2;
+	px[v+4] = x2; py[v+4] = y1;
+	px[v+5] = x4; py[v+5] = y1;
+	px[v+6] = x4; py[v+6] = y2;
+	px[v+7] = x2; py[v+7] = y2;
+	place(v, v+8, tel);
+	used[n] = true;
+    }
+
+    // if telescope is flipped such that east is left, then take account
+    private void place(int from, int to, Telescope tel) {
+	final double dir = tel.flipped ? -1.0 : 1.0;
+	FootprintKernel.place(px, py, from, to, dir*tel.plateScale, tel.plateScale, tel.delta_x, tel.delta_y, x, y);
+    }
+
+    /** Marks window pair n as in use without changing its corners */
+    public void usePair(int n) {
+	used[n] = true;
+    }
+
+    /** Removes window pair n */
+    public void clearPair(int n) {
+	used[n] = false;
+    }
+
+    /** Number of vertices drawn: four for the CCD and eight for each window pair in use */
+    public int nvertex() {
+	int n = 4;
+	for(int i=0; i<MAX_PAIRS; i++)
+	    if(used[i]) n += 8;
+	return n;
+    }
+
+    /** Works out the vertices as drawn, rotated by the PA, as offsets in
+     * arcsec east and north of the field centre; CCD first, then each window
+     * pair in use.
+     * @param xi  offsets to the east, at least nvertex() long
+     * @param eta offsets to the north, at least nvertex() long
+     * @return the number of vertices, nvertex()
+     * @throws Exception if the PA has not been set or cannot be read
+     */
+    public int skyOffsets(double[] xi, double[] eta) throws Exception {
+	return rotated(parsePA(), 0., 0., xi, eta, 0);
+    }
+
+    /** Works out the RA and Dec of the vertices as drawn, in the same order as
+     * skyOffsets()
+     * @param ra  RA of each vertex, degrees, at least nvertex() long
+     * @param dec Dec of each vertex, degrees, at least nvertex() long
+     * @return the number of vertices, nvertex()
+     * @throws Exception if the centre or PA has not been set or cannot be read
+     */
+    public int skyVertices(double[] ra, double[] dec) throws Exception {
+	if(this.ra == null || this.dec == null) throw new Exception("FOVGeometry: the field centre has not been set");
+	final double ra0 = parseAngle(this.ra, 15.), dec0 = parseAngle(this.dec, 1.);
+	final int n = skyOffsets(ra, dec);
+	FootprintKernel.toSky(ra, dec, n, ra0, dec0, ra, dec);
+	return n;
+    }
+
+    /** Works out where n positions fall on the CCD as now pointed and
+     * rotated, in unbinned pixels as the window pairs are set: the chip runs
+     * from 0 to 1024 each way, a window from xleft to xleft+nx and from
+     * ystart to ystart+ny. The inverse of skyVertices().
+     * @param ra  RA of each, degrees
+     * @param dec Dec of each, degrees
+     * @param cx  x on the chip of each, at least n long
+     * @param cy  y on the chip of each, at least n long
+     * @throws Exception if the centre or PA has not been set or cannot be read
+     */
+    public void toChip(double[] ra, double[] dec, int n, double[] cx, double[] cy) throws Exception {
+	if(this.ra == null || this.dec == null) throw new Exception("FOVGeometry: the field centre has not been set");
+	final double ra0 = parseAngle(this.ra, 15.), dec0 = parseAngle(this.dec, 1.);
+	final double pa  = Math.toRadians(parsePA());
+	final double c = Math.cos(pa), s = Math.sin(pa);
+
+	// pixels to arcsec as place() did it, read back from the CCD corners
+	final double sx = (x[0] - x[1])/(px[0] - px[1]), dx = x[0] - sx*px[0];
+	final double sy = (y[1] - y[2])/(py[1] - py[2]), dy = y[1] - sy*py[1];
+
+	final double[] xy = new double[2];
+	for(int i=0; i<n; i++){
+	    FootprintKernel.toTangent(ra[i], dec[i], ra0, dec0, xy);
+	    // undo the rotation by the PA
+	    final double xs = c*xy[0] - s*xy[1], ys = s*xy[0] + c*xy[1];
+	    cx[i] = 512. - (xs - dx)/sx;
+	    cy[i] = 512. + (ys - dy)/sy;
+	}
+    }
+
+    // The vertices in use rotated by pa and moved by x0, y0, from xr[off], yr[off]
+    int rotated(double pa, double x0, double y0, double[] xr, double[] yr, int off) {
+	FootprintKernel.rotate(x, y, 0, 4, pa, x0, y0, xr, yr, off);
+	int n = 4;
+	for(int i=0; i<MAX_PAIRS; i++){
+	    if(!used[i]) continue;
+	    FootprintKernel.rotate(x, y, 4+8*i, 8, pa, x0, y0, xr, yr, off+n);
+	    n += 8;
+	}
+	return n;
+    }
+
+    private double parsePA() throws Exception {
+	if(pa == null) throw new Exception("FOVGeometry: the PA has not been set");
+	try{
+	    return Double.parseDouble(pa.trim());
+	}catch(NumberFormatException e){
+	    throw new Exception("FOVGeometry: PA = " + pa + " is not a number");
+	}
+    }
+
+    /** Parses an angle given in degrees or as d:m:s, multiplying the
+     * sexagesimal form by scale (15 for hours of RA, 1 for Dec)
+     */
+    static double parseAngle(String value, double scale) throws Exception {
+	value = value.trim();
+	if(value.indexOf(':') < 0) return Double.parseDouble(value);
+	final String[] part = value.split(":");
+	if(part.length != 3) throw new Exception("Angle " + value + " should be d:m:s");
+	final boolean negative = part[0].trim().startsWith("-");
+	final double a = Math.abs(Double.parseDouble(part[0])) + Double.parseDouble(part[1])/60. + Double.parseDouble(part[2])/3600.;
+	return scale*(negative ? -a : a);
+    }
+
+    /** Returns a 64-bit hash of everything that is drawn: the centre, the PA,
+     * the CCD outline (which carries the telescope offsets) and the corners of
+     * the window pairs in use. If it has not changed, neither has the picture.
+     */
+    public long fingerprint() {
+	long h = FNV_OFFSET;
+	h = mix(h, ra);
+	h = mix(h, dec);
+	h = mix(h, pa);
+	for(int i=0; i<4; i++){
+	    h = mix(h, Double.doubleToLongBits(x[i]));
+	    h = mix(h, Double.doubleToLongBits(y[i]));
+	}
+	for(int n=0; n<MAX_PAIRS; n++){
+	    h = mix(h, used[n] ? 1L : 0L);
+	    if(used[n]){
+		for(int i=4+8*n; i<12+8*n; i++){
+		    h = mix(h, Double.doubleToLongBits(x[i]));
+		    h = mix(h, Double.doubleToLongBits(y[i]));
+		}
+	    }
+	}
+	return h;
+    }
+
+    // 64-bit FNV-1a, a byte at a time
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME  = 0x100000001b3L;
+
+    private static long mix(long h, long value) {
+	for(int i=0; i<64; i+=8){
+	    h ^= (value >>> i) & 0xff;
+	    h *= FNV_PRIME;
+	}
+	return h;
+    }
+
+    private static long mix(long h, String value) {
+	if(value == null) return mix(h, -1L);
+	h = mix(h, value.length());
+	for(int i=0; i<value.length(); i++){
+	    h ^= value.charAt(i);
+	    h *= FNV_PRIME;
+	}
+	return h;
+    }
+
+    // The arrays themselves, for FOVWriter; not to be modified
+    double[] xVertices() {
+	return x;
+    }
+
+    double[] yVertices() {
+	return y;
+    }
+
+    public String getRA() {
+	return ra;
+    }
+
+    public String getDEC() {
+	return dec;
+    }
+
+    public String getPA() {
+	return pa;
+    }
+
+    /** Coordinate i (0-7) of the CCD outline, x then y for each corner */
+    public double getCCD(int i) {
+	return (i & 1) == 0 ? x[i/2] : y[i/2];
+    }
+
+    public boolean isUsed(int n) {
+	return used[n];
+    }
+
+    /** Coordinate i (0-15) of window pair n, x then y for each corner */
+    public double getPair(int n, int i) {
+	return (i & 1) == 0 ? x[4+8*n+i/2] : y[4+8*n+i/2];
+    }
+
+}
@@ -0,0 +1,282 @@
+package ufinder;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/** The ULTRACAM footprint at many pointings and position angles at once, for
+ * dithered and mosaic observations, written as a single VOTable that Aladin
+ * draws as one overlay.
+ *
+ * The table has one field of view centred on the mosaic centre at PA = 0. For
+ * each pointing it holds the CCD and every window pair in use, as resources
+ * with IDs prefixed "P<n>_". Their corners are the footprint's offsets rotated
+ * by the pointing's PA and moved to the pointing's position on the tangent
+ * plane about the centre. Offsets are taken to run x to the east and y to the
+ * north, and PA from north through east. The corners of all the pointings are
+ * computed together, by {@link FootprintKernel}, into flat arrays before any
+ * text is written.
+ *
+ * Run from the command line with no arguments for usage.
+ */
+public class FOVMosaic {
+
+    private final FOVGeometry footprint;
+    private final double ra0, dec0;   // centre, degrees
+    private int encoding = FOVWriter.TABLEDATA;
+
+    // Pointings, degrees
+    private int      npoint = 0;
+    private double[] ra     = new double[16];
+    private double[] dec    = new double[16];
+    private double[] pa     = new double[16];
+
+    /** Constructor
+     * @param footprint the CCD and window pairs about a single pointing; a copy is taken
+     * @param ra0       RA of the centre of the mosaic, degrees
+     * @param dec0      Dec of the centre of the mosaic, degrees
+     */
+    public FOVMosaic(FOVGeometry footprint, double ra0, double dec0) {
+	this.footprint = footprint.copy();
+	this.ra0       = ra0;
+	this.dec0      = dec0;
+    }
+
+    /** Adds a pointing
+     * @param ra  RA, degrees
+     * @param dec Dec, degrees
+     * @param pa  position angle, degrees
+     */
+    public void add(double ra, double dec, double pa) {
+	if(npoint == this.ra.length){
+	    this.ra  = grow(this.ra);
+	    this.dec = grow(this.dec);
+	    this.pa  = grow(this.pa);
+	}
+	this.ra[npoint]  = ra;
+	this.dec[npoint] = dec;
+	this.pa[npoint]  = pa;
+	npoint++;
+    }
+
+    /** Sets how the vertices are written: FOVWriter.TABLEDATA (the default) or FOVWriter.BINARY2 */
+    public void setEncoding(int encoding) {
+	if(encoding != FOVWriter.TABLEDATA && encoding != FOVWriter.BINARY2)
+	    throw new IllegalArgumentException("FOVMosaic: encoding = " + encoding + " is not TABLEDATA or BINARY2");
+	this.encoding = encoding;
+    }
+
+    /** Number of pointings */
+    public int size() {
+	return npoint;
+    }
+
+    public void clear() {
+	npoint = 0;
+    }
+
+    /** Number of corners in one footprint: 4 for the CCD and 8 for each window pair in use */
+    public int ncorner() {
+	return footprint.nvertex();
+    }
+
+    /** Works out the corners of every pointing's footprint as offsets from
+     * the centre of the mosaic, arcsec. Pointing n occupies the ncorner()
+     * values from ncorner()*n, CCD first then each window pair in use.
+     * @param x offsets to the east, at least ncorner()*size() long
+     * @param y offsets to the north, at least ncorner()*size() long
+     */
+    public void corners(double[] x, double[] y) {
+	final double[] xy = new double[2];
+	final int nc = ncorner();
+	for(int p=0; p<npoint; p++){
+	    FootprintKernel.toTangent(ra[p], dec[p], ra0, dec0, xy);
+	    footprint.rotated(pa[p], xy[0], xy[1], x, y, nc*p);
+	}
+    }
+
+    /** Writes the VOTable to out, which is flushed but not closed */
+    public void write(OutputStream out) throws IOException {
+	final int nc = ncorner();
+	final double[] x = new double[nc*npoint], y = new double[nc*npoint];
+	corners(x, y);
+	final StringBuilder text = new StringBuilder(16384);
+	final int[] length = new int[1];
+	byte[] buff = new byte[16384];
+
+	FOVWriter.header(text, hms(ra0), dms(dec0), "0.0", encoding);
+	for(int p=0; p<npoint; p++){
+	    pointing(text, p, x, y, nc*p);
+	    buff = FOVWriter.encode(text, buff, length);
+	    out.write(buff, 0, length[0]);
+	    text.setLength(0);
+	}
+	FOVWriter.footer(text);
+	buff = FOVWriter.encode(text, buff, length);
+	out.write(buff, 0, length[0]);
+	out.flush();
+    }
+
+    /** Returns the VOTable as a String */
+    public String getText() {
+	final int nc = ncorner();
+	final double[] x = new double[nc*npoint], y = new double[nc*npoint];
+	corners(x, y);
+	final StringBuilder text = new StringBuilder(8192 + 6000*npoint);
+	FOVWriter.header(text, hms(ra0), dms(dec0), "0.0", encoding);
+	for(int p=0; p<npoint; p++)
+	    pointing(text, p, x, y, nc*p);
+	FOVWriter.footer(text);
+	return text.toString();
+    }
+
+    // The resources for pointing p, whose corners start at x[off], y[off]
+    private void pointing(StringBuilder text, int p, double[] x, double[] y, int off) {
+	final String prefix = "P" + p + "_";
+	FOVWriter.ccdResource(text, prefix, x, y, off, encoding);
+	off += 4;
+	for(int np=0; np<FOVGeometry.MAX_PAIRS; np++){
+	    if(!footprint.isUsed(np)) continue;
+	    FOVWriter.pairResource(text, prefix, np, x, y, off, encoding);
+	    off += 8;
+	}
+    }
+
+    private static double[] grow(double[] x) {
+	final double[] y = new double[2*x.length];
+	System.arraycopy(x, 0, y, 0, x.length);
+	return y;
+    }
+
+    /** Formats an RA in degrees as hh:mm:ss.ss */
+    public static String hms(double ra) {
+	ra = ((ra % 360.) + 360.) % 360.;
+	long n = Math.round(ra/15.*3600.*100.);   // hundredths of a second of time
+	if(n >= 24L*3600*100) n -= 24L*3600*100;
+	return sexagesimal("", n, 2);
+    }
+
+    /** Formats a Dec in degrees as +dd:mm:ss.s */
+    public static String dms(double dec) {
+	final long n = Math.round(Math.abs(dec)*3600.*10.);   // tenths of an arcsec
+	return sexagesimal(dec < 0 ? "-" : "+", n, 1);
+    }
+
+    private static String sexagesimal(String sign, long n, int ndp) {
+	long scale = 1;
+	for(int i=0; i<ndp; i++) scale *= 10;
+	final long frac = n % scale;
+	n /= scale;
+	final StringBuilder buff = new StringBuilder(sign);
+	pad(buff, n/3600).append(':');
+	pad(buff, (n/60) % 60).append(':');
+	pad(buff, n % 60).append('.');
+	String f = String.valueOf(frac);
+	while(f.length() < ndp) f = "0" + f;
+	return buff.append(f).toString();
+    }
+
+    private static StringBuilder pad(StringBuilder buff, long n) {
+	if(n < 10) buff.append('0');
+	return buff.append(n);
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+    // Command line
+
+    private static final String USAGE =
+	"usage: java -cp ufinder.jar ufinder.FOVMosaic [options] -pointings file -out file\n" +
+	"  -pointings file      one pointing per line: RA Dec [PA], as h:m:s d:m:s or degrees; PA in degrees (default 0)\n" +
+	"  -tel name            telescope (default: VLT)\n" +
+	"  -window ystart,xleft,xright,nx,ny  window pair to draw; repeat for up to 3 pairs (default: none)\n" +
+	"  -centre ra,dec       centre of the mosaic (default: the first pointing)\n" +
+	"  -encoding e          TABLEDATA or BINARY2 (default: TABLEDATA)";
+
+    public static void main(String[] args) {
+	try{
+	    String tel = "VLT", pointingFile = null, out = null, centre = null;
+	    int encoding = FOVWriter.TABLEDATA;
+	    final List<WindowPair> windows = new ArrayList<WindowPair>();
+
+	    for(int i=0; i<args.length; i++){
+		final String opt = args[i];
+		if(i+1 >= args.length) throw new Exception("Missing value for " + opt);
+		final String val = args[++i];
+		if(opt.equals("-pointings"))   pointingFile = val;
+		else if(opt.equals("-tel"))    tel = val;
+		else if(opt.equals("-window")) windows.add(TimingSweep.parseWindow(val));
+		else if(opt.equals("-centre")) centre = val;
+		else if(opt.equals("-encoding")) encoding = FOVWriter.encoding(val);
+		else if(opt.equals("-out"))    out = val;
+		else throw new Exception("Unrecognised option " + opt);
+	    }
+	    if(pointingFile == null) throw new Exception("No pointings given");
+	    if(out == null) throw new Exception("No output file given");
+	    if(windows.size() > FOVGeometry.MAX_PAIRS) throw new Exception("At most " + FOVGeometry.MAX_PAIRS + " window pairs");
+
+	    final Telescope telescope = Telescope.find(tel);
+	    if(telescope == null) throw new Exception("TELESCOPE = " + tel + " was not found amongst the supported telescopes");
+
+	    final FOVGeometry footprint = new FOVGeometry();
+	    footprint.setMain(telescope);
+	    for(int i=0; i<windows.size(); i++){
+		final WindowPair w = windows.get(i);
+		footprint.setPair(i, w.get_ystart(), w.get_xleft(), w.get_xright(), w.get_nx(), w.get_ny(), telescope);
+	    }
+
+	    // Read the pointings
+	    final List<double[]> pointings = new ArrayList<double[]>();
+	    final BufferedReader in = new BufferedReader(new FileReader(pointingFile));
+	    try{
+		String line;
+		int nline = 0;
+		while((line = in.readLine()) != null){
+		    nline++;
+		    line = line.trim();
+		    if(line.length() == 0 || line.startsWith("#")) continue;
+		    final String[] field = line.split("[\\s,]+");
+		    if(field.length < 2 || field.length > 3)
+			throw new Exception("Line " + nline + " of " + pointingFile + " should have RA, Dec and optionally PA");
+		    pointings.add(new double[] {FOVGeometry.parseAngle(field[0], 15.), FOVGeometry.parseAngle(field[1], 1.),
+						field.length > 2 ? Double.parseDouble(field[2]) : 0.});
+		}
+	    }finally{
+		in.close();
+	    }
+	    if(pointings.isEmpty()) throw new Exception("No pointings found in " + pointingFile);
+
+	    double ra0 = pointings.get(0)[0], dec0 = pointings.get(0)[1];
+	    if(centre != null){
+		final String[] part = centre.split(",");
+		if(part.length != 2) throw new Exception("Centre " + centre + " should be ra,dec");
+		ra0  = FOVGeometry.parseAngle(part[0], 15.);
+		dec0 = FOVGeometry.parseAngle(part[1], 1.);
+	    }
+
+	    final FOVMosaic mosaic = new FOVMosaic(footprint, ra0, dec0);
+	    mosaic.setEncoding(encoding);
+	    for(double[] p : pointings)
+		mosaic.add(p[0], p[1], p[2]);
+
+	    final long t0 = System.currentTimeMillis();
+	    final OutputStream os = new BufferedOutputStream(new FileOutputStream(out), 1 << 16);
+	    try{
+		mosaic.write(os);
+	    }finally{
+		os.close();
+	    }
+	    System.out.println("Wrote " + mosaic.size() + " pointings to " + out + " in " + (System.currentTimeMillis()-t0)/1000. + " s");
+	}
+	catch(final Exception e){
+	    System.out.println(e.toString());
+	    System.out.println(USAGE);
+	    System.exit(1);
+	}
+    }
+
+}
@@ -0,0 +1,406 @@
+package ufinder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/** Writes the field of view VOTable that Aladin draws, straight from a
+ * {@link FOVGeometry}, with no DOM and no transformer. The layout is that of
+ * UCAMFOV.xml with a RESOURCE per window pair added after the CCD, as FOVmanip
+ * used to produce by editing the DOM.
+ *
+ * The table is produced in parts: the header and pointing, the CCD, each
+ * window pair and the closing tags. write() sends them to an OutputStream one
+ * after another and openStream() returns an InputStream that renders each part
+ * only when the previous one has been read, so the whole table is never held
+ * in memory. openPipedStream() instead produces the table on a worker thread
+ * which feeds a bounded pipe, so that writing overlaps with the reader's
+ * parsing.
+ *
+ * The vertices can be written as TABLEDATA, one TD per value as in
+ * UCAMFOV.xml, or as VOTable 1.3 BINARY2: each row a byte of null flags and the
+ * two offsets as big-endian 4-byte floats, base64 encoded. BINARY2 is about a
+ * third of the size and needs no number parsing, but it is only understood by
+ * readers of VOTable 1.3, which excludes the footprint parser of the Aladin
+ * bundled with ufinder.
+ */
+public class FOVWriter {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Encodings of the table data */
+    public static final int TABLEDATA = 0;
+    public static final int BINARY2   = 1;
+
+    private static final String[] ENCODING_NAMES = {"TABLEDATA", "BINARY2"};
+
+    private static final String XML_DECLARATION =
+	"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n";
+
+    private static final String VOTABLE_1_1 =
+	"<VOTABLE xmlns=\"http://www.ivoa.net/xml/VOTable/v1.1\" xsi=\"http://www.w3.org/2001/XMLSchema-instance\">\n";
+
+    private static final String VOTABLE_1_3 =
+	"<VOTABLE version=\"1.3\" xmlns=\"http://www.ivoa.net/xml/VOTable/v1.3\" xsi=\"http://www.w3.org/2001/XMLSchema-instance\">\n";
+
+    private static final String HEADER =
+	"  <DESCRIPTION>UCAM FoV description</DESCRIPTION>\n" +
+	"  <RESOURCE ID=\"UCAM_FoV\" name=\"UCAM Field of View\" utype=\"ivoa:characterization/[ucd=pos]/coverage/support\">\n" +
+	"    <DESCRIPTION>Ultracam is a CCD camera with somewhat versatile options for windowing and binning. The configuration in this file \n" +
+	"       is appropriate for ULTRACAM mounted on the VLT</DESCRIPTION>\n" +
+	"    <PARAM ID=\"J2000\" name=\"Coord Frame\" datatype=\"char\" utype=\"stc:AstroCoordSys/SpaceFrame/SpaceRefFrame\" value=\"J2000\"/>\n" +
+	"    <PARAM name=\"FOV Coord Flavor\" datatype=\"char\" utype=\"stc:AstroCoordSys/SpaceFrame/CoordFlavor\" value=\"CARTESIAN\"/>\n";
+
+    private static final String RA_PARAM =
+	"    <PARAM name=\"RA\" ucd=\"pos.eq.ra;meta.main\" ref=\"J2000\" datatype=\"char\" arraysize=\"13\" unit=\"&quot;h:m:s&quot;\" " +
+	"utype=\"stc:AstroCoordSys/SpaceFrame/OffsetCenter[1]\"";
+
+    private static final String DEC_PARAM =
+	"    <PARAM name=\"DEC\" ucd=\"pos.eq.dec;meta.main\" ref=\"J2000\" datatype=\"char\" arraysize=\"12\" unit=\"&quot;d:m:s&quot;\" " +
+	"utype=\"stc:AstroCoordSys/SpaceFrame/OffsetCenter[2]\"";
+
+    private static final String PA_PARAM =
+	"    <PARAM name=\"PA\" ucd=\"pos.posAng\" datatype=\"float\" unit=\"deg\" utype=\"stc:AstroCoordSys/SpaceFrame/PositionAngle\"";
+
+    private static final String MOVABLE =
+	"    <PARAM name=\"Rollable\" value=\"true\"/>\n" +
+	"    <PARAM name=\"Movable\" value=\"true\"/>\n";
+
+    private static final String TABLE_HEAD =
+	"\">\n" +
+	"        <PARAM name=\"Region\" value=\"Polygon\"/>\n" +
+	"        <FIELD ID=\"VXO\" name=\"VertexXOffset\" datatype=\"float\" unit=\"arcsec\" " +
+	"utype=\"stc:AstroCoordArea/Region/reg:Polygon/Vertex/Position[1]\"/>\n" +
+	"        <FIELD ID=\"VYO\" name=\"VertexYOffset\" datatype=\"float\" unit=\"arcsec\" " +
+	"utype=\"stc:AstroCoordArea/Region/reg:Polygon/Vertex/Position[2]\"/>\n" +
+	"        <DATA>\n";
+
+    private static final String TABLEDATA_HEAD = "          <TABLEDATA>\n";
+    private static final String TABLEDATA_TAIL = "          </TABLEDATA>\n";
+    private static final String BINARY2_HEAD   = "          <BINARY2>\n            <STREAM encoding=\"base64\">";
+    private static final String BINARY2_TAIL   = "</STREAM>\n          </BINARY2>\n";
+
+    private static final String TABLE_TAIL =
+	"        </DATA>\n" +
+	"      </TABLE>\n";
+
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private static final String FOOTER =
+	"  </RESOURCE>\n" +
+	"</VOTABLE>\n";
+
+    // Size of the pipe between writer and reader, bytes
+    public static final int PIPE_SIZE = 4096;
+
+    // Threads that feed piped streams; created on first use
+    private static ExecutorService writers = null;
+
+    private final FOVGeometry geometry;
+    private final int encoding;
+
+    /** Constructor for a table written as TABLEDATA
+     * @param geometry the field of view to write. It is read as the table is
+     * written, so pass a copy if it may change meanwhile.
+     */
+    public FOVWriter(FOVGeometry geometry) {
+	this(geometry, TABLEDATA);
+    }
+
+    /** Constructor
+     * @param geometry the field of view to write, as above
+     * @param encoding TABLEDATA or BINARY2
+     */
+    public FOVWriter(FOVGeometry geometry, int encoding) {
+	if(encoding != TABLEDATA && encoding != BINARY2)
+	    throw new IllegalArgumentException("FOVWriter: encoding = " + encoding + " is not TABLEDATA or BINARY2");
+	this.geometry = geometry;
+	this.encoding = encoding;
+    }
+
+    /** Returns the encoding called name, TABLEDATA or BINARY2, ignoring case */
+    public static int encoding(String name) throws Exception {
+	for(int i=0; i<ENCODING_NAMES.length; i++)
+	    if(ENCODING_NAMES[i].equalsIgnoreCase(name.trim())) return i;
+	throw new Exception("Encoding " + name + " is not TABLEDATA or BINARY2");
+    }
+
+    /** Name of an encoding */
+    public static String encodingName(int encoding) {
+	return ENCODING_NAMES[encoding];
+    }
+
+    /** Writes the VOTable to out, which is flushed but not closed */
+    public void write(OutputStream out) throws IOException {
+	final PartStream in = new PartStream();
+	while(in.fill())
+	    out.write(in.buff, 0, in.length);
+	out.flush();
+    }
+
+    /** Returns the VOTable as a String */
+    public String getText() {
+	final StringBuilder text = new StringBuilder(8192);
+	for(int i=0; i<nparts(); i++)
+	    part(i, text);
+	return text.toString();
+    }
+
+    /** Returns a stream from which the VOTable can be read, produced as it is read */
+    public InputStream openStream() {
+	return new PartStream();
+    }
+
+    /** Returns a stream from which the VOTable can be read while a worker
+     * thread writes it into a pipe of PIPE_SIZE bytes. The writer waits when
+     * the pipe is full, so memory use does not depend on the size of the
+     * table. If the reader closes the stream early the writer gives up.
+     * The geometry must not change until the table has been read.
+     */
+    public InputStream openPipedStream() throws IOException {
+	final PipedInputStream  in  = new PipedInputStream(PIPE_SIZE);
+	final PipedOutputStream out = new PipedOutputStream(in);
+	getWriters().execute(new Runnable(){
+		public void run(){
+		    try{
+			write(out);
+		    }catch(IOException e){
+			// the reader has gone away; nothing more to do
+		    }finally{
+			try{
+			    out.close();
+			}catch(IOException e){
+			    // as above
+			}
+		    }
+		}
+	    });
+	return in;
+    }
+
+    private static synchronized ExecutorService getWriters() {
+	if(writers == null){
+	    writers = Executors.newCachedThreadPool(new ThreadFactory(){
+		    public Thread newThread(Runnable r){
+			final Thread thread = new Thread(r, "FOV writer");
+			thread.setDaemon(true);
+			return thread;
+		    }
+		});
+	}
+	return writers;
+    }
+
+    // Header, CCD, one per window pair, footer
+    private int nparts() {
+	return 3 + FOVGeometry.MAX_PAIRS;
+    }
+
+    // Appends part n of the table to text; unused window pairs give nothing
+    private void part(int n, StringBuilder text) {
+	if(n == 0){
+	    header(text, geometry.getRA(), geometry.getDEC(), geometry.getPA(), encoding);
+	}else if(n == 1){
+	    ccdResource(text, "", geometry.xVertices(), geometry.yVertices(), 0, encoding);
+	}else if(n < nparts()-1){
+	    final int np = n - 2;
+	    if(geometry.isUsed(np))
+		pairResource(text, "", np, geometry.xVertices(), geometry.yVertices(), 4+8*np, encoding);
+	}else{
+	    text.append(FOOTER);
+	}
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+    // Pieces of the table, shared with FOVMosaic
+
+    // Opening of the table up to and including the field-wide parameters
+    static void header(StringBuilder text, String ra, String dec, String pa, int encoding) {
+	text.append(XML_DECLARATION);
+	text.append(encoding == BINARY2 ? VOTABLE_1_3 : VOTABLE_1_1);
+	text.append(HEADER);
+	param(text, RA_PARAM,  ra);
+	param(text, DEC_PARAM, dec);
+	param(text, PA_PARAM,  pa);
+	text.append(MOVABLE);
+    }
+
+    // The whole CCD, from the 4 vertices x[off], y[off] on. prefix is put in front of the ID.
+    static void ccdResource(StringBuilder text, String prefix, double[] x, double[] y, int off, int encoding) {
+	text.append("    <RESOURCE ID=\"").append(prefix).append("WCCD\" name=\"").append(prefix).append("WCCD\">\n");
+	text.append("      <DESCRIPTION>The whole ultracam chip</DESCRIPTION>\n");
+	text.append("      <PARAM ShortDescription=\"UCAM\"/>\n");
+	text.append("      <TABLE ID=\"UCAM\" name=\"UCAM").append(TABLE_HEAD);
+	data(text, x, y, off, encoding);
+	text.append(TABLE_TAIL);
+	text.append("      <PARAM name=\"color\" value=\"red\"/>\n");
+	text.append("    </RESOURCE>\n");
+    }
+
+    // Window pair np, from the 8 vertices x[off], y[off] on. prefix is put in front of the ID.
+    static void pairResource(StringBuilder text, String prefix, int np, double[] x, double[] y, int off, int encoding) {
+	text.append("    <RESOURCE ID=\"").append(prefix).append("WindowPair").append(np)
+	    .append("\" name=\"").append(prefix).append("WindowPair").append(np).append("\">\n");
+	text.append("      <DESCRIPTION>An ULTRACAM window</DESCRIPTION>\n");
+	text.append("      <PARAM ShortDescription=\"Left Window of Pair\"/>\n");
+	text.append("      <TABLE ID=\"LWin\" name=\"Lwin").append(TABLE_HEAD);
+	data(text, x, y, off, encoding);
+	text.append(TABLE_TAIL);
+	text.append("      <PARAM name=\"color\" value=\"blue\"/>\n");
+	text.append("      <TABLE ID=\"RWin\" name=\"RWin").append(TABLE_HEAD);
+	data(text, x, y, off+4, encoding);
+	text.append(TABLE_TAIL);
+	text.append("    </RESOURCE>\n");
+    }
+
+    // Closing of the table
+    static void footer(StringBuilder text) {
+	text.append(FOOTER);
+    }
+
+    // Copies text into buff, which is grown if need be, as UTF-8. Returns the buffer used.
+    static byte[] encode(StringBuilder text, byte[] buff, int[] length) {
+	if(buff.length < text.length())
+	    buff = new byte[2*text.length()];
+	int n = 0;
+	for(int i=0; i<text.length(); i++){
+	    final char c = text.charAt(i);
+	    if(c >= 0x80){
+		// not plain ASCII, so leave it to the encoder
+		buff = text.toString().getBytes(UTF8);
+		length[0] = buff.length;
+		return buff;
+	    }
+	    buff[n++] = (byte)c;
+	}
+	length[0] = n;
+	return buff;
+    }
+
+    private static void param(StringBuilder text, String start, String value) {
+	text.append(start);
+	if(value != null){
+	    text.append(" value=\"");
+	    escape(text, value);
+	    text.append('"');
+	}
+	text.append("/>\n");
+    }
+
+    // The four vertices of a polygon from x[off], y[off]
+    private static void data(StringBuilder text, double[] x, double[] y, int off, int encoding) {
+	if(encoding == BINARY2){
+	    // 9 bytes a row: no nulls, then x and y
+	    final byte[] rows = new byte[36];
+	    int n = 0;
+	    for(int i=off; i<off+4; i++){
+		rows[n++] = 0;
+		n = putFloat(rows, n, (float)x[i]);
+		n = putFloat(rows, n, (float)y[i]);
+	    }
+	    text.append(BINARY2_HEAD);
+	    base64(text, rows, n);
+	    text.append(BINARY2_TAIL);
+	}else{
+	    text.append(TABLEDATA_HEAD);
+	    for(int i=off; i<off+4; i++)
+		row(text, x[i], y[i]);
+	    text.append(TABLEDATA_TAIL);
+	}
+    }
+
+    private static int putFloat(byte[] b, int n, float value) {
+	final int bits = Float.floatToIntBits(value);
+	b[n++] = (byte)(bits >>> 24);
+	b[n++] = (byte)(bits >>> 16);
+	b[n++] = (byte)(bits >>>  8);
+	b[n++] = (byte)bits;
+	return n;
+    }
+
+    // Appends the first n bytes of b in base64, padded
+    static void base64(StringBuilder text, byte[] b, int n) {
+	int i = 0;
+	for(; i+2<n; i+=3){
+	    final int v = (b[i] & 0xff) << 16 | (b[i+1] & 0xff) << 8 | (b[i+2] & 0xff);
+	    text.append(BASE64[v >>> 18]).append(BASE64[(v >>> 12) & 63]).append(BASE64[(v >>> 6) & 63]).append(BASE64[v & 63]);
+	}
+	if(i < n){
+	    final int v = (b[i] & 0xff) << 16 | (i+1 < n ? (b[i+1] & 0xff) << 8 : 0);
+	    text.append(BASE64[v >>> 18]).append(BASE64[(v >>> 12) & 63]);
+	    text.append(i+1 < n ? BASE64[(v >>> 6) & 63] : '=').append('=');
+	}
+    }
+
+    private static void row(StringBuilder text, double x, double y) {
+	text.append("            <TR>\n");
+	text.append("              <TD>").append(x).append("</TD>\n");
+	text.append("              <TD>").append(y).append("</TD>\n");
+	text.append("            </TR>\n");
+    }
+
+    // Escapes a string for use as an attribute value
+    private static void escape(StringBuilder text, String value) {
+	for(int i=0; i<value.length(); i++){
+	    final char c = value.charAt(i);
+	    switch(c){
+	    case '&':  text.append("&amp;");  break;
+	    case '<':  text.append("&lt;");   break;
+	    case '>':  text.append("&gt;");   break;
+	    case '"':  text.append("&quot;"); break;
+	    case '\'': text.append("&apos;"); break;
+	    default:   text.append(c);
+	    }
+	}
+    }
+
+    // Renders the table a part at a time into a re-used buffer
+    private class PartStream extends InputStream {
+
+	private final StringBuilder text = new StringBuilder(2048);
+	private byte[] buff   = new byte[2048];
+	private int    length = 0;
+	private int    pos    = 0;
+	private int    next   = 0;
+	private final int[] size = new int[1];
+
+	// Renders the next part. Returns false if there are none left.
+	boolean fill() {
+	    while(next < nparts()){
+		text.setLength(0);
+		part(next++, text);
+		if(text.length() == 0) continue;
+		buff   = encode(text, buff, size);
+		length = size[0];
+		pos    = 0;
+		return true;
+	    }
+	    return false;
+	}
+
+	public int read() {
+	    if(pos == length && !fill()) return -1;
+	    return buff[pos++] & 0xff;
+	}
+
+	public int read(byte[] b, int off, int len) {
+	    if(len == 0) return 0;
+	    if(pos == length && !fill()) return -1;
+	    final int n = Math.min(len, length - pos);
+	    System.arraycopy(buff, pos, b, off, n);
+	    pos += n;
+	    return n;
+	}
+
+	public int available() {
+	    return length - pos;
+	}
+    }
+
+}
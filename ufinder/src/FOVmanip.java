@@ -1,387 +1,393 @@
 package ufinder;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringWriter;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
 
-import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
 
 import org.w3c.dom.DOMException;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
-import java.net.*;
 
+/** The field of view drawn in Aladin. The setters update a compact
+ * FOVGeometry from which FOVWriter streams the VOTable. The DOM of UCAMFOV.xml
+ * is only built, and brought up to date, when getDocument() asks for it.
+ *
+ * Instances share nothing mutable, so footprints can be built on several
+ * threads at once, and the methods of one instance are synchronized. The
+ * base UCAMFOV.xml is parsed once and each instance's DOM is a clone of it.
+ */
 public class FOVmanip {
     
-    private static DocumentBuilder _documentBuilder;
-    private static Transformer     _transformer;
+    private static final URL FileURL = FOVmanip.class.getClassLoader().getResource("UCAMFOV.xml");
+
+    // Parsed UCAMFOV.xml, cloned for each instance; only touched while holding the lock on BASE_LOCK
+    private static final Object BASE_LOCK = new Object();
+    private static Document _base = null;
+
+    // Identity stylesheet, compiled once; a Templates can be shared between threads, a Transformer cannot
+    private static final String IDENTITY =
+	"<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">" +
+	"<xsl:template match=\"@*|node()\"><xsl:copy><xsl:apply-templates select=\"@*|node()\"/></xsl:copy></xsl:template>" +
+	"</xsl:stylesheet>";
+    private static Templates _templates = null;
+
     private Document  document=null;
-    private URL FileURL =  getClass().getClassLoader().getResource("UCAMFOV.xml");
-    private static NodeList nodelist=null;
-    private Node daddy=null;
+    private final FOVGeometry geometry = new FOVGeometry();
+    private boolean domStale = true;
+
+    // Index into the DOM, built once when it is loaded so that updates need no searching
+    private final Map<String,Element> resources = new HashMap<String,Element>();  // RESOURCE by ID
+    private final Map<String,Element> params    = new HashMap<String,Element>();  // PARAM by name
+    private Element   fovRes   = null;
+    private Element   ccdRes   = null;
+    private Node[]    ccdCells = null;
+    private final Element[] pairRes   = new Element[FOVGeometry.MAX_PAIRS];
+    private final Node[][]  pairCells = new Node[FOVGeometry.MAX_PAIRS][];
     
     /** Constructor
      * 
      */
     public FOVmanip(){
-
-	// load base configuration from ULTRACAM FOV file
-	try {
-	    // Create an XML document builder & transformer
-	    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-	    dbf.setValidating(false);
-	    _documentBuilder = dbf.newDocumentBuilder();		    
-	    TransformerFactory factory = TransformerFactory.newInstance();
-	    _transformer = factory.newTransformer();		    
-	    
-	    // Build document from base file
-	    this.document = _documentBuilder.parse(FileURL.openStream());			
-	} catch (SAXException e) {
-	    // TODO Auto-generated catch block
-	    e.printStackTrace();
-	} catch (IOException e) {
-	    // TODO Auto-generated catch block
-	    e.printStackTrace();
-	} catch (ParserConfigurationException e) {
-	    // TODO Auto-generated catch block
-	    e.printStackTrace();
-	} catch (TransformerConfigurationException e) {
-	    // TODO Auto-generated catch block
-	    e.printStackTrace();
-	}		
     }
-    
-    public String getText(){
-	String text=null;
-	try{
-	    //initialize StreamResult with File object to save to file
-	    StreamResult result = new StreamResult(new StringWriter());
-	    _transformer.transform(new DOMSource(this.document), result);
-	    text = result.getWriter().toString();
-	}catch(Exception e){
-	    e.printStackTrace();
+
+    // A fresh copy of the base configuration from the ULTRACAM FOV file
+    private static Document _cloneBase() throws Exception {
+	synchronized(BASE_LOCK){
+	    if(_base == null){
+		final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+		dbf.setValidating(false);
+		final InputStream in = FileURL.openStream();
+		try{
+		    _base = dbf.newDocumentBuilder().parse(in);
+		}finally{
+		    in.close();
+		}
+	    }
+	    return (Document)_base.cloneNode(true);
 	}
-	return text;
     }
-	
-    
-    public InputStream getStream(){
-	InputStream stream = null;
-	try {
-	    //Transform to write out
-	    
-	    /*** Create Output stream from XML DOM object
-	     *  and create input stream by creating byte array from output stream.
-	     *  Has the disadvantage of requiring whole stream to be held in memory.
-	     */
-	    ByteArrayOutputStream outstr = new ByteArrayOutputStream();
-	    _transformer.transform(new DOMSource(this.document),new StreamResult(outstr));
-	    stream = new ByteArrayInputStream(outstr.toByteArray());
-	    
-	} catch (Exception e) {
-	    // TODO Auto-generated catch block
-	    e.printStackTrace();
-	}
-	return stream;
+
+    private static synchronized Templates _getTemplates() throws TransformerException {
+	if(_templates == null)
+	    _templates = TransformerFactory.newInstance().newTemplates(new StreamSource(new StringReader(IDENTITY)));
+	return _templates;
+    }
+
+    public synchronized String getText(){
+	return getText(FOVWriter.TABLEDATA);
+    }
+
+    /** Returns the VOTable as a String
+     * @param encoding FOVWriter.TABLEDATA or FOVWriter.BINARY2
+     */
+    public synchronized String getText(int encoding){
+	return new FOVWriter(geometry, encoding).getText();
+    }
+
+    /** Returns the VOTable as a stream which is produced as Aladin reads it.
+     * It describes the field of view as it is now, whatever is changed later.
+     */
+    public synchronized InputStream getStream(){
+	return getStream(FOVWriter.TABLEDATA);
     }	
-    
-    public void delWindowPair(int nwin) {
-	
-	nodelist = this.document.getElementsByTagName("RESOURCE");
-	
-	// now - does this window already exist? If it doesn't there's nothing more to do.
-	int i=0;
-	for(i=0; i<nodelist.getLength(); i++){
-	    Element elem = (Element)nodelist.item(i);
-	    String check = "WindowPair"+nwin;
-	    if(elem.hasAttribute("ID") && elem.getAttribute("ID").equals(check)){
-		
-		
-		// OK, it exists, let's delete it
-		daddy = elem.getParentNode();
-		daddy.removeChild(elem);			
-		break;
+
+    /** As getStream(), with the vertices in the given encoding */
+    public synchronized InputStream getStream(int encoding){
+	return new FOVWriter(geometry.copy(), encoding).openStream();
+    }
+
+    /** Returns the VOTable as a stream fed through a bounded pipe by a worker
+     * thread, so that it is written while Aladin parses it. Like getStream it
+     * describes the field of view as it is now.
+     */
+    public synchronized InputStream getPipedStream() throws IOException {
+	return getPipedStream(FOVWriter.TABLEDATA);
+    }
+
+    /** As getPipedStream(), with the vertices in the given encoding */
+    public synchronized InputStream getPipedStream(int encoding) throws IOException {
+	return new FOVWriter(geometry.copy(), encoding).openPipedStream();
+    }
+
+    /** Writes the VOTable to out, which is flushed but not closed */
+    public synchronized void write(OutputStream out) throws IOException {
+	write(out, FOVWriter.TABLEDATA);
+    }
+
+    /** As write(out), with the vertices in the given encoding */
+    public synchronized void write(OutputStream out, int encoding) throws IOException {
+	new FOVWriter(geometry, encoding).write(out);
+    }
+
+    /** Hash of the field of view as drawn; see FOVGeometry.fingerprint */
+    public synchronized long fingerprint(){
+	return geometry.fingerprint();
+    }
+
+    /** RA and Dec of the vertices as drawn; see FOVGeometry.skyVertices
+     * @param ra  degrees, at least FOVGeometry.NVERT long
+     * @param dec degrees, at least FOVGeometry.NVERT long
+     * @return the number of vertices
+     */
+    public synchronized int getSkyVertices(double[] ra, double[] dec) throws Exception {
+	return geometry.skyVertices(ra, dec);
+    }
+
+    /** Where positions fall on the CCD, unbinned pixels; see FOVGeometry.toChip */
+    public synchronized void toChip(double[] ra, double[] dec, int n, double[] cx, double[] cy) throws Exception {
+	geometry.toChip(ra, dec, n, cx, cy);
+    }
+
+    /** Returns the field of view as a DOM, brought up to date with any changes.
+     * The DOM belongs to this instance; it is not safe to change it or read it
+     * while another thread is calling the setters.
+     * @return the DOM, or null if UCAMFOV.xml could not be loaded
+     */
+    public synchronized Document getDocument(){
+	if(this.document == null){
+	    try{
+		this.document = _cloneBase();
+		_index();
+	    }catch(Exception e){
+		e.printStackTrace();
+		return null;
 	    }
 	}
-    }
-    
-    public void addWindowPair(WindowPairs win, int nwin, Telescope tel){
-	
-	nodelist = this.document.getElementsByTagName("RESOURCE");
-	
-	// if telescope is flipped such that east is left, then take account
-	double dir = 1.0;
-	if (tel.flipped) dir = -1.0;
-	
-	//System.out.println("adding window pair " + nwin);
-	
-	// now - does this window already exist? If it does there's nothing more to do.
-	for(int i=0; i<nodelist.getLength(); i++){
-	    Element elem = (Element)nodelist.item(i);
-	    String check = "WindowPair"+nwin;
-	    if(elem.hasAttribute("ID") && elem.getAttribute("ID").equals(check)){
-		// OK, it exists, let's bail
-		//System.out.println("Window Pair " + nwin + " already exists.");
-		return;
+	if(domStale){
+	    _domMainWin();
+	    for(int i=0; i<FOVGeometry.MAX_PAIRS; i++){
+		if(geometry.isUsed(i))
+		    _domWindowPair(i);
+		else
+		    _domDelWindowPair(i);
 	    }
+	    _domCentre();
+	    domStale = false;
 	}
-	
-	// OK - it doesn't exist so let's put it in!
-	// get a template for a window descriptor by editing the main window resource
-				
-	// Get elements containing the whole FoV resource and the full CCD Resource
-	Element ccdRes = null;
-	Element fovRes  = null;
-	for(int i=0; i<nodelist.getLength(); i++){
-	    Element elem = (Element)nodelist.item(i);
-	    if(elem.hasAttribute("ID") && elem.getAttribute("ID").equals("WCCD")) 
-		// this is the resource element detailing the main window
-		ccdRes = (Element)elem;
-	    if(elem.hasAttribute("ID") && elem.getAttribute("ID").equals("UCAM_FoV")) 
-		// this is the resource element detailing the whole FOV
-		fovRes = (Element)elem;			
+	return this.document;
+    }
+
+    /** Writes the DOM from getDocument() to out, which is flushed but not
+     * closed. Slower than write(), but it shows any changes made to the DOM.
+     */
+    public synchronized void writeDocument(OutputStream out) throws IOException {
+	final Document doc = getDocument();
+	if(doc == null) throw new IOException("UCAMFOV.xml could not be loaded");
+	try{
+	    _getTemplates().newTransformer().transform(new DOMSource(doc), new StreamResult(out));
+	}catch(TransformerException e){
+	    throw new IOException(e.toString());
 	}
+	out.flush();
+    }
 
-	// let's try copying the ccd Resource element to a window resource element.
-	Element winRes1 = null;
-	winRes1 = (Element)ccdRes.cloneNode(true);
-		
-	// change resource name
-	String id = "WindowPair"+nwin;
-	winRes1.setAttribute("ID", id);
-	winRes1.setAttribute("name", id);
-	//change rest of attributes
-	winRes1.normalize();
-	nodelist = winRes1.getChildNodes();
-	for(int i=0; i<nodelist.getLength(); i++){
-	    if(nodelist.item(i).getNodeType() == 1){
-		Element elem = (Element)nodelist.item(i);
-		// description
-		if(elem.getTagName().equals("DESCRIPTION")) 
-		    elem.setTextContent("An ULTRACAM window");
-		// Short Description
-		if(elem.hasAttribute("ShortDescription"))
-		    elem.setAttribute("ShortDescription","Left Window of Pair");
-		if(elem.getTagName().equals("TABLE") && elem.hasAttribute("ID")){
-		    elem.setAttribute("ID", "LWin");
-		    elem.setAttribute("name", "Lwin");				
-		}
-	    }
+    /** Brings the CCD outline and window pairs up to date: the main CCD, the
+     * first npair window pairs, removing any others.
+     */
+    public synchronized void configWindows(WindowPairs win, int npair, Telescope tel){
+	configMainWin(tel);
+	for(int i=0; i<npair; i++){
+	    addWindowPair(win, i, tel);
+	    configWindowPair(win, i, tel);
 	}
-		
-	// The right window of the pair is represented by a second <TABLE> node in the
-	// resource, so let's copy the one that's already there
-	nodelist = winRes1.getElementsByTagName("TABLE");
-	Element TableElem = (Element)nodelist.item(0);
-	Element rightWin = (Element)TableElem.cloneNode(true);
-	rightWin.setAttribute("ID",   "RWin");
-	rightWin.setAttribute("name", "RWin");
-			
-	winRes1.appendChild(rightWin);				
-		
-	// normally we set the <TD> datatags here to the 4 corners of the window
-	double x1,x2,x3,x4,y1,y2;
-	double PlateScale = tel.plateScale;
-	double xoff = tel.delta_x;
-	double yoff = tel.delta_y;
+	for(int i=npair; i<3; i++)
+	    delWindowPair(i);
+    }
+
+    /** As configWindows, from window pairs given directly rather than read
+     * from the GUI, e.g. by batch jobs; one pair is drawn for each element.
+     */
+    public synchronized void configWindows(WindowPair[] windows, Telescope tel){
+	if(windows.length > FOVGeometry.MAX_PAIRS)
+	    throw new IllegalArgumentException("At most " + FOVGeometry.MAX_PAIRS + " window pairs can be drawn");
+	configMainWin(tel);
+	for(int i=0; i<windows.length; i++){
+	    final WindowPair w = windows[i];
+	    geometry.setPair(i, w.get_ystart(), w.get_xleft(), w.get_xright(), w.get_nx(), w.get_ny(), tel);
+	}
+	for(int i=windows.length; i<FOVGeometry.MAX_PAIRS; i++)
+	    delWindowPair(i);
+	domStale = true;
+    }
+
+    public synchronized void delWindowPair(int nwin) {
+	geometry.clearPair(nwin);
+	domStale = true;
+    }
+
+    public synchronized void addWindowPair(WindowPairs win, int nwin, Telescope tel){
+	// if it already exists there's nothing more to do
+	if(geometry.isUsed(nwin)) return;
+	geometry.usePair(nwin);
+	configWindowPair(win, nwin, tel);
+    }
+
+    public synchronized void configMainWin(Telescope tel){
+	geometry.setMain(tel);
+	domStale = true;
+    }
+
+    public synchronized void configWindowPair(WindowPairs win, int nwin, Telescope tel){
 	try {
-	    x1 = xoff+dir*(512-win.getXleft(nwin))*PlateScale; 
-	    x3 = (x1 - dir*win.getNx(nwin)*PlateScale);
-	    y1 = yoff+(win.getYstart(nwin)-512)*PlateScale; 
-	    y2 = y1 + win.getNy(nwin)*PlateScale;
-	    x2 = xoff+dir*(512-win.getXright(nwin))*PlateScale;
-	    x4 = (x2 - dir*win.getNx(nwin)*PlateScale);
-	    nodelist = winRes1.getElementsByTagName("TD");
-	    nodelist.item(0).setTextContent(""+x1);
-	    nodelist.item(1).setTextContent(""+y1);
-	    nodelist.item(2).setTextContent(""+x3);
-	    nodelist.item(3).setTextContent(""+y1);
-	    nodelist.item(4).setTextContent(""+x3);
-	    nodelist.item(5).setTextContent(""+y2);
-	    nodelist.item(6).setTextContent(""+x1);
-	    nodelist.item(7).setTextContent(""+y2);
-	    nodelist.item(8).setTextContent(""+x2);
-	    nodelist.item(9).setTextContent(""+y1);
-	    nodelist.item(10).setTextContent(""+x4);
-	    nodelist.item(11).setTextContent(""+y1);
-	    nodelist.item(12).setTextContent(""+x4);
-	    nodelist.item(13).setTextContent(""+y2);
-	    nodelist.item(14).setTextContent(""+x2);
-	    nodelist.item(15).setTextContent(""+y2);
+	    geometry.setPair(nwin, win.getYstart(nwin), win.getXleft(nwin), win.getXright(nwin),
+			     win.getNx(nwin), win.getNy(nwin), tel);
 	} catch (Exception e) {
 	    e.printStackTrace();
 	}
-						
-	//set colour to blue
-	nodelist = winRes1.getElementsByTagName("PARAM");
+	domStale = true;
+    }
+	
+    public synchronized void setCentre(String RA, String DEC){
+	geometry.setCentre(RA, DEC);
+	domStale = true;
+    }
+
+    public synchronized void setPA(String PA, Telescope tel){
+	geometry.setPA(PA);
+	domStale = true;
+    }	
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+    // Bringing the DOM up to date with the geometry
+
+    // Builds the index of the resources, parameters and table cells
+    private void _index(){
+	NodeList nodelist = this.document.getElementsByTagName("RESOURCE");
 	for(int i=0; i<nodelist.getLength(); i++){
 	    Element elem = (Element)nodelist.item(i);
-	    if(elem.hasAttribute("name") && (elem.getAttribute("name").equals("color")) )
-		elem.setAttribute("value", "blue");
+	    if(elem.hasAttribute("ID")) resources.put(elem.getAttribute("ID"), elem);
 	}
-		
-	// append window to file
-	try{
-	    fovRes.appendChild(winRes1);
-	} catch (DOMException e){
-	    e.printStackTrace();
-	}		
-
-    }
-
-    public void configMainWin(Telescope tel){
-	/**
-	   try {
-	   _transformer.transform(new DOMSource(this.document), new StreamResult(System.out));
-	   } catch (TransformerException e1) {
-	   // TODO Auto-generated catch block
-	   e1.printStackTrace();
-	   }
-	**/
-		
-	double PlateScale = tel.plateScale;
-	double xoff = tel.delta_x;
-	double yoff = tel.delta_y;
-		
-	nodelist = this.document.getElementsByTagName("RESOURCE");
-	// now - does this window already exist? If it does there's nothing more to do.
-	Element elem = null;
+	nodelist = this.document.getElementsByTagName("PARAM");
 	for(int i=0; i<nodelist.getLength(); i++){
-	    elem = (Element)nodelist.item(i);
-	    String check = "WCCD";
-	    if(elem.hasAttribute("ID") && elem.getAttribute("ID").equals(check)) break;
-			
-	}	
+	    Element elem = (Element)nodelist.item(i);
+	    // the first of each name, i.e. the field-wide ones rather than those of a window
+	    if(elem.hasAttribute("name") && !params.containsKey(elem.getAttribute("name")))
+		params.put(elem.getAttribute("name"), elem);
+	}
+
+	// the resource element detailing the whole FOV and the one detailing the main window
+	fovRes   = resources.get("UCAM_FoV");
+	ccdRes   = resources.get("WCCD");
+	ccdCells = _cells(ccdRes, 8);
 
 	//set colour to red
-	nodelist = elem.getElementsByTagName("PARAM");
+	nodelist = ccdRes.getElementsByTagName("PARAM");
 	for(int i=0; i<nodelist.getLength(); i++){
 	    Element thiselem = (Element)nodelist.item(i);
 	    if(thiselem.hasAttribute("name") && (thiselem.getAttribute("name").equals("color")) )
 		thiselem.setAttribute("value", "red");
 	}
 
-	// normally we set the <TD> datatags here to the 4 corners of the window
-	double x1,x2,y1,y2;
-	x1 = 512*PlateScale+xoff; 
-	y1 = 512*PlateScale+yoff;
-	x2 = x1-1024*PlateScale; y2 = y1-1024*PlateScale;
-	try {
-	    nodelist = elem.getElementsByTagName("TD");
-	    nodelist.item(0).setTextContent(""+x1);
-	    nodelist.item(1).setTextContent(""+y1);
-	    nodelist.item(2).setTextContent(""+x2);
-	    nodelist.item(3).setTextContent(""+y1);
-	    nodelist.item(4).setTextContent(""+x2);
-	    nodelist.item(5).setTextContent(""+y2);
-	    nodelist.item(6).setTextContent(""+x1);
-	    nodelist.item(7).setTextContent(""+y2);
-	} catch (Exception e) {
-	    e.printStackTrace();
+	for(int i=0; i<FOVGeometry.MAX_PAIRS; i++){
+	    pairRes[i] = resources.get("WindowPair"+i);
+	    if(pairRes[i] != null) pairCells[i] = _cells(pairRes[i], 16);
 	}
+    }
 
-    }	
-	
-    public void configWindowPair(WindowPairs win, int nwin, Telescope tel){
-		
-	double PlateScale = tel.plateScale;
-	double dir=1.0;
-	if (tel.flipped) dir = -1.0;
-	double xoff = tel.delta_x;
-	double yoff = tel.delta_y;
-		
-	nodelist = this.document.getElementsByTagName("RESOURCE");
-	// now - does this window already exist? If it does there's nothing more to do.
-	Element elem = null;
-	for(int i=0; i<nodelist.getLength(); i++){
-	    elem = (Element)nodelist.item(i);
-	    String check = "WindowPair"+nwin;
-	    if(elem.hasAttribute("ID") && elem.getAttribute("ID").equals(check)) break;
-			
-	}	
+    // The first n <TD> cells of a resource
+    private static Node[] _cells(Element res, int n){
+	final NodeList nodelist = res.getElementsByTagName("TD");
+	final Node[] cells = new Node[n];
+	for(int i=0; i<n; i++)
+	    cells[i] = nodelist.item(i);
+	return cells;
+    }
 
-	// normally we set the <TD> datatags here to the 4 corners of the window
-	double x1,x2,x3,x4,y1,y2;
-	try {
-	    x1 = xoff+dir*(512-win.getXleft(nwin))*PlateScale; 
-	    x3 = (x1 - dir*win.getNx(nwin)*PlateScale);
-	    y1 = yoff+(win.getYstart(nwin)-512)*PlateScale; 
-	    y2 = y1 + win.getNy(nwin)*PlateScale;
-	    x2 = xoff+dir*(512-win.getXright(nwin))*PlateScale; 
-	    x4 = (x2 - dir*win.getNx(nwin)*PlateScale);
-	    nodelist = elem.getElementsByTagName("TD");
-	    nodelist.item(0).setTextContent(""+x1);
-	    nodelist.item(1).setTextContent(""+y1);
-	    nodelist.item(2).setTextContent(""+x3);
-	    nodelist.item(3).setTextContent(""+y1);
-	    nodelist.item(4).setTextContent(""+x3);
-	    nodelist.item(5).setTextContent(""+y2);
-	    nodelist.item(6).setTextContent(""+x1);
-	    nodelist.item(7).setTextContent(""+y2);
-	    nodelist.item(8).setTextContent(""+x2);
-	    nodelist.item(9).setTextContent(""+y1);
-	    nodelist.item(10).setTextContent(""+x4);
-	    nodelist.item(11).setTextContent(""+y1);
-	    nodelist.item(12).setTextContent(""+x4);
-	    nodelist.item(13).setTextContent(""+y2);
-	    nodelist.item(14).setTextContent(""+x2);
-	    nodelist.item(15).setTextContent(""+y2);
-	} catch (Exception e) {
-	    e.printStackTrace();
-	}
+    private void _domDelWindowPair(int nwin) {
+	// if this window doesn't exist there's nothing more to do.
+	if(pairRes[nwin] == null) return;
 
+	// OK, it exists, let's delete it
+	pairRes[nwin].getParentNode().removeChild(pairRes[nwin]);
+	resources.remove("WindowPair"+nwin);
+	pairRes[nwin]   = null;
+	pairCells[nwin] = null;
     }
+    
+    private void _domWindowPair(int nwin){
 	
-    public void setCentre(String RA, String DEC){
+	if(pairRes[nwin] == null){
 
-	//String RA_old=null;
-	//String DEC_old=null;
+	    // It doesn't exist so let's put it in!
+	    // get a template for a window descriptor by copying the main window resource
+	    Element winRes1 = (Element)ccdRes.cloneNode(true);
 		
-	nodelist = this.document.getElementsByTagName("PARAM");
-	for(int i=0; i<nodelist.getLength(); i++){
-	    Element elem = (Element)nodelist.item(i);
-	    if(elem.hasAttribute("name")){
-		String type = elem.getAttribute("name");
-		if(type.equals("RA")){	
-		    //RA_old = elem.getAttribute("value");
-		    elem.setAttribute("value", RA);
-		}
-		if(type.equals("DEC")){
-		    //DEC_old = elem.getAttribute("value");
-		    elem.setAttribute("value", DEC);
+	    // change resource name
+	    String id = "WindowPair"+nwin;
+	    winRes1.setAttribute("ID", id);
+	    winRes1.setAttribute("name", id);
+	    //change rest of attributes
+	    winRes1.normalize();
+	    NodeList nodelist = winRes1.getChildNodes();
+	    for(int i=0; i<nodelist.getLength(); i++){
+		if(nodelist.item(i).getNodeType() == 1){
+		    Element elem = (Element)nodelist.item(i);
+		    // description
+		    if(elem.getTagName().equals("DESCRIPTION")) 
+			elem.setTextContent("An ULTRACAM window");
+		    // Short Description
+		    if(elem.hasAttribute("ShortDescription"))
+			elem.setAttribute("ShortDescription","Left Window of Pair");
+		    if(elem.getTagName().equals("TABLE") && elem.hasAttribute("ID")){
+			elem.setAttribute("ID", "LWin");
+			elem.setAttribute("name", "Lwin");				
+		    }
+		    //set colour to blue
+		    if(elem.getTagName().equals("PARAM") && elem.hasAttribute("name") && elem.getAttribute("name").equals("color"))
+			elem.setAttribute("value", "blue");
 		}
 	    }
-	}
 		
-    }
+	    // The right window of the pair is represented by a second <TABLE> node in the
+	    // resource, so let's copy the one that's already there
+	    Element TableElem = (Element)winRes1.getElementsByTagName("TABLE").item(0);
+	    Element rightWin = (Element)TableElem.cloneNode(true);
+	    rightWin.setAttribute("ID",   "RWin");
+	    rightWin.setAttribute("name", "RWin");
+			
+	    winRes1.appendChild(rightWin);				
+		
+	    // append window to file
+	    try{
+		fovRes.appendChild(winRes1);
+	    } catch (DOMException e){
+		e.printStackTrace();
+		return;
+	    }		
+	    resources.put(id, winRes1);
+	    pairRes[nwin]   = winRes1;
+	    pairCells[nwin] = _cells(winRes1, 16);
+	}
 
-    public void setPA(String PA, Telescope tel){
+	// set the <TD> datatags to the 4 corners of each window
+	for(int i=0; i<16; i++)
+	    pairCells[nwin][i].setTextContent(""+geometry.getPair(nwin, i));
+    }
 
-	nodelist = this.document.getElementsByTagName("PARAM");
-	for(int i=0; i<nodelist.getLength(); i++){
-	    Element elem = (Element)nodelist.item(i);
-	    if(elem.hasAttribute("name")){
-		String type = elem.getAttribute("name");
-		if(type.equals("PA")){	
-		    //PA_old = elem.getAttribute("value");
-		    elem.setAttribute("value", PA);
-		}
-	    }
-	}
-	//System.out.println("Rotation: " + PA_old);
+    private void _domMainWin(){
+	// set the <TD> datatags to the 4 corners of the window
+	for(int i=0; i<8; i++)
+	    ccdCells[i].setTextContent(""+geometry.getCCD(i));
+    }	
+	
+    private void _domCentre(){
+	if(geometry.getRA() != null)  params.get("RA").setAttribute("value", geometry.getRA());
+	if(geometry.getDEC() != null) params.get("DEC").setAttribute("value", geometry.getDEC());
+	if(geometry.getPA() != null)  params.get("PA").setAttribute("value", geometry.getPA());
     }	
 	
 }
@@ -0,0 +1,135 @@
+package ufinder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/** Draws a finding chart from a local FITS image: the footprint for a
+ * telescope, window pairs, pointing and PA, with the target and comparison
+ * stars marked, saved as a picture. Nothing is sent to Aladin, so this works
+ * offline, e.g. on images from the survey cache.
+ *
+ * Run from the command line with no arguments for usage.
+ */
+public class FindingChart {
+
+    private static final String USAGE =
+	"usage: java -cp ufinder.jar ufinder.FindingChart [options] -fits file -out file\n" +
+	"  -fits file           FITS image with a celestial WCS, possibly gzipped\n" +
+	"  -out file            chart to write; the format follows the extension, e.g. .png (default) or .bmp\n" +
+	"  -ra ra -dec dec      pointing, as h:m:s d:m:s or degrees (default: the reference point of the image)\n" +
+	"  -pa degrees          position angle (default: 0)\n" +
+	"  -tel name            telescope (default: VLT)\n" +
+	"  -window ystart,xleft,xright,nx,ny  window pair to draw; repeat for up to 3 pairs (default: none)\n" +
+	"  -target ra,dec       target to mark\n" +
+	"  -comp ra,dec         comparison star to mark; may be repeated\n" +
+	"  -sources sigma       circle the sources found this many times the noise above the background\n" +
+	"  -auto n              mark the n best comparison stars for the target amongst the sources found,\n" +
+	"                       fitting the first window pair (default: none)";
+
+    public static void main(String[] args) {
+	try{
+	    String fits = null, out = null, ra = null, dec = null, pa = "0", tel = "VLT", target = null, sources = null;
+	    int auto = 0;
+	    final List<WindowPair> windows = new ArrayList<WindowPair>();
+	    final List<String> comps = new ArrayList<String>();
+
+	    for(int i=0; i<args.length; i++){
+		final String opt = args[i];
+		if(i+1 >= args.length) throw new Exception("Missing value for " + opt);
+		final String val = args[++i];
+		if(opt.equals("-fits"))        fits = val;
+		else if(opt.equals("-out"))    out = val;
+		else if(opt.equals("-ra"))     ra = val;
+		else if(opt.equals("-dec"))    dec = val;
+		else if(opt.equals("-pa"))     pa = val;
+		else if(opt.equals("-tel"))    tel = val;
+		else if(opt.equals("-window")) windows.add(TimingSweep.parseWindow(val));
+		else if(opt.equals("-target")) target = val;
+		else if(opt.equals("-comp"))   comps.add(val);
+		else if(opt.equals("-sources")) sources = val;
+		else if(opt.equals("-auto"))   auto = Integer.parseInt(val);
+		else throw new Exception("Unrecognised option " + opt);
+	    }
+	    if(fits == null) throw new Exception("No FITS image given");
+	    if(out == null) throw new Exception("No output file given");
+	    if((ra == null) != (dec == null)) throw new Exception("Give both -ra and -dec, or neither");
+	    if(auto > 0 && target == null) throw new Exception("-auto needs a -target");
+	    if(windows.size() > FOVGeometry.MAX_PAIRS) throw new Exception("At most " + FOVGeometry.MAX_PAIRS + " window pairs");
+
+	    final Telescope telescope = Telescope.find(tel);
+	    if(telescope == null) throw new Exception("TELESCOPE = " + tel + " was not found amongst the supported telescopes");
+
+	    final long t0 = System.currentTimeMillis();
+	    final FitsBackend backend = new FitsBackend();
+	    backend.load(new File(fits));
+	    final long t1 = System.currentTimeMillis();
+
+	    if(ra == null){
+		final double[] reference = backend.getReference();
+		ra  = String.format(Locale.US, "%.7f", reference[0]);
+		dec = String.format(Locale.US, "%+.7f", reference[1]);
+	    }
+	    final FOVmanip fov = new FOVmanip();
+	    fov.configWindows(windows.toArray(new WindowPair[windows.size()]), telescope);
+	    fov.setCentre(ra, dec);
+	    fov.setPA(pa, telescope);
+	    backend.overlay(fov);
+
+	    SourceCatalog catalog = null;
+	    if(sources != null || auto > 0){
+		final SourceExtractor extractor = new SourceExtractor();
+		if(sources != null){
+		    try{
+			extractor.setThreshold(Double.parseDouble(sources));
+		    }catch(NumberFormatException e){
+			throw new Exception("-sources " + sources + " is not a number");
+		    }
+		}
+		catalog = extractor.extract(backend.getFitsImage());
+		if(sources != null) backend.sources(catalog);
+		System.out.println(catalog);
+	    }
+
+	    if(target != null){
+		final double[] position = parsePosition(target);
+		backend.mark(position[0], position[1], ImageBackend.TARGET, "Target");
+	    }
+	    for(int i=0; i<comps.size(); i++){
+		final double[] position = parsePosition(comps.get(i));
+		backend.mark(position[0], position[1], ImageBackend.COMPARISON, "C" + (i+1));
+	    }
+	    if(auto > 0){
+		final double[] position = parsePosition(target);
+		final WindowPair first = windows.isEmpty() ? new WindowPair(1, 1, 513, 512, 1024) : windows.get(0);
+		final ComparisonRanker ranker = new ComparisonRanker(catalog, position[0], position[1]);
+		final List<ComparisonRanker.Candidate> best = ranker.rank(fov, first.get_nx(), first.get_ny(), auto);
+		for(int i=0; i<best.size(); i++){
+		    final ComparisonRanker.Candidate c = best.get(i);
+		    final int k = c.getSource();
+		    final String label = "C" + (comps.size()+i+1);
+		    backend.mark(catalog.getRA(k), catalog.getDec(k), ImageBackend.COMPARISON, label);
+		    System.out.println(String.format(Locale.US, "%s %.6f %+.6f x, y = %.0f, %.0f, score %.2f", label,
+						     catalog.getRA(k), catalog.getDec(k), c.getX(), c.getY(), c.getScore()));
+		}
+	    }
+	    backend.save(new File(out));
+	    System.out.println("Wrote " + out + " from " + fits + ", loaded in " + (t1-t0)/1000. + " s, drawn and saved in " +
+			       (System.currentTimeMillis()-t1)/1000. + " s");
+	}
+	catch(final Exception e){
+	    System.out.println(e.toString());
+	    System.out.println(USAGE);
+	    System.exit(1);
+	}
+    }
+
+    // "ra,dec" as h:m:s,d:m:s or degrees
+    private static double[] parsePosition(String text) throws Exception {
+	final String[] part = text.split(",");
+	if(part.length != 2) throw new Exception("Position " + text + " should be ra,dec");
+	return new double[] {FOVGeometry.parseAngle(part[0], 15.), FOVGeometry.parseAngle(part[1], 1.)};
+    }
+
+}
@@ -0,0 +1,317 @@
+package ufinder;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import javax.imageio.ImageIO;
+import javax.swing.JComponent;
+
+/** The image backend that draws finding charts itself from a local FITS file,
+ * so that no Aladin is needed.
+ *
+ * The file is read by {@link FitsImage}, so only the pixels sampled are
+ * brought in. The first image of the file is shown with a linear stretch from
+ * the 0.5 to the 99.5 percentile, inverted so that stars are black on white as
+ * on a printed chart, and with the first row at the bottom. Images larger than
+ * MAX_SIZE are shown sub-sampled. Positions are placed with the WCS in the
+ * header, which the file must have.
+ */
+public class FitsBackend implements ImageBackend {
+
+    /** Largest width or height shown, pixels */
+    public static final int MAX_SIZE = 1024;
+
+    private static final int    NSAMPLE     = 20000;
+    private static final double MARK_RADIUS = 10.;     // arcsec
+    private static final Color  FOV_COLOUR  = new Color(0, 0, 200);
+    private static final Color  TARGET_COLOUR = new Color(200, 0, 0);
+    private static final Color  COMP_COLOUR   = new Color(0, 140, 0);
+    private static final Color  SOURCE_COLOUR = new Color(0, 150, 110);
+
+    // The image as loaded, and as shown, 1 pixel in step each way
+    private FitsImage     image = null;
+    private BufferedImage base  = null;
+    private int           step;
+
+    // What is drawn over it, in display pixels
+    private final List<double[]> outlines = new ArrayList<double[]>();
+    private final List<Mark>     marks    = new ArrayList<Mark>();
+    private double[]             sources  = null;      // x, y, radius of each
+
+    // base with the overlays drawn; null when out of date
+    private BufferedImage chart = null;
+    private JComponent view = null;
+
+    private static final class Mark {
+	final double x, y, r;
+	final Color colour;
+	final String label;
+	Mark(double x, double y, double r, Color colour, String label) {
+	    this.x = x; this.y = y; this.r = r;
+	    this.colour = colour;
+	    this.label  = label;
+	}
+    }
+
+    public String getName() {
+	return "FITS";
+    }
+
+    public void load(File fits) throws Exception {
+	final FitsImage image = new FitsImage(fits);
+	if(!image.hasWCS()) throw new Exception(fits + " has no WCS");
+	final int step = Math.max(1, (Math.max(image.getWidth(), image.getHeight()) + MAX_SIZE - 1)/MAX_SIZE);
+	final BufferedImage rendered = render(image, step);
+
+	synchronized(this){
+	    this.image = image;
+	    this.base  = rendered;
+	    this.step  = step;
+	    outlines.clear();
+	    marks.clear();
+	    sources = null;
+	    chart = null;
+	}
+	changed();
+    }
+
+    public void overlay(FOVmanip fov) throws Exception {
+	final double[] ra = new double[FOVGeometry.NVERT], dec = new double[FOVGeometry.NVERT];
+	final int n = fov.getSkyVertices(ra, dec);
+	synchronized(this){
+	    checkLoaded();
+	    outlines.clear();
+	    // the CCD, then each window, four corners each
+	    final double[] xy = new double[2];
+	    for(int v=0; v+4<=n; v+=4){
+		final double[] outline = new double[8];
+		for(int i=0; i<4; i++){
+		    toDisplay(ra[v+i], dec[v+i], xy);
+		    outline[2*i]   = xy[0];
+		    outline[2*i+1] = xy[1];
+		}
+		outlines.add(outline);
+	    }
+	    chart = null;
+	}
+	changed();
+    }
+
+    public void mark(double ra, double dec, int kind, String label) throws Exception {
+	synchronized(this){
+	    checkLoaded();
+	    final double[] xy = new double[2];
+	    toDisplay(ra, dec, xy);
+	    final double radius = Math.max(4., (kind == TARGET ? MARK_RADIUS : MARK_RADIUS/2.)/getScale());
+	    marks.add(new Mark(xy[0], xy[1], radius, kind == TARGET ? TARGET_COLOUR : COMP_COLOUR, label));
+	    chart = null;
+	}
+	changed();
+    }
+
+    /** Saves the chart in the format named by the file's extension, e.g.
+     * .png or .bmp; PNG if there is none
+     */
+    public void save(File file) throws Exception {
+	final String name = file.getName();
+	final int dot = name.lastIndexOf('.');
+	final String format = dot < 0 ? "png" : name.substring(dot+1).toLowerCase(Locale.US);
+	if(!ImageIO.write(getImage(), format, file))
+	    throw new Exception("Cannot write charts as " + format);
+    }
+
+    /** Removes the marks, keeping the image and footprint */
+    public void clearMarks() {
+	synchronized(this){
+	    marks.clear();
+	    chart = null;
+	}
+	changed();
+    }
+
+    /** The chart as it stands: the image with the footprint and marks drawn over it */
+    public synchronized BufferedImage getImage() throws Exception {
+	checkLoaded();
+	if(chart == null){
+	    chart = new BufferedImage(base.getWidth(), base.getHeight(), BufferedImage.TYPE_INT_RGB);
+	    final Graphics2D g = chart.createGraphics();
+	    try{
+		g.drawImage(base, 0, 0, null);
+		draw(g);
+	    }finally{
+		g.dispose();
+	    }
+	}
+	return chart;
+    }
+
+    /** Circles the sources, larger the brighter, in place of any circled before */
+    public void sources(SourceCatalog catalog) throws Exception {
+	synchronized(this){
+	    checkLoaded();
+	    final int n = catalog.size();
+	    final double faintest = n > 0 ? catalog.getMag(n-1) : 0.;
+	    final double[] circles = new double[3*n];
+	    final double[] xy = new double[2];
+	    for(int i=0; i<n; i++){
+		if(catalog.hasPositions()){
+		    toDisplay(catalog.getRA(i), catalog.getDec(i), xy);
+		}else{
+		    xy[0] = (catalog.getX(i) - 0.5)/step;
+		    xy[1] = base.getHeight() - (catalog.getY(i) - 0.5)/step;
+		}
+		circles[3*i]   = xy[0];
+		circles[3*i+1] = xy[1];
+		circles[3*i+2] = Math.min(25., 2. + 1.5*(faintest - catalog.getMag(i)));
+	    }
+	    sources = circles;
+	    chart = null;
+	}
+	changed();
+    }
+
+    /** The image shown, or null */
+    public synchronized FitsImage getFitsImage() {
+	return image;
+    }
+
+    /** RA and Dec of the WCS reference point, degrees; the centre of a survey image */
+    public synchronized double[] getReference() throws Exception {
+	checkLoaded();
+	return image.getReference();
+    }
+
+    /** Size of a display pixel, arcsec */
+    public synchronized double getScale() throws Exception {
+	checkLoaded();
+	return step*image.getScale();
+    }
+
+    /** A component showing the chart, kept up to date */
+    public synchronized JComponent getView() {
+	if(view == null){
+	    view = new JComponent(){
+		    public Dimension getPreferredSize() {
+			synchronized(FitsBackend.this){
+			    return base == null ? new Dimension(400, 400) : new Dimension(base.getWidth(), base.getHeight());
+			}
+		    }
+		    protected void paintComponent(Graphics g) {
+			try{
+			    g.drawImage(getImage(), 0, 0, null);
+			}catch(Exception e){
+			    // nothing loaded yet
+			}
+		    }
+		};
+	}
+	return view;
+    }
+
+    public synchronized String toString() {
+	return "FitsBackend: " + (base == null ? "no image" : image.getWidth() + " x " + image.getHeight() + " shown 1 in " +
+				  step + ", " + outlines.size() + " outlines, " + marks.size() + " marks, " +
+				  (sources == null ? 0 : sources.length/3) + " sources");
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    private void checkLoaded() throws Exception {
+	if(base == null) throw new Exception("No FITS image has been loaded");
+    }
+
+    private void changed() {
+	final JComponent c;
+	synchronized(this){
+	    c = view;
+	}
+	if(c != null){
+	    c.revalidate();
+	    c.repaint();
+	}
+    }
+
+    // RA, Dec to display pixels
+    private void toDisplay(double ra, double dec, double[] xy) throws Exception {
+	image.toPixel(ra, dec, xy);
+	// FITS pixel 1 is centred on 1.0; the first row is drawn at the bottom
+	xy[0] = (xy[0] - 0.5)/step;
+	xy[1] = base.getHeight() - (xy[1] - 0.5)/step;
+    }
+
+    private void draw(Graphics2D g) {
+	g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+	if(sources != null){
+	    g.setColor(SOURCE_COLOUR);
+	    for(int k=0; k<sources.length; k+=3){
+		final double r = sources[k+2];
+		g.draw(new Ellipse2D.Double(sources[k] - r, sources[k+1] - r, 2*r, 2*r));
+	    }
+	}
+	g.setStroke(new BasicStroke(1.5f));
+	g.setColor(FOV_COLOUR);
+	for(double[] outline : outlines){
+	    final Path2D.Double path = new Path2D.Double();
+	    path.moveTo(outline[0], outline[1]);
+	    for(int i=1; i<4; i++)
+		path.lineTo(outline[2*i], outline[2*i+1]);
+	    path.closePath();
+	    g.draw(path);
+	}
+	for(Mark mark : marks){
+	    g.setColor(mark.colour);
+	    g.drawOval((int)Math.round(mark.x - mark.r), (int)Math.round(mark.y - mark.r),
+		       (int)Math.round(2*mark.r), (int)Math.round(2*mark.r));
+	    if(mark.label != null)
+		g.drawString(mark.label, (int)Math.round(mark.x + mark.r + 2), (int)Math.round(mark.y + 4));
+	}
+    }
+
+    // Stretches every step'th pixel of every step'th row to grey, inverted
+    private static BufferedImage render(FitsImage image, int step) {
+	final int nx = image.getWidth(), ny = image.getHeight();
+	final int width = (nx + step - 1)/step, height = (ny + step - 1)/step;
+	final float[] value = new float[width*height];
+	final float[] row = new float[nx];
+	for(int j=0; j<height; j++){
+	    image.readRow(j*step, row);
+	    for(int i=0; i<width; i++)
+		value[(height-1-j)*width + i] = row[i*step];
+	}
+
+	// percentiles from a sample of the pixels that are set
+	final int stride = Math.max(1, value.length/NSAMPLE);
+	final float[] sample = new float[(value.length + stride - 1)/stride];
+	int ns = 0;
+	for(int k=0; k<value.length; k+=stride)
+	    if(!Float.isNaN(value[k])) sample[ns++] = value[k];
+	Arrays.sort(sample, 0, ns);
+	final double lo = ns == 0 ? 0. : sample[(int)(0.005*(ns-1))];
+	final double hi = ns == 0 ? 1. : sample[(int)(0.995*(ns-1))];
+	final double scale = hi > lo ? 255./(hi - lo) : 0.;
+
+	final int[] rgb = new int[value.length];
+	for(int k=0; k<value.length; k++){
+	    int grey = 255;
+	    if(!Float.isNaN(value[k]))
+		grey = 255 - (int)Math.max(0., Math.min(255., scale*(value[k] - lo)));
+	    rgb[k] = (grey << 16) | (grey << 8) | grey;
+	}
+	final BufferedImage grey = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+	grey.setRGB(0, 0, width, height, rgb, 0, width);
+	return grey;
+    }
+
+}
@@ -0,0 +1,283 @@
+package ufinder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/** The first image of a FITS file, with its celestial WCS if it has one.
+ *
+ * The file is memory-mapped rather than read, so only the pixels asked for
+ * are brought in; gzipped files are unpacked into memory. Pixels are read
+ * with absolute gets, so any number of threads may read at once. Values are
+ * scaled by BSCALE and BZERO; BLANK and NaN pixels come back as NaN.
+ *
+ * Pixel positions follow FITS: the first pixel of the first row is centred
+ * on 1,1. The WCS is read from CRVAL, CRPIX and CD, or CDELT with PC or
+ * CROTA2, and taken to be a tangent projection, as the survey servers give.
+ */
+public class FitsImage {
+
+    private final File       file;
+    private final ByteBuffer buffer;
+    private final int        offset;        // first byte of the data
+    private final int        bitpix;
+    private final int        nx, ny;
+    private final double     bscale, bzero;
+    private final boolean    blanks;
+    private final long       blank;
+    private final Map<String,String> header = new HashMap<String,String>();
+
+    // The WCS; cd is null if there is none
+    private double   crval1, crval2, crpix1, crpix2;
+    private double[] cd = null, inverse = null;
+
+    /** Maps a file and reads its header
+     * @throws Exception if it is not FITS, has no image, or is shorter than its header says
+     */
+    public FitsImage(File file) throws Exception {
+	this.file   = file;
+	this.buffer = map(file);
+	this.offset = readHeader();
+
+	bitpix = toInt("BITPIX");
+	if(bitpix != 8 && bitpix != 16 && bitpix != 32 && bitpix != -32 && bitpix != -64)
+	    throw new Exception(file + ": BITPIX = " + bitpix + " is not supported");
+	if(toInt("NAXIS") < 2)
+	    throw new Exception(file + " has no image in its primary header");
+	nx = toInt("NAXIS1");
+	ny = toInt("NAXIS2");
+	final long nbytes = (long)nx*ny*(Math.abs(bitpix)/8);
+	if(nx < 1 || ny < 1 || offset + nbytes > buffer.capacity())
+	    throw new Exception(file + " is shorter than its header says");
+	bscale = toDouble("BSCALE", 1.);
+	bzero  = toDouble("BZERO", 0.);
+	blanks = bitpix > 0 && header.containsKey("BLANK");
+	blank  = blanks ? toInt("BLANK") : 0;
+	readWCS();
+    }
+
+    public File getFile() {
+	return file;
+    }
+
+    /** NAXIS1 */
+    public int getWidth() {
+	return nx;
+    }
+
+    /** NAXIS2 */
+    public int getHeight() {
+	return ny;
+    }
+
+    /** The value of a header keyword, strings without their quotes, or null */
+    public String getHeader(String key) {
+	return header.get(key);
+    }
+
+    /** The value of a pixel
+     * @param x column, from 0
+     * @param y row, from 0
+     */
+    public double getPixel(int x, int y) {
+	return value((long)y*nx + x);
+    }
+
+    /** Reads a row of pixels
+     * @param y   row, from 0
+     * @param row at least getWidth() long
+     */
+    public void readRow(int y, float[] row) {
+	final long start = (long)y*nx;
+	for(int x=0; x<nx; x++)
+	    row[x] = (float)value(start + x);
+    }
+
+    /** True if the header has a celestial WCS */
+    public boolean hasWCS() {
+	return cd != null;
+    }
+
+    /** RA and Dec of the WCS reference point, degrees; the centre of a survey image */
+    public double[] getReference() throws Exception {
+	checkWCS();
+	return new double[] {crval1, crval2};
+    }
+
+    /** Size of a pixel, arcsec */
+    public double getScale() throws Exception {
+	checkWCS();
+	return 3600.*Math.sqrt(Math.abs(cd[0]*cd[3] - cd[1]*cd[2]));
+    }
+
+    /** The pixel position of RA, Dec (degrees); the results go in xy[0] and xy[1] */
+    public void toPixel(double ra, double dec, double[] xy) throws Exception {
+	checkWCS();
+	FootprintKernel.toTangent(ra, dec, crval1, crval2, xy);
+	final double x = xy[0]/3600., y = xy[1]/3600.;
+	xy[0] = crpix1 + inverse[0]*x + inverse[1]*y;
+	xy[1] = crpix2 + inverse[2]*x + inverse[3]*y;
+    }
+
+    /** RA and Dec, degrees, of n pixel positions
+     * @param x   columns, FITS convention
+     * @param y   rows, FITS convention
+     * @param ra  RA of each, at least n long
+     * @param dec Dec of each, at least n long
+     */
+    public void toWorld(double[] x, double[] y, int n, double[] ra, double[] dec) throws Exception {
+	checkWCS();
+	final double[] xi = new double[n], eta = new double[n];
+	for(int i=0; i<n; i++){
+	    final double dx = x[i] - crpix1, dy = y[i] - crpix2;
+	    xi[i]  = 3600.*(cd[0]*dx + cd[1]*dy);
+	    eta[i] = 3600.*(cd[2]*dx + cd[3]*dy);
+	}
+	FootprintKernel.toSky(xi, eta, n, crval1, crval2, ra, dec);
+    }
+
+    public String toString() {
+	return "FitsImage: " + file + ", " + nx + " x " + ny + ", BITPIX = " + bitpix + (cd == null ? ", no WCS" : "");
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    private double value(long index) {
+	final double raw;
+	switch(bitpix){
+	case 8:   raw = buffer.get(offset + (int)index) & 0xff; break;
+	case 16:  raw = buffer.getShort(offset + (int)(2*index)); break;
+	case 32:  raw = buffer.getInt(offset + (int)(4*index)); break;
+	case -32: raw = buffer.getFloat(offset + (int)(4*index)); break;
+	default:  raw = buffer.getDouble(offset + (int)(8*index)); break;
+	}
+	if(blanks && raw == blank) return Double.NaN;
+	return bzero + bscale*raw;
+    }
+
+    private void checkWCS() throws Exception {
+	if(cd == null) throw new Exception(file + " has no WCS");
+    }
+
+    private void readWCS() throws Exception {
+	if(!header.containsKey("CRVAL1") || !header.containsKey("CRVAL2")) return;
+	final double[] m = new double[4];
+	if(header.containsKey("CD1_1") || header.containsKey("CD2_2")){
+	    m[0] = toDouble("CD1_1", 0.);
+	    m[1] = toDouble("CD1_2", 0.);
+	    m[2] = toDouble("CD2_1", 0.);
+	    m[3] = toDouble("CD2_2", 0.);
+	}else if(header.containsKey("CDELT1") && header.containsKey("CDELT2")){
+	    final double cdelt1 = toDouble("CDELT1", 0.), cdelt2 = toDouble("CDELT2", 0.);
+	    if(header.containsKey("PC1_1") || header.containsKey("PC2_2")){
+		m[0] = cdelt1*toDouble("PC1_1", 1.);
+		m[1] = cdelt1*toDouble("PC1_2", 0.);
+		m[2] = cdelt2*toDouble("PC2_1", 0.);
+		m[3] = cdelt2*toDouble("PC2_2", 1.);
+	    }else{
+		final double rho = Math.toRadians(toDouble("CROTA2", 0.));
+		m[0] =  cdelt1*Math.cos(rho);
+		m[1] = -cdelt2*Math.sin(rho);
+		m[2] =  cdelt1*Math.sin(rho);
+		m[3] =  cdelt2*Math.cos(rho);
+	    }
+	}else{
+	    return;
+	}
+	final double det = m[0]*m[3] - m[1]*m[2];
+	if(det == 0.) throw new Exception(file + ": the WCS matrix is singular");
+	crval1  = toDouble("CRVAL1", 0.);
+	crval2  = toDouble("CRVAL2", 0.);
+	crpix1  = toDouble("CRPIX1", (nx+1)/2.);
+	crpix2  = toDouble("CRPIX2", (ny+1)/2.);
+	cd      = m;
+	inverse = new double[] {m[3]/det, -m[1]/det, -m[2]/det, m[0]/det};
+    }
+
+    // Maps a file into memory, or unpacks it if it is gzipped
+    private static ByteBuffer map(File fits) throws Exception {
+	final RandomAccessFile file = new RandomAccessFile(fits, "r");
+	try{
+	    if(file.length() > Integer.MAX_VALUE)
+		throw new Exception(fits + " is too large");
+	    if(file.length() >= 2 && file.read() == 0x1f && file.read() == 0x8b)
+		return ByteBuffer.wrap(gunzip(fits));
+	    final FileChannel channel = file.getChannel();
+	    return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+	}finally{
+	    file.close();
+	}
+    }
+
+    private static byte[] gunzip(File fits) throws Exception {
+	final InputStream in = new GZIPInputStream(new FileInputStream(fits), 1 << 16);
+	try{
+	    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+	    final byte[] buffer = new byte[1 << 16];
+	    int n;
+	    while((n = in.read(buffer)) != -1)
+		out.write(buffer, 0, n);
+	    return out.toByteArray();
+	}finally{
+	    in.close();
+	}
+    }
+
+    // Reads the 80-character cards up to END into the header; returns where
+    // the data start, after the header's last 2880-byte block
+    private int readHeader() throws Exception {
+	final byte[] card = new byte[80];
+	int pos = 0;
+	while(true){
+	    if(pos + 80 > buffer.capacity())
+		throw new Exception(file + " is not FITS: no END card");
+	    for(int i=0; i<80; i++)
+		card[i] = buffer.get(pos + i);
+	    pos += 80;
+	    final String text = new String(card, "US-ASCII");
+	    if(pos == 80 && !text.startsWith("SIMPLE"))
+		throw new Exception(file + " is not FITS");
+	    final String key = text.substring(0, 8).trim();
+	    if(key.equals("END")) break;
+	    if(text.charAt(8) != '=' || header.containsKey(key)) continue;
+	    String value = text.substring(10).trim();
+	    if(value.startsWith("'")){
+		final int end = value.indexOf('\'', 1);
+		value = value.substring(1, end < 0 ? value.length() : end).trim();
+	    }else{
+		final int slash = value.indexOf('/');
+		if(slash >= 0) value = value.substring(0, slash).trim();
+	    }
+	    header.put(key, value);
+	}
+	return 2880*((pos + 2879)/2880);
+    }
+
+    private int toInt(String key) throws Exception {
+	final String value = header.get(key);
+	if(value == null) throw new Exception(file + " has no " + key);
+	try{
+	    return Integer.parseInt(value);
+	}catch(NumberFormatException e){
+	    throw new Exception(file + ": " + key + " = " + value + " is not an integer");
+	}
+    }
+
+    private double toDouble(String key, double def) throws Exception {
+	final String value = header.get(key);
+	if(value == null) return def;
+	try{
+	    return Double.parseDouble(value.replace('D', 'E'));
+	}catch(NumberFormatException e){
+	    throw new Exception(file + ": " + key + " = " + value + " is not a number");
+	}
+    }
+
+}
@@ -0,0 +1,80 @@
+package ufinder;
+
+/** Loops over footprint vertices held as flat arrays, x and y apart, so that
+ * each is a single pass of simple arithmetic over contiguous doubles which the
+ * JIT can unroll and vectorise. Used by {@link FOVGeometry} and {@link FOVMosaic}.
+ *
+ * Offsets are in arcsec with x to the east and y to the north at PA = 0, and
+ * PA is measured from north through east.
+ */
+public final class FootprintKernel {
+
+    private static final double ARCSEC = 180.*3600./Math.PI;   // arcsec per radian
+
+    private FootprintKernel() {
+    }
+
+    /** Turns unbinned pixel offsets from the centre of the chip into arcsec
+     * offsets on the sky, for vertices from to to-1:
+     * x[i] = dx + sx*px[i] and y[i] = dy + sy*py[i].
+     * @param sx plate scale times -1 if the telescope is flipped so that east is left
+     * @param sy plate scale
+     * @param dx offset of the chip centre from the pointing in x, arcsec
+     * @param dy offset of the chip centre from the pointing in y, arcsec
+     */
+    public static void place(double[] px, double[] py, int from, int to, double sx, double sy, double dx, double dy,
+			     double[] x, double[] y) {
+	for(int i=from; i<to; i++)
+	    x[i] = dx + sx*px[i];
+	for(int i=from; i<to; i++)
+	    y[i] = dy + sy*py[i];
+    }
+
+    /** Rotates n vertices from x[from], y[from] by a position angle and moves
+     * them by x0, y0, putting the results from xr[off], yr[off].
+     * @param pa position angle, degrees
+     */
+    public static void rotate(double[] x, double[] y, int from, int n, double pa, double x0, double y0,
+			      double[] xr, double[] yr, int off) {
+	final double c = Math.cos(Math.toRadians(pa)), s = Math.sin(Math.toRadians(pa));
+	for(int i=0; i<n; i++)
+	    xr[off+i] = x0 + c*x[from+i] + s*y[from+i];
+	for(int i=0; i<n; i++)
+	    yr[off+i] = y0 - s*x[from+i] + c*y[from+i];
+    }
+
+    /** Projects the first n tangent-plane offsets about ra0, dec0 onto the
+     * sky (the inverse of the gnomonic projection).
+     * @param xi   offsets to the east, arcsec
+     * @param eta  offsets to the north, arcsec
+     * @param ra0  RA of the tangent point, degrees
+     * @param dec0 Dec of the tangent point, degrees
+     * @param ra   RA of each vertex, degrees, 0 to 360
+     * @param dec  Dec of each vertex, degrees
+     */
+    public static void toSky(double[] xi, double[] eta, int n, double ra0, double dec0, double[] ra, double[] dec) {
+	final double sd0 = Math.sin(Math.toRadians(dec0)), cd0 = Math.cos(Math.toRadians(dec0));
+	for(int i=0; i<n; i++){
+	    final double x = xi[i]/ARCSEC, y = eta[i]/ARCSEC;
+	    final double d = cd0 - y*sd0;
+	    final double r = ra0 + Math.toDegrees(Math.atan2(x, d));
+	    ra[i]  = r < 0. ? r + 360. : (r >= 360. ? r - 360. : r);
+	    dec[i] = Math.toDegrees(Math.atan2(sd0 + y*cd0, Math.sqrt(x*x + d*d)));
+	}
+    }
+
+    /** Offsets in arcsec, east and north, of ra, dec from ra0, dec0 on the
+     * tangent plane about ra0, dec0 (the gnomonic projection); the results go
+     * in xy[0] and xy[1].
+     */
+    public static void toTangent(double ra, double dec, double ra0, double dec0, double[] xy) {
+	final double sd0 = Math.sin(Math.toRadians(dec0)), cd0 = Math.cos(Math.toRadians(dec0));
+	final double da  = Math.toRadians(ra - ra0);
+	final double sd  = Math.sin(Math.toRadians(dec)), cd = Math.cos(Math.toRadians(dec));
+	final double cda = Math.cos(da);
+	final double cosc = sd0*sd + cd0*cd*cda;
+	xy[0] = ARCSEC*cd*Math.sin(da)/cosc;
+	xy[1] = ARCSEC*(cd0*sd - sd0*cd*cda)/cosc;
+    }
+
+}
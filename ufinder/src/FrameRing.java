@@ -0,0 +1,129 @@
+package ufinder;
+
+import java.nio.ByteBuffer;
+
+/** Fixed-size ring buffer of per-frame timing records held in parallel
+ * primitive arrays, so that millions of frames can pass through it without
+ * creating any objects. Frames are added at the head with put() and removed
+ * from the tail with drainTo(), which writes them as fixed-length binary
+ * records.
+ *
+ * Not thread-safe: fill and drain it from the same thread.
+ */
+public class FrameRing {
+
+    // Bytes per record written by drainTo: frame, mid-exposure time, exposure,
+    // dead time and pipe shift
+    public static final int RECORD_LEN = 8 + 8 + 8 + 8 + 4;
+
+    private final int      mask;
+    private final long[]   frame;
+    private final double[] mid;
+    private final double[] exposure;
+    private final double[] dead;
+    private final int[]    shift;
+
+    private long head = 0;   // number of frames ever put
+    private long tail = 0;   // number of frames ever drained
+
+    /** Constructor
+     * @param capacity the most frames held at once, rounded up to a power of 2
+     */
+    public FrameRing(int capacity) {
+	if(capacity < 1 || capacity > (1 << 30))
+	    throw new IllegalArgumentException("FrameRing: capacity = " + capacity + " is out of range 1 to 2**30");
+	final int size = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+	mask     = size - 1;
+	frame    = new long[size];
+	mid      = new double[size];
+	exposure = new double[size];
+	dead     = new double[size];
+	shift    = new int[size];
+    }
+
+    public int capacity() {
+	return mask + 1;
+    }
+
+    public int size() {
+	return (int)(head - tail);
+    }
+
+    public boolean isEmpty() {
+	return head == tail;
+    }
+
+    public boolean isFull() {
+	return head - tail > mask;
+    }
+
+    /** Adds a frame at the head
+     * @param n        frame number
+     * @param mid      mid-exposure time, seconds from the start of the run
+     * @param exposure exposure time, seconds
+     * @param dead     dead time, seconds
+     * @param shift    pipe shift clocked during this frame, pixels
+     */
+    public void put(long n, double mid, double exposure, double dead, int shift) {
+	if(isFull())
+	    throw new IllegalStateException("FrameRing: put into a full buffer");
+	final int i = (int)head & mask;
+	this.frame[i]    = n;
+	this.mid[i]      = mid;
+	this.exposure[i] = exposure;
+	this.dead[i]     = dead;
+	this.shift[i]    = shift;
+	head++;
+    }
+
+    /** Frame number of the i-th oldest frame held */
+    public long getFrame(int i) {
+	return frame[index(i)];
+    }
+
+    /** Mid-exposure time of the i-th oldest frame held */
+    public double getMid(int i) {
+	return mid[index(i)];
+    }
+
+    /** Exposure time of the i-th oldest frame held */
+    public double getExposure(int i) {
+	return exposure[index(i)];
+    }
+
+    /** Dead time of the i-th oldest frame held */
+    public double getDead(int i) {
+	return dead[index(i)];
+    }
+
+    /** Pipe shift of the i-th oldest frame held */
+    public int getShift(int i) {
+	return shift[index(i)];
+    }
+
+    /** Removes as many frames from the tail as will fit in buf, writing them as
+     * RECORD_LEN byte records in the buffer's byte order.
+     * @return the number of frames written
+     */
+    public int drainTo(ByteBuffer buf) {
+	final int n = Math.min(size(), buf.remaining() / RECORD_LEN);
+	for(int k=0; k<n; k++){
+	    final int i = (int)tail & mask;
+	    buf.putLong(frame[i]).putDouble(mid[i]).putDouble(exposure[i]).putDouble(dead[i]).putInt(shift[i]);
+	    tail++;
+	}
+	return n;
+    }
+
+    /** Discards everything held */
+    public void clear() {
+	tail = head;
+    }
+
+    private int index(int i) {
+	if(i < 0 || i >= size())
+	    throw new IndexOutOfBoundsException("FrameRing: index = " + i + ", size = " + size());
+	return (int)(tail + i) & mask;
+    }
+
+}
@@ -0,0 +1,43 @@
+package ufinder;
+
+import java.io.File;
+
+/** What ufinder needs from whatever shows the sky: an image to show, the
+ * footprint drawn over it, the target and comparison stars marked on it, the
+ * sources found on it, and the result saved as a picture. {@link AladinBackend} does this with Aladin;
+ * {@link FitsBackend} does it in ufinder itself from a local FITS file, without
+ * starting Aladin.
+ */
+public interface ImageBackend {
+
+    /** Kinds of mark */
+    public static final int TARGET     = 0;
+    public static final int COMPARISON = 1;
+
+    /** Shows a FITS image, which must have a celestial WCS */
+    public void load(File fits) throws Exception;
+
+    /** Draws the footprint as it now is, in place of any drawn before */
+    public void overlay(FOVmanip fov) throws Exception;
+
+    /** Marks a star
+     * @param ra    RA, degrees
+     * @param dec   Dec, degrees
+     * @param kind  TARGET or COMPARISON
+     * @param label drawn beside the mark, or null
+     */
+    public void mark(double ra, double dec, int kind, String label) throws Exception;
+
+    /** Removes the marks, keeping the image, footprint and sources */
+    public void clearMarks() throws Exception;
+
+    /** Shows the sources found on the image, in place of any shown before */
+    public void sources(SourceCatalog catalog) throws Exception;
+
+    /** Saves what is shown as a picture, returning once the file is written */
+    public void save(File file) throws Exception;
+
+    /** A short name, e.g. "Aladin" */
+    public String getName();
+
+}
@@ -0,0 +1,13 @@
+package ufinder;
+
+/** Turns object names into positions. {@link SesameResolver} asks CDS; other
+ * implementations can stand in for it, e.g. offline.
+ */
+public interface NameResolver {
+
+    /** Resolves a name; may be called from several threads at once
+     * @return J2000 RA and Dec, degrees, or null if the name is not known
+     */
+    public double[] resolve(String name) throws Exception;
+
+}
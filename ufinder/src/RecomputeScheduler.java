@@ -0,0 +1,103 @@
+package ufinder;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+
+/** Collects changes to the GUI fields and runs a single, debounced refresh of
+ * the outputs they affect. Each change marks one or more outputs as dirty and
+ * restarts a short one-shot timer; when the fields have been quiet for the
+ * delay the refresher is called once, on the event dispatch thread, with
+ * everything that became dirty in the meantime. Intermediate values typed on
+ * the way to the final one are therefore never computed.
+ *
+ * mark() may be called from any thread.
+ */
+public class RecomputeScheduler {
+
+    // Outputs that can be marked dirty
+    public static final int TIMING = 1;   // frame rate, duty cycle, signal-to-noise
+    public static final int SYNC   = 2;   // window synchronisation state
+    public static final int FOV    = 4;   // field of view in Aladin
+    public static final int ALL    = TIMING | SYNC | FOV;
+
+    /** What to do when the fields have settled */
+    public interface Refresher {
+	/** @param dirty bit mask of the outputs that need refreshing */
+	public void refresh(int dirty);
+    }
+
+    private final Refresher refresher;
+    private final Timer     timer;
+    private int dirty = 0;
+
+    /** Constructor
+     * @param delay     quiet time before refreshing, milliseconds
+     * @param refresher called with the dirty outputs
+     */
+    public RecomputeScheduler(int delay, Refresher refresher) {
+	this.refresher = refresher;
+	this.timer = new Timer(delay, new ActionListener(){
+		public void actionPerformed(ActionEvent e){
+		    flush();
+		}
+	    });
+	this.timer.setRepeats(false);
+    }
+
+    /** Marks outputs as needing a refresh and (re)starts the quiet period */
+    public void mark(int what) {
+	synchronized(this){
+	    dirty |= what;
+	}
+	if(SwingUtilities.isEventDispatchThread()){
+	    timer.restart();
+	}else{
+	    SwingUtilities.invokeLater(new Runnable(){
+		    public void run(){
+			timer.restart();
+		    }
+		});
+	}
+    }
+
+    /** Refreshes anything dirty straight away. Must be called on the event dispatch thread. */
+    public void flush() {
+	timer.stop();
+	final int what;
+	synchronized(this){
+	    what  = dirty;
+	    dirty = 0;
+	}
+	if(what != 0) refresher.refresh(what);
+    }
+
+    /** Returns a listener for text fields which marks the given outputs on any edit */
+    public DocumentListener documentListener(final int what) {
+	return new DocumentListener(){
+	    public void insertUpdate(DocumentEvent e){
+		mark(what);
+	    }
+	    public void removeUpdate(DocumentEvent e){
+		mark(what);
+	    }
+	    public void changedUpdate(DocumentEvent e){
+		mark(what);
+	    }
+	};
+    }
+
+    /** Returns a listener for buttons and combo boxes which marks the given outputs */
+    public ActionListener actionListener(final int what) {
+	return new ActionListener(){
+	    public void actionPerformed(ActionEvent e){
+		mark(what);
+	    }
+	};
+    }
+
+}
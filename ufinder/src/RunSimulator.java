@@ -0,0 +1,241 @@
+package ufinder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Predicts the timestamp, exposure time, dead time and pipe shift of every
+ * frame of a run, for comparison with the times recorded by the data server.
+ *
+ * The timing of each frame comes from {@link TimingEngine}. Times are seconds
+ * from the start of the run, taken as the start of the first cycle. An
+ * exposure ends when its frame transfer starts. Without a clear the readout
+ * runs during the next exposure, so frame n ends when its frame transfer
+ * finishes and its mid-exposure time is end(n) - frameTransfer - exposure(n)/2.
+ * The templates with a clear, and fullframe with overscan, clear, expose,
+ * transfer and read out in turn, so the readout comes off that time as well.
+ * In drift mode a compensating delay means every frame clocks the pipe shift
+ * and all cycles are the same length. In timing test mode there is no such
+ * delay: the pipe shift is clocked on frames 1, nwins+1, 2*nwins+1, ... only,
+ * and those cycles are longer. End times are built from whole numbers of
+ * cycles and shifts rather than summed, so rounding does not accumulate over a
+ * long run.
+ *
+ * Frames pass through a {@link FrameRing} and are written to a memory-mapped
+ * file a window at a time. The file starts with a 48-byte big-endian header:
+ * the 8 bytes "UFRUN001", template code and speed code (ints), MJD of the
+ * start of the run, cycle time and frame transfer time in seconds (doubles)
+ * and the number of frames (long). Then come FrameRing.RECORD_LEN byte
+ * records: frame number (long), mid-exposure time, exposure time and dead
+ * time in seconds (doubles) and pipe shift in pixels (int).
+ *
+ * Run from the command line with no arguments for usage.
+ */
+public class RunSimulator {
+
+    public static final int HEADER_LEN = 48;
+
+    private static final byte[] MAGIC = {'U','F','R','U','N','0','0','1'};
+
+    // Frames held in the ring between writes
+    private static final int RING_SIZE = 8192;
+
+    // Records per mapped window of the output file (about 36 MB)
+    private static final int WINDOW_FRAMES = 1 << 20;
+
+    private final TimingConfig config;
+    private final TimingResult timing = new TimingResult();
+
+    private final double frameTransfer;   // seconds
+    private final double afterExposure;   // from the end of an exposure to the end of its frame, seconds
+    private final double base;            // cycle time without any pipe shift, seconds
+    private final double shiftTime;       // time to clock the pipe shift, seconds; 0 unless timing test
+    private final int    period;          // frames between pipe shifts in timing test, else 1
+    private final int    shift;           // pipe shift in pixels, 0 unless drift or timing test
+
+    /** Constructor
+     * @param config the setup of the run; only the timing part is used
+     */
+    public RunSimulator(TimingConfig config) {
+	this.config = config;
+	TimingEngine.cycleTime(config, timing);
+	frameTransfer = timing.frameTransfer;
+	switch(config.templateCode){
+	case TimingConfig.FULLFRAME_CLEAR:
+	case TimingConfig.FULLFRAME_OVERSCAN:
+	case TimingConfig.WINDOWS_CLEAR:
+	    afterExposure = frameTransfer + timing.readout;
+	    break;
+	default:
+	    afterExposure = frameTransfer;
+	}
+	if(config.templateCode == TimingConfig.TIMING_TEST){
+	    // cycleTime includes the pipe shift averaged over nwins frames
+	    shiftTime = timing.pshift*TimingEngine.VCLOCK_STORAGE/1.e6;
+	    base      = timing.cycleTime - shiftTime/timing.nwins;
+	    period    = timing.nwins;
+	    shift     = timing.pshift;
+	}else{
+	    shiftTime = 0.;
+	    base      = timing.cycleTime;
+	    period    = 1;
+	    shift     = config.templateCode == TimingConfig.DRIFT ? timing.pshift : 0;
+	}
+    }
+
+    /** The model's average timing for the run */
+    public TimingResult getTiming() {
+	return timing;
+    }
+
+    /** Time at which frame n (1, 2, 3 ...) ends, seconds from the start of the run */
+    public double endOf(long n) {
+	return n*base + ((n + period - 1)/period)*shiftTime;
+    }
+
+    /** Number of whole frames that end within the given time from the start of the run */
+    public long framesIn(double duration) {
+	long n = (long)(duration/timing.cycleTime);
+	while(n > 0 && endOf(n) > duration) n--;
+	while(endOf(n+1) <= duration) n++;
+	return n;
+    }
+
+    /** Adds frames first, first+1, ... to ring until it is full or frame last has been added.
+     * @return the number of frames added
+     */
+    public int simulate(long first, long last, FrameRing ring) {
+	int added = 0;
+	for(long n=first; n<=last && !ring.isFull(); n++){
+	    final boolean shifted = (n - 1) % period == 0;
+	    final double  cycle   = shifted ? base + shiftTime : base;
+	    final double  expose  = config.templateCode == TimingConfig.TIMING_TEST ? cycle - frameTransfer : timing.exposureTime;
+	    final double  end     = endOf(n);
+	    ring.put(n, end - afterExposure - expose/2., expose, cycle - expose, shifted ? shift : 0);
+	    added++;
+	}
+	return added;
+    }
+
+    /** Simulates frames 1 to nframes and writes them to file, replacing any
+     * existing contents.
+     * @param mjd modified Julian date of the start of the run, stored in the header
+     */
+    public void write(File file, long nframes, double mjd) throws IOException {
+	final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+	try{
+	    final FileChannel channel = raf.getChannel();
+	    raf.setLength(HEADER_LEN + nframes*FrameRing.RECORD_LEN);
+
+	    final ByteBuffer header = ByteBuffer.allocate(HEADER_LEN);
+	    header.put(MAGIC).putInt(config.templateCode).putInt(config.speedCode)
+		.putDouble(mjd).putDouble(timing.cycleTime).putDouble(frameTransfer).putLong(nframes);
+	    header.flip();
+	    while(header.hasRemaining())
+		channel.write(header, HEADER_LEN - header.remaining());
+
+	    final FrameRing ring = new FrameRing(RING_SIZE);
+	    long next = 1;
+	    for(long start=0; start<nframes; start+=WINDOW_FRAMES){
+		final int nwin = (int)Math.min(WINDOW_FRAMES, nframes - start);
+		final MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE,
+							  HEADER_LEN + start*FrameRing.RECORD_LEN,
+							  (long)nwin*FrameRing.RECORD_LEN);
+		while(out.hasRemaining()){
+		    next += simulate(next, nframes, ring);
+		    ring.drainTo(out);
+		}
+		out.force();
+	    }
+	}finally{
+	    raf.close();
+	}
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+    // Command line
+
+    private static final String USAGE =
+	"usage: java -cp ufinder.jar ufinder.RunSimulator [options] -out file\n" +
+	"  -template label      template (default: Drift mode)\n" +
+	"  -conf file           configuration file listing the templates (default: ufinder.conf)\n" +
+	"  -window ystart,xleft,xright,nx,ny  window pair; repeat for each pair used by the template\n" +
+	"                       (default: the GUI's initial pairs)\n" +
+	"  -speed s             readout speed (default: Slow)\n" +
+	"  -xbin n, -ybin n     binning factors (default: 1)\n" +
+	"  -expose ms           exposure delay, milliseconds (default: 0)\n" +
+	"  -duration s          length of the run, seconds (default: 10800)\n" +
+	"  -frames n            number of frames, instead of -duration\n" +
+	"  -mjd t               MJD of the start of the run (default: 0)\n" +
+	"  -print n             also list the first n frames";
+
+    public static void main(String[] args) {
+	try{
+	    String conf = "ufinder.conf", template = "Drift mode", speed = "Slow", out = null;
+	    int xbin = 1, ybin = 1, print = 0;
+	    double expose = 0., duration = 3*3600., mjd = 0.;
+	    long frames = -1;
+	    final List<WindowPair> windows = new ArrayList<WindowPair>();
+
+	    for(int i=0; i<args.length; i++){
+		final String opt = args[i];
+		if(i+1 >= args.length) throw new Exception("Missing value for " + opt);
+		final String val = args[++i];
+		if(opt.equals("-template"))      template = val;
+		else if(opt.equals("-conf"))     conf = val;
+		else if(opt.equals("-window"))   windows.add(TimingSweep.parseWindow(val));
+		else if(opt.equals("-speed"))    speed = val;
+		else if(opt.equals("-xbin"))     xbin = Integer.parseInt(val);
+		else if(opt.equals("-ybin"))     ybin = Integer.parseInt(val);
+		else if(opt.equals("-expose"))   expose = Double.parseDouble(val);
+		else if(opt.equals("-duration")) duration = Double.parseDouble(val);
+		else if(opt.equals("-frames"))   frames = Long.parseLong(val);
+		else if(opt.equals("-mjd"))      mjd = Double.parseDouble(val);
+		else if(opt.equals("-print"))    print = Integer.parseInt(val);
+		else if(opt.equals("-out"))      out = val;
+		else throw new Exception("Unrecognised option " + opt);
+	    }
+	    if(out == null) throw new Exception("No output file given");
+
+	    if(windows.isEmpty()) windows.addAll(WindowPairs.defaults());
+	    final int npair = Templates.load(conf).getNpair(template);
+	    if(npair > windows.size())
+		throw new Exception("Template " + template + " needs " + npair + " window pairs but " + windows.size() + " were given");
+	    for(int i=0; i<npair; i++)
+		if(windows.get(i).get_nx() % xbin != 0 || windows.get(i).get_ny() % ybin != 0)
+		    throw new Exception("Window pair " + (i+1) + " is not a multiple of the binning factors");
+
+	    final TimingConfig config = new TimingConfig(template, speed, xbin, ybin, (int)Math.round(10.*expose),
+							 windows.subList(0, npair).toArray(new WindowPair[npair]),
+							 Telescope.TELESCOPES[0], 1, 1, 18., 1., 1.5);
+	    final RunSimulator sim = new RunSimulator(config);
+	    if(frames < 0) frames = sim.framesIn(duration);
+
+	    final long t0 = System.currentTimeMillis();
+	    sim.write(new File(out), frames, mjd);
+	    final TimingResult timing = sim.getTiming();
+	    System.out.println("Wrote " + frames + " frames (cycle time " + timing.cycleTime + " s, nwins " + timing.nwins +
+			       ", pipe shift " + timing.pshift + ") to " + out + " in " + (System.currentTimeMillis()-t0)/1000. + " s");
+
+	    if(print > 0){
+		final FrameRing ring = new FrameRing(print);
+		sim.simulate(1, Math.min(print, frames), ring);
+		System.out.println("frame,mid,exposure,dead,shift");
+		for(int i=0; i<ring.size(); i++)
+		    System.out.println(ring.getFrame(i) + "," + ring.getMid(i) + "," + ring.getExposure(i) + "," +
+				       ring.getDead(i) + "," + ring.getShift(i));
+	    }
+	}
+	catch(final Exception e){
+	    System.out.println(e.toString());
+	    System.out.println(USAGE);
+	    System.exit(1);
+	}
+    }
+
+}
@@ -0,0 +1,58 @@
+package ufinder;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+
+/** Resolves names with the CDS Sesame service, reading the J2000 position
+ * from the first "%J" line of its plain-text reply.
+ */
+public class SesameResolver implements NameResolver {
+
+    /** Sesame at CDS, asking Simbad, then NED, then VizieR */
+    public static final String DEFAULT_URL = "http://cdsweb.u-strasbg.fr/cgi-bin/nph-sesame/-oI/SNV?{name}";
+
+    private static final int CONNECT_TIMEOUT = 10000;   // milliseconds
+    private static final int READ_TIMEOUT    = 30000;
+
+    private final String template;
+
+    /** Constructor
+     * @param template URL with {name} to be replaced by the name
+     */
+    public SesameResolver(String template) {
+	if(template.indexOf("{name}") < 0)
+	    throw new IllegalArgumentException("SesameResolver: template = " + template + " has no {name}");
+	this.template = template;
+    }
+
+    public double[] resolve(String name) throws Exception {
+	final URL url = new URL(template.replace("{name}", URLEncoder.encode(name.trim(), "UTF-8")));
+	final HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+	connection.setConnectTimeout(CONNECT_TIMEOUT);
+	connection.setReadTimeout(READ_TIMEOUT);
+	try{
+	    if(connection.getResponseCode() != HttpURLConnection.HTTP_OK)
+		throw new Exception("Name resolver returned " + connection.getResponseCode() + " " +
+				    connection.getResponseMessage() + " for " + url);
+	    final BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+	    try{
+		String line;
+		while((line = in.readLine()) != null){
+		    if(!line.startsWith("%J ")) continue;
+		    final String[] field = line.substring(3).trim().split("\\s+");
+		    if(field.length >= 2)
+			return new double[] {Double.parseDouble(field[0]), Double.parseDouble(field[1])};
+		}
+		return null;
+	    }finally{
+		in.close();
+	    }
+	}finally{
+	    connection.disconnect();
+	}
+    }
+
+}
@@ -0,0 +1,169 @@
+package ufinder;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Locale;
+
+/** Sources detected on an image by {@link SourceExtractor}, brightest first.
+ *
+ * Each quantity is held in a primitive array of its own, one element per
+ * source, so that code working through thousands of sources (drawing them,
+ * indexing them, ranking them) reads memory in order and makes no objects.
+ * The arrays are not copied and must not be changed.
+ *
+ * Positions are in FITS pixels, the first pixel centred on 1,1, and, if the
+ * image had a WCS, in RA and Dec, degrees; otherwise RA and Dec are NaN.
+ * Magnitudes are instrumental, -2.5 log10 of the background-subtracted counts
+ * above the detection threshold, so only differences between them mean
+ * anything.
+ */
+public final class SourceCatalog {
+
+    private final int      n;
+    private final double[] x, y, ra, dec, flux, mag, peak, fwhm;
+    private final int[]    area;
+    private final double   scale;
+
+    /** Constructor, taking the arrays as they are
+     * @param scale arcsec per pixel, or NaN if the image has no WCS
+     */
+    SourceCatalog(int n, double[] x, double[] y, double[] ra, double[] dec, double[] flux, double[] mag,
+		  double[] peak, double[] fwhm, int[] area, double scale) {
+	this.n     = n;
+	this.x     = x;
+	this.y     = y;
+	this.ra    = ra;
+	this.dec   = dec;
+	this.flux  = flux;
+	this.mag   = mag;
+	this.peak  = peak;
+	this.fwhm  = fwhm;
+	this.area  = area;
+	this.scale = scale;
+    }
+
+    /** Number of sources */
+    public int size() {
+	return n;
+    }
+
+    /** Column of the centroid, FITS pixels */
+    public double getX(int i) {
+	return x[i];
+    }
+
+    /** Row of the centroid, FITS pixels */
+    public double getY(int i) {
+	return y[i];
+    }
+
+    /** RA, degrees, or NaN */
+    public double getRA(int i) {
+	return ra[i];
+    }
+
+    /** Dec, degrees, or NaN */
+    public double getDec(int i) {
+	return dec[i];
+    }
+
+    /** Background-subtracted counts above the threshold */
+    public double getFlux(int i) {
+	return flux[i];
+    }
+
+    /** Instrumental magnitude */
+    public double getMag(int i) {
+	return mag[i];
+    }
+
+    /** Highest background-subtracted pixel */
+    public double getPeak(int i) {
+	return peak[i];
+    }
+
+    /** FWHM from the second moments, pixels */
+    public double getFWHM(int i) {
+	return fwhm[i];
+    }
+
+    /** Number of pixels above the threshold */
+    public int getArea(int i) {
+	return area[i];
+    }
+
+    /** Arcsec per pixel, or NaN if the image has no WCS */
+    public double getScale() {
+	return scale;
+    }
+
+    /** True if the sources have RA and Dec */
+    public boolean hasPositions() {
+	return !Double.isNaN(scale);
+    }
+
+    // The columns themselves, for code in the package that goes through
+    // every source; not to be changed
+    double[] xColumn() {
+	return x;
+    }
+
+    double[] yColumn() {
+	return y;
+    }
+
+    double[] raColumn() {
+	return ra;
+    }
+
+    double[] decColumn() {
+	return dec;
+    }
+
+    double[] magColumn() {
+	return mag;
+    }
+
+    /** The sources as a VOTable, TABLEDATA, with the magnitudes marked
+     * phot.mag so that Aladin filters can size their symbols by them
+     */
+    public String getVOTable() {
+	final StringBuilder buff = new StringBuilder(200 + 120*n);
+	buff.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+	buff.append("<VOTABLE version=\"1.1\" xmlns=\"http://www.ivoa.net/xml/VOTable/v1.1\">\n");
+	buff.append("<RESOURCE name=\"ufinder sources\">\n<TABLE name=\"Sources\">\n");
+	buff.append("<FIELD name=\"ID\" datatype=\"char\" arraysize=\"*\" ucd=\"meta.id;meta.main\"/>\n");
+	buff.append("<FIELD name=\"RAJ2000\" datatype=\"double\" unit=\"deg\" ucd=\"pos.eq.ra;meta.main\"/>\n");
+	buff.append("<FIELD name=\"DEJ2000\" datatype=\"double\" unit=\"deg\" ucd=\"pos.eq.dec;meta.main\"/>\n");
+	buff.append("<FIELD name=\"X\" datatype=\"double\" unit=\"pix\" ucd=\"pos.cartesian.x;instr.det\"/>\n");
+	buff.append("<FIELD name=\"Y\" datatype=\"double\" unit=\"pix\" ucd=\"pos.cartesian.y;instr.det\"/>\n");
+	buff.append("<FIELD name=\"MAG\" datatype=\"double\" unit=\"mag\" ucd=\"phot.mag\"/>\n");
+	buff.append("<FIELD name=\"FLUX\" datatype=\"double\" ucd=\"phot.count\"/>\n");
+	buff.append("<FIELD name=\"FWHM\" datatype=\"double\" unit=\"pix\" ucd=\"phys.size.diameter\"/>\n");
+	buff.append("<FIELD name=\"AREA\" datatype=\"int\" unit=\"pix\" ucd=\"phys.area\"/>\n");
+	buff.append("<DATA><TABLEDATA>\n");
+	for(int i=0; i<n; i++){
+	    buff.append(String.format(Locale.US, "<TR><TD>S%d</TD><TD>%.7f</TD><TD>%+.7f</TD><TD>%.2f</TD><TD>%.2f</TD>" +
+				      "<TD>%.3f</TD><TD>%.1f</TD><TD>%.2f</TD><TD>%d</TD></TR>\n",
+				      i+1, ra[i], dec[i], x[i], y[i], mag[i], flux[i], fwhm[i], area[i]));
+	}
+	buff.append("</TABLEDATA></DATA>\n</TABLE>\n</RESOURCE>\n</VOTABLE>\n");
+	return buff.toString();
+    }
+
+    /** getVOTable() as a stream */
+    public InputStream getStream() {
+	try{
+	    return new ByteArrayInputStream(getVOTable().getBytes("UTF-8"));
+	}catch(UnsupportedEncodingException e){
+	    throw new RuntimeException(e);
+	}
+    }
+
+    public String toString() {
+	return "SourceCatalog: " + n + " sources" +
+	    (n > 0 ? String.format(Locale.US, ", magnitudes %.2f to %.2f", mag[0], mag[n-1]) : "");
+    }
+
+}
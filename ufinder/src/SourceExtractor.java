@@ -0,0 +1,468 @@
+package ufinder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Finds the sources on an image, in place of Aladin's SExtractor, and hands
+ * them back as a {@link SourceCatalog}.
+ *
+ * The background and its noise are estimated in meshes of MESH x MESH pixels
+ * by a clipped median and standard deviation, and interpolated between mesh
+ * centres. Pixels more than a threshold times the noise above the background
+ * are grouped into 8-connected sources, of which those with at least a
+ * minimum number of pixels are kept; each is measured by its flux-weighted
+ * moments. Neighbouring sources that touch are not split.
+ *
+ * The work is done in parallel: the meshes a band of rows at a time, and the
+ * sources in strips of rows, each strip labelled on its own. Sources cut by
+ * the edge of a strip are joined afterwards from the labels of the strips'
+ * first and last rows; the moments simply add.
+ */
+public class SourceExtractor {
+
+    /** Default size of the background meshes, pixels */
+    public static final int MESH = 64;
+
+    private static final int    CLIP_ITERATIONS = 5;
+    private static final double CLIP_SIGMA      = 3.;
+    private static final int    MIN_STRIP       = 32;    // fewest rows in a strip
+
+    private final int nthreads;
+    private double threshold = 3.;
+    private int    minArea   = 5;
+    private int    mesh      = MESH;
+
+    /** Constructor
+     * @param nthreads number of threads to work in
+     */
+    public SourceExtractor(int nthreads) {
+	if(nthreads < 1)
+	    throw new IllegalArgumentException("SourceExtractor: nthreads = " + nthreads + " is less than 1");
+	this.nthreads = nthreads;
+    }
+
+    /** Constructor, working in as many threads as there are processors */
+    public SourceExtractor() {
+	this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Sets the detection threshold, in units of the background noise (default 3) */
+    public void setThreshold(double threshold) {
+	if(threshold <= 0.)
+	    throw new IllegalArgumentException("SourceExtractor: threshold = " + threshold + " is not positive");
+	this.threshold = threshold;
+    }
+
+    /** Sets the fewest pixels above the threshold that make a source (default 5) */
+    public void setMinArea(int minArea) {
+	if(minArea < 1)
+	    throw new IllegalArgumentException("SourceExtractor: minArea = " + minArea + " is less than 1");
+	this.minArea = minArea;
+    }
+
+    /** Sets the size of the background meshes, pixels (default MESH) */
+    public void setMeshSize(int mesh) {
+	if(mesh < 8)
+	    throw new IllegalArgumentException("SourceExtractor: mesh = " + mesh + " is less than 8");
+	this.mesh = mesh;
+    }
+
+    /** Finds the sources on an image
+     * @return the sources, brightest first
+     */
+    public SourceCatalog extract(final FitsImage image) throws Exception {
+	final ExecutorService executor = Executors.newFixedThreadPool(nthreads);
+	try{
+	    final Background background = background(image, executor);
+
+	    // strips of rows, several per thread so that they even out
+	    final int ny = image.getHeight();
+	    final int height = Math.max(MIN_STRIP, (ny + 4*nthreads - 1)/(4*nthreads));
+	    final List<Future<Strip>> futures = new ArrayList<Future<Strip>>();
+	    for(int y0=0; y0<ny; y0+=height){
+		final int start = y0, end = Math.min(ny, y0 + height);
+		futures.add(executor.submit(new Callable<Strip>(){
+			public Strip call() throws Exception {
+			    return new Strip(image, background, start, end, threshold);
+			}
+		    }));
+	    }
+	    final Strip[] strips = new Strip[futures.size()];
+	    for(int i=0; i<strips.length; i++)
+		strips[i] = get(futures.get(i));
+	    return join(image, strips);
+	}finally{
+	    executor.shutdownNow();
+	}
+    }
+
+    public String toString() {
+	return "SourceExtractor: " + nthreads + " threads, threshold = " + threshold + " sigma, minArea = " + minArea +
+	    ", mesh = " + mesh;
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+    // The background
+
+    // Background level and noise at the mesh centres, interpolated to rows
+    private static final class Background {
+
+	final int nx, mx, my;
+	final float[] level, noise;          // mx by my
+	final int[]   i0, i1;                // meshes either side of each column
+	final float[] t;                     // and the weight of the second
+	final int     mesh;
+
+	Background(int nx, int ny, int mesh) {
+	    this.nx   = nx;
+	    this.mesh = mesh;
+	    mx = (nx + mesh - 1)/mesh;
+	    my = (ny + mesh - 1)/mesh;
+	    level = new float[mx*my];
+	    noise = new float[mx*my];
+	    i0 = new int[nx];
+	    i1 = new int[nx];
+	    t  = new float[nx];
+	    for(int x=0; x<nx; x++){
+		final double f = Math.max(0., Math.min(mx-1, (x + 0.5)/mesh - 0.5));
+		i0[x] = (int)f;
+		i1[x] = Math.min(mx-1, i0[x]+1);
+		t[x]  = (float)(f - i0[x]);
+	    }
+	}
+
+	// Fills in the level and noise along row y
+	void row(int y, float[] lev, float[] rms, float[] lrow, float[] nrow) {
+	    final double f = Math.max(0., Math.min(my-1, (y + 0.5)/mesh - 0.5));
+	    final int j0 = (int)f, j1 = Math.min(my-1, j0+1);
+	    final float u = (float)(f - j0);
+	    for(int i=0; i<mx; i++){
+		lrow[i] = (1-u)*level[j0*mx+i] + u*level[j1*mx+i];
+		nrow[i] = (1-u)*noise[j0*mx+i] + u*noise[j1*mx+i];
+	    }
+	    for(int x=0; x<nx; x++){
+		lev[x] = (1-t[x])*lrow[i0[x]] + t[x]*lrow[i1[x]];
+		rms[x] = (1-t[x])*nrow[i0[x]] + t[x]*nrow[i1[x]];
+	    }
+	}
+    }
+
+    // Estimates the background in every mesh, a band of meshes per task
+    private Background background(final FitsImage image, ExecutorService executor) throws Exception {
+	final int nx = image.getWidth(), ny = image.getHeight();
+	final Background background = new Background(nx, ny, mesh);
+	final List<Future<?>> futures = new ArrayList<Future<?>>();
+	for(int j=0; j<background.my; j++){
+	    final int band = j;
+	    futures.add(executor.submit(new Callable<Void>(){
+		    public Void call() {
+			final int y0 = band*mesh, y1 = Math.min(ny, y0 + mesh);
+			final float[] row = new float[nx];
+			final float[][] values = new float[background.mx][mesh*mesh];
+			final int[] count = new int[background.mx];
+			for(int y=y0; y<y1; y++){
+			    image.readRow(y, row);
+			    for(int x=0; x<nx; x++)
+				if(!Float.isNaN(row[x])) values[x/mesh][count[x/mesh]++] = row[x];
+			}
+			final float[] stats = new float[2];
+			for(int i=0; i<background.mx; i++){
+			    clip(values[i], count[i], stats);
+			    background.level[band*background.mx+i] = stats[0];
+			    background.noise[band*background.mx+i] = stats[1];
+			}
+			return null;
+		    }
+		}));
+	}
+	for(Future<?> future : futures)
+	    get(future);
+
+	// meshes with no pixels (blank edges) take the median of the rest
+	final float[] good = new float[background.level.length];
+	final float[] goodNoise = new float[background.level.length];
+	int ngood = 0;
+	for(int k=0; k<background.level.length; k++){
+	    if(!Float.isNaN(background.level[k])){
+		goodNoise[ngood] = background.noise[k];
+		good[ngood++]    = background.level[k];
+	    }
+	}
+	if(ngood == 0) throw new Exception(image.getFile() + " has no pixels set");
+	if(ngood < good.length){
+	    Arrays.sort(good, 0, ngood);
+	    Arrays.sort(goodNoise, 0, ngood);
+	    for(int k=0; k<background.level.length; k++){
+		if(Float.isNaN(background.level[k])){
+		    background.level[k] = good[ngood/2];
+		    background.noise[k] = goodNoise[ngood/2];
+		}
+	    }
+	}
+	return background;
+    }
+
+    // The median and standard deviation of the first n values after clipping
+    // at CLIP_SIGMA about the median; NaN if there are none. Sorts the values.
+    private static void clip(float[] values, int n, float[] stats) {
+	if(n == 0){
+	    stats[0] = stats[1] = Float.NaN;
+	    return;
+	}
+	Arrays.sort(values, 0, n);
+	int lo = 0, hi = n;
+	double median = 0., sigma = 0.;
+	for(int iter=0; iter<CLIP_ITERATIONS; iter++){
+	    median = values[(lo + hi)/2];
+	    double sum = 0., sum2 = 0.;
+	    for(int k=lo; k<hi; k++){
+		final double d = values[k] - median;
+		sum  += d;
+		sum2 += d*d;
+	    }
+	    final int m = hi - lo;
+	    sigma = Math.sqrt(Math.max(0., sum2/m - (sum/m)*(sum/m)));
+	    if(sigma == 0.) break;
+	    final int nlo = lowerBound(values, lo, hi, (float)(median - CLIP_SIGMA*sigma));
+	    final int nhi = lowerBound(values, lo, hi, (float)(median + CLIP_SIGMA*sigma) + Float.MIN_VALUE);
+	    if(nlo == lo && nhi == hi) break;
+	    lo = nlo;
+	    hi = nhi;
+	    if(hi - lo < 3) break;
+	}
+	stats[0] = (float)median;
+	// a floor on the noise, so that a flat mesh does not make a source of
+	// every pixel a little above it
+	stats[1] = (float)Math.max(sigma, 1.e-3*Math.abs(median) + 1.e-30);
+    }
+
+    // First index in [lo, hi) of sorted values at or above v
+    private static int lowerBound(float[] values, int lo, int hi, float v) {
+	while(lo < hi){
+	    final int mid = (lo + hi) >>> 1;
+	    if(values[mid] < v) lo = mid + 1; else hi = mid;
+	}
+	return lo;
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+    // Labelling
+
+    // The sources found in rows y0 to y1-1: their summed moments and the labels
+    // left on the first and last rows, for joining to the neighbouring strips
+    private static final class Strip {
+
+	int n = 0;                                     // sources
+	double[] sf, sfx, sfy, sfxx, sfyy, peak;
+	int[] area;
+	final int[] first, last;                       // label of each pixel, or -1
+
+	Strip(FitsImage image, Background background, int y0, int y1, double threshold) {
+	    final int nx = image.getWidth();
+	    final float[] row = new float[nx], lev = new float[nx], rms = new float[nx];
+	    final float[] lrow = new float[background.mx], nrow = new float[background.mx];
+	    int[] prev = new int[nx], cur = new int[nx];
+	    Arrays.fill(prev, -1);
+	    first = new int[nx];
+
+	    // provisional labels, joined as rows show them to touch
+	    int nlab = 0;
+	    int[] parent = new int[256];
+	    double[] lf = new double[256], lfx = new double[256], lfy = new double[256];
+	    double[] lfxx = new double[256], lfyy = new double[256], lpeak = new double[256];
+	    int[] larea = new int[256];
+
+	    for(int y=y0; y<y1; y++){
+		image.readRow(y, row);
+		background.row(y, lev, rms, lrow, nrow);
+		final double py = y + 1;
+		for(int x=0; x<nx; x++){
+		    final float v = row[x] - lev[x];
+		    if(!(v > threshold*rms[x])){
+			cur[x] = -1;
+			continue;
+		    }
+		    int label = -1;
+		    if(x > 0 && cur[x-1] >= 0) label = find(parent, cur[x-1]);
+		    for(int dx=-1; dx<=1; dx++){
+			final int xx = x + dx;
+			if(xx < 0 || xx >= nx || prev[xx] < 0) continue;
+			final int other = find(parent, prev[xx]);
+			if(label < 0){
+			    label = other;
+			}else if(other != label){
+			    // two sources met: keep the lower label
+			    if(other < label){
+				parent[label] = other;
+				label = other;
+			    }else{
+				parent[other] = label;
+			    }
+			}
+		    }
+		    if(label < 0){
+			if(nlab == parent.length){
+			    final int size = 2*nlab;
+			    parent = Arrays.copyOf(parent, size);
+			    lf   = Arrays.copyOf(lf, size);
+			    lfx  = Arrays.copyOf(lfx, size);
+			    lfy  = Arrays.copyOf(lfy, size);
+			    lfxx = Arrays.copyOf(lfxx, size);
+			    lfyy = Arrays.copyOf(lfyy, size);
+			    lpeak = Arrays.copyOf(lpeak, size);
+			    larea = Arrays.copyOf(larea, size);
+			}
+			label = nlab++;
+			parent[label] = label;
+		    }
+		    cur[x] = label;
+		    final double px = x + 1;
+		    lf[label]   += v;
+		    lfx[label]  += v*px;
+		    lfy[label]  += v*py;
+		    lfxx[label] += v*px*px;
+		    lfyy[label] += v*py*py;
+		    if(v > lpeak[label]) lpeak[label] = v;
+		    larea[label]++;
+		}
+		if(y == y0) System.arraycopy(cur, 0, first, 0, nx);
+		final int[] swap = prev;
+		prev = cur;
+		cur  = swap;
+	    }
+	    last = prev;
+
+	    // number the sources and add the moments of their labels
+	    final int[] index = new int[nlab];
+	    for(int l=0; l<nlab; l++){
+		final int root = find(parent, l);
+		index[l] = root == l ? n++ : -1;
+	    }
+	    sf = new double[n]; sfx = new double[n]; sfy = new double[n];
+	    sfxx = new double[n]; sfyy = new double[n]; peak = new double[n];
+	    area = new int[n];
+	    for(int l=0; l<nlab; l++){
+		final int k = index[find(parent, l)];
+		sf[k]   += lf[l];
+		sfx[k]  += lfx[l];
+		sfy[k]  += lfy[l];
+		sfxx[k] += lfxx[l];
+		sfyy[k] += lfyy[l];
+		peak[k]  = Math.max(peak[k], lpeak[l]);
+		area[k] += larea[l];
+	    }
+	    for(int x=0; x<nx; x++){
+		if(first[x] >= 0) first[x] = index[find(parent, first[x])];
+		if(last[x]  >= 0) last[x]  = index[find(parent, last[x])];
+	    }
+	}
+    }
+
+    // The root of a label, halving the path on the way
+    private static int find(int[] parent, int l) {
+	while(parent[l] != l){
+	    parent[l] = parent[parent[l]];
+	    l = parent[l];
+	}
+	return l;
+    }
+
+    // Joins sources cut by the edges of strips and measures them all
+    private SourceCatalog join(FitsImage image, Strip[] strips) throws Exception {
+	final int nx = image.getWidth();
+	final int[] offset = new int[strips.length+1];
+	for(int s=0; s<strips.length; s++)
+	    offset[s+1] = offset[s] + strips[s].n;
+	final int total = offset[strips.length];
+
+	final int[] parent = new int[total];
+	for(int k=0; k<total; k++)
+	    parent[k] = k;
+	for(int s=0; s+1<strips.length; s++){
+	    final int[] below = strips[s].last, above = strips[s+1].first;
+	    for(int x=0; x<nx; x++){
+		if(below[x] < 0) continue;
+		for(int dx=-1; dx<=1; dx++){
+		    final int xx = x + dx;
+		    if(xx < 0 || xx >= nx || above[xx] < 0) continue;
+		    // roots afresh each time, as a join before may have moved either
+		    final int a = find(parent, offset[s] + below[x]);
+		    final int b = find(parent, offset[s+1] + above[xx]);
+		    if(a != b) parent[Math.max(a, b)] = Math.min(a, b);
+		}
+	    }
+	}
+
+	// add up the moments of the parts of each source
+	final double[] sf = new double[total], sfx = new double[total], sfy = new double[total];
+	final double[] sfxx = new double[total], sfyy = new double[total], peak = new double[total];
+	final int[] area = new int[total];
+	for(int s=0; s<strips.length; s++){
+	    final Strip strip = strips[s];
+	    for(int k=0; k<strip.n; k++){
+		final int r = find(parent, offset[s] + k);
+		sf[r]   += strip.sf[k];
+		sfx[r]  += strip.sfx[k];
+		sfy[r]  += strip.sfy[k];
+		sfxx[r] += strip.sfxx[k];
+		sfyy[r] += strip.sfyy[k];
+		peak[r]  = Math.max(peak[r], strip.peak[k]);
+		area[r] += strip.area[k];
+	    }
+	}
+
+	// keep those big enough, brightest first
+	final List<Integer> kept = new ArrayList<Integer>();
+	for(int r=0; r<total; r++)
+	    if(parent[r] == r && area[r] >= minArea && sf[r] > 0.) kept.add(r);
+	final Integer[] order = kept.toArray(new Integer[kept.size()]);
+	Arrays.sort(order, new Comparator<Integer>(){
+		public int compare(Integer a, Integer b){
+		    return Double.compare(sf[b], sf[a]);
+		}
+	    });
+
+	final int n = order.length;
+	final double[] x = new double[n], y = new double[n], ra = new double[n], dec = new double[n];
+	final double[] flux = new double[n], mag = new double[n], pk = new double[n], fwhm = new double[n];
+	final int[] npix = new int[n];
+	for(int i=0; i<n; i++){
+	    final int r = order[i];
+	    x[i]    = sfx[r]/sf[r];
+	    y[i]    = sfy[r]/sf[r];
+	    flux[i] = sf[r];
+	    mag[i]  = -2.5*Math.log10(sf[r]);
+	    pk[i]   = peak[r];
+	    npix[i] = area[r];
+	    final double var = (sfxx[r]/sf[r] - x[i]*x[i] + sfyy[r]/sf[r] - y[i]*y[i])/2.;
+	    fwhm[i] = 2.3548*Math.sqrt(Math.max(0., var));
+	}
+	double scale = Double.NaN;
+	if(image.hasWCS()){
+	    image.toWorld(x, y, n, ra, dec);
+	    scale = image.getScale();
+	}else{
+	    Arrays.fill(ra, Double.NaN);
+	    Arrays.fill(dec, Double.NaN);
+	}
+	return new SourceCatalog(n, x, y, ra, dec, flux, mag, pk, fwhm, npix, scale);
+    }
+
+    private static <T> T get(Future<T> future) throws Exception {
+	try{
+	    return future.get();
+	}catch(ExecutionException e){
+	    final Throwable cause = e.getCause();
+	    if(cause instanceof Exception) throw (Exception)cause;
+	    throw e;
+	}
+    }
+
+}
@@ -0,0 +1,166 @@
+package ufinder;
+
+import java.util.Arrays;
+
+/** A grid over the sources of a {@link SourceCatalog}, for finding those
+ * near a point without looking at them all.
+ *
+ * The sources are projected onto the tangent plane about a reference point,
+ * in arcsec east and north, and sorted by the square cell they fall in, so
+ * that the sources of a cell are contiguous in one array and the cells of a
+ * row of the grid follow one another. A search looks only at the cells that
+ * the circle searched touches. Building it takes two passes over the
+ * catalog.
+ */
+public final class SourceIndex {
+
+    // Fewest sources to a cell, on average, before the cells are made larger
+    private static final int MIN_PER_CELL = 1;
+
+    private final SourceCatalog catalog;
+    private final double   ra0, dec0, cell;
+    private final double[] xi, eta;          // arcsec from ra0, dec0
+    private final double   xmin, ymin;
+    private final int      ncol, nrow;
+    private final int[]    start;            // sources of cell k are order[start[k]] to order[start[k+1]-1]
+    private final int[]    order;
+
+    /** Constructor
+     * @param catalog sources with positions
+     * @param ra0     RA of the reference point, degrees
+     * @param dec0    Dec of the reference point, degrees
+     * @param cell    size of a cell, arcsec; about the radius usually searched
+     * @throws Exception if the sources have no RA and Dec
+     */
+    public SourceIndex(SourceCatalog catalog, double ra0, double dec0, double cell) throws Exception {
+	if(!catalog.hasPositions()) throw new Exception("The sources have no RA and Dec to index");
+	if(cell <= 0.) throw new IllegalArgumentException("SourceIndex: cell = " + cell + " is not positive");
+	this.catalog = catalog;
+	this.ra0     = ra0;
+	this.dec0    = dec0;
+
+	final int n = catalog.size();
+	final double[] ra = catalog.raColumn(), dec = catalog.decColumn();
+	xi  = new double[n];
+	eta = new double[n];
+	final double[] xy = new double[2];
+	double x0 = 0., x1 = 0., y0 = 0., y1 = 0.;
+	for(int i=0; i<n; i++){
+	    FootprintKernel.toTangent(ra[i], dec[i], ra0, dec0, xy);
+	    xi[i]  = xy[0];
+	    eta[i] = xy[1];
+	    if(i == 0 || xy[0] < x0) x0 = xy[0];
+	    if(i == 0 || xy[0] > x1) x1 = xy[0];
+	    if(i == 0 || xy[1] < y0) y0 = xy[1];
+	    if(i == 0 || xy[1] > y1) y1 = xy[1];
+	}
+
+	// sparse catalogs over a wide field get larger cells rather than an empty grid
+	double size = cell;
+	while(n > 0 && ((x1 - x0)/size + 1.)*((y1 - y0)/size + 1.) > Math.max(1, n/MIN_PER_CELL))
+	    size *= 2.;
+	this.cell = size;
+	xmin = x0;
+	ymin = y0;
+	ncol = (int)((x1 - x0)/size) + 1;
+	nrow = (int)((y1 - y0)/size) + 1;
+
+	// counting sort by cell
+	start = new int[ncol*nrow + 1];
+	final int[] home = new int[n];
+	for(int i=0; i<n; i++){
+	    home[i] = cellOf(xi[i], eta[i]);
+	    start[home[i]+1]++;
+	}
+	for(int k=0; k<ncol*nrow; k++)
+	    start[k+1] += start[k];
+	order = new int[n];
+	final int[] next = Arrays.copyOf(start, ncol*nrow);
+	for(int i=0; i<n; i++)
+	    order[next[home[i]]++] = i;
+    }
+
+    public SourceCatalog getCatalog() {
+	return catalog;
+    }
+
+    /** Number of sources */
+    public int size() {
+	return xi.length;
+    }
+
+    /** Offset of source i east of the reference point, arcsec */
+    public double getXi(int i) {
+	return xi[i];
+    }
+
+    /** Offset of source i north of the reference point, arcsec */
+    public double getEta(int i) {
+	return eta[i];
+    }
+
+    /** Offsets of RA, Dec (degrees) from the reference point, arcsec; the results go in xy[0] and xy[1] */
+    public void toTangent(double ra, double dec, double[] xy) {
+	FootprintKernel.toTangent(ra, dec, ra0, dec0, xy);
+    }
+
+    /** The sources within radius of a point, in no particular order
+     * @param x      arcsec east of the reference point
+     * @param y      arcsec north of the reference point
+     * @param radius arcsec
+     */
+    public int[] within(double x, double y, double radius) {
+	int[] found = new int[16];
+	int nfound = 0;
+	final double r2 = radius*radius;
+	final int c0 = Math.max(0, (int)Math.floor((x - radius - xmin)/cell));
+	final int c1 = Math.min(ncol-1, (int)Math.floor((x + radius - xmin)/cell));
+	final int r0 = Math.max(0, (int)Math.floor((y - radius - ymin)/cell));
+	final int r1 = Math.min(nrow-1, (int)Math.floor((y + radius - ymin)/cell));
+	if(c0 > c1 || r0 > r1) return new int[0];
+	for(int row=r0; row<=r1; row++){
+	    // the cells of a row are contiguous in order
+	    for(int k=start[row*ncol+c0]; k<start[row*ncol+c1+1]; k++){
+		final int i = order[k];
+		final double dx = xi[i] - x, dy = eta[i] - y;
+		if(dx*dx + dy*dy <= r2){
+		    if(nfound == found.length) found = Arrays.copyOf(found, 2*nfound);
+		    found[nfound++] = i;
+		}
+	    }
+	}
+	return Arrays.copyOf(found, nfound);
+    }
+
+    /** The source nearest a point within radius, or -1 if there is none
+     * @param x      arcsec east of the reference point
+     * @param y      arcsec north of the reference point
+     * @param radius arcsec
+     */
+    public int nearest(double x, double y, double radius) {
+	int best = -1;
+	double bestd2 = 0.;
+	for(int i : within(x, y, radius)){
+	    final double dx = xi[i] - x, dy = eta[i] - y;
+	    final double d2 = dx*dx + dy*dy;
+	    if(best < 0 || d2 < bestd2){
+		best   = i;
+		bestd2 = d2;
+	    }
+	}
+	return best;
+    }
+
+    public String toString() {
+	return "SourceIndex: " + xi.length + " sources in " + ncol + " x " + nrow + " cells of " + (float)cell + " arcsec";
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    private int cellOf(double x, double y) {
+	final int col = Math.min(ncol-1, (int)((x - xmin)/cell));
+	final int row = Math.min(nrow-1, (int)((y - ymin)/cell));
+	return row*ncol + col;
+    }
+
+}
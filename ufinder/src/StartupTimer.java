@@ -0,0 +1,57 @@
+package ufinder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Times the phases of a start-up, e.g. of ufinder or of Aladin, so that a
+ * slower start can be traced to the phase that got slower. Each mark records
+ * the time since the previous one; toString() lists them all in a single line
+ * for the log.
+ */
+public class StartupTimer {
+
+    private final String name;
+    private final long   start;
+    private long last;
+
+    // Phases in the order marked; guarded by this
+    private final List<String> phases = new ArrayList<String>();
+    private final List<Long>   nanos  = new ArrayList<Long>();
+
+    /** Starts the clock
+     * @param name what is starting, e.g. "ufinder"
+     */
+    public StartupTimer(String name) {
+	this.name  = name;
+	this.start = System.nanoTime();
+	this.last  = start;
+    }
+
+    /** Ends a phase, begun at the previous mark or at the start */
+    public synchronized void mark(String phase) {
+	final long now = System.nanoTime();
+	phases.add(phase);
+	nanos.add(now - last);
+	last = now;
+    }
+
+    /** Milliseconds taken by a phase, or -1 if it has not been marked */
+    public synchronized double getMillis(String phase) {
+	final int i = phases.indexOf(phase);
+	return i < 0 ? -1. : nanos.get(i)/1.e6;
+    }
+
+    /** Milliseconds from the start to the last mark */
+    public synchronized double getTotalMillis() {
+	return (last - start)/1.e6;
+    }
+
+    public synchronized String toString() {
+	final StringBuilder buff = new StringBuilder(name).append(" started in ");
+	buff.append(String.format("%.0f ms:", getTotalMillis()));
+	for(int i=0; i<phases.size(); i++)
+	    buff.append(String.format(" %s %.0f ms%s", phases.get(i), nanos.get(i)/1.e6, i+1 < phases.size() ? "," : ""));
+	return buff.toString();
+    }
+
+}
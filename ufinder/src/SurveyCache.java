@@ -0,0 +1,237 @@
+package ufinder;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/** A directory of survey images fetched before, so that looking at the same
+ * field again costs a local read rather than a trip to the survey server.
+ *
+ * Images are keyed by survey, position (to the nearest arcsec) and field size
+ * and are kept, least recently used first out, until the directory would
+ * exceed its size limit. Use is recorded in the files' modification times, so
+ * the order survives restarts.
+ *
+ * Images are fetched from a URL made from a template by replacing {ra} and
+ * {dec} with the centre, degrees, and {size} with the field size, arcmin.
+ */
+public class SurveyCache {
+
+    private static final int CONNECT_TIMEOUT = 10000;   // milliseconds
+    private static final int READ_TIMEOUT    = 60000;
+
+    private final File directory;
+    private final long maxBytes;
+
+    // Files held, least recently used first; guarded by this
+    private final LinkedHashMap<String,File> files = new LinkedHashMap<String,File>(64, 0.75f, true);
+    private long bytes = 0;
+
+    // Statistics; guarded by this
+    private long hits = 0, misses = 0, evicted = 0;
+
+    /** Constructor
+     * @param directory where the images are kept; created if need be
+     * @param maxBytes  most bytes the images may take up
+     */
+    public SurveyCache(File directory, long maxBytes) throws Exception {
+	if(maxBytes <= 0)
+	    throw new IllegalArgumentException("SurveyCache: maxBytes = " + maxBytes + " is not positive");
+	if(!directory.isDirectory() && !directory.mkdirs())
+	    throw new Exception("Could not create survey cache directory " + directory);
+	this.directory = directory;
+	this.maxBytes  = maxBytes;
+
+	// pick up what is there from before, oldest first
+	final File[] found = directory.listFiles();
+	Arrays.sort(found, new Comparator<File>(){
+		public int compare(File a, File b){
+		    final long ta = a.lastModified(), tb = b.lastModified();
+		    return ta < tb ? -1 : (ta > tb ? 1 : 0);
+		}
+	    });
+	for(File file : found){
+	    final String name = file.getName();
+	    if(name.endsWith(".part")){
+		file.delete();
+	    }else if(name.endsWith(".fits")){
+		files.put(name.substring(0, name.length()-5), file);
+		bytes += file.length();
+	    }
+	}
+	evict();
+    }
+
+    /** The key of an image
+     * @param survey the survey, e.g. "ESO-DSS2"
+     * @param ra     RA of the centre, degrees
+     * @param dec    Dec of the centre, degrees
+     * @param size   width and height, arcmin
+     */
+    public static String key(String survey, double ra, double dec, double size) {
+	final long sra  = Math.round(3600.*(((ra % 360.) + 360.) % 360.));
+	final long sdec = Math.round(3600.*dec);
+	return survey.replaceAll("[^A-Za-z0-9.+-]", "_") + "_" + sra + (sdec < 0 ? "" : "+") + sdec + "_" +
+	    String.format(Locale.US, "%.2f", size);
+    }
+
+    /** The image for a key if it is held, marked as just used, or null */
+    public synchronized File lookup(String key) {
+	final File file = files.get(key);
+	if(file == null) return null;
+	if(!file.isFile()){
+	    // removed behind our back
+	    files.remove(key);
+	    return null;
+	}
+	file.setLastModified(System.currentTimeMillis());
+	return file;
+    }
+
+    /** Stores an image, read to the end of in, under a key, evicting the least
+     * recently used images if they no longer fit. The image must be FITS,
+     * possibly gzipped.
+     * @return the file it is stored in
+     */
+    public File store(String key, InputStream in) throws Exception {
+	final File part  = new File(directory, key + "." + Thread.currentThread().getId() + ".part");
+	final File image = new File(directory, key + ".fits");
+	final OutputStream out = new BufferedOutputStream(new FileOutputStream(part), 1 << 16);
+	try{
+	    final byte[] buffer = new byte[1 << 16], head = new byte[6];
+	    int n, total = 0;
+	    while((n = in.read(buffer)) != -1){
+		if(total < head.length) System.arraycopy(buffer, 0, head, total, Math.min(n, head.length-total));
+		out.write(buffer, 0, n);
+		total += n;
+	    }
+	    if(total < head.length || !isFITS(head))
+		throw new Exception("Survey image " + key + " is not FITS");
+	}catch(Exception e){
+	    out.close();
+	    part.delete();
+	    throw e;
+	}
+	out.close();
+
+	synchronized(this){
+	    final File old = files.remove(key);
+	    if(old != null) bytes -= old.length();
+	    if(image.exists() && !image.delete())
+		throw new Exception("Could not replace " + image);
+	    if(!part.renameTo(image)){
+		part.delete();
+		throw new Exception("Could not rename " + part + " to " + image);
+	    }
+	    files.put(key, image);
+	    bytes += image.length();
+	    evict();
+	}
+	return image;
+    }
+
+    /** The image of a field, from the cache if held, otherwise fetched from
+     * the server and stored
+     * @param survey   the survey, e.g. "ESO-DSS2"
+     * @param template URL of the image with {ra}, {dec} and {size} to be filled in
+     * @param ra       RA of the centre, degrees
+     * @param dec      Dec of the centre, degrees
+     * @param size     width and height, arcmin
+     */
+    public File fetch(String survey, String template, double ra, double dec, double size) throws Exception {
+	final String key = key(survey, ra, dec, size);
+	File image = lookup(key);
+	synchronized(this){
+	    if(image != null) hits++; else misses++;
+	}
+	if(image != null) return image;
+
+	final URL url = new URL(template.replace("{ra}", String.format(Locale.US, "%.6f", ra))
+				.replace("{dec}", String.format(Locale.US, "%+.6f", dec))
+				.replace("{size}", String.format(Locale.US, "%.2f", size)));
+	final HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+	connection.setConnectTimeout(CONNECT_TIMEOUT);
+	connection.setReadTimeout(READ_TIMEOUT);
+	try{
+	    if(connection.getResponseCode() != HttpURLConnection.HTTP_OK)
+		throw new Exception("Survey server returned " + connection.getResponseCode() + " " +
+				    connection.getResponseMessage() + " for " + url);
+	    final InputStream in = connection.getInputStream();
+	    try{
+		image = store(key, in);
+	    }finally{
+		in.close();
+	    }
+	}finally{
+	    connection.disconnect();
+	}
+	return image;
+    }
+
+    /** Number of images held */
+    public synchronized int size() {
+	return files.size();
+    }
+
+    /** Bytes taken up by the images held */
+    public synchronized long getBytes() {
+	return bytes;
+    }
+
+    public File getDirectory() {
+	return directory;
+    }
+
+    public synchronized String toString() {
+	return "SurveyCache: " + files.size() + " images, " + bytes + " of " + maxBytes + " bytes in " + directory + ", " +
+	    hits + " hits, " + misses + " misses, " + evicted + " evicted";
+    }
+
+    /** Reads a position typed by the user: "hh:mm:ss.s +dd:mm:ss", "hh mm ss.s
+     * +dd mm ss" or RA and Dec in degrees.
+     * @return RA and Dec, degrees, or null if it is not a position, e.g. an object name
+     */
+    public static double[] parsePosition(String text) {
+	final String[] field = text.trim().split("[\\s,]+");
+	try{
+	    if(field.length == 2)
+		return new double[] {FOVGeometry.parseAngle(field[0], 15.), FOVGeometry.parseAngle(field[1], 1.)};
+	    if(field.length == 6)
+		return new double[] {FOVGeometry.parseAngle(field[0] + ":" + field[1] + ":" + field[2], 15.),
+				     FOVGeometry.parseAngle(field[3] + ":" + field[4] + ":" + field[5], 1.)};
+	}catch(Exception e){
+	}
+	return null;
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    // Drops the least recently used images until the rest fit; the newest is always kept
+    private void evict() {
+	final Iterator<Map.Entry<String,File>> it = files.entrySet().iterator();
+	while(bytes > maxBytes && files.size() > 1 && it.hasNext()){
+	    final File file = it.next().getValue();
+	    bytes -= file.length();
+	    file.delete();
+	    it.remove();
+	    evicted++;
+	}
+    }
+
+    // True if a file starts "SIMPLE" or with the gzip magic number
+    private static boolean isFITS(byte[] head) {
+	if((head[0] & 0xff) == 0x1f && (head[1] & 0xff) == 0x8b) return true;
+	return head[0] == 'S' && head[1] == 'I' && head[2] == 'M' && head[3] == 'P' && head[4] == 'L' && head[5] == 'E';
+    }
+
+}
@@ -0,0 +1,194 @@
+package ufinder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Remembers the positions of object names so that each is resolved once.
+ *
+ * Names are looked up in memory first, then passed to a {@link NameResolver}.
+ * What it finds is kept in memory and appended to a file, read back when the
+ * next TargetResolver starts, so names stay known between runs. Names are
+ * compared ignoring case and runs of blanks. A name asked for by several
+ * threads at once is resolved only once.
+ *
+ * The file has one name per line: name, RA and Dec (J2000, degrees),
+ * separated by tabs.
+ */
+public class TargetResolver {
+
+    private final NameResolver resolver;
+    private final File         file;
+
+    private final ConcurrentHashMap<String,double[]> known = new ConcurrentHashMap<String,double[]>();
+    private final ConcurrentHashMap<String,FutureTask<double[]>> pending = new ConcurrentHashMap<String,FutureTask<double[]>>();
+
+    private final AtomicLong hits     = new AtomicLong();
+    private final AtomicLong resolved = new AtomicLong();
+
+    /** Constructor
+     * @param resolver asked for names not yet known
+     * @param file     where positions are kept between runs, or null to keep them in memory only
+     */
+    public TargetResolver(NameResolver resolver, File file) throws Exception {
+	this.resolver = resolver;
+	this.file     = file;
+	if(file == null) return;
+	if(!file.exists()){
+	    final File dir = file.getAbsoluteFile().getParentFile();
+	    if(dir != null && !dir.isDirectory() && !dir.mkdirs())
+		throw new Exception("Could not create directory " + dir + " for the name cache");
+	    return;
+	}
+
+	final BufferedReader in = new BufferedReader(new FileReader(file));
+	try{
+	    String line;
+	    while((line = in.readLine()) != null){
+		final String[] field = line.split("\t");
+		if(field.length != 3) continue;
+		try{
+		    known.put(normalise(field[0]), new double[] {Double.parseDouble(field[1]), Double.parseDouble(field[2])});
+		}catch(NumberFormatException e){
+		    // a line cut short by a crash; skip it
+		}
+	    }
+	}finally{
+	    in.close();
+	}
+    }
+
+    /** The form in which names are compared */
+    public static String normalise(String name) {
+	return name.trim().replaceAll("\\s+", " ").toUpperCase(Locale.US);
+    }
+
+    /** The position of a name if it is known already, without resolving it
+     * @return J2000 RA and Dec, degrees, or null
+     */
+    public double[] lookup(String name) {
+	final double[] position = known.get(normalise(name));
+	if(position == null) return null;
+	hits.incrementAndGet();
+	return position.clone();
+    }
+
+    /** The position of a name, resolved if it is not known already
+     * @return J2000 RA and Dec, degrees, or null if the resolver does not know it
+     */
+    public double[] resolve(final String name) throws Exception {
+	final double[] position = lookup(name);
+	if(position != null) return position;
+
+	final String key = normalise(name);
+	final FutureTask<double[]> task = new FutureTask<double[]>(new Callable<double[]>(){
+		public double[] call() throws Exception {
+		    // resolved by another thread since we looked
+		    final double[] done = known.get(key);
+		    if(done != null) return done;
+		    final double[] found = resolver.resolve(name);
+		    resolved.incrementAndGet();
+		    if(found != null) remember(key, found);
+		    return found;
+		}
+	    });
+	FutureTask<double[]> running = pending.putIfAbsent(key, task);
+	if(running == null){
+	    running = task;
+	    try{
+		task.run();
+	    }finally{
+		pending.remove(key);
+	    }
+	}
+	try{
+	    final double[] found = running.get();
+	    return found == null ? null : found.clone();
+	}catch(ExecutionException e){
+	    final Throwable cause = e.getCause();
+	    if(cause instanceof Exception) throw (Exception)cause;
+	    throw e;
+	}
+    }
+
+    /** Resolves a list of names concurrently
+     * @param nthreads number of names resolved at once
+     * @return the positions in the order of the names, null for names not
+     * known or that could not be resolved
+     */
+    public List<double[]> resolveAll(List<String> names, int nthreads) throws InterruptedException {
+	final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, nthreads));
+	try{
+	    final List<Future<double[]>> futures = new ArrayList<Future<double[]>>(names.size());
+	    for(final String name : names){
+		futures.add(executor.submit(new Callable<double[]>(){
+			public double[] call() throws Exception {
+			    return resolve(name);
+			}
+		    }));
+	    }
+	    final List<double[]> positions = new ArrayList<double[]>(names.size());
+	    for(int i=0; i<futures.size(); i++){
+		try{
+		    positions.add(futures.get(i).get());
+		}catch(ExecutionException e){
+		    if(ufinder.DEBUG) System.out.println("Could not resolve " + names.get(i) + ": " + e.getCause());
+		    positions.add(null);
+		}
+	    }
+	    return positions;
+	}finally{
+	    executor.shutdownNow();
+	}
+    }
+
+    /** Number of names known */
+    public int size() {
+	return known.size();
+    }
+
+    public String toString() {
+	return "TargetResolver: " + known.size() + " names known, " + hits.get() + " found in memory, " +
+	    resolved.get() + " sent to the resolver";
+    }
+
+    /** Formats a position as Aladin takes it, "hh:mm:ss.ss +dd:mm:ss.s" */
+    public static String format(double[] position) {
+	return FOVMosaic.hms(position[0]) + " " + FOVMosaic.dms(position[1]);
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    // Keeps a position in memory and in the file; a name that cannot be
+    // written is still known for this run
+    private void remember(String key, double[] position) {
+	known.put(key, position.clone());
+	if(file == null) return;
+	synchronized(this){
+	    try{
+		final PrintWriter out = new PrintWriter(new FileWriter(file, true));
+		try{
+		    out.print(key + "\t" + position[0] + "\t" + position[1] + "\n");
+		}finally{
+		    out.close();
+		}
+	    }catch(Exception e){
+		System.out.println("Could not save the position of " + key + " to " + file + ": " + e);
+	    }
+	}
+    }
+
+}
@@ -13,6 +13,29 @@ package ufinder;
 
 public class Telescope {
 
+    // The supported telescopes
+    public static final Telescope[] TELESCOPES = {
+	// NTT ZPs scaled from WHT using accurate collecting areas accounting for obstruction & 0.9 reflectivity of M3
+	// Rotator centre at (527, 556), Chip Centre is (512, 512), Delta = (15, 44) pixels or (5.35, 15.708)
+	// Delta PA is 65.24 degrees
+    	new Telescope("NTT", new double[] {24.62, 26.43, 25.77, 25.63, 24.79}, 0.357, true, 65.24, -5.35, -15.708, "vlt.xml"),
+	// accurate - assume 0.85 reflectivity for M3
+	// new Telescope("NTT", new double[] {24.56, 26.37, 25.71, 25.57, 24.73}, 0.35, true, 0.0, 0.0, 0.0, "vlt.xml"),
+	// less accurate - 0.9 new Telescope("NTT", new double[] {24.84, 26.45, 25.79, 25.65, 24.81}, 0.35, true, 0.0, 0.0, 0.0, "vlt.xml"),
+	    new Telescope("VLT", new double[] {26.54, 28.35, 27.69, 27.55, 26.71}, 0.1557, true, 0.0, -1.4402, -3.1856, "vlt.xml"),
+    	new Telescope("WHT", new double[] {25.11, 26.92, 26.26, 26.12, 25.28}, 0.30, false, 0.0, 0.0, 0.0, "wht.xml"),
+    };
+    /** delta_pa is zero on the vlt because of a software offset applied by the TCS. The
+     * physical value is -84.7 degrees
+     */
+
+    /** Returns the supported telescope with the given (case sensitive) name, or null */
+    public static Telescope find(String name) {
+	for(int i=0; i<TELESCOPES.length; i++)
+	    if(TELESCOPES[i].name.equals(name)) return TELESCOPES[i];
+	return null;
+    }
+
     public Telescope(String name, double[] zeroPoint, double plateScale, boolean flipped,
     		double delta_pa, double delta_x, double delta_y, String application) {
 	this.name        = name;
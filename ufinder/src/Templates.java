@@ -0,0 +1,88 @@
+package ufinder;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.StringTokenizer;
+
+/** The template labels and number of window pairs of each, as listed by
+ * TEMPLATE_LABEL and TEMPLATE_PAIR in the configuration file. This lets
+ * command-line tools use the same templates as the GUI without building it.
+ */
+public class Templates {
+
+    public final String[] labels;
+    public final int[]    npair;
+
+    public Templates(String[] labels, int[] npair) {
+	this.labels = labels;
+	this.npair  = npair;
+    }
+
+    /** Loads the templates from a configuration file. "ufinder.conf" is read
+     * from the class path, as the GUI does, anything else from disk.
+     */
+    public static Templates load(String configFile) throws Exception {
+	return load(properties(configFile), configFile);
+    }
+
+    /** Reads a configuration file, from the class path or disk as load() does */
+    public static Properties properties(String configFile) throws Exception {
+	final Properties properties = new Properties();
+	InputStream is = null;
+	try{
+	    if(configFile.equals("ufinder.conf")){
+		is = Templates.class.getClassLoader().getResourceAsStream("ufinder.conf");
+		if(is == null)
+		    throw new Exception("Could not find ufinder.conf on the class path");
+	    }else{
+		is = new FileInputStream(configFile);
+	    }
+	    properties.load(is);
+	}finally{
+	    if(is != null) is.close();
+	}
+	return properties;
+    }
+
+    /** Takes the templates from a configuration already read from configFile */
+    public static Templates load(Properties properties, String configFile) throws Exception {
+	final String[] labels = split(properties, "TEMPLATE_LABEL", configFile);
+	final String[] pairs  = split(properties, "TEMPLATE_PAIR", configFile);
+	if(pairs.length != labels.length)
+	    throw new Exception("Number of TEMPLATE_PAIR = " + pairs.length +
+				" does not equal the number of TEMPLATE_LABEL = " + labels.length);
+	final int[] npair = new int[pairs.length];
+	for(int i=0; i<pairs.length; i++)
+	    npair[i] = Integer.parseInt(pairs[i]);
+	return new Templates(labels, npair);
+    }
+
+    /** Returns the index of a template, or -1 if it is not known */
+    public int indexOf(String label) {
+	for(int i=0; i<labels.length; i++)
+	    if(labels[i].equals(label)) return i;
+	return -1;
+    }
+
+    /** Returns the number of window pairs used by a template */
+    public int getNpair(String label) throws Exception {
+	final int i = indexOf(label);
+	if(i < 0)
+	    throw new Exception("Template = " + label + " not recognised.");
+	return npair[i];
+    }
+
+    private static String[] split(Properties properties, String key, String configFile) throws Exception {
+	final String value = properties.getProperty(key);
+	if(value == null)
+	    throw new Exception("Could not find " + key + " in configration file " + configFile);
+	final StringTokenizer stringTokenizer = new StringTokenizer(value, ";\n");
+	final String[] multiString = new String[stringTokenizer.countTokens()];
+	int i = 0;
+	while(stringTokenizer.hasMoreTokens())
+	    multiString[i++] = stringTokenizer.nextToken().trim();
+	return multiString;
+    }
+
+}
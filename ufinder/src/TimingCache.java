@@ -0,0 +1,106 @@
+package ufinder;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Bounded, least-recently-used cache of {@link TimingEngine} results keyed by
+ * {@link TimingConfig}, whose equals and hashCode depend only on the
+ * values that affect the result. The GUI asks for the timing of the same few
+ * setups over and over as fields are edited and the FOV is pushed to Aladin,
+ * and this saves re-running the model for each of them.
+ *
+ * Hit and miss counts are kept so that the benefit can be checked. All
+ * methods are thread-safe; the model is run outside the lock so a slow miss
+ * does not hold up other threads.
+ */
+public class TimingCache {
+
+    // Default number of setups remembered
+    public static final int DEFAULT_SIZE = 256;
+
+    private final int maxEntries;
+    private final LinkedHashMap<TimingConfig,TimingResult> map;
+    private long hits   = 0;
+    private long misses = 0;
+
+    public TimingCache() {
+	this(DEFAULT_SIZE);
+    }
+
+    /** Constructor
+     * @param maxEntries the most results to hold before the least recently used is dropped
+     */
+    public TimingCache(final int maxEntries) {
+	if(maxEntries < 1)
+	    throw new IllegalArgumentException("TimingCache: maxEntries = " + maxEntries + " must be at least 1");
+	this.maxEntries = maxEntries;
+	this.map = new LinkedHashMap<TimingConfig,TimingResult>(16, 0.75f, true){
+	    protected boolean removeEldestEntry(Map.Entry<TimingConfig,TimingResult> eldest) {
+		return size() > TimingCache.this.maxEntries;
+	    }
+	};
+    }
+
+    /** Computes timing and signal-to-noise for one configuration, from the cache if possible */
+    public TimingResult compute(TimingConfig config) {
+	return compute(config, new TimingResult());
+    }
+
+    /** Computes timing and signal-to-noise for one configuration, from the cache
+     * if possible, filling in and returning the result object supplied. The
+     * cached copy is never handed out so callers are free to modify result.
+     */
+    public TimingResult compute(TimingConfig config, TimingResult result) {
+	synchronized(this){
+	    final TimingResult cached = map.get(config);
+	    if(cached != null){
+		hits++;
+		result.set(cached);
+		return result;
+	    }
+	    misses++;
+	}
+
+	TimingEngine.compute(config, result);
+	final TimingResult copy = new TimingResult();
+	copy.set(result);
+	synchronized(this){
+	    map.put(config, copy);
+	}
+	return result;
+    }
+
+    /** Number of lookups answered from the cache */
+    public synchronized long getHits() {
+	return hits;
+    }
+
+    /** Number of lookups that had to run the model */
+    public synchronized long getMisses() {
+	return misses;
+    }
+
+    /** Fraction of lookups answered from the cache, 0 if there have been none */
+    public synchronized double getHitRate() {
+	final long total = hits + misses;
+	return total == 0 ? 0. : (double)hits/total;
+    }
+
+    /** Number of results currently held */
+    public synchronized int size() {
+	return map.size();
+    }
+
+    /** Empties the cache and zeroes the counters */
+    public synchronized void clear() {
+	map.clear();
+	hits   = 0;
+	misses = 0;
+    }
+
+    public synchronized String toString() {
+	return "TimingCache: " + map.size() + "/" + maxEntries + " entries, " + hits + " hits, " +
+	    misses + " misses, hit rate = " + Math.round(100.*getHitRate()) + "%";
+    }
+
+}
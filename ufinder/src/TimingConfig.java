@@ -0,0 +1,232 @@
+package ufinder;
+
+import java.util.Arrays;
+
+/** Immutable description of everything needed to work out the timing and
+ * signal-to-noise of an ULTRACAM setup. It carries no Swing state so it can
+ * be built by the GUI, by batch jobs or by anything else that wants to
+ * drive {@link TimingEngine}.
+ *
+ * The template and readout speed are resolved to integer codes once, here,
+ * so that repeated evaluation does not have to keep comparing strings.
+ */
+public final class TimingConfig {
+
+    // Template codes, in the same order as TEMPLATE_LABEL in ufinder.conf
+    public static final int FULLFRAME_CLEAR    = 0;
+    public static final int FULLFRAME_NOCLEAR  = 1;
+    public static final int FULLFRAME_OVERSCAN = 2;
+    public static final int WINDOWS            = 3;
+    public static final int WINDOWS_CLEAR      = 4;
+    public static final int DRIFT              = 5;
+    public static final int TIMING_TEST        = 6;
+
+    // Readout speed codes, indices into the gain and read noise tables
+    public static final int TURBO = 0;
+    public static final int FAST  = 1;
+    public static final int SLOW  = 2;
+
+    public final String    template;
+    public final int       templateCode;
+    public final String    readSpeed;
+    public final int       speedCode;
+    public final int       xbin;
+    public final int       ybin;
+    public final int       expose;          // units of 0.1 milliseconds
+    public final Telescope telescope;
+    public final int       filterIndex;     // 0-4 for ugriz
+    public final int       skyBrightIndex;  // 0-2 for dark, grey, bright
+    public final double    magnitude;
+    public final double    seeing;
+    public final double    airmass;
+
+    // Window geometry stored flat so nothing outside can modify it
+    private final int[] ystart, xleft, xright, nx, ny;
+
+    // Cached hash code, 0 until first needed
+    private int hash = 0;
+
+    /** Constructor
+     * @param template       template label, e.g. "Drift mode"
+     * @param readSpeed      "Turbo", "Fast" or "Slow"
+     * @param xbin           X binning factor
+     * @param ybin           Y binning factor
+     * @param expose         exposure delay in units of 0.1 milliseconds
+     * @param windows        the active window pairs (may be empty for full frame templates)
+     * @param telescope      the telescope in use
+     * @param filterIndex    0-4 for u', g', r', i', z'
+     * @param skyBrightIndex 0, 1, 2 for dark, grey, bright
+     * @param magnitude      target magnitude
+     * @param seeing         FWHM seeing, arcsec
+     * @param airmass        airmass
+     */
+    public TimingConfig(String template, String readSpeed, int xbin, int ybin, int expose,
+			WindowPair[] windows, Telescope telescope, int filterIndex, int skyBrightIndex,
+			double magnitude, double seeing, double airmass) {
+	this.template       = template;
+	this.templateCode   = templateCode(template);
+	this.readSpeed      = readSpeed;
+	this.speedCode      = speedCode(readSpeed);
+	this.xbin           = xbin;
+	this.ybin           = ybin;
+	this.expose         = expose;
+	this.telescope      = telescope;
+	this.filterIndex    = filterIndex;
+	this.skyBrightIndex = skyBrightIndex;
+	this.magnitude      = magnitude;
+	this.seeing         = seeing;
+	this.airmass        = airmass;
+
+	final int npair = windows == null ? 0 : windows.length;
+	ystart = new int[npair];
+	xleft  = new int[npair];
+	xright = new int[npair];
+	nx     = new int[npair];
+	ny     = new int[npair];
+	for(int i=0; i<npair; i++){
+	    ystart[i] = windows[i].get_ystart();
+	    xleft[i]  = windows[i].get_xleft();
+	    xright[i] = windows[i].get_xright();
+	    nx[i]     = windows[i].get_nx();
+	    ny[i]     = windows[i].get_ny();
+	}
+    }
+
+    // Copy with a different setup or conditions, sharing the (immutable) window arrays
+    private TimingConfig(TimingConfig c, String readSpeed, int xbin, int ybin, int expose,
+			 double magnitude, double seeing, double airmass) {
+	this.template       = c.template;
+	this.templateCode   = c.templateCode;
+	this.readSpeed      = readSpeed;
+	this.speedCode      = speedCode(readSpeed);
+	this.xbin           = xbin;
+	this.ybin           = ybin;
+	this.expose         = expose;
+	this.telescope      = c.telescope;
+	this.filterIndex    = c.filterIndex;
+	this.skyBrightIndex = c.skyBrightIndex;
+	this.magnitude      = magnitude;
+	this.seeing         = seeing;
+	this.airmass        = airmass;
+	this.ystart         = c.ystart;
+	this.xleft          = c.xleft;
+	this.xright         = c.xright;
+	this.nx             = c.nx;
+	this.ny             = c.ny;
+    }
+
+    /** Returns a copy of this configuration with a different readout speed, binning and exposure */
+    public TimingConfig withSetup(String readSpeed, int xbin, int ybin, int expose) {
+	return new TimingConfig(this, readSpeed, xbin, ybin, expose, magnitude, seeing, airmass);
+    }
+
+    /** Returns a copy of this configuration with a different target magnitude, seeing and airmass */
+    public TimingConfig withConditions(double magnitude, double seeing, double airmass) {
+	return new TimingConfig(this, readSpeed, xbin, ybin, expose, magnitude, seeing, airmass);
+    }
+
+    /** Number of window pairs */
+    public int getNpair() {
+	return ystart.length;
+    }
+
+    public int getYstart(int nwin) {
+	return ystart[nwin];
+    }
+
+    public int getXleft(int nwin) {
+	return xleft[nwin];
+    }
+
+    public int getXright(int nwin) {
+	return xright[nwin];
+    }
+
+    public int getNx(int nwin) {
+	return nx[nwin];
+    }
+
+    public int getNy(int nwin) {
+	return ny[nwin];
+    }
+
+    /** Returns a copy of window pair nwin */
+    public WindowPair getWindowPair(int nwin) {
+	return new WindowPair(ystart[nwin], xleft[nwin], xright[nwin], nx[nwin], ny[nwin]);
+    }
+
+    /** Two configurations are equal if they give the same timing and
+     * signal-to-noise, so configurations can be used as map keys.
+     */
+    public boolean equals(Object o) {
+	if(o == this) return true;
+	if(!(o instanceof TimingConfig)) return false;
+	final TimingConfig c = (TimingConfig)o;
+	return hashCode() == c.hashCode() &&
+	    templateCode == c.templateCode && speedCode == c.speedCode &&
+	    xbin == c.xbin && ybin == c.ybin && expose == c.expose &&
+	    filterIndex == c.filterIndex && skyBrightIndex == c.skyBrightIndex &&
+	    Double.doubleToLongBits(magnitude) == Double.doubleToLongBits(c.magnitude) &&
+	    Double.doubleToLongBits(seeing)    == Double.doubleToLongBits(c.seeing) &&
+	    Double.doubleToLongBits(airmass)   == Double.doubleToLongBits(c.airmass) &&
+	    telescope.name.equals(c.telescope.name) &&
+	    Arrays.equals(ystart, c.ystart) && Arrays.equals(xleft, c.xleft) &&
+	    Arrays.equals(xright, c.xright) && Arrays.equals(nx, c.nx) && Arrays.equals(ny, c.ny);
+    }
+
+    /** Hash built only from the values of the fields, so it is the same from
+     * one run to the next. Worked out on first use and then remembered.
+     */
+    public int hashCode() {
+	int h = hash;
+	if(h == 0){
+	    h = templateCode;
+	    h = 31*h + speedCode;
+	    h = 31*h + xbin;
+	    h = 31*h + ybin;
+	    h = 31*h + expose;
+	    h = 31*h + filterIndex;
+	    h = 31*h + skyBrightIndex;
+	    h = 31*h + hashDouble(magnitude);
+	    h = 31*h + hashDouble(seeing);
+	    h = 31*h + hashDouble(airmass);
+	    h = 31*h + telescope.name.hashCode();
+	    for(int i=0; i<ystart.length; i++){
+		h = 31*h + ystart[i];
+		h = 31*h + xleft[i];
+		h = 31*h + xright[i];
+		h = 31*h + nx[i];
+		h = 31*h + ny[i];
+	    }
+	    hash = h;
+	}
+	return h;
+    }
+
+    private static int hashDouble(double d) {
+	final long bits = Double.doubleToLongBits(d);
+	return (int)(bits ^ (bits >>> 32));
+    }
+
+    /** Converts a template label to one of the template codes */
+    public static int templateCode(String template) {
+	if(template.equals("Fullframe + clear"))       return FULLFRAME_CLEAR;
+	if(template.equals("Fullframe, no clear"))     return FULLFRAME_NOCLEAR;
+	if(template.equals("Fullframe with overscan")) return FULLFRAME_OVERSCAN;
+	if(template.equals("2 windows") || template.equals("4 windows") ||
+	   template.equals("6 windows"))               return WINDOWS;
+	if(template.equals("2 windows + clear"))       return WINDOWS_CLEAR;
+	if(template.equals("Drift mode"))              return DRIFT;
+	if(template.equals("Timing test"))             return TIMING_TEST;
+	throw new Error("Application = \"" + template + "\" is unrecognised. Programming error in speed");
+    }
+
+    /** Converts a readout speed label to one of the speed codes */
+    public static int speedCode(String readSpeed) {
+	if(readSpeed.equals("Turbo")) return TURBO;
+	if(readSpeed.equals("Fast"))  return FAST;
+	if(readSpeed.equals("Slow"))  return SLOW;
+	throw new Error("readSpeed = \"" + readSpeed + "\" is unrecognised. Programming error");
+    }
+
+}
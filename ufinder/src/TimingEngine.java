@@ -0,0 +1,328 @@
+package ufinder;
+
+/** Vik's speed computations together with the signal-to-noise model, free of
+ * any GUI state. Given a {@link TimingConfig} this works out the frame rate,
+ * cycle time, exposure time, dead time, readout time, duty cycle and, in drift
+ * mode, the number of windows in the storage area and the pipe shift. It then
+ * estimates counts and signal-to-noise for the target.
+ *
+ * All methods are static and thread-safe.
+ */
+public final class TimingEngine {
+
+    //------------------------------------------------------------------------------------------
+    // Sky parameters
+    // Extinction, mags per unit airmass
+    public static final double[] EXTINCTION = {0.50, 0.19, 0.09, 0.05, 0.04};
+
+    // Sky brightness, mags/arcsec**2, dark, grey, bright, in ugriz
+    public static final double[][] SKY_BRIGHT = {
+	{22.4, 22.2, 21.4, 20.7, 20.3},
+	{21.4, 21.2, 20.4, 20.1, 19.9},
+	{18.4, 18.2, 17.4, 17.9, 18.3}
+    };
+
+    //------------------------------------------------------------------------------------------
+    // Instrument parameters
+
+    // Readout parameters, electrons per count, indexed by TimingConfig speed code
+    public static final double[] GAIN = {1.5, 1.4, 1.3};
+
+    // Readout noise for 1x1, 2x2, 4x4, 8x8, indexed by TimingConfig speed code
+    // EDIT: READ NOISE FOR TURBO VERY APPROX
+    public static final double[][] READ_NOISE = {
+	{7.0, 7.0, 7.0, 7.0},
+	{4.9, 4.9, 5.1, 6.4},
+	{3.6, 3.6, 4.0, 5.4}
+    };
+
+    // Dark count rate, counts/sec/pixel
+    public static final double DARK_COUNT = 0.1;
+
+    // Timing parameters from Vik
+    public static final double INVERSION_DELAY = 110.;   // microseconds
+    public static final double VCLOCK_FRAME    = 23.3;   // microseconds
+    public static final double VCLOCK_STORAGE  = 23.3;   // microseconds
+    public static final double HCLOCK          = 0.48;   // microseconds
+    public static final double CDS_TIME_FDD    = 1.84;   // microseconds
+    public static final double CDS_TIME_FBB    = 4.4;    // microseconds
+    public static final double CDS_TIME_CDD    = 10.;    // microseconds
+    public static final double SWITCH_TIME     = 1.2;    // microseconds
+
+    // CDS time indexed by TimingConfig speed code
+    private static final double[] CDS_TIME = {CDS_TIME_FDD, CDS_TIME_FBB, CDS_TIME_CDD};
+
+    // Photometric aperture radius in units of the seeing
+    public static final double AP_SCALE = 1.5;
+
+    // Fraction of flux in aperture with radius AP_SCALE*seeing
+    private static final double AP_CORRECT = 1. - Math.exp(-Math.pow(2.3548*AP_SCALE, 2)/2.);
+
+    private TimingEngine() {}
+
+    /** Computes timing and signal-to-noise for one configuration */
+    public static TimingResult compute(TimingConfig config) {
+	return compute(config, new TimingResult());
+    }
+
+    /** Computes timing and signal-to-noise for one configuration, filling
+     * in and returning the result object supplied rather than creating one.
+     */
+    public static TimingResult compute(TimingConfig config, TimingResult result) {
+	cycleTime(config, result);
+	signalToNoise(config, result);
+	return result;
+    }
+
+    /** Evaluates many configurations in one call. results[i] is filled in from
+     * configs[i]; no objects are created so the caller can re-use the same
+     * results array from one batch to the next.
+     * @param configs the configurations
+     * @param results array at least as long as configs, with no null entries
+     */
+    public static void computeBatch(TimingConfig[] configs, TimingResult[] results) {
+	computeBatch(configs, results, 0, configs.length);
+    }
+
+    /** Evaluates configs[from] to configs[to-1] into the matching elements of results */
+    public static void computeBatch(TimingConfig[] configs, TimingResult[] results, int from, int to) {
+	if(results.length < to)
+	    throw new IllegalArgumentException("results array has " + results.length +
+					       " elements but " + to + " are needed");
+	for(int i=from; i<to; i++)
+	    compute(configs[i], results[i]);
+    }
+
+    /** Computes only the timing part of the model, leaving the signal-to-noise
+     * fields of result untouched. Returns the cycle time in seconds.
+     */
+    public static double cycleTime(TimingConfig config, TimingResult result) {
+
+	final int    xbin   = config.xbin;
+	final int    ybin   = config.ybin;
+	final int    expose = config.expose;
+	final double video  = CDS_TIME[config.speedCode] + SWITCH_TIME;
+
+	double clearTime, frameTransfer, readout, cycleTime, exposureTime;
+	int nwins = 0, pshift = 0;
+
+	switch(config.templateCode){
+
+	case TimingConfig.FULLFRAME_CLEAR:
+	case TimingConfig.FULLFRAME_NOCLEAR:
+
+	    frameTransfer = 1033*VCLOCK_FRAME;
+	    readout       = (VCLOCK_STORAGE*ybin + 536.*HCLOCK + (512./xbin+2)*video)*(1024./ybin);
+	    if(config.templateCode == TimingConfig.FULLFRAME_CLEAR){
+		clearTime    = (1033 + 1027)*VCLOCK_FRAME;
+		cycleTime    = (INVERSION_DELAY + 100*expose + clearTime + frameTransfer + readout)/1.e6;
+		exposureTime = expose/10000.;
+	    }else{
+		cycleTime    = (INVERSION_DELAY + 100*expose + frameTransfer + readout)/1.e6;
+		exposureTime = cycleTime - frameTransfer/1.e6;
+	    }
+	    readout      /= 1.e6;
+	    break;
+
+	case TimingConfig.FULLFRAME_OVERSCAN:
+
+	    clearTime     = (1033. + 1032.) * VCLOCK_FRAME;
+	    frameTransfer = 1033.*VCLOCK_FRAME;
+	    readout       = (VCLOCK_STORAGE*ybin + 540.*HCLOCK + ((540./xbin)+2.)*video)*(1032/ybin);
+	    cycleTime     = (INVERSION_DELAY + 100*expose + clearTime + frameTransfer + readout)/1.e6;
+	    exposureTime  = expose/10000.;
+	    readout      /= 1.e6;
+	    break;
+
+	case TimingConfig.WINDOWS:
+	case TimingConfig.WINDOWS_CLEAR:
+
+	    if(config.templateCode == TimingConfig.WINDOWS_CLEAR){
+		clearTime     = (1033 + 1027)*VCLOCK_FRAME;
+	    }else{
+		clearTime = 0.;
+	    }
+	    frameTransfer = 1033.*VCLOCK_FRAME;
+	    cycleTime     = INVERSION_DELAY + 100*expose + frameTransfer + clearTime;
+	    readout       = 0.;
+
+	    for(int i=0; i<config.getNpair(); i++){
+
+		final int ystart = config.getYstart(i);
+		final int xleft  = config.getXleft(i);
+		final int xright = config.getXright(i);
+		final int nx     = config.getNx(i);
+		final int ny     = config.getNy(i);
+
+		final int ystart_m = i > 0 ? config.getYstart(i-1) : 1;
+		final int ny_m     = i > 0 ? config.getNy(i-1)     : 0;
+
+		// Time taken to shift the window next to the storage area
+		final double yShift = i > 0 ? (ystart-ystart_m-ny_m)*VCLOCK_STORAGE : (ystart-1)*VCLOCK_STORAGE;
+
+		// Time taken to read window
+		final double read   = (ny/ybin)*lineRead(xleft, xright, nx, xbin, ybin, video);
+
+		cycleTime += yShift + read;
+		readout   += yShift + read;
+	    }
+
+	    // Convert to microseconds
+	    if(config.templateCode == TimingConfig.WINDOWS_CLEAR){
+		exposureTime = expose/10000.;
+	    }else{
+		exposureTime = (cycleTime - frameTransfer)/1.e6;
+	    }
+
+	    cycleTime   /= 1.e6;
+	    readout     /= 1.e6;
+	    break;
+
+	case TimingConfig.DRIFT:
+	case TimingConfig.TIMING_TEST:
+	    {
+		final int ystart = config.getYstart(0);
+		final int nx     = config.getNx(0);
+		final int ny     = config.getNy(0);
+
+		nwins  = driftWindows(ny);
+		pshift = pipeShift(ny, nwins);
+
+		frameTransfer = (ny + ystart - 1.)*VCLOCK_FRAME;
+		final double read = (ny/ybin)*lineRead(config.getXleft(0), config.getXright(0), nx, xbin, ybin, video);
+
+		// In timing test mode no compensating delays are added, so on average
+		// there is only one pipe shift per nwin frames
+		final double shift = config.templateCode == TimingConfig.DRIFT ?
+		    pshift*VCLOCK_STORAGE : (pshift*VCLOCK_STORAGE)/nwins;
+
+		cycleTime    = (INVERSION_DELAY + shift + 100*expose + frameTransfer + read)/1.e6;
+		exposureTime = cycleTime - frameTransfer/1.e6;
+		readout      = (read + shift)/1.e6;
+	    }
+	    break;
+
+	default:
+	    throw new Error("Application = \"" + config.template + "\" is unrecognised. Programming error in speed");
+	}
+
+	result.cycleTime     = cycleTime;
+	result.frameRate     = 1./cycleTime;
+	result.exposureTime  = exposureTime;
+	result.deadTime      = cycleTime - exposureTime;
+	result.readout       = readout;
+	result.frameTransfer = frameTransfer/1.e6;
+	result.dutyCycle     = 100.*exposureTime/cycleTime;
+	result.nwins         = nwins;
+	result.pshift        = pshift;
+	return cycleTime;
+    }
+
+    /** Computes the counts and signal-to-noise part of the model. Requires the
+     * timing fields of result to have been set already by cycleTime.
+     */
+    public static void signalToNoise(TimingConfig config, TimingResult result) {
+	signalToNoise(config, config.magnitude, config.seeing, config.airmass, result);
+    }
+
+    /** As signalToNoise(config, result) but for the given target magnitude, seeing
+     * and airmass in place of those in config. Sweeps over conditions use this to
+     * avoid a new configuration per point.
+     */
+    public static void signalToNoise(TimingConfig config, double magnitude, double seeing, double airmass,
+				     TimingResult result) {
+
+	final Telescope tel = config.telescope;
+	final int    xbin          = config.xbin;
+	final int    ybin          = config.ybin;
+	final double exposureTime  = result.exposureTime;
+	final double plateScale    = tel.plateScale;
+
+	final double zero = tel.zeroPoint[config.filterIndex];
+	final double sky  = SKY_BRIGHT[config.skyBrightIndex][config.filterIndex];
+	final double gain = GAIN[config.speedCode];
+	final double read = READ_NOISE[config.speedCode][binIndex(xbin, ybin)];
+
+	// Now calculate expected counts
+	final double total = Math.pow(10.,(zero-magnitude-airmass*EXTINCTION[config.filterIndex])/2.5)*exposureTime;
+	final double peak  = total*xbin*ybin*Math.pow(plateScale/(seeing/2.3548),2)/(2.*Math.PI);
+
+	final double skyPerArcsec = Math.pow(10.,(zero-sky)/2.5)*exposureTime;
+	final double skyPerPixel  = skyPerArcsec*Math.pow(plateScale,2)*xbin*ybin;
+	final double narcsec      = Math.PI*Math.pow(AP_SCALE*seeing,2);
+	final double skyTot       = skyPerArcsec*narcsec;
+	final double npix         = Math.PI*Math.pow(AP_SCALE*seeing/plateScale,2)/xbin/ybin;
+	final double signal       = AP_CORRECT*total;
+	final double darkTot      = npix*DARK_COUNT*exposureTime;
+	final double readTot      = npix*Math.pow(read, 2)/gain;
+	final double noise        = Math.sqrt( (readTot + darkTot + skyTot + signal) / gain);
+
+	result.zero             = zero;
+	result.readNoise        = read;
+	result.gain             = gain;
+	result.apertureDiameter = 2.*AP_SCALE*seeing;
+	result.npix             = npix;
+	result.total            = total;
+	result.peak             = peak;
+	result.signal           = signal;
+	result.sky              = sky;
+	result.skyPerPixel      = skyPerPixel;
+	result.skyTot           = skyTot;
+	result.darkTot          = darkTot;
+	result.readTot          = readTot;
+	result.noise            = noise;
+	result.signalToNoiseOne = signal/noise;
+
+	// Now compute signal-to-noise in 3 hour seconds run
+	result.signalToNoise    = signal/noise*Math.sqrt(3*3600./result.cycleTime);
+    }
+
+    /** Number of windows in the storage area in drift mode */
+    public static int driftWindows(int ny) {
+	return (int)(((1033. / ny ) + 1.)/2.);
+    }
+
+    /** Pipe shift in pixels in drift mode */
+    public static int pipeShift(int ny, int nwins) {
+	return (int)(1033.-(((2.*nwins)-1.)*ny));
+    }
+
+    /** Index into the read noise tables for a given binning */
+    public static int binIndex(int xbin, int ybin) {
+	switch(Math.max(xbin,ybin)){
+	case 1:
+	    return 0;
+	case 2:
+	case 3:
+	    return 1;
+	case 4:
+	case 5:
+	case 6:
+	    return 2;
+	default:
+	    return 3;
+	}
+    }
+
+    // Time taken to read one line of a window pair, microseconds
+    private static double lineRead(int xleft, int xright, int nx, int xbin, int ybin, double video) {
+
+	// Number of columns to shift whichever window is further from the edge of the readout
+	// to get ready for simultaneous readout.
+	final int diffShift = Math.abs(xleft - 1 - (1024 - xright - nx + 1) );
+
+	// Time taken to dump any pixels in a row that come after the ones we want.
+	// The '8' is the number of HCLOCKs needed to open the serial register dump gates
+	// If the left window is further from the left edge than the right window is from the
+	// right edge, then the diffshift will move it to be the same as the right window, and
+	// so we use the right window parameters to determine the number of hclocks needed, and
+	// vice versa.
+	final int numHclocks   = (xleft - 1 > 1024-xright-nx+1) ?
+	    nx + diffShift + (1024 - xright - nx + 1) + 8 :
+	    nx + diffShift + (xleft - 1) + 8;
+
+	// Time taken to read one line. The extra 2 is required to fill the video pipeline buffer
+	return VCLOCK_STORAGE*ybin + numHclocks*HCLOCK + (nx/xbin+2)*video;
+    }
+
+}
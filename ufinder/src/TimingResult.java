@@ -0,0 +1,70 @@
+package ufinder;
+
+// Simple class to hold the output of TimingEngine. Times are in seconds.
+//
+// The fields are public and mutable so that a single instance can be
+// re-filled by TimingEngine.compute(config, result) without allocating.
+// 'nwins' and 'pshift' are only meaningful for drift mode and timing test
+// templates and are set to zero otherwise.
+
+public class TimingResult {
+
+    // Timing
+    public double cycleTime;
+    public double frameRate;
+    public double exposureTime;
+    public double deadTime;
+    public double readout;
+    public double frameTransfer;
+    public double dutyCycle;         // percent
+    public int    nwins;
+    public int    pshift;
+
+    // Signal-to-noise
+    public double zero;              // zeropoint, mags
+    public double readNoise;         // counts RMS
+    public double gain;              // electrons/count
+    public double apertureDiameter;  // arcsec
+    public double npix;              // binned pixels in aperture
+    public double total;             // total counts from target
+    public double peak;              // peak counts in a binned pixel
+    public double signal;            // counts in aperture
+    public double sky;               // mags/arcsec**2
+    public double skyPerPixel;       // counts/binned pixel
+    public double skyTot;            // counts in aperture
+    public double darkTot;           // counts in aperture
+    public double readTot;           // effective counts in aperture
+    public double noise;
+    public double signalToNoiseOne;  // in a single exposure
+    public double signalToNoise;     // in a 3 hour run
+
+    /** Copies every field of another result into this one */
+    public void set(TimingResult in) {
+	cycleTime        = in.cycleTime;
+	frameRate        = in.frameRate;
+	exposureTime     = in.exposureTime;
+	deadTime         = in.deadTime;
+	readout          = in.readout;
+	frameTransfer    = in.frameTransfer;
+	dutyCycle        = in.dutyCycle;
+	nwins            = in.nwins;
+	pshift           = in.pshift;
+	zero             = in.zero;
+	readNoise        = in.readNoise;
+	gain             = in.gain;
+	apertureDiameter = in.apertureDiameter;
+	npix             = in.npix;
+	total            = in.total;
+	peak             = in.peak;
+	signal           = in.signal;
+	sky              = in.sky;
+	skyPerPixel      = in.skyPerPixel;
+	skyTot           = in.skyTot;
+	darkTot          = in.darkTot;
+	readTot          = in.readTot;
+	noise            = in.noise;
+	signalToNoiseOne = in.signalToNoiseOne;
+	signalToNoise    = in.signalToNoise;
+    }
+
+}
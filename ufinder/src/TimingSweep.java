@@ -0,0 +1,387 @@
+package ufinder;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Evaluates the timing and signal-to-noise model over a grid of template x
+ * readout speed x binning x exposure x magnitude x seeing x airmass, writing
+ * one row per grid point as either CSV or a compact binary table.
+ *
+ * The grid is cut into chunks which are evaluated and formatted on a pool of
+ * worker threads; the chunks are written in order as they complete, with only
+ * a few in flight at once, so memory use does not grow with the grid size.
+ * Combinations of binning that do not divide the window sizes are skipped.
+ *
+ * The binary format is big-endian: the 8 bytes "UFSWEEP1", a short giving the
+ * number of templates followed by their labels (as DataOutput.writeUTF), the
+ * same for readout speeds, then 44-byte rows each holding template index,
+ * speed index, xbin and ybin (bytes), exposure delay in 0.1 ms (int) and
+ * magnitude, seeing, airmass, frame rate, cycle time, duty cycle, peak counts,
+ * single-exposure and 3-hour signal-to-noise (floats), up to the end of file.
+ *
+ * Run from the command line with no arguments for usage.
+ */
+public class TimingSweep {
+
+    public static final int CSV    = 0;
+    public static final int BINARY = 1;
+
+    public static final String CSV_HEADER =
+	"template,speed,xbin,ybin,expose_ms,magnitude,seeing,airmass," +
+	"frame_rate,cycle_time,duty_cycle,peak,sn_exposure,sn_3hr\n";
+
+    private static final byte[] MAGIC   = {'U','F','S','W','E','E','P','1'};
+    private static final int    ROW_LEN = 44;
+
+    // Grid points per chunk handed to a worker
+    private static final int CHUNK = 8192;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final TimingConfig[] bases;
+    private final String[] speeds;
+    private final int[]    xbins, ybins, exposes;
+    private final double[] magnitudes, seeings, airmasses;
+    private int nthreads = Runtime.getRuntime().availableProcessors();
+
+    /** Constructor
+     * @param bases      one configuration per template, supplying windows, telescope, filter and sky
+     * @param speeds     readout speeds
+     * @param xbins      X binning factors
+     * @param ybins      Y binning factors
+     * @param exposes    exposure delays, units of 0.1 milliseconds
+     * @param magnitudes target magnitudes
+     * @param seeings    FWHM seeing values, arcsec
+     * @param airmasses  airmasses
+     */
+    public TimingSweep(TimingConfig[] bases, String[] speeds, int[] xbins, int[] ybins, int[] exposes,
+		       double[] magnitudes, double[] seeings, double[] airmasses) {
+	this.bases      = bases;
+	this.speeds     = speeds;
+	this.xbins      = xbins;
+	this.ybins      = ybins;
+	this.exposes    = exposes;
+	this.magnitudes = magnitudes;
+	this.seeings    = seeings;
+	this.airmasses  = airmasses;
+	for(int i=0; i<speeds.length; i++)
+	    TimingConfig.speedCode(speeds[i]);
+    }
+
+    /** Sets the number of worker threads; defaults to the number of processors */
+    public void setThreads(int nthreads) {
+	this.nthreads = Math.max(1, nthreads);
+    }
+
+    /** Total number of grid points, including any that will be skipped */
+    public long size() {
+	return (long)bases.length*speeds.length*xbins.length*ybins.length*exposes.length*
+	    magnitudes.length*seeings.length*airmasses.length;
+    }
+
+    /** Runs the sweep, writing to out, which is flushed but not closed.
+     * @param format CSV or BINARY
+     * @return number of rows written
+     */
+    public long run(OutputStream out, int format) throws Exception {
+
+	writeHeader(out, format);
+
+	final long total = size();
+	final ExecutorService executor = Executors.newFixedThreadPool(nthreads);
+	final ArrayDeque<Future<Chunk>> pending = new ArrayDeque<Future<Chunk>>();
+	long rows = 0;
+	try{
+	    for(long start=0; start<total; start+=CHUNK){
+		if(pending.size() >= 2*nthreads)
+		    rows += pending.poll().get().writeTo(out);
+		final long from = start, to = Math.min(total, start+CHUNK);
+		final int  fmt  = format;
+		pending.add(executor.submit(new Callable<Chunk>(){
+			public Chunk call() {
+			    return evaluate(from, to, fmt);
+			}
+		    }));
+	    }
+	    while(!pending.isEmpty())
+		rows += pending.poll().get().writeTo(out);
+	}finally{
+	    executor.shutdownNow();
+	}
+	out.flush();
+	return rows;
+    }
+
+    private void writeHeader(OutputStream out, int format) throws IOException {
+	if(format == CSV){
+	    out.write(CSV_HEADER.getBytes(ASCII));
+	}else{
+	    final DataOutputStream dout = new DataOutputStream(out);
+	    dout.write(MAGIC);
+	    dout.writeShort(bases.length);
+	    for(int i=0; i<bases.length; i++)
+		dout.writeUTF(bases[i].template);
+	    dout.writeShort(speeds.length);
+	    for(int i=0; i<speeds.length; i++)
+		dout.writeUTF(speeds[i]);
+	    dout.flush();
+	}
+    }
+
+    // A block of formatted rows
+    private static class Chunk {
+	final byte[] data;
+	final int    length;
+	final int    rows;
+
+	Chunk(byte[] data, int length, int rows) {
+	    this.data   = data;
+	    this.length = length;
+	    this.rows   = rows;
+	}
+
+	int writeTo(OutputStream out) throws IOException {
+	    out.write(data, 0, length);
+	    return rows;
+	}
+    }
+
+    // Evaluates and formats grid points from to to-1
+    private Chunk evaluate(long from, long to, int format) {
+
+	final int nm = magnitudes.length, ns = seeings.length, na = airmasses.length;
+	final long nconditions = (long)nm*ns*na;
+
+	final TimingResult result = new TimingResult();
+	final StringBuilder text  = format == CSV ? new StringBuilder((int)(to-from)*100) : null;
+	final ByteBuffer    bin   = format == CSV ? null : ByteBuffer.allocate((int)(to-from)*ROW_LEN);
+
+	long lastSetup = -1;
+	TimingConfig config = null;
+	boolean valid = false;
+	int rows = 0;
+	int itemplate = 0, ispeed = 0;
+
+	for(long p=from; p<to; p++){
+
+	    final long setup = p / nconditions;
+	    if(setup != lastSetup){
+		// setup index runs template, speed, xbin, ybin, expose with expose fastest
+		long rest = setup;
+		final int iexpose = (int)(rest % exposes.length); rest /= exposes.length;
+		final int iybin   = (int)(rest % ybins.length);   rest /= ybins.length;
+		final int ixbin   = (int)(rest % xbins.length);   rest /= xbins.length;
+		ispeed            = (int)(rest % speeds.length);  rest /= speeds.length;
+		itemplate         = (int)rest;
+
+		config = bases[itemplate].withSetup(speeds[ispeed], xbins[ixbin], ybins[iybin], exposes[iexpose]);
+		valid  = true;
+		for(int i=0; i<config.getNpair() && valid; i++)
+		    valid = config.getNx(i) % config.xbin == 0 && config.getNy(i) % config.ybin == 0;
+		if(valid) TimingEngine.cycleTime(config, result);
+		lastSetup = setup;
+	    }
+	    if(!valid) continue;
+
+	    long c = p % nconditions;
+	    final double airmass   = airmasses[(int)(c % na)]; c /= na;
+	    final double seeing    = seeings[(int)(c % ns)];   c /= ns;
+	    final double magnitude = magnitudes[(int)c];
+	    TimingEngine.signalToNoise(config, magnitude, seeing, airmass, result);
+
+	    if(format == CSV){
+		text.append(config.template.indexOf(',') >= 0 ? "\"" + config.template + "\"" : config.template).append(',')
+		    .append(config.readSpeed).append(',')
+		    .append(config.xbin).append(',')
+		    .append(config.ybin).append(',')
+		    .append(config.expose/10.).append(',')
+		    .append((float)magnitude).append(',')
+		    .append((float)seeing).append(',')
+		    .append((float)airmass).append(',')
+		    .append((float)result.frameRate).append(',')
+		    .append((float)result.cycleTime).append(',')
+		    .append((float)result.dutyCycle).append(',')
+		    .append((float)result.peak).append(',')
+		    .append((float)result.signalToNoiseOne).append(',')
+		    .append((float)result.signalToNoise).append('\n');
+	    }else{
+		bin.put((byte)itemplate).put((byte)ispeed).put((byte)config.xbin).put((byte)config.ybin)
+		    .putInt(config.expose)
+		    .putFloat((float)magnitude).putFloat((float)seeing).putFloat((float)airmass)
+		    .putFloat((float)result.frameRate).putFloat((float)result.cycleTime)
+		    .putFloat((float)result.dutyCycle).putFloat((float)result.peak)
+		    .putFloat((float)result.signalToNoiseOne).putFloat((float)result.signalToNoise);
+	    }
+	    rows++;
+	}
+
+	if(format == CSV){
+	    final byte[] data = text.toString().getBytes(ASCII);
+	    return new Chunk(data, data.length, rows);
+	}
+	return new Chunk(bin.array(), bin.position(), rows);
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+    // Command line
+
+    private static final String USAGE =
+	"usage: java -cp ufinder.jar ufinder.TimingSweep [options] -out file\n" +
+	"  -template label      template to sweep; repeat for several (default: all in the configuration file)\n" +
+	"  -conf file           configuration file listing the templates (default: ufinder.conf)\n" +
+	"  -tel name            telescope (default: VLT)\n" +
+	"  -filter u|g|r|i|z    filter (default: g)\n" +
+	"  -sky dark|grey|bright sky brightness (default: grey)\n" +
+	"  -window ystart,xleft,xright,nx,ny  window pair; repeat for each pair used by the templates\n" +
+	"                       (default: the GUI's initial pairs)\n" +
+	"  -speed list          readout speeds (default: Turbo,Fast,Slow)\n" +
+	"  -xbin grid, -ybin grid           binning factors (default: 1)\n" +
+	"  -expose grid         exposure delays, milliseconds (default: 0)\n" +
+	"  -mag grid, -seeing grid, -airmass grid  (defaults: 18, 1, 1.5)\n" +
+	"  -threads n           worker threads (default: number of processors)\n" +
+	"  -format csv|binary   output format (default: from the file name, .csv or else binary)\n" +
+	"A grid is a single value, a comma-separated list, or start:stop:step.";
+
+    public static void main(String[] args) {
+	try{
+	    String conf = "ufinder.conf", tel = "VLT", out = null, format = null;
+	    String filter = "g", sky = "grey";
+	    String speed = "Turbo,Fast,Slow", xbin = "1", ybin = "1", expose = "0";
+	    String mag = "18", seeing = "1", airmass = "1.5";
+	    int threads = Runtime.getRuntime().availableProcessors();
+	    final List<String>     templates = new ArrayList<String>();
+	    final List<WindowPair> windows   = new ArrayList<WindowPair>();
+
+	    for(int i=0; i<args.length; i++){
+		final String opt = args[i];
+		if(i+1 >= args.length) throw new Exception("Missing value for " + opt);
+		final String val = args[++i];
+		if(opt.equals("-template"))     templates.add(val);
+		else if(opt.equals("-conf"))    conf = val;
+		else if(opt.equals("-tel"))     tel = val;
+		else if(opt.equals("-filter"))  filter = val;
+		else if(opt.equals("-sky"))     sky = val;
+		else if(opt.equals("-window"))  windows.add(parseWindow(val));
+		else if(opt.equals("-speed"))   speed = val;
+		else if(opt.equals("-xbin"))    xbin = val;
+		else if(opt.equals("-ybin"))    ybin = val;
+		else if(opt.equals("-expose"))  expose = val;
+		else if(opt.equals("-mag"))     mag = val;
+		else if(opt.equals("-seeing"))  seeing = val;
+		else if(opt.equals("-airmass")) airmass = val;
+		else if(opt.equals("-threads")) threads = Integer.parseInt(val);
+		else if(opt.equals("-format"))  format = val;
+		else if(opt.equals("-out"))     out = val;
+		else throw new Exception("Unrecognised option " + opt);
+	    }
+	    if(out == null) throw new Exception("No output file given");
+
+	    final Telescope telescope = Telescope.find(tel);
+	    if(telescope == null) throw new Exception("TELESCOPE = " + tel + " was not found amongst the supported telescopes");
+
+	    final Templates known = Templates.load(conf);
+	    if(templates.isEmpty())
+		for(int i=0; i<known.labels.length; i++) templates.add(known.labels[i]);
+	    if(windows.isEmpty()) windows.addAll(WindowPairs.defaults());
+
+	    final TimingConfig[] bases = new TimingConfig[templates.size()];
+	    for(int i=0; i<bases.length; i++){
+		final int npair = known.getNpair(templates.get(i));
+		if(npair > windows.size())
+		    throw new Exception("Template " + templates.get(i) + " needs " + npair + " window pairs but " +
+					windows.size() + " were given");
+		bases[i] = new TimingConfig(templates.get(i), "Slow", 1, 1, 0, windows.subList(0, npair).toArray(new WindowPair[npair]),
+					    telescope, filterIndex(filter), skyIndex(sky), 18., 1., 1.5);
+	    }
+
+	    final double[] exposeMs = parseGrid(expose);
+	    final int[] exposes = new int[exposeMs.length];
+	    for(int i=0; i<exposes.length; i++) exposes[i] = (int)Math.round(10.*exposeMs[i]);
+
+	    final TimingSweep sweep = new TimingSweep(bases, speed.split(","), toInt(parseGrid(xbin)), toInt(parseGrid(ybin)),
+						      exposes, parseGrid(mag), parseGrid(seeing), parseGrid(airmass));
+	    sweep.setThreads(threads);
+
+	    final int fmt = format != null ? (format.equalsIgnoreCase("csv") ? CSV : BINARY) :
+		(out.toLowerCase().endsWith(".csv") ? CSV : BINARY);
+
+	    final long t0 = System.currentTimeMillis();
+	    final OutputStream os = new BufferedOutputStream(new FileOutputStream(out), 1 << 16);
+	    long rows;
+	    try{
+		rows = sweep.run(os, fmt);
+	    }finally{
+		os.close();
+	    }
+	    System.out.println("Wrote " + rows + " of " + sweep.size() + " grid points to " + out + " in " +
+			       (System.currentTimeMillis()-t0)/1000. + " s");
+	}
+	catch(final Exception e){
+	    System.out.println(e.toString());
+	    System.out.println(USAGE);
+	    System.exit(1);
+	}
+    }
+
+    /** Parses a single value, comma-separated list or start:stop:step range */
+    static double[] parseGrid(String spec) throws Exception {
+	if(spec.indexOf(':') >= 0){
+	    final String[] part = spec.split(":");
+	    if(part.length != 3) throw new Exception("Range " + spec + " should be start:stop:step");
+	    final double start = Double.parseDouble(part[0]);
+	    final double stop  = Double.parseDouble(part[1]);
+	    final double step  = Double.parseDouble(part[2]);
+	    if(step <= 0. || stop < start) throw new Exception("Range " + spec + " is empty");
+	    final int n = (int)Math.floor((stop-start)/step + 1.e-9) + 1;
+	    final double[] grid = new double[n];
+	    for(int i=0; i<n; i++) grid[i] = start + i*step;
+	    return grid;
+	}
+	final String[] part = spec.split(",");
+	final double[] grid = new double[part.length];
+	for(int i=0; i<part.length; i++) grid[i] = Double.parseDouble(part[i].trim());
+	return grid;
+    }
+
+    /** Parses "ystart,xleft,xright,nx,ny" */
+    static WindowPair parseWindow(String spec) throws Exception {
+	final String[] part = spec.split(",");
+	if(part.length != 5) throw new Exception("Window " + spec + " should be ystart,xleft,xright,nx,ny");
+	return new WindowPair(Integer.parseInt(part[0].trim()), Integer.parseInt(part[1].trim()), Integer.parseInt(part[2].trim()),
+			      Integer.parseInt(part[3].trim()), Integer.parseInt(part[4].trim()));
+    }
+
+    /** Filter name (u, g, r, i or z, with or without a prime) to index */
+    static int filterIndex(String filter) throws Exception {
+	final int i = "ugriz".indexOf(filter.replace("'", "").trim().toLowerCase());
+	if(i < 0 || filter.replace("'", "").trim().length() != 1) throw new Exception("Filter " + filter + " is not one of u, g, r, i, z");
+	return i;
+    }
+
+    /** Sky brightness name to index */
+    static int skyIndex(String sky) throws Exception {
+	if(sky.equalsIgnoreCase("dark"))   return 0;
+	if(sky.equalsIgnoreCase("grey"))   return 1;
+	if(sky.equalsIgnoreCase("bright")) return 2;
+	throw new Exception("Sky " + sky + " is not one of dark, grey, bright");
+    }
+
+    private static int[] toInt(double[] x) {
+	final int[] n = new int[x.length];
+	for(int i=0; i<x.length; i++) n[i] = (int)Math.round(x[i]);
+	return n;
+    }
+
+}
@@ -13,9 +13,12 @@ import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.event.ActionListener;
 import java.awt.event.InputMethodListener;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.event.DocumentListener;
 
 
 /** Class to handle the windows */
@@ -58,6 +61,16 @@ public class WindowPairs {
 	}
 	nyText[0].setSpecial(ufinder.specialNy);
     }
+
+    /** The initial window pairs, which the command-line tools use when none
+     * are given; new ones each call
+     */
+    public static List<WindowPair> defaults() {
+	final List<WindowPair> windows = new ArrayList<WindowPair>();
+	for(int i=0; i<YSTART.length; i++)
+	    windows.add(new WindowPair(YSTART[i], XLEFT[i], XRIGHT[i], NX[i], NY[i]));
+	return windows;
+    }
 	
     /** Disable paste operations in all fields */
     public void disablePaste(){
@@ -89,6 +102,16 @@ public class WindowPairs {
        		this.nxText[i].addActionListener(action);
     	}
     }
+
+    public void addDocumentListener(DocumentListener listener){
+    	for(int i=0; i<3; i++){
+       		this.ystartText[i].getDocument().addDocumentListener(listener);
+       		this.xleftText[i].getDocument().addDocumentListener(listener);
+       		this.xrightText[i].getDocument().addDocumentListener(listener);
+       		this.nyText[i].getDocument().addDocumentListener(listener);
+       		this.nxText[i].getDocument().addDocumentListener(listener);
+    	}
+    }
     
     /** Checks validity of windows given X and Y binning factors
      * @param xbin  X binning factor
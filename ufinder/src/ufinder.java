@@ -8,13 +8,20 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.ByteArrayInputStream;
 import java.text.DecimalFormat;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
 import java.util.StringTokenizer;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.swing.*;
 import javax.swing.event.*;
 import javax.swing.border.EmptyBorder;
+import javax.swing.filechooser.FileNameExtensionFilter;
 import javax.swing.table.AbstractTableModel;
 import javax.swing.text.NumberFormatter;
 import java.beans.*;
@@ -29,65 +36,29 @@ import java.awt.FontMetrics;
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 
-public class ufinder extends JFrame implements VOApp,
-                                               ActionListener{
+public class ufinder extends JFrame implements ActionListener{
+
+    // Started before anything else, so that the static fields are timed too
+    private static final StartupTimer STARTUP = new StartupTimer("ufinder");
 
     // Telescope data. See the class for a full description of the fields
-    private static final Telescope[] TELESCOPE_DATA = {
-	// NTT ZPs scaled from WHT using accurate collecting areas accounting for obstruction & 0.9 reflectivity of M3
-	// Rotator centre at (527, 556), Chip Centre is (512, 512), Delta = (15, 44) pixels or (5.35, 15.708)
-	// Delta PA is 65.24 degrees
-    	new Telescope("NTT", new double[] {24.62, 26.43, 25.77, 25.63, 24.79}, 0.357, true, 65.24, -5.35, -15.708, "vlt.xml"),
-	// accurate - assume 0.85 reflectivity for M3
-	// new Telescope("NTT", new double[] {24.56, 26.37, 25.71, 25.57, 24.73}, 0.35, true, 0.0, 0.0, 0.0, "vlt.xml"),
-	// less accurate - 0.9 new Telescope("NTT", new double[] {24.84, 26.45, 25.79, 25.65, 24.81}, 0.35, true, 0.0, 0.0, 0.0, "vlt.xml"),
-	    new Telescope("VLT", new double[] {26.54, 28.35, 27.69, 27.55, 26.71}, 0.1557, true, 0.0, -1.4402, -3.1856, "vlt.xml"),
-    	new Telescope("WHT", new double[] {25.11, 26.92, 26.26, 26.12, 25.28}, 0.30, false, 0.0, 0.0, 0.0, "wht.xml"),
-    };
-    /** delta_pa is zero on the vlt because of a software offset applied by the TCS. The
-     * physical value is -84.7 degrees
-     */
+    private static final Telescope[] TELESCOPE_DATA = Telescope.TELESCOPES;
     // The following is used to pass the telescope data around
     private Telescope _telescope = null, _old_telescope = null;
 
     //------------------------------------------------------------------------------------------
-    // Sky parameters
-    // Extinction, mags per unit airmass
-    private static final double[] EXTINCTION = {0.50, 0.19, 0.09, 0.05, 0.04};
-
-    // Sky brightness, mags/arcsec**2, dark, grey, bright, in ugriz
-    private static final double[][] SKY_BRIGHT = {
-	{22.4, 22.2, 21.4, 20.7, 20.3},
-	{21.4, 21.2, 20.4, 20.1, 19.9},
-	{18.4, 18.2, 17.4, 17.9, 18.3}
-    };
-
-    //------------------------------------------------------------------------------------------
-    // Instrument parameters
-
-    // Readout parameters
-    private static final double   GAIN_TURBO = 1.5;           // electrons per count
-    private static final double   GAIN_FAST  = 1.4;           // electrons per count
-    private static final double   GAIN_SLOW  = 1.3;           // electrons per count
-
-    // Readout noise for 1x1, 2x2, 4x4, 8x8
-    // EDIT: READ NOISE FOR TURBO VERY APPROX
-    private static final double[] READ_NOISE_TURBO = {7.0, 7.0, 7.0, 7.0};
-    private static final double[] READ_NOISE_FAST  = {4.9, 4.9, 5.1, 6.4};
-    private static final double[] READ_NOISE_SLOW  = {3.6, 3.6, 4.0, 5.4};
-
-    // Dark count rate, counts/sec/pixel
-    private static final double DARK_COUNT = 0.1;
+    // Instrument parameters. The timing and signal-to-noise model, together with
+    // the sky and detector parameters it uses, lives in TimingEngine.
 
     // Timing parameters from Vik
-    public static final double INVERSION_DELAY = 110.;   // microseconds
-    public static final double VCLOCK_FRAME    = 23.3;   // microseconds
-    public static final double VCLOCK_STORAGE  = 23.3;   // microseconds
-    public static final double HCLOCK          = 0.48;   // microseconds
-    public static final double CDS_TIME_FDD    = 1.84;    // microseconds
-    public static final double CDS_TIME_FBB    = 4.4;    // microseconds
-    public static final double CDS_TIME_CDD    = 10.;    // microseconds
-    public static final double SWITCH_TIME     = 1.2;    // microseconds
+    public static final double INVERSION_DELAY = TimingEngine.INVERSION_DELAY;   // microseconds
+    public static final double VCLOCK_FRAME    = TimingEngine.VCLOCK_FRAME;      // microseconds
+    public static final double VCLOCK_STORAGE  = TimingEngine.VCLOCK_STORAGE;    // microseconds
+    public static final double HCLOCK          = TimingEngine.HCLOCK;            // microseconds
+    public static final double CDS_TIME_FDD    = TimingEngine.CDS_TIME_FDD;      // microseconds
+    public static final double CDS_TIME_FBB    = TimingEngine.CDS_TIME_FBB;      // microseconds
+    public static final double CDS_TIME_CDD    = TimingEngine.CDS_TIME_CDD;      // microseconds
+    public static final double SWITCH_TIME     = TimingEngine.SWITCH_TIME;       // microseconds
 
     // Special values of NY when pipe shift hits a minimum
     public static final int[] specialNy = {8, 10, 13, 18, 21, 24, 31, 38, 41, 49, 54, 60, 68, 79, 93, 114, 147, 206, 344};
@@ -143,6 +114,14 @@ public class ufinder extends JFrame implements VOApp,
     public static String  LOG_FILE_DIRECTORY    = null;
     public static boolean CONFIRM_ON_CHANGE;
     public static boolean CHECK_FOR_MASK;
+    public static int     FOV_ENCODING          = FOVWriter.TABLEDATA;
+    public static String  SURVEY_CACHE_DIRECTORY = null;
+    public static int     SURVEY_CACHE_MB       = 200;
+    public static double  SURVEY_FIELD          = 15.;
+    public static final Map<String,String> SURVEY_URL = new HashMap<String,String>();
+    public static String  NAME_CACHE_FILE       = null;
+    public static String  NAME_RESOLVER_URL     = SesameResolver.DEFAULT_URL;
+    public static int     AUTO_COMPARISONS      = 3;
 
     public static String[] TEMPLATE_LABEL       = null;
     public static String[] TEMPLATE_PAIR        = null;
@@ -227,7 +206,8 @@ public class ufinder extends JFrame implements VOApp,
     private final JTextField _signalToNoiseOne = new JTextField("", 7);
     private final JTextArea displayArea = new JTextArea();
 
-    // Object for manipulating the Ultracam Field of View
+    // Object for manipulating the Ultracam Field of View; its VOTable is only
+    // built when Aladin needs it
     private static final FOVmanip FOV = new FOVmanip();
 
     // the surveys that this tool can query
@@ -241,6 +221,7 @@ public class ufinder extends JFrame implements VOApp,
     private static final JButton aladinGo = new JButton("Launch Aladin");
     private static final JButton addTarg = new JButton("Sel Targ");
     private static final JButton addComp = new JButton("Add Comp");
+    private static final JButton autoComp = new JButton("Auto Comp");
 
     int raHour=0, raMin=0, decDeg=0, decMin=0, paDeg=0;
     double raSec=0.0, decSec=0.0;
@@ -252,32 +233,85 @@ public class ufinder extends JFrame implements VOApp,
     DoubleTextField  decSecVal = new DoubleTextField(decSec,0.0,59.99,0.1,"Dec seconds", true, DEFAULT_COLOUR, ERROR_COLOUR, 5);
     DoubleTextField  paDegVal = new DoubleTextField(paDeg,  0.0,359.9,0.3,"Position Angle",    true, DEFAULT_COLOUR, ERROR_COLOUR, 5);
 
-    // handle action performed events
+    // Outputs are recomputed once the fields have been quiet for this long, milliseconds
+    private static final int RECOMPUTE_DELAY = 250;
+
+    // Collects edits to the fields and refreshes what they affect
+    private final RecomputeScheduler _changes = new RecomputeScheduler(RECOMPUTE_DELAY, new RecomputeScheduler.Refresher(){
+	    public void refresh(int dirty){
+		if((dirty & RecomputeScheduler.TIMING) != 0)
+		    speed(TIMING_UPDATE);
+		if((dirty & RecomputeScheduler.SYNC) != 0)
+		    _updateSyncButton();
+		if((dirty & RecomputeScheduler.FOV) != 0 && _backend != null)
+		    FOVSync();
+	    }
+	});
+
+    // handle action performed events: <enter> in a coordinate field pushes the FOV at once
     public void actionPerformed(ActionEvent e){
-    	FOVSync();
+	_changes.mark(RecomputeScheduler.FOV);
+	_changes.flush();
     }
 
-    private  class aladinInstance implements Runnable {
-    	public void run() {
-    	    mw.startAladin();
+    // Starts Aladin on the command thread; nothing reads the Future, so a
+    // failure is reported here and Aladin may be launched again
+    private  class aladinInstance implements AladinExecutor.Task<Void> {
+    	public Void run(AladinApp app) {
+    	    try{
+		mw.startAladin();
+	    }catch(final Exception e){
+		e.printStackTrace();
+		SwingUtilities.invokeLater(new Runnable(){
+			public void run(){
+			    JOptionPane.showMessageDialog(mw, e.toString(), "Aladin launch error", JOptionPane.ERROR_MESSAGE);
+			    aladinGo.setEnabled(true);
+			}
+		    });
+	    }
+    	    return null;
     	}
     }
 
-    private VOApp aladin = null;
+    private volatile AladinApp aladin = null;
+
+    // What shows the image and the FOV: Aladin once launched, or a local FITS file
+    private volatile ImageBackend _backend = null;
+
+    // Everything sent to Aladin goes through here, so that the GUI never waits on it
+    private final AladinExecutor _aladinCommands = new AladinExecutor();
     String aladinTarget=null;
 
     private static ufinder mw = null;
 
+    // What was last drawn, and how often drawing was needed
+    private boolean _fovSent          = false;
+    private long    _fovFingerprint   = 0;
+    private int     _fovEncoding      = FOVWriter.TABLEDATA;
+    private int     _fovPushes        = 0;
+    private int     _fovPushesAvoided = 0;
+
+    /** Number of times the FOV has been drawn */
+    public int getFOVPushes() {
+	return _fovPushes;
+    }
+
+    /** Number of times FOVSync found the FOV unchanged and did not send it */
+    public int getFOVPushesAvoided() {
+	return _fovPushesAvoided;
+    }
+
     public void FOVSync () {
-	// update FOV in Aladin
+	FOVSync(FOV_ENCODING);
+    }
 
-    	FOV.configMainWin(_telescope);
-	for(int i=0; i<numEnable; i++){
-	    FOV.addWindowPair(_windowPairs, i, _telescope);
-	    FOV.configWindowPair(_windowPairs, i, _telescope);
-	}
-	for(int i=numEnable; i<3; i++)
-	    FOV.delWindowPair(i);
+    /** Draws the FOV on the image if it has changed; Aladin is sent the
+     * vertices in the given encoding, FOVWriter.TABLEDATA or FOVWriter.BINARY2
+     */
+    public void FOVSync (int encoding) {
+	// update FOV on the image
+
+    	FOV.configWindows(_windowPairs, numEnable, _telescope);
 	String raText=null, decText=null;
     	try {
 	    raText = raHourVal.getText() + ":" + raMinVal.getText() + ":" + String.valueOf(raSecVal.getValue());
@@ -289,12 +323,30 @@ public class ufinder extends JFrame implements VOApp,
 	    e.printStackTrace();
 	}
 
-	if (aladin != null){
-	    displayArea.append(FOV.getText());
-	    InputStream in;
-	    in = FOV.getStream();
-	    aladin.execCommand("rm 'UCAM_FoV'");
-	    aladin.putVOTable(mw, in, "UCAM_FoV");
+	final ImageBackend backend = _backend;
+	if (backend != null){
+	    // Only draw the FOV if it looks different from the last one drawn
+	    final long fingerprint = FOV.fingerprint();
+	    if(_fovSent && fingerprint == _fovFingerprint && encoding == _fovEncoding){
+		_fovPushesAvoided++;
+		return;
+	    }
+	    if(DEBUG) displayArea.append(FOV.getText());
+	    if(backend instanceof AladinBackend)
+		((AladinBackend)backend).setEncoding(encoding);
+	    try {
+		backend.overlay(FOV);
+	    } catch (Exception e) {
+		e.printStackTrace();
+		return;
+	    }
+	    _fovSent        = true;
+	    _fovFingerprint = fingerprint;
+	    _fovEncoding    = encoding;
+	    _fovPushes++;
+	    if(DEBUG)
+		System.out.println("FOV drawn by " + backend.getName() + " " + _fovPushes + " times, " + _fovPushesAvoided +
+				   " unchanged FOVs not drawn; " + _aladinCommands);
 	}else{
 		displayArea.append("BUM");
 	}
@@ -308,21 +360,6 @@ public class ufinder extends JFrame implements VOApp,
 
     	try{
 
-	    // debugging panel to display aladin commands to ufinder
-
-	    JFrame cmdFrame = new JFrame("Aladin Commands");
-	    cmdFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-	    JPanel newPan = new JPanel(new BorderLayout());
-	    displayArea.setEditable(false);
-	    JScrollPane scrollPane = new JScrollPane(displayArea);
-	    scrollPane.setPreferredSize(new Dimension(375, 125));
-	    newPan.add(scrollPane,BorderLayout.CENTER);
-	    cmdFrame.setContentPane(newPan);
-	    //Display the window.
-	    cmdFrame.pack();
-	    //cmdFrame.setVisible(true);
-
-
 	    // Build GUI - set colours and fonts
 	    UIManager.put("OptionPane.background",         DEFAULT_COLOUR);
 	    UIManager.put("Panel.background",              DEFAULT_COLOUR);
@@ -355,6 +392,7 @@ public class ufinder extends JFrame implements VOApp,
 
 	    // Load configuration file
 	    loadConfig();
+	    STARTUP.mark("config");
 
 	    // This is a JFrame of sorts. Let's add titles etc
 	    this.setTitle("Ultracam finding chart and acquisition tool");
@@ -371,8 +409,11 @@ public class ufinder extends JFrame implements VOApp,
 	    // File menu
 	    menubar.add(createFileMenu());
 
-	    // Middle-left panel for displaying target and s-to-n information
-	    addComponent( container, createTimingPanel(),  0, 2,  1, 1, GridBagConstraints.NONE, GridBagConstraints.CENTER);
+	    // Middle-left panel for displaying target and s-to-n information; it
+	    // and the middle-right panel are not needed to start, so they are
+	    // filled in once the frame is up (see _finishStartup)
+	    final JPanel timingHolder = new JPanel(new BorderLayout());
+	    addComponent( container, timingHolder,  0, 2,  1, 1, GridBagConstraints.NONE, GridBagConstraints.CENTER);
 	    addComponent( container, createObjPanel(), 0, 0, 1, 1, GridBagConstraints.NONE, GridBagConstraints.CENTER);
 
 	    // Some horizontal space between the left- and right-hand panels
@@ -391,14 +432,17 @@ public class ufinder extends JFrame implements VOApp,
 	    hsep.setPreferredSize(new Dimension(dim.width, SEPARATOR_WIDTH));
 
 	    // Middle-right panel defines the target info
-	    addComponent( container, createTargetPanel(),   2, 2,  1, 1, GridBagConstraints.NONE, GridBagConstraints.WEST);
+	    final JPanel targetHolder = new JPanel(new BorderLayout());
+	    addComponent( container, targetHolder,   2, 2,  1, 1, GridBagConstraints.NONE, GridBagConstraints.WEST);
 
 
 	    // Update the colours while ensuring that paste operations remian disabled in numeric fields
 	    updateGUI();
+	    STARTUP.mark("panels");
 
 	    this.pack();
 	    this.setVisible(true);
+	    STARTUP.mark("shown");
 
 	    this.addWindowListener(new WindowAdapter() {
 	    	public void windowClosing(WindowEvent e){
@@ -407,51 +451,15 @@ public class ufinder extends JFrame implements VOApp,
 	    }
 	    );
 
-	    // Define timer to provide regular updating of timing information
-	    // and to check whether windows are synchronised
-	    // Task to perform
-	    final ActionListener taskPerformer = new ActionListener() {
-		    public void actionPerformed(ActionEvent event) {
-		    	speed(TIMING_UPDATE);
-		    	if(_areSynchronised()){
-		    		syncWindows.setEnabled(false);
-		    		syncWindows.setBackground(DEFAULT_COLOUR);
-		    	}else{
-		    		syncWindows.setEnabled(true);
-		    		syncWindows.setBackground(WARNING_COLOUR);
-		    	}
+	    // The rest follows as soon as the frame has been drawn
+	    SwingUtilities.invokeLater(new Runnable(){
+		    public void run(){
+			_finishStartup(container, hsep, timingHolder, targetHolder);
 		    }
-	    };
+		});
 
-	    // Checks once per 2 seconds
-	    final Timer tinfoTimer = new Timer(1000, taskPerformer);
-	    tinfoTimer.start();
-
-
-	    final ActionListener aladinOn = new ActionListener() {
-		    public void actionPerformed(ActionEvent event) {
-
-		    	if(aladin != null && aladinGo.isEnabled()){
-		    		aladinGo.setEnabled(false);
-		    	}
-		    	if(aladin != null){
-					// aladin has been initialise
-					String status = aladin.execCommand("status");
-					if (status.length() < 1){
-						// but is not currently useable
-						addTarg.setEnabled(false); // disable target buttons
-						addComp.setEnabled(false);
-						if(!aladinGo.isEnabled()) aladinGo.setEnabled(true); // allow re-enabling
-					}else{
-						addTarg.setEnabled(true);
-						addComp.setEnabled(true);
-					}
-		    	}
-		    }
-	    };
-	    // Checks once per 10 seconds
-	    final Timer aladinTimer = new Timer(10000, aladinOn);
-	    aladinTimer.start();
+	    // The Aladin buttons are enabled and disabled as Aladin reports
+	    // changes to its planes (see _aladinChanged), not polled
 
 	}catch (final Exception e) {
 	    e.printStackTrace();
@@ -461,166 +469,546 @@ public class ufinder extends JFrame implements VOApp,
 	}
     }
 
+    /** Builds what the frame does not need to appear: the lower panels, the
+     * Aladin command log when debugging and, on another thread, the name and
+     * survey caches, which are read from disk. Aladin itself is only loaded
+     * when it is launched. Prints the start-up timings once all is done.
+     */
+    private void _finishStartup(final Container container, final JSeparator hsep, final JPanel timingHolder, final JPanel targetHolder) {
+	timingHolder.add(createTimingPanel());
+	targetHolder.add(createTargetPanel());
+	SwingUtilities.updateComponentTreeUI(timingHolder);
+	SwingUtilities.updateComponentTreeUI(targetHolder);
+	hsep.setPreferredSize(new Dimension(container.getPreferredSize().width, SEPARATOR_WIDTH));
+	this.pack();
+	STARTUP.mark("lower panels");
+
+	// Timing information and window synchronisation are refreshed when
+	// the fields change rather than polled; compute them once to start
+	_changes.mark(RecomputeScheduler.TIMING | RecomputeScheduler.SYNC);
+
+	if(DEBUG){
+	    // debugging panel to display aladin commands to ufinder
+	    JFrame cmdFrame = new JFrame("Aladin Commands");
+	    cmdFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+	    JPanel newPan = new JPanel(new BorderLayout());
+	    displayArea.setEditable(false);
+	    JScrollPane scrollPane = new JScrollPane(displayArea);
+	    scrollPane.setPreferredSize(new Dimension(375, 125));
+	    newPan.add(scrollPane,BorderLayout.CENTER);
+	    cmdFrame.setContentPane(newPan);
+	    cmdFrame.pack();
+	    //cmdFrame.setVisible(true);
+	}
+
+	final Thread caches = new Thread(new Runnable(){
+		public void run(){
+		    _openCaches();
+		    STARTUP.mark("caches");
+		    System.out.println(STARTUP);
+		}
+	    }, "ufinder caches");
+	caches.setDaemon(true);
+	caches.start();
+    }
+
     /** Main program. Calls constructor and starts rtplot server */
 
     public static void main(final String[] args) {
+	STARTUP.mark("classes");
     	mw = new ufinder();
     }
 
 
-    public void startAladin() {
+    // True while a status request is queued for Aladin
+    private final AtomicBoolean _statusPending = new AtomicBoolean(false);
+
+    // What the buttons last showed: true if Aladin has a plane to work with
+    private volatile boolean _aladinUsable = false;
+
+    /** Called when Aladin reports that its planes may have changed. Asks it for
+     * its status on the command thread, without waiting, and enables the target
+     * buttons if it has something loaded or lets Aladin be launched again if
+     * not. Reports made while a request is already queued are covered by it.
+     */
+    private void _aladinChanged() {
+	if(!_statusPending.compareAndSet(false, true)) return;
+	_aladinCommands.submit(new AladinExecutor.Task<Void>(){
+		public Void run(AladinApp app) throws Exception {
+		    _statusPending.set(false);
+		    final boolean usable = app != null && !_aladinCommands.status().isEmpty();
+		    _aladinUsable = usable;
+		    SwingUtilities.invokeLater(new Runnable(){
+			    public void run(){
+				addTarg.setEnabled(usable);
+				addComp.setEnabled(usable);
+				aladinGo.setEnabled(!usable);
+			    }
+			});
+		    return null;
+		}
+	    });
+    }
+
+    // Positions of object names resolved before; null until read
+    private volatile TargetResolver _names = null;
+
+    /** Puts a position, J2000 RA and Dec in degrees, in the RA and Dec fields */
+    private void _showPosition(final double[] position) {
+	final String[] raSplit  = FOVMosaic.hms(position[0]).split(":");
+	final String[] decSplit = FOVMosaic.dms(position[1]).split(":");
+	raHourVal.setValue(Integer.parseInt(raSplit[0]));
+	raMinVal.setValue(Integer.parseInt(raSplit[1]));
+	raSecVal.setValue(Double.parseDouble(raSplit[2]));
+	if(decSplit[0].startsWith("+")){
+	    decDegVal.setValue(Integer.parseInt(decSplit[0].substring(1,3)));
+	} else {
+	    decDegVal.setText(decSplit[0]);
+	}
+	decMinVal.setValue(Integer.parseInt(decSplit[1]));
+	decSecVal.setValue(Double.parseDouble(decSplit[2]));
+    }
 
-    	// Instantiate Aladin
+    // Survey images fetched before, or null if not cached or not yet read
+    private volatile SurveyCache _surveyCache = null;
+
+    /** The survey image of a target from the cache, fetched first if it is
+     * not held, or null if Aladin should get it itself: there is no cache, the
+     * survey has no URL or the target is a name rather than a position, or the
+     * fetch failed.
+     */
+    private File _surveyImage(final String survey, final String target) {
+	final String url = SURVEY_URL.get(survey);
+	if(_surveyCache == null || url == null) return null;
+	final double[] position = SurveyCache.parsePosition(target);
+	if(position == null) return null;
+	try{
+	    final File image = _surveyCache.fetch(survey, url, position[0], position[1], SURVEY_FIELD);
+	    if(DEBUG) System.out.println(_surveyCache);
+	    return image;
+	}catch(Exception e){
+	    System.out.println("Could not fetch " + survey + " image, leaving it to Aladin: " + e);
+	    return null;
+	}
+    }
+
+    // The zoom that shows the field of view of the current telescope, or null
+    private String _zoomCommand() {
+    	if(_telescope.name.equalsIgnoreCase("wht") || _telescope.name.equalsIgnoreCase("ntt"))
+	    return "zoom 1x";
+	if(_telescope.name.equalsIgnoreCase("vlt"))
+	    return "zoom 2x";
+	return null;
+    }
+
+    /** Launches Aladin and loads the image, FOV and sources. This runs on the
+     * Aladin command thread and so calls Aladin directly; what needs no
+     * reply is queued to go after it as one script.
+     */
+    public void startAladin() throws Exception {
+
+    	// Instantiate Aladin; its classes are first loaded here
 	System.out.println("Starting Aladin with target " + aladinTarget);
-    	aladin = cds.aladin.Aladin.launch("-noreleasetest");
-    	aladin.execCommand("sync");
+	final StartupTimer timer = new StartupTimer("Aladin");
+	final AladinCallbacks callbacks = new AladinCallbacks();
+    	aladin = callbacks.launch();
+    	_aladinCommands.setApp(aladin);
+    	_backend = callbacks.backend();
+	_setSources(null);
+    	_aladinCommands.call("sync");
+	timer.mark("launch");
     	String aladinSurvey=null;
     	if(surveyString.equals("DSS2-BLUE")) aladinSurvey = "Aladin(DSS2,J)";
     	if(surveyString.equals("DSS2-RED"))  aladinSurvey = "Aladin(DSS2,F)";
     	if(surveyString.equals("DSS1"))      aladinSurvey = "Aladin(DSS1)";
 		if(surveyString.equals("ESO-DSS2"))      aladinSurvey = "ESO(DSS2)";
     	if(surveyString.equals("Aladin"))      aladinSurvey = "Aladin";
-	System.out.println("get "+ aladinSurvey+" " + aladinTarget);
-	String result = aladin.execCommand("get "+aladinSurvey+" " + aladinTarget);
+	// Aladin is given the position of a name, resolved once and then remembered,
+	// rather than resolving it itself every time
+	if(_names != null && SurveyCache.parsePosition(aladinTarget) == null){
+	    try{
+		final double[] position = _names.resolve(aladinTarget);
+		if(position != null){
+		    aladinTarget = TargetResolver.format(position);
+		    SwingUtilities.invokeLater(new Runnable(){
+			    public void run(){
+				_showPosition(position);
+			    }
+			});
+		}
+	    }catch(Exception e){
+		System.out.println("Could not resolve " + aladinTarget + ", leaving it to Aladin: " + e);
+	    }
+	    if(DEBUG) System.out.println(_names);
+	}
+
+	// a field seen before is loaded from the survey cache, which fetches it if not
+	final File cached = _surveyImage(surveyString, aladinTarget);
+	String result;
+	if(cached != null){
+	    System.out.println("load " + cached.getPath());
+	    result = _aladinCommands.call("load " + cached.getPath() + ";sync");
+	}else{
+	    System.out.println("get "+ aladinSurvey+" " + aladinTarget);
+	    result = _aladinCommands.call("get "+aladinSurvey+" " + aladinTarget + ";sync");
+	}
 	System.out.println("RESULT:  \n\n" + result + "\n\n");
-    	aladin.execCommand("sync");
+	timer.mark("image");
 
-    	// now we should check if it has loaded and if not we should exit.
-    	String aladinStatus = aladin.execCommand("status");
-    	final String[] statusarray = aladinStatus.split("\\n");
-    	String Image=null;
-    	boolean ImageLoaded=false;
-    	for(int i=0; i < statusarray.length-3; i++){
-    		//System.out.println(statusarray[i]);
-	    if(statusarray[i].contains("PlaneID") && statusarray[i+2].contains("Image") &&
-	       !statusarray[i+3].contains("error")){
-    			ImageLoaded = true;
-    			Image = statusarray[i].substring(8, statusarray[i].length());
-    		}
-    	}
+    	// load appropriate size field of view for this telescope, all in one call;
+    	// this does no harm if the image failed to load
+    	String view = _zoomCommand() != null ? _zoomCommand() + ";" : "";
+    	if(_telescope.flipped) view += "flipflop H;";
+    	_aladinCommands.call(view + "sync");
 
-    	if( ! ImageLoaded) {
-    		aladin.execCommand("quit");
+    	/** One status tells us whether the image loaded and gives the RA and DEC of
+    	 * our pointing, which is necessary to correctly load the ultracam field of view
+    	 */
+    	final AladinStatus aladinStatus = _aladinCommands.status();
+    	final AladinStatus.Plane image  = aladinStatus.getImage();
+	timer.mark("view");
+
+    	// now we should check if it has loaded and if not we should exit.
+    	if(image == null || aladinStatus.getCentreRA() == null) {
+    		_aladinCommands.call("quit");
     		aladin = null;
-		JOptionPane.showMessageDialog(mw,
-					      "Aladin couldn't load the image you asked for. \nMaybe the survey selected doesn't cover this object?",
-					      "Image load error",
-					      JOptionPane.ERROR_MESSAGE);
+    		_backend = null;
+    		_aladinCommands.setApp(null);
+		SwingUtilities.invokeLater(new Runnable(){
+			public void run(){
+			    JOptionPane.showMessageDialog(mw,
+							  "Aladin couldn't load the image you asked for. \nMaybe the survey selected doesn't cover this object?",
+							  "Image load error",
+							  JOptionPane.ERROR_MESSAGE);
+			}
+		    });
     		return;
     	}
+    	final String Image = image.getId();
+    	final String RA    = aladinStatus.getCentreRA();
+    	final String DEC   = aladinStatus.getCentreDec();
+
+	// the target is where the image was asked for, or failing that its centre
+	final double[] target = SurveyCache.parsePosition(aladinTarget);
+	_targetPosition = target != null ? target :
+	    new double[] {FOVGeometry.parseAngle(RA, 15.), FOVGeometry.parseAngle(DEC, 1.)};
+
+    	// the fields belong to the GUI
+    	SwingUtilities.invokeLater(new Runnable(){
+		public void run(){
+		    String[] raSplit = RA.split(":");
+		    raHourVal.setValue(Integer.parseInt(raSplit[0]));
+		    raMinVal.setValue(Integer.parseInt(raSplit[1]));
+		    raSecVal.setValue(Double.parseDouble(raSplit[2]));
+		    String[] decSplit = DEC.split(":");
+		    if(decSplit[0].startsWith("+")){
+			decDegVal.setValue(Integer.parseInt(decSplit[0].substring(1,3)));
+		    } else {
+			decDegVal.setText(decSplit[0]);
+		    }
+		    decMinVal.setValue(Integer.parseInt(decSplit[1]));
+		    decSecVal.setValue(Double.parseDouble(decSplit[2]));
 
-    	// load appropriate size field of view for this telescope
-    	if(_telescope.name.equalsIgnoreCase("wht")){
-    		aladin.execCommand("zoom 1x");
-    	} else if (_telescope.name.equalsIgnoreCase("ntt")){
-    		aladin.execCommand("zoom 1x");
-    	} else if (_telescope.name.equalsIgnoreCase("vlt")){
-    		aladin.execCommand("zoom 2x");
-    	}
-    	if(_telescope.flipped) aladin.execCommand("flipflop H");
-    	aladin.execCommand("sync");
+		    // load FOV; this is a new Aladin so it must be sent
+		    _fovSent = false;
+		    FOVSync();
+		    _aladinCommands.sync();
+		}
+	    });
 
-    	/** We get the RA and DEC of our pointing from the Aladin status command. This is necessary to
-    	 * correctly load the ultracam field of view
-    	 */
-    	aladinStatus = aladin.execCommand("status");
-    	int start = aladinStatus.indexOf("Centre");
-    	start+=8;
-    	int stop = start+11;
-    	final String RA = aladinStatus.substring(start, stop);
-    	start=stop+1;
-    	stop = start+11;
-    	final String DEC = aladinStatus.substring(start, stop);
-    	String[] raSplit = RA.split(":");
-    	raHourVal.setValue(Integer.parseInt(raSplit[0]));
-    	raMinVal.setValue(Integer.parseInt(raSplit[1]));
-    	raSecVal.setValue(Double.parseDouble(raSplit[2]));
-    	String[] decSplit = DEC.split(":");
-    	if(decSplit[0].startsWith("+")){
-    		decDegVal.setValue(Integer.parseInt(decSplit[0].substring(1,3)));
-    	} else {
-    		decDegVal.setText(decSplit[0]);
+    	// detect sources in Image and draw magnitude circles; they are found
+    	// here, on every processor, from the cached file or one Aladin writes,
+    	// and only if that fails by Aladin's Sextractor
+	System.out.println(Image);
+	_setSources(_findSources(Image, cached));
+	if(_sources == null){
+	    //aladin.execCommand("get Sextractor("+Image+",2.,24.,50000,1.2)");
+	    _aladinCommands.send("get Sextractor(Image)");
+	    _aladinCommands.sync();
+	    // rename the catalog to have an easy name
+	    _aladinCommands.send("set S-ex* PlaneID=SexCat");
+	    _aladinCommands.sync();
+	    _aladinCommands.send("set SexCat Color=rgb(0,254,153)");
+	    _aladinCommands.sync();
+	    _aladinCommands.send("filter SMag {draw circle(-$[phot.mag*])}");
+	    _aladinCommands.sync();
+	    _aladinCommands.send("filter SMag on");
+	    _aladinCommands.sync();
+	}
+
+    	// switch off annoying reticle
+    	_aladinCommands.send("reticle off");
+    	_aladinCommands.sync();
+
+    	// from now on Aladin tells us when the cursor moves or the planes
+    	// change; the latter arrive as "info stackEvent" via execCommand
+    	callbacks.observe();
+	final Window frame = callbacks.frame();
+	if(frame != null){
+	    frame.addWindowListener(new WindowAdapter(){
+		    public void windowClosed(WindowEvent e){
+			_aladinChanged();
+		    }
+		    public void windowClosing(WindowEvent e){
+			_aladinChanged();
+		    }
+		});
     	}
-    	decMinVal.setValue(Integer.parseInt(decSplit[1]));
-    	decSecVal.setValue(Double.parseDouble(decSplit[2]));
+    	_aladinChanged();
+	timer.mark("sources");
+	System.out.println(timer);
+    }
 
-    	// load FOV
-    	FOVSync();
-    	aladin.execCommand("sync");
+    // Sources found on the image shown, or null if there are none yet or
+    // Aladin's Sextractor found them
+    private volatile SourceCatalog _sources = null;
 
-    	// run Sextractor to detect sources in Image and draw magnitude cirlces
-    	// first run status to find the active image
-	System.out.println(Image);
-    	//aladin.execCommand("get Sextractor("+Image+",2.,24.,50000,1.2)");
-    	aladin.execCommand("get Sextractor(Image)");
-    	aladin.execCommand("sync");
-    	// rename the catalog to have an easy name
-    	aladin.execCommand("set S-ex* PlaneID=SexCat");
-    	aladin.execCommand("sync");
-    	aladin.execCommand("set SexCat Color=rgb(0,254,153)");
-    	aladin.execCommand("sync");
-    	aladin.execCommand("filter SMag {draw circle(-$[phot.mag*])}");
-    	aladin.execCommand("sync");
-    	aladin.execCommand("filter SMag on");
-    	aladin.execCommand("sync");
+    // RA and Dec of the target, degrees, or null
+    private volatile double[] _targetPosition = null;
 
-    	// switch off annoying reticle
-    	aladin.execCommand("reticle off");
-    	aladin.execCommand("sync");
+    // Sets the sources, which "Auto Comp" needs, from any thread
+    private void _setSources(final SourceCatalog catalog) {
+	_sources = catalog;
+	SwingUtilities.invokeLater(new Runnable(){
+		public void run(){
+		    autoComp.setEnabled(_sources != null && _sources.hasPositions());
+		}
+	    });
+    }
 
-    	//aladin.addObserver(mw,1);
+    /** Finds the sources on an Aladin image and shows them, returning them, or
+     * null if that could not be done or they have no RA and Dec. Runs on the
+     * Aladin command thread.
+     * @param plane the image plane
+     * @param file  the file it was loaded from, or null to have Aladin export it
+     */
+    private SourceCatalog _findSources(String plane, File file) {
+	try{
+	    if(file == null){
+		file = File.createTempFile("ufinder", ".fits");
+		file.deleteOnExit();
+		_aladinCommands.call("export " + plane + " " + file.getPath());
+	    }
+	    final SourceCatalog catalog = new SourceExtractor().extract(new FitsImage(file));
+	    if(DEBUG) System.out.println(catalog);
+	    // without positions they cannot be shown or ranked, which Sextractor's can
+	    if(!catalog.hasPositions()){
+		System.out.println("The image has no astrometry, leaving the sources to Aladin's Sextractor");
+		return null;
+	    }
+	    _backend.sources(catalog);
+	    return catalog;
+	}catch(Exception e){
+	    System.out.println("Could not find sources, leaving it to Aladin's Sextractor: " + e);
+	    return null;
+	}
     }
 
-    public boolean setTarget(){
-    	aladin.execCommand("createplane");
-    	// we have to check that this was succesfull, otherwise delete the spurious catalog
-    	String messg = aladin.execCommand("status");
-    	if (messg.contains("NbObj   0")){
-    		aladin.execCommand("rm New.cat");
-    		return false;
-    	}
-    	aladin.execCommand("set New.cat Color=red");
-    	aladin.execCommand("set New.cat PlaneID=Target");
-    	aladin.execCommand("rm SMag");
-    	aladin.execCommand("filter SMag {draw circle(-$[phot.mag*])}");
-	aladin.execCommand("sync");
-	aladin.execCommand("filter SMag on");
-    	return true;
+    /** Makes the selected source the target, on the Aladin command thread.
+     * The "Sel Targ" button is disabled once it has worked.
+     * @return true, from the Future, if a source was selected
+     */
+    public Future<Boolean> setTarget(){
+	return _aladinCommands.submit(new AladinExecutor.Task<Boolean>(){
+		public Boolean run(AladinApp aladin) throws Exception {
+		    if(aladin == null) return false;
+		    _aladinCommands.call("createplane");
+		    // we have to check that this was succesfull, otherwise delete the spurious catalog
+		    final AladinStatus.Plane created = _aladinCommands.status().getPlane("New.cat");
+		    if(created == null) return false;
+		    if(created.getCount() == 0){
+			_aladinCommands.call("rm New.cat");
+			return false;
+		    }
+		    _aladinCommands.send("set New.cat Color=red");
+		    _aladinCommands.send("set New.cat PlaneID=Target");
+		    _aladinCommands.send("rm SMag");
+		    _aladinCommands.send("filter SMag {draw circle(-$[phot.mag*])}");
+		    _aladinCommands.sync();
+		    _aladinCommands.send("filter SMag on");
+		    SwingUtilities.invokeLater(new Runnable(){
+			    public void run(){
+				addTarg.setEnabled(false);
+			    }
+			});
+		    return true;
+		}
+	    });
     }
 
-    public boolean addComparison(){
-    	aladin.execCommand("createplane");
-    	// we have to check that this was succesfull, otherwise delete the spurious catalog
-    	String messg = aladin.execCommand("status");
-    	if (messg.contains("NbObj   0")){
-    		aladin.execCommand("rm New.cat");
-    		return false;
-    	}
-    	aladin.execCommand("set New.cat PlaneID=tmp");
-    	aladin.execCommand("select tmp Comp");
-    	aladin.execCommand("createplane");
-    	aladin.execCommand("rm Comp");
-    	aladin.execCommand("rm tmp");
-    	aladin.execCommand("set New.cat Color=blue");
-    	aladin.execCommand("set New.cat PlaneID=Comp");
-    	aladin.execCommand("rm SMag");
-    	aladin.execCommand("filter SMag {draw circle(-$[phot.mag*])}");
-	aladin.execCommand("sync");
-    	aladin.execCommand("filter SMag on");
-    	return true;
+    /** Adds the selected source to the comparison stars, on the Aladin command thread
+     * @return true, from the Future, if a source was selected
+     */
+    public Future<Boolean> addComparison(){
+	return _aladinCommands.submit(new AladinExecutor.Task<Boolean>(){
+		public Boolean run(AladinApp aladin) throws Exception {
+		    if(aladin == null) return false;
+		    _aladinCommands.call("createplane");
+		    // we have to check that this was succesfull, otherwise delete the spurious catalog
+		    final AladinStatus.Plane created = _aladinCommands.status().getPlane("New.cat");
+		    if(created == null) return false;
+		    if(created.getCount() == 0){
+			_aladinCommands.call("rm New.cat");
+			return false;
+		    }
+		    _aladinCommands.send("set New.cat PlaneID=tmp");
+		    _aladinCommands.send("select tmp Comp");
+		    _aladinCommands.send("createplane");
+		    _aladinCommands.send("rm Comp");
+		    _aladinCommands.send("rm tmp");
+		    _aladinCommands.send("set New.cat Color=blue");
+		    _aladinCommands.send("set New.cat PlaneID=Comp");
+		    _aladinCommands.send("rm SMag");
+		    _aladinCommands.send("filter SMag {draw circle(-$[phot.mag*])}");
+		    _aladinCommands.sync();
+		    _aladinCommands.send("filter SMag on");
+		    return true;
+		}
+	    });
     }
 
+    /** Ranks the sources found on the image as comparison stars for the
+     * target, given the pointing, PA and the size of the first window pair,
+     * and marks the best AUTO_COMPARISONS of them C1, C2 ...
+     */
+    public void autoComparison(){
+	final SourceCatalog sources = _sources;
+	final double[] target = _targetPosition;
+	final ImageBackend backend = _backend;
+	if(sources == null || target == null || backend == null) return;
+	try{
+	    FOVSync();
+	    final int nx = numEnable > 0 ? _windowPairs.getNx(0) : 512;
+	    final int ny = numEnable > 0 ? _windowPairs.getNy(0) : 1024;
+	    final ComparisonRanker ranker = new ComparisonRanker(sources, target[0], target[1]);
+	    final List<ComparisonRanker.Candidate> best = ranker.rank(FOV, nx, ny, AUTO_COMPARISONS);
+	    if(DEBUG) System.out.println(ranker);
+	    if(best.isEmpty())
+		throw new Exception("No source found on the image fits in a " + nx + " x " + ny + " window pair with the target");
+	    backend.clearMarks();
+	    for(int i=0; i<best.size(); i++){
+		final ComparisonRanker.Candidate c = best.get(i);
+		final int k = c.getSource();
+		backend.mark(sources.getRA(k), sources.getDec(k), ImageBackend.COMPARISON, "C" + (i+1));
+		System.out.println("C" + (i+1) + " " + FOVMosaic.hms(sources.getRA(k)) + " " + FOVMosaic.dms(sources.getDec(k)) +
+				   String.format(Locale.US, " x, y = %.0f, %.0f, %.0f arcsec from the target, magnitude %+.2f, isolation %.2f, score %.2f",
+						 c.getX(), c.getY(), c.getSeparation(),
+						 ranker.getTarget() < 0 ? Double.NaN : sources.getMag(k) - sources.getMag(ranker.getTarget()),
+						 c.getIsolation(), c.getScore()));
+	    }
+	}catch(Exception e){
+	    JOptionPane.showMessageDialog(this, e.getMessage(), "No comparison stars", JOptionPane.WARNING_MESSAGE);
+	}
+    }
+
+    /** Saves the Aladin view, annotated with the setup, once Aladin has
+     * written it; the GUI does not wait meanwhile.
+     */
     public void publishChart(){
 
 	String tempdir = System.getProperty("java.io.tmpdir");
 	if ( !(tempdir.endsWith("/") || tempdir.endsWith("\\")) )
 	    tempdir = tempdir + System.getProperty("file.separator");
+	final File file = new File(tempdir+"tmp.bmp");
+
+	final ImageBackend backend = _backend;
+	if(backend instanceof FitsBackend){
+	    try{
+		backend.save(file);
+	    }catch(Exception e){
+		JOptionPane.showMessageDialog(this, e.toString(), "Could not save the chart", JOptionPane.ERROR_MESSAGE);
+		return;
+	    }
+	    _publishChart(file);
+	    return;
+	}
+	if(aladin == null){
+	    _publishChart(file);
+	    return;
+	}
+	_aladinCommands.send("hide SexCat");
+	_aladinCommands.send("save "+file.getPath());
+	_aladinCommands.send("show SexCat");
+	_aladinCommands.submit(new AladinExecutor.Task<Void>(){
+		public Void run(AladinApp app){
+		    SwingUtilities.invokeLater(new Runnable(){
+			    public void run(){
+				_publishChart(file);
+			    }
+			});
+		    return null;
+		}
+	    });
+    }
 
-	if(aladin != null) aladin.execCommand("hide SexCat");
-	if(aladin != null) aladin.execCommand("save "+tempdir+"tmp.bmp");
-	if(aladin != null) aladin.execCommand("show SexCat");
+    /** Shows a local FITS image in place of Aladin's, with the FOV drawn on
+     * it; charts are then published from it.
+     */
+    public void openFits(){
+	final JFileChooser chooser = new JFileChooser();
+	chooser.setFileFilter(new FileNameExtensionFilter("FITS images", "fits", "fit", "fts", "gz"));
+	if(chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+	final File file = chooser.getSelectedFile();
+
+	// mapping, unpacking and stretching a large image takes a while, so it
+	// is done off the GUI thread, which shows it once loaded
+	new Thread(new Runnable(){
+		public void run(){
+		    final FitsBackend fits = new FitsBackend();
+		    try{
+			fits.load(file);
+		    }catch(final Exception e){
+			SwingUtilities.invokeLater(new Runnable(){
+				public void run(){
+				    JOptionPane.showMessageDialog(ufinder.this, e.getMessage(), "Image load error", JOptionPane.ERROR_MESSAGE);
+				}
+			    });
+			return;
+		    }
+		    SwingUtilities.invokeLater(new Runnable(){
+			    public void run(){
+				_showFits(file, fits);
+			    }
+			});
+		}
+	    }, "ufinder FITS").start();
+    }
 
-	File file = new File(tempdir+"tmp.bmp");
+    // Shows a loaded FITS image, draws on it from now on and finds its sources
+    private void _showFits(final File file, final FitsBackend fits){
+	final JFrame frame = new JFrame(file.getName());
+	frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+	frame.add(new JScrollPane(fits.getView()));
+	frame.pack();
+	frame.setVisible(true);
+
+	_backend = fits;
+	_setSources(null);
+	try{
+	    _targetPosition = fits.getReference();
+	}catch(Exception e){
+	    _targetPosition = null;
+	}
+	_fovSent = false;
+	FOVSync();
+
+	// the sources are circled when found
+	new Thread(new Runnable(){
+		public void run(){
+		    try{
+			final SourceCatalog catalog = new SourceExtractor().extract(fits.getFitsImage());
+			fits.sources(catalog);
+			if(_backend == fits) _setSources(catalog);
+			if(DEBUG) System.out.println(catalog);
+		    }catch(Exception e){
+			System.out.println("Could not find sources on " + file + ": " + e);
+		    }
+		}
+	    }, "ufinder sources").start();
+    }
+
+    // Annotates the saved view and offers to save it
+    private void _publishChart(File file){
 	// load image
 	BufferedImage img = null;
 	try {
@@ -725,62 +1113,120 @@ public class ufinder extends JFrame implements VOApp,
 	file.delete();
     }
 
-    // You own implementation of VOApp methods for Aladin callbacks
-    public void position(double ra, double dec){}
-    public String putVOTable(final VOApp app, final InputStream in,final String label) { return null; }
-    public String putVOTable(final InputStream in,final String label) { return null; }
-    public InputStream getVOTable(final String dataID) { return null; }
-    public String putFITS(final InputStream in,final String label) { return null; }
-    public InputStream getFITS(final String dataID) { return null; }
-    public void showVOTableObject(final String oid[]) {
-    	System.out.print("I have to show:");
-    	for( int i=0; i<oid.length; i++ ) System.out.print(" "+oid[i]);
-    	System.out.println();
-    }
-    public void selectVOTableObject(final String oid[]) {
-    	System.out.print("I have to select:");
-    	for( int i=0; i<oid.length; i++ ) System.out.print(" "+oid[i]);
-    	System.out.println();
-    }
-    public String execCommand(final String cmd) {
-
-	displayArea.append(cmd + "\n");
-
-    	// TO-DO: take cmd and parse it to get ra and dec numbers and roll value.
-    	Pattern pattern= Pattern.compile("Target=.*");
-    	Matcher matcher = pattern.matcher(cmd);
-    	if(matcher.find()){
-			// get ra and dec
-			String DEC = matcher.group().substring(21, 35);
-			String RA = matcher.group().substring(7, 20);
-			String[] raSplit = RA.split(":");
-			raHourVal.setValue(Integer.parseInt(raSplit[0]));
-			raMinVal.setValue(Integer.parseInt(raSplit[1]));
-			raSecVal.setValue(Double.parseDouble(raSplit[2]));
-			String[] decSplit = DEC.split(":");
-			displayArea.append(decSplit[0] + "\n");
-			if(decSplit[0].startsWith("+")){
-				decDegVal.setValue(Integer.parseInt(decSplit[0].substring(1,3)));
-			} else {
-				displayArea.append("negative dec " + decSplit[0] + "\n\n");
-				decDegVal.setText(decSplit[0]);
-			}
-			decMinVal.setValue(Integer.parseInt(decSplit[1]));
-			decSecVal.setValue(Double.parseDouble(decSplit[2]));
-    	}
-    	pattern=Pattern.compile("Roll=.*");
-    	matcher = pattern.matcher(cmd);
-    	if(matcher.find()){
-			// get roll
-    		final String toSearch = matcher.group();
-    		pattern=Pattern.compile("\\d+");
-    		matcher=pattern.matcher(toSearch);
-    		if(matcher.find())
-				paDegVal.setValue(Double.parseDouble(matcher.group()));
-    	}
-    	return null;
+    /** What Aladin calls back: stack changes and cursor moves. A class of its
+     * own, which alone hands Aladin's types about, so that Aladin's classes are
+     * only loaded when it is launched.
+     */
+    private final class AladinCallbacks implements VOApp, VOObserver {
+
+	private VOApp app = null;
+
+	/** Launches Aladin; what ufinder asks of it goes through what is
+	 * returned, with this as the sender of VOTables
+	 */
+	AladinApp launch() {
+	    app = cds.aladin.Aladin.launch("-noreleasetest");
+	    return new AladinApp(){
+		public String execCommand(String command){
+		    return app.execCommand(command);
+		}
+		public String putVOTable(InputStream in, String label){
+		    return app.putVOTable(AladinCallbacks.this, in, label);
+		}
+	    };
+	}
+
+	/** Has Aladin report cursor moves and stack changes here */
+	void observe() {
+	    app.addObserver(this, VOApp.POSITION | VOApp.STACKEVENT);
+	}
+
+	/** The window Aladin shows itself in, or null */
+	Window frame() {
+	    return app instanceof Component ? SwingUtilities.getWindowAncestor((Component)app) : null;
+	}
+
+	/** The backend that draws through Aladin */
+	ImageBackend backend() {
+	    return new AladinBackend(_aladinCommands);
+	}
+
+	/** VOObserver: the cursor is over ra, dec in Aladin, which can only be
+	 * if it shows an image, so the buttons are brought up to date if they
+	 * say otherwise. Cheap, as it is called for every move of the mouse.
+	 */
+	public void position(double ra, double dec){
+	    // only the cursor has moved; changes to the planes come as stack events
+	    if(!_aladinUsable) _aladinChanged();
 	}
-    public void addObserver(final VOObserver app,final int eventMasq) {}
+
+	/** VOObserver: pixel value under the cursor; not used */
+	public void pixel(double pixValue){}
+	public String putVOTable(final VOApp app, final InputStream in,final String label) { return null; }
+	public String putVOTable(final InputStream in,final String label) { return null; }
+	public InputStream getVOTable(final String dataID) { return null; }
+	public String putFITS(final InputStream in,final String label) { return null; }
+	public InputStream getFITS(final String dataID) { return null; }
+	public void showVOTableObject(final String oid[]) {
+	    System.out.print("I have to show:");
+	    for( int i=0; i<oid.length; i++ ) System.out.print(" "+oid[i]);
+	    System.out.println();
+	}
+	public void selectVOTableObject(final String oid[]) {
+	    System.out.print("I have to select:");
+	    for( int i=0; i<oid.length; i++ ) System.out.print(" "+oid[i]);
+	    System.out.println();
+	}
+	public String execCommand(final String cmd) {
+
+	    // sent by Aladin to its observers whenever its stack of planes changes
+	    if(cmd.startsWith("info stackEvent")){
+		_aladinCommands.invalidate();
+		_aladinChanged();
+		return null;
+	    }
+
+	    displayArea.append(cmd + "\n");
+
+	    // TO-DO: take cmd and parse it to get ra and dec numbers and roll value.
+	    Pattern pattern= Pattern.compile("Target=.*");
+	    Matcher matcher = pattern.matcher(cmd);
+	    if(matcher.find()){
+			    // get ra and dec
+			    String DEC = matcher.group().substring(21, 35);
+			    String RA = matcher.group().substring(7, 20);
+			    String[] raSplit = RA.split(":");
+			    raHourVal.setValue(Integer.parseInt(raSplit[0]));
+			    raMinVal.setValue(Integer.parseInt(raSplit[1]));
+			    raSecVal.setValue(Double.parseDouble(raSplit[2]));
+			    String[] decSplit = DEC.split(":");
+			    displayArea.append(decSplit[0] + "\n");
+			    if(decSplit[0].startsWith("+")){
+				    decDegVal.setValue(Integer.parseInt(decSplit[0].substring(1,3)));
+			    } else {
+				    displayArea.append("negative dec " + decSplit[0] + "\n\n");
+				    decDegVal.setText(decSplit[0]);
+			    }
+			    decMinVal.setValue(Integer.parseInt(decSplit[1]));
+			    decSecVal.setValue(Double.parseDouble(decSplit[2]));
+	    }
+	    pattern=Pattern.compile("Roll=.*");
+	    matcher = pattern.matcher(cmd);
+	    if(matcher.find()){
+			    // get roll
+		    final String toSearch = matcher.group();
+		    pattern=Pattern.compile("\\d+");
+		    matcher=pattern.matcher(toSearch);
+		    if(matcher.find())
+				    paDegVal.setValue(Double.parseDouble(matcher.group()));
+	    }
+	    return null;
+	    }
+	public void addObserver(final VOObserver app,final int eventMasq) {}
+	public void setVisible(boolean visible) {
+	    ufinder.this.setVisible(visible);
+	}
+    }
 
     // Method for adding components to GridBagLayout for the window panel
     private static void addComponent (final Container cont, final Component comp, final int gridx, final int gridy,
@@ -825,15 +1271,11 @@ public class ufinder extends JFrame implements VOApp,
 							      }
 							      if (aladin != null){
 								  if(_old_telescope.flipped != _telescope.flipped)
-								      aladin.execCommand("flipflop H");
-								  if(_telescope.name.equalsIgnoreCase("wht")){
-								      aladin.execCommand("zoom 1x");
-								  } else if (_telescope.name.equalsIgnoreCase("ntt")){
-								      aladin.execCommand("zoom 1x");
-								  } else if (_telescope.name.equalsIgnoreCase("vlt")){
-								      aladin.execCommand("zoom 2x");
-								  }}
-							      FOVSync();
+								      _aladinCommands.send("flipflop H");
+								  if(_zoomCommand() != null)
+								      _aladinCommands.send(_zoomCommand());
+							      }
+							      _changes.mark(RecomputeScheduler.TIMING | RecomputeScheduler.FOV);
 							  }});
 	    telescopeGroup.add(telescopeButtons[ntel]);
 	    telPanel.add(telescopeButtons[ntel]);
@@ -861,6 +1303,9 @@ public class ufinder extends JFrame implements VOApp,
     				public void actionPerformed(final ActionEvent e){
     				if(objText.getText().length() > 0) {
     					aladinGo.setEnabled(true);
+    					// a name resolved before shows its position at once
+    					final double[] position = _names == null ? null : _names.lookup(objText.getText());
+    					if(position != null) _showPosition(position);
     				}else{
     					aladinGo.setEnabled(false);
     				}
@@ -917,14 +1362,12 @@ public class ufinder extends JFrame implements VOApp,
 					       aladinTarget = coordText.getText();
 					       aladinGo.setEnabled(false);
 
-					       Thread t = new Thread(new aladinInstance());
-					       t.start();
+					       _aladinCommands.submit(new aladinInstance());
 					   }else if(objText.getText().length() > 0){
 					       aladinTarget = objText.getText();
 					       aladinGo.setEnabled(false);
 
-					       Thread t = new Thread(new aladinInstance());
-					       t.start();
+					       _aladinCommands.submit(new aladinInstance());
 					   }
 				       }
 				   }
@@ -947,6 +1390,16 @@ public class ufinder extends JFrame implements VOApp,
     	decSecVal.addActionListener(this);
       	paDegVal.addActionListener(this);
 
+	// Edits without <enter> move the FOV once typing stops
+	final DocumentListener fovChange = _changes.documentListener(RecomputeScheduler.FOV);
+	raHourVal.getDocument().addDocumentListener(fovChange);
+	raMinVal.getDocument().addDocumentListener(fovChange);
+	raSecVal.getDocument().addDocumentListener(fovChange);
+	decDegVal.getDocument().addDocumentListener(fovChange);
+	decMinVal.getDocument().addDocumentListener(fovChange);
+	decSecVal.getDocument().addDocumentListener(fovChange);
+	paDegVal.getDocument().addDocumentListener(fovChange);
+
     	ra.add(raHourVal);
     	ra.add(new JLabel(" : "));
     	ra.add(raMinVal);
@@ -979,7 +1432,7 @@ public class ufinder extends JFrame implements VOApp,
     	addTarg.addActionListener(
 			new ActionListener(){
 				public void actionPerformed(final ActionEvent e) {
-						if (setTarget()) addTarg.setEnabled(false);
+						setTarget();
 				}
 			}
     	);
@@ -995,6 +1448,17 @@ public class ufinder extends JFrame implements VOApp,
     	);
     	addComponent( _objPanel, addComp, 1, ypos++, 9, 1, GridBagConstraints.NONE, GridBagConstraints.WEST);
 
+    	autoComp.setEnabled(false);
+    	autoComp.setToolTipText("Mark the best comparison stars for the target amongst the sources found on the image");
+    	autoComp.addActionListener(
+			new ActionListener(){
+				public void actionPerformed(final ActionEvent e) {
+						autoComparison();
+				}
+			}
+    	);
+    	addComponent( _objPanel, autoComp, 1, ypos++, 9, 1, GridBagConstraints.NONE, GridBagConstraints.WEST);
+
 
     	_objPanel.setBorder(new EmptyBorder(15,15,15,15));
     	return _objPanel;
@@ -1032,7 +1496,7 @@ public class ufinder extends JFrame implements VOApp,
 					}else{
 						_setWinLabels(true);
 					}
-					FOVSync();
+					_changes.mark(RecomputeScheduler.ALL);
 					oldApplicationTemplate = applicationTemplate;
 				}
 			}
@@ -1047,6 +1511,7 @@ public class ufinder extends JFrame implements VOApp,
 
 	speedChoice = new JComboBox(SPEED_LABELS);
 	speedChoice.setSelectedItem(readSpeed);
+	speedChoice.addActionListener(_changes.actionListener(RecomputeScheduler.TIMING));
 	addComponent( _windowPanel, speedChoice, 1, ypos++,  5, 1, GridBagConstraints.NONE, GridBagConstraints.WEST);
 
 	// Exposure time
@@ -1071,6 +1536,11 @@ public class ufinder extends JFrame implements VOApp,
 		}
 	    });
 
+	exposeText.getDocument().addDocumentListener(_changes.documentListener(RecomputeScheduler.TIMING));
+	tinyExposeText.getDocument().addDocumentListener(_changes.documentListener(RecomputeScheduler.TIMING));
+	xbinText.getDocument().addDocumentListener(_changes.documentListener(RecomputeScheduler.TIMING | RecomputeScheduler.SYNC));
+	ybinText.getDocument().addDocumentListener(_changes.documentListener(RecomputeScheduler.TIMING | RecomputeScheduler.SYNC));
+
 	final JPanel exp = new JPanel(new FlowLayout(FlowLayout.LEFT, 0, 0));
 	exp.add(exposeText);
 	addComponent( _windowPanel, exp, 1, ypos++,  5, 1, GridBagConstraints.NONE, GridBagConstraints.WEST);
@@ -1122,9 +1592,11 @@ public class ufinder extends JFrame implements VOApp,
 	// Then the row labels and fields for integer input
 	_windowPairs = new WindowPairs(gbLayout, _windowPanel, ypos, xbin, ybin, DEFAULT_COLOUR, ERROR_COLOUR);
 	_windowPairs.setNpair(numEnable);
+	_windowPairs.addDocumentListener(_changes.documentListener(RecomputeScheduler.ALL));
 	_windowPairs.addActionListener(new ActionListener(){
 		public void actionPerformed(final ActionEvent e) {
-			FOVSync();
+			_changes.mark(RecomputeScheduler.FOV);
+			_changes.flush();
 		}
 	});
 	ypos += 3;
@@ -1204,24 +1676,24 @@ public class ufinder extends JFrame implements VOApp,
 
 	// Create radio buttons for the filters
 	final JRadioButton uButton = new JRadioButton("u'     ");
-	uButton.addActionListener(new ActionListener(){public void actionPerformed(final ActionEvent e){_filterIndex = 0;}});
+	uButton.addActionListener(new ActionListener(){public void actionPerformed(final ActionEvent e){_filterIndex = 0; _changes.mark(RecomputeScheduler.TIMING);}});
 	addComponent( _targetPanel, uButton,     1, ypos,  1, 1, GridBagConstraints.NONE, GridBagConstraints.WEST);
 
 	final JRadioButton gButton = new JRadioButton("g'     ");
 	gButton.setSelected(true);
-	gButton.addActionListener(new ActionListener(){public void actionPerformed(final ActionEvent e){_filterIndex = 1;}});
+	gButton.addActionListener(new ActionListener(){public void actionPerformed(final ActionEvent e){_filterIndex = 1; _changes.mark(RecomputeScheduler.TIMING);}});
 	addComponent( _targetPanel, gButton,     2, ypos,  1, 1, GridBagConstraints.NONE, GridBagConstraints.WEST);
 
 	final JRadioButton rButton = new JRadioButton("r'     ");
-	rButton.addActionListener(new ActionListener(){public void actionPerformed(final ActionEvent e){_filterIndex = 2;}});
+	rButton.addActionListener(new ActionListener(){public void actionPerformed(final ActionEvent e){_filterIndex = 2; _changes.mark(RecomputeScheduler.TIMING);}});
 	addComponent( _targetPanel, rButton,     3, ypos,  1, 1, GridBagConstraints.NONE, GridBagConstraints.WEST);
 
 	final JRadioButton iButton = new JRadioButton("i'     ");
-	iButton.addActionListener(new ActionListener(){public void actionPerformed(final ActionEvent e){_filterIndex = 3;}});
+	iButton.addActionListener(new ActionListener(){public void actionPerformed(final ActionEvent e){_filterIndex = 3; _changes.mark(RecomputeScheduler.TIMING);}});
 	addComponent( _targetPanel, iButton,     4, ypos,  1, 1, GridBagConstraints.NONE, GridBagConstraints.WEST);
 
 	final JRadioButton zButton = new JRadioButton("z'");
-	zButton.addActionListener(new ActionListener(){public void actionPerformed(final ActionEvent e){_filterIndex = 4;}});
+	zButton.addActionListener(new ActionListener(){public void actionPerformed(final ActionEvent e){_filterIndex = 4; _changes.mark(RecomputeScheduler.TIMING);}});
 	addComponent( _targetPanel, zButton,     5, ypos++,  1, 1, GridBagConstraints.NONE, GridBagConstraints.WEST);
 
 	// Group the radio buttons.
@@ -1247,16 +1719,16 @@ public class ufinder extends JFrame implements VOApp,
 
 	// Create radio buttons for the sky brightness
 	final JRadioButton darkButton = new JRadioButton("dark");
-	darkButton.addActionListener(new ActionListener(){public void actionPerformed(final ActionEvent e){_skyBrightIndex = 0;}});
+	darkButton.addActionListener(new ActionListener(){public void actionPerformed(final ActionEvent e){_skyBrightIndex = 0; _changes.mark(RecomputeScheduler.TIMING);}});
 	addComponent( _targetPanel, darkButton,     1, ypos,  1, 1, GridBagConstraints.NONE, GridBagConstraints.WEST);
 
 	final JRadioButton greyButton = new JRadioButton("grey");
 	greyButton.setSelected(true);
-	greyButton.addActionListener(new ActionListener(){public void actionPerformed(final ActionEvent e){_skyBrightIndex = 1;}});
+	greyButton.addActionListener(new ActionListener(){public void actionPerformed(final ActionEvent e){_skyBrightIndex = 1; _changes.mark(RecomputeScheduler.TIMING);}});
 	addComponent( _targetPanel, greyButton,     2, ypos,  1, 1, GridBagConstraints.NONE, GridBagConstraints.WEST);
 
 	final JRadioButton brightButton = new JRadioButton("bright");
-	brightButton.addActionListener(new ActionListener(){public void actionPerformed(final ActionEvent e){_skyBrightIndex = 2;}});
+	brightButton.addActionListener(new ActionListener(){public void actionPerformed(final ActionEvent e){_skyBrightIndex = 2; _changes.mark(RecomputeScheduler.TIMING);}});
 	addComponent( _targetPanel, brightButton,     3, ypos++,  1, 1, GridBagConstraints.NONE, GridBagConstraints.WEST);
 
 	// Group the radio buttons.
@@ -1269,6 +1741,11 @@ public class ufinder extends JFrame implements VOApp,
 	addComponent( _targetPanel, airmassLabel,     0, ypos,  1, 1, GridBagConstraints.NONE, GridBagConstraints.WEST);
 	addComponent( _targetPanel, _airmassText,     1, ypos++,  5, 1, GridBagConstraints.NONE, GridBagConstraints.WEST);
 
+	final DocumentListener targetChange = _changes.documentListener(RecomputeScheduler.TIMING);
+	_magnitudeText.getDocument().addDocumentListener(targetChange);
+	_seeingText.getDocument().addDocumentListener(targetChange);
+	_airmassText.getDocument().addDocumentListener(targetChange);
+
 	_targetPanel.setBorder(new EmptyBorder(15,15,15,15));
 	return _targetPanel;
     }
@@ -1315,8 +1792,26 @@ public class ufinder extends JFrame implements VOApp,
 				 });
 
 
+	// Finding charts from a local FITS file, without Aladin
+	final JMenuItem _openFits = new JMenuItem("Open FITS...");
+	_openFits.addActionListener(new ActionListener(){
+		public void actionPerformed(final ActionEvent e){
+		    openFits();
+		}
+	    });
+
+	// Inverse exposure solver
+	final JMenuItem _solve = new JMenuItem("Solve exposure...");
+	_solve.addActionListener(new ActionListener(){
+		public void actionPerformed(final ActionEvent e){
+		    solveExposure();
+		}
+	    });
+
+	fileMenu.add(_openFits);
 	fileMenu.add(_publish);
 	fileMenu.add(_tweak);
+	fileMenu.add(_solve);
 	fileMenu.add(_quit);
 
 	return fileMenu;
@@ -1339,12 +1834,18 @@ public class ufinder extends JFrame implements VOApp,
 
 
 
+    // Results for recently seen setups, shared by everything that calls speed()
+    public static final TimingCache TIMING_CACHE = new TimingCache();
+
     /** This routine implements's Vik's speed computations and reports
      *	the frame rate in Hertz, the cycle time (e.g. sampling time),
      * exposure time (time on source per cycle), the dead time and readout
      * time, all in seconds. Finally it also reports the duty cycle, and
      * in the case of drift mode, the number of windows in the storage area
      * along with the pipe shift in pixels.
+     *
+     * The computations themselves are done by TimingEngine; this method
+     * gathers the configuration from the GUI and displays the results.
      */
 
     public double speed(final int method) {
@@ -1355,236 +1856,38 @@ public class ufinder extends JFrame implements VOApp,
 
 		// Set the readout speed
 		readSpeed = (String) speedChoice.getSelectedItem();
-		double cdsTime, clearTime, frameTransfer, readout, video;
-		double cycleTime, frameRate, exposureTime, deadTime;
-		int nwins = 0, pshift = 0;
-
-		if(readSpeed.equals("Fast")){
-		    cdsTime = CDS_TIME_FBB;
-		}else if(readSpeed.equals("Turbo")){
-		    cdsTime = CDS_TIME_FDD;
-		}else if(readSpeed.equals("Slow")){
-		    cdsTime = CDS_TIME_CDD;
-		}else{
-		    throw new Error("readSpeed = \"" + readSpeed + "\" is unrecognised. Programming error");
-		}
-		video = cdsTime + SWITCH_TIME;
-
-		if(applicationTemplate.equals("Fullframe + clear") || applicationTemplate.equals("Fullframe, no clear")){
-
-		    frameTransfer = 1033*VCLOCK_FRAME;
-		    readout       = (VCLOCK_STORAGE*ybin + 536.*HCLOCK + (512./xbin+2)*video)*(1024./ybin);
-		    if(applicationTemplate.equals("Fullframe + clear")){
-			clearTime    = (1033 + 1027)*VCLOCK_FRAME;
-			cycleTime    = (INVERSION_DELAY + 100*expose + clearTime + frameTransfer + readout)/1.e6;
-			exposureTime = expose/10000.;
-		    }else{
-			cycleTime    = (INVERSION_DELAY + 100*expose + frameTransfer + readout)/1.e6;
-			exposureTime = cycleTime - frameTransfer/1.e6;
-		    }
-		    readout      /= 1.e6;
-
-		}else if(applicationTemplate.equals("Fullframe with overscan")){
-
-		    clearTime     = (1033. + 1032.) * VCLOCK_FRAME;
-		    frameTransfer = 1033.*VCLOCK_FRAME;
-		    readout       = (VCLOCK_STORAGE*ybin + 540.*HCLOCK + ((540./xbin)+2.)*video)*(1032/ybin);
-		    cycleTime     = (INVERSION_DELAY + 100*expose + clearTime + frameTransfer + readout)/1.e6;
-		    exposureTime  = expose/10000.;
-		    readout      /= 1.e6;
-
-		}else if(applicationTemplate.equals("2 windows") || applicationTemplate.equals("4 windows") ||
-			 applicationTemplate.equals("6 windows") || applicationTemplate.equals("2 windows + clear") ){
-
-		    if(applicationTemplate.equals("2 windows + clear") ){
-			clearTime     = (1033 + 1027)*VCLOCK_FRAME;
-		    }else{
-			clearTime = 0.;
-		    }
-		    frameTransfer = 1033.*VCLOCK_FRAME;
-		    cycleTime     = INVERSION_DELAY + 100*expose + frameTransfer + clearTime;
-		    readout       = 0.;
-
-		    for(int i=0; i<numEnable; i++){
-
-			final int ystart = _windowPairs.getYstart(i);
-			final int xleft  = _windowPairs.getXleft(i);
-			final int xright = _windowPairs.getXright(i);
-			final int nx     = _windowPairs.getNx(i);
-			final int ny     = _windowPairs.getNy(i);
-
-			final int ystart_m = i > 0 ? _windowPairs.getYstart(i-1) : 1;
-			final int ny_m     = i > 0 ? _windowPairs.getNy(i-1)     : 0;
-
-			// Time taken to shift the window next to the storage area
-			final double yShift = i > 0 ? (ystart-ystart_m-ny_m)*VCLOCK_STORAGE : (ystart-1)*VCLOCK_STORAGE;
-
-			// Number of columns to shift whichever window is further from the edge of the readout
-			// to get ready for simultaneous readout.
-			final int diffShift = Math.abs(xleft - 1 - (1024 - xright - nx + 1) );
-
-			// Time taken to dump any pixels in a row that come after the ones we want.
-			// The '8' is the number of HCLOCKs needed to open the serial register dump gates
-			// If the left window is further from the left edge than the right window is from the
-			// right edge, then the diffshift will move it to be the same as the right window, and
-			// so we use the right window parameters to determine the number of hclocks needed, and
-			// vice versa.
-			final int numHclocks   = (xleft - 1 > 1024-xright-nx+1) ?
-			    nx + diffShift + (1024 - xright - nx + 1) + 8 :
-			    nx + diffShift + (xleft - 1) + 8;
-
-			// Time taken to read one line. The extra 2 is required to fill the video pipeline buffer
-			final double lineRead = VCLOCK_STORAGE*ybin + numHclocks*HCLOCK + (nx/xbin+2)*video;
-
-			// Time taken to read window
-			final double read     = (ny/ybin)*lineRead;
-
-			cycleTime += yShift + read;
-			readout   += yShift + read;
-		    }
-
-		    // Convert to microseconds
-		    if(applicationTemplate.equals("2 windows + clear") ){
-			exposureTime = expose/10000.;
-		    }else{
-			exposureTime = (cycleTime - frameTransfer)/1.e6;
-		    }
-
-		    cycleTime   /= 1.e6;
-		    readout     /= 1.e6;
-
-		}else if(applicationTemplate.equals("Drift mode")){
-
-		    final int ystart = _windowPairs.getYstart(0);
-		    final int xleft  = _windowPairs.getXleft(0);
-		    final int xright = _windowPairs.getXright(0);
-		    final int nx     = _windowPairs.getNx(0);
-		    final int ny     = _windowPairs.getNy(0);
-
-		    // Drift mode
-		    nwins  = (int)(((1033. / ny ) + 1.)/2.);
-		    pshift = (int)(1033.-(((2.*nwins)-1.)*ny));
-
-		    frameTransfer = (ny + ystart - 1.)*VCLOCK_FRAME;
-		    final int diffShift   = Math.abs(xleft - 1 - (1024-xright-nx+1));
-		    final int numHclocks  = (xleft - 1 > 1024-xright-nx+1) ?
-			nx + diffShift + (1024-xright-nx+1) + 8 :
-			nx + diffShift + (xleft-1) + 8;
-		    final double lineRead = VCLOCK_STORAGE*ybin + numHclocks*HCLOCK + (nx/xbin+2)*video;
-		    final double read     = (ny/ybin)*lineRead;
-
-		    cycleTime    = (INVERSION_DELAY + pshift*VCLOCK_STORAGE + 100*expose + frameTransfer + read)/1.e6;
-		    exposureTime = cycleTime - frameTransfer/1.e6;
-		    readout      = (read + pshift*VCLOCK_STORAGE)/1.e6;
-
-		}else if(applicationTemplate.equals("Timing test")){
-
-		    // Same as drift mode except no compensating delays are added, so on average
-		    // there is only one pipe shift per nwin frames
-		    final int ystart = _windowPairs.getYstart(0);
-		    final int xleft  = _windowPairs.getXleft(0);
-		    final int xright = _windowPairs.getXright(0);
-		    final int nx     = _windowPairs.getNx(0);
-		    final int ny     = _windowPairs.getNy(0);
-
-		    // Drift mode
-		    nwins  = (int)(((1033. / ny ) + 1.)/2.);
-		    pshift = (int)(1033.-(((2.*nwins)-1.)*ny));
-
-		    frameTransfer = (ny + ystart - 1.)*VCLOCK_FRAME;
-		    final int diffShift   = Math.abs(xleft - 1 - (1024-xright-nx+1));
-		    final int numHclocks  = (xleft - 1 > 1024-xright-nx+1) ?
-			nx + diffShift + (1024-xright-nx+1) + 8 :
-			nx + diffShift + (xleft-1) + 8;
-		    final double lineRead = VCLOCK_STORAGE*ybin + numHclocks*HCLOCK + (nx/xbin+2)*video;
-		    final double read     = (ny/ybin)*lineRead;
-
-		    cycleTime    = (INVERSION_DELAY + (pshift*VCLOCK_STORAGE)/nwins + 100*expose + frameTransfer + read)/1.e6;
-		    exposureTime = cycleTime - frameTransfer/1.e6;
-		    readout      = (read + (pshift*VCLOCK_STORAGE)/nwins)/1.e6;
-
-		}else{
-		    throw new Error("Application = \"" + applicationTemplate + "\" is unrecognised. Programming error in speed");
-		}
-		deadTime  = cycleTime - exposureTime;
-		frameRate = 1./cycleTime;
-
-		if(method == CYCLE_TIME_ONLY)
-		    return cycleTime;
 
 		// Signal-to-noise info. Not a disaster if we fail to compute this, so
-		// make sure that we can recover from failures with a try block
-		final double AP_SCALE = 1.5;
-		double zero = 0., sky = 0., skyTot = 0., gain = 0., read = 0., darkTot = 0.;
-		double total = 0., peak = 0., correct = 0., signal = 0., readTot = 0., seeing = 0.;
-		double noise = 1., skyPerPixel = 0., narcsec = 0., npix = 0., signalToNoise = 0.;
+		// make sure that we can recover from failures to read the target fields
+		double mag = 0., seeing = 0., airmass = 0.;
+		boolean magOK = true;
 		try {
-
-		    // Get the parameters for magnitudes
-		    zero    = _telescope.zeroPoint[_filterIndex];
-		    final double mag     = _magnitudeText.getValue();
+		    mag     = _magnitudeText.getValue();
 		    seeing  = _seeingText.getValue();
-		    sky     = SKY_BRIGHT[_skyBrightIndex][_filterIndex];
-		    final double airmass = _airmassText.getValue();
-		    if(readSpeed.equals("Fast")){
-				gain = GAIN_FAST;
-		    }else if(readSpeed.equals("Turbo")){
-				gain = GAIN_TURBO;
-		    }else if(readSpeed.equals("Slow")){
-				gain = GAIN_SLOW;
-		    }
-		    int binIndex;
-		    switch(Math.max(xbin,ybin)){
-		    case 1:
-			binIndex = 0;
-			break;
-		    case 2:
-		    case 3:
-			binIndex = 1;
-			break;
-		    case 4:
-		    case 5:
-		    case 6:
-			binIndex = 2;
-			break;
-		    default:
-			binIndex = 3;
-		    }
-		    if(readSpeed.equals("Fast")){
-				read = READ_NOISE_FAST[binIndex];
-		    }else if(readSpeed.equals("Turbo")){
-				read = READ_NOISE_TURBO[binIndex];
-		    }else if(readSpeed.equals("Slow")){
-				read = READ_NOISE_SLOW[binIndex];
-		    }
-
-
-		    final double plateScale = _telescope.plateScale;
-
-		    // Now calculate expected counts
-		    total = Math.pow(10.,(zero-mag-airmass*EXTINCTION[_filterIndex])/2.5)*exposureTime;
-		    peak  = total*xbin*ybin*Math.pow(plateScale/(seeing/2.3548),2)/(2.*Math.PI);
-
+		    airmass = _airmassText.getValue();
+		}
+		catch(final Exception e){
+		    if(_magInfo)
+			System.out.println(e.toString());
+		    magOK = false;
+		}
 
-		    // Work out fraction of flux in aperture with radius AP_SCALE*seeing
-		    correct      = 1. - Math.exp(-Math.pow(2.3548*AP_SCALE, 2)/2.);
+		final TimingConfig config = _timingConfig(mag, seeing, airmass);
+		final TimingResult result = new TimingResult();
+		if(magOK)
+		    TIMING_CACHE.compute(config, result);
+		else
+		    TimingEngine.cycleTime(config, result);
+		final double cycleTime = result.cycleTime;
 
-		    final double skyPerArcsec = Math.pow(10.,(zero-sky)/2.5)*exposureTime;
-		    skyPerPixel = skyPerArcsec*Math.pow(plateScale,2)*xbin*ybin;
-		    narcsec     = Math.PI*Math.pow(AP_SCALE*seeing,2);
-		    skyTot      = skyPerArcsec*narcsec;
-		    npix        = Math.PI*Math.pow(AP_SCALE*seeing/plateScale,2)/xbin/ybin;
-		    signal      = correct*total;
-		    darkTot     = npix*DARK_COUNT*exposureTime;
-		    readTot     = npix*Math.pow(read, 2)/gain;
-		    noise       = Math.sqrt( (readTot + darkTot + skyTot + signal) / gain);
+		if(method == CYCLE_TIME_ONLY)
+		    return cycleTime;
 
-		    // Now compute signal-to-noise in 3 hour seconds run
-		    signalToNoise = signal/noise*Math.sqrt(3*3600./cycleTime);
+		if(magOK){
 
-		    _totalCounts.setText(round(total,1));
+		    _totalCounts.setText(round(result.total,1));
 
-		    peak = (int)(100.*peak+0.5)/100.;
+		    final double peak = (int)(100.*result.peak+0.5)/100.;
 		    _peakCounts.setText(round(peak,2));
 		    if(peak > 60000){
 			_peakCounts.setBackground(ERROR_COLOUR);
@@ -1594,60 +1897,55 @@ public class ufinder extends JFrame implements VOApp,
 			_peakCounts.setBackground(DEFAULT_COLOUR);
 		    }
 
-		    _signalToNoise.setText(round(signalToNoise,1));
-		    _signalToNoiseOne.setText(round(signal/noise,2));
+		    _signalToNoise.setText(round(result.signalToNoise,1));
+		    _signalToNoiseOne.setText(round(result.signalToNoiseOne,2));
 
 		    _magInfo = true;
 
-		}
-		catch(final Exception e){
+		}else{
 		    _totalCounts.setText("");
 		    _peakCounts.setText("");
-		    if(_magInfo)
-			System.out.println(e.toString());
 		    _magInfo = false;
 		}
 
-		final double dutyCycle = 100.*exposureTime/cycleTime;
-		frameTransfer   /= 1.e6;
-
 		// Update standard timing data fields
-		_frameRate.setText(round(frameRate,3));
+		_frameRate.setText(round(result.frameRate,3));
 		_cycleTime.setText(round(cycleTime,4));
-		_dutyCycle.setText(round(dutyCycle,2));
+		_dutyCycle.setText(round(result.dutyCycle,2));
 
 		if(method == DETAILED_TIMING){
 
-		    final String pipeShift = (applicationTemplate.equals("Drift mode") || applicationTemplate.equals("Timing test")) ?
-			String.valueOf(pshift) : new String("UNDEFINED");
+		    final boolean drift = config.templateCode == TimingConfig.DRIFT ||
+			config.templateCode == TimingConfig.TIMING_TEST;
 
-		    final String nWindows = (applicationTemplate.equals("Drift mode") || applicationTemplate.equals("Timing test")) ?
-			String.valueOf(nwins) : new String("UNDEFINED");
+		    final String pipeShift = drift ? String.valueOf(result.pshift) : new String("UNDEFINED");
+
+		    final String nWindows  = drift ? String.valueOf(result.nwins)  : new String("UNDEFINED");
 
 		    final Object[][] data = {
-			{"Frame rate",       "=", round(frameRate,3),     "Hz"},
-			{"Cycle time",       "=", round(cycleTime,4),     "sec"},
-			{"Exposure time",    "=", round(exposureTime,4),  "sec"},
-			{"Dead time",        "=", round(deadTime,4),      "sec"},
-			{"Readout time",     "=", round(readout,4),       "sec"},
-			{"Frame transfer",   "=", round(frameTransfer,4), "sec"},
-			{"Duty cycle",       "=", round(dutyCycle,2),     "%"},
-			{"Pipe shift",       "=", pipeShift,              "pixels"},
-			{"nwin",             "=", nWindows,               "windows"},
-			{"Zeropoint",        "=", round(zero,2),          "mags"},
-			{"Read noise",       "=", round(read,2),          "counts RMS"},
-			{"Gain",             "=", round(gain,2),           "electrons/count"},
-			{"Aperture diameter","=", round(2.*AP_SCALE*seeing,1), "arcseconds"},
-			{"Aperture area",    "=", round(npix,1),          "binned pixels"},
-			{"Signal",           "=", round(total,1),         "total counts"},
-			{"Signal",           "=", round(signal,1),        "counts in aperture"},
-			{"Sky background",   "=", round(sky,2),           "mags/arcsec**2"},
-			{"Sky background",   "=", round(skyPerPixel,2),   "counts/binned pixel"},
-			{"Sky background",   "=", round(skyTot,1),        "counts in aperture"},
-			{"Dark",             "=", round(darkTot,1),       "counts in aperture"},
-			{"Read noise",       "=", round(readTot,0),       "effective counts in aperture"},
-			{"Signal-to-noise",  "=", round(signal/noise,2),  "in single exposure"},
-			{"Signal-to-noise",  "=", round(signalToNoise,1), "in 3 hour run"},
+			{"Frame rate",       "=", round(result.frameRate,3),        "Hz"},
+			{"Cycle time",       "=", round(cycleTime,4),               "sec"},
+			{"Exposure time",    "=", round(result.exposureTime,4),     "sec"},
+			{"Dead time",        "=", round(result.deadTime,4),         "sec"},
+			{"Readout time",     "=", round(result.readout,4),          "sec"},
+			{"Frame transfer",   "=", round(result.frameTransfer,4),    "sec"},
+			{"Duty cycle",       "=", round(result.dutyCycle,2),        "%"},
+			{"Pipe shift",       "=", pipeShift,                        "pixels"},
+			{"nwin",             "=", nWindows,                         "windows"},
+			{"Zeropoint",        "=", round(result.zero,2),             "mags"},
+			{"Read noise",       "=", round(result.readNoise,2),        "counts RMS"},
+			{"Gain",             "=", round(result.gain,2),             "electrons/count"},
+			{"Aperture diameter","=", round(result.apertureDiameter,1), "arcseconds"},
+			{"Aperture area",    "=", round(result.npix,1),             "binned pixels"},
+			{"Signal",           "=", round(result.total,1),            "total counts"},
+			{"Signal",           "=", round(result.signal,1),           "counts in aperture"},
+			{"Sky background",   "=", round(result.sky,2),              "mags/arcsec**2"},
+			{"Sky background",   "=", round(result.skyPerPixel,2),      "counts/binned pixel"},
+			{"Sky background",   "=", round(result.skyTot,1),           "counts in aperture"},
+			{"Dark",             "=", round(result.darkTot,1),          "counts in aperture"},
+			{"Read noise",       "=", round(result.readTot,0),          "effective counts in aperture"},
+			{"Signal-to-noise",  "=", round(result.signalToNoiseOne,2), "in single exposure"},
+			{"Signal-to-noise",  "=", round(result.signalToNoise,1),    "in 3 hour run"},
 		    };
 
 		    final JTable table = new JTable(new TableModel(data));
@@ -1657,6 +1955,9 @@ public class ufinder extends JFrame implements VOApp,
 		    table.getColumnModel().getColumn(2).setPreferredWidth(75);
 		    table.getColumnModel().getColumn(3).setPreferredWidth(180);
 
+		    if(DEBUG)
+			System.out.println(TIMING_CACHE);
+
 		    JOptionPane.showMessageDialog(this, table, "Timing details", JOptionPane.INFORMATION_MESSAGE);
 
 		    return cycleTime;
@@ -1675,6 +1976,90 @@ public class ufinder extends JFrame implements VOApp,
 	return 0.;
     }
 
+    /** Builds an immutable snapshot of the current setup for TimingEngine. The
+     * binning factors and exposure should be up to date, i.e. isValid called first.
+     */
+    private TimingConfig _timingConfig(final double mag, final double seeing, final double airmass) throws Exception {
+	final WindowPair[] windows = new WindowPair[numEnable];
+	for(int i=0; i<numEnable; i++)
+	    windows[i] = new WindowPair(_windowPairs.getYstart(i), _windowPairs.getXleft(i), _windowPairs.getXright(i),
+					_windowPairs.getNx(i), _windowPairs.getNy(i));
+	return new TimingConfig(applicationTemplate, readSpeed, xbin, ybin, expose, windows, _telescope,
+				_filterIndex, _skyBrightIndex, mag, seeing, airmass);
+    }
+
+    //------------------------------------------------------------------------------------------------------------------------------------------
+
+    /** Asks for a required signal-to-noise or frame rate, lists the exposure, binning
+     * and readout speed setups that achieve it for the current template and windows,
+     * and applies the one the user selects.
+     */
+    public void solveExposure(){
+
+	if(!isValid(true)){
+	    JOptionPane.showMessageDialog(this, "Please correct the current setup first", "Exposure solver", JOptionPane.ERROR_MESSAGE);
+	    return;
+	}
+
+	// What is required?
+	final String[] GOALS = {"Signal-to-noise per exposure", "Frame rate (Hz)"};
+	final JComboBox<String> goalChoice = new JComboBox<String>(GOALS);
+	final DoubleTextField goalText = new DoubleTextField(10.0, 0.001, 100000., 1.0, "Required value", true, DEFAULT_COLOUR, ERROR_COLOUR, 8);
+	final JPanel ask = new JPanel(new FlowLayout(FlowLayout.LEFT));
+	ask.add(goalChoice);
+	ask.add(new JLabel(" at least "));
+	ask.add(goalText);
+	if(JOptionPane.showConfirmDialog(this, ask, "Exposure solver", JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION)
+	    return;
+
+	final java.util.List<ExposureSolver.Solution> solutions;
+	try{
+	    readSpeed = (String) speedChoice.getSelectedItem();
+	    final double mag = _magnitudeText.getValue();
+	    final ExposureSolver solver = new ExposureSolver(_timingConfig(mag, _seeingText.getValue(), _airmassText.getValue()));
+	    if(goalChoice.getSelectedIndex() == 0)
+		solutions = solver.solveSignalToNoise(mag, goalText.getValue());
+	    else
+		solutions = solver.solveFrameRate(mag, goalText.getValue());
+	}
+	catch(final Exception e){
+	    JOptionPane.showMessageDialog(this, e.toString(), "Exposure solver", JOptionPane.ERROR_MESSAGE);
+	    return;
+	}
+
+	if(solutions.size() == 0){
+	    JOptionPane.showMessageDialog(this, "No setup meets that requirement without saturating",
+					  "Exposure solver", JOptionPane.INFORMATION_MESSAGE);
+	    return;
+	}
+
+	final Object[][] data = new Object[solutions.size()+1][];
+	data[0] = new Object[] {"Speed", "Bin", "Exposure (ms)", "Frame rate (Hz)", "S-to-N", "Peak", "Duty cycle (%)"};
+	for(int i=0; i<solutions.size(); i++){
+	    final ExposureSolver.Solution sol = solutions.get(i);
+	    data[i+1] = new Object[] {sol.config.readSpeed, sol.config.xbin + "x" + sol.config.ybin,
+				      round(sol.config.expose/10.,1), round(sol.result.frameRate,3),
+				      round(sol.result.signalToNoiseOne,2), round(sol.result.peak,0),
+				      round(sol.result.dutyCycle,2)};
+	}
+	final JTable table = new JTable(new TableModel(data));
+	table.setGridColor(DEFAULT_COLOUR);
+	table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+
+	if(JOptionPane.showConfirmDialog(this, table, "Select a setup to apply", JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION)
+	    return;
+	final int row = table.getSelectedRow();
+	if(row < 1) return;
+
+	final TimingConfig chosen = solutions.get(row-1).config;
+	speedChoice.setSelectedItem(chosen.readSpeed);
+	xbinText.setValue(chosen.xbin);
+	ybinText.setValue(chosen.ybin);
+	exposeText.setValue(chosen.expose/10);
+	tinyExposeText.setValue(chosen.expose % 10);
+	speed(TIMING_UPDATE);
+    }
+
     //------------------------------------------------------------------------------------------------------------------------------------------
 
     // GUI update. It seems that updateComponentTree method re-enables the pastes on numeric fields where
@@ -1740,6 +2125,17 @@ public class ufinder extends JFrame implements VOApp,
 	return start;
     }
 
+    // Enables the synchronise button only when the windows need it
+    private void _updateSyncButton(){
+	if(_areSynchronised()){
+	    syncWindows.setEnabled(false);
+	    syncWindows.setBackground(DEFAULT_COLOUR);
+	}else{
+	    syncWindows.setEnabled(true);
+	    syncWindows.setBackground(WARNING_COLOUR);
+	}
+    }
+
     // Checks whether windows are synchronised
     private boolean _areSynchronised(){
 	if(isValid(false)){
@@ -1970,12 +2366,58 @@ public class ufinder extends JFrame implements VOApp,
 	    throw new Exception("Number of TEMPLATE_ID = " + TEMPLATE_ID.length +
 				" does not equal the number of TEMPLATE_LABEL = " + TEMPLATE_LABEL.length);
 
+	// optional, as older configuration files do not have it
+	FOV_ENCODING = FOVWriter.encoding(properties.getProperty("FOV_ENCODING", "TABLEDATA"));
+
+	// the survey image cache, also optional; off without a directory
+	SURVEY_CACHE_DIRECTORY = properties.getProperty("SURVEY_CACHE_DIRECTORY", "").trim();
+	SURVEY_CACHE_MB        = Integer.parseInt(properties.getProperty("SURVEY_CACHE_MB", "200").trim());
+	SURVEY_FIELD           = Double.parseDouble(properties.getProperty("SURVEY_FIELD", "15").trim());
+	SURVEY_URL.clear();
+	for(String survey : SURVEY_LABEL){
+	    final String url = properties.getProperty("SURVEY_URL_" + survey, "").trim();
+	    if(url.length() > 0) SURVEY_URL.put(survey, url);
+	}
+	// object names, also optional; without a file they are remembered for this run only
+	NAME_CACHE_FILE   = properties.getProperty("NAME_CACHE_FILE", "").trim();
+	NAME_RESOLVER_URL = properties.getProperty("NAME_RESOLVER_URL", SesameResolver.DEFAULT_URL).trim();
+
+	// how many comparison stars "Auto Comp" marks, also optional
+	AUTO_COMPARISONS = Integer.parseInt(properties.getProperty("AUTO_COMPARISONS", "3").trim());
+
 	POWER_ON  = _loadProperty(properties, "POWER_ON");
 	POWER_OFF = _loadProperty(properties, "POWER_OFF");
 
 
 
     }
+    /** Reads the name and survey caches set up in the configuration; until
+     * this is done names are left to Aladin and images are not cached
+     */
+    private void _openCaches() {
+	TargetResolver names;
+	try{
+	    names = new TargetResolver(new SesameResolver(NAME_RESOLVER_URL),
+				       NAME_CACHE_FILE.length() > 0 ? new File(NAME_CACHE_FILE) : null);
+	}catch(Exception e){
+	    System.out.println("Object names will not be remembered between runs: " + e);
+	    try{
+		names = new TargetResolver(new SesameResolver(NAME_RESOLVER_URL), null);
+	    }catch(Exception e2){
+		names = null;
+	    }
+	}
+	_names = names;
+
+	if(SURVEY_CACHE_DIRECTORY.length() > 0){
+	    try{
+		_surveyCache = new SurveyCache(new File(SURVEY_CACHE_DIRECTORY), 1024L*1024L*SURVEY_CACHE_MB);
+	    }catch(Exception e){
+		System.out.println("Survey images will not be cached: " + e);
+	    }
+	}
+    }
+
         //------------------------------------------------------------------------------------------------------------------------------------------
 
     /** Splits up multiple arguments from configuration file */